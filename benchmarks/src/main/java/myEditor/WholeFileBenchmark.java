@@ -0,0 +1,73 @@
+package myEditor;
+
+import myEditorLineByLine.BenchmarkDocuments;
+import myEditorLineByLine.EditPattern;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole-file editor: diffing the text against the last synced version into a
+ * {@link BlockDelta}, its wire format, and the {@code TextEditorServer} write path that applies
+ * a delta and writes the whole file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WholeFileBenchmark {
+    private static final String FILE_ID = "/tmp/document.txt";
+
+    @Param({"10000", "100000"})
+    private int documentLines;
+
+    @Param({"1", "1024"})
+    private int editBytes;
+
+    @Param({"APPEND", "TOP_INSERT", "SCATTERED"})
+    private EditPattern pattern;
+
+    private Path directory;
+    private Path file;
+    private byte[] base;
+    private byte[] edited;
+    private byte[] message;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("editor-bench");
+        file = directory.resolve("document.txt");
+        base = BenchmarkDocuments.content(documentLines);
+        edited = pattern.edit(base, editBytes, new Random(42));
+        message = BlockDelta.compute(FILE_ID, base, edited).encode();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkDocuments.delete(directory);
+    }
+
+    @Benchmark
+    public byte[] diffAndEncode() {
+        return BlockDelta.compute(FILE_ID, base, edited).encode();
+    }
+
+    @Benchmark
+    public byte[] decodeAndApply() {
+        return BlockDelta.decode(message).apply(base);
+    }
+
+    @Benchmark
+    public long applyAndWrite() throws IOException {
+        // As TextEditorServer.applyDelta: apply to the current version and write the whole file
+        byte[] content = BlockDelta.decode(message).apply(base);
+        Files.write(file, content);
+        return BlockDelta.hash(content);
+    }
+}
@@ -0,0 +1,77 @@
+package myEditorLineByLine;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Document content for the benchmarks: lines of prose-like text, always the same for a given
+ * line number, written to temporary files the benchmarks clean up after themselves.
+ */
+public final class BenchmarkDocuments {
+    private static final String[] POOL = new String[1024];
+
+    static {
+        String[] words = {"the", "editor", "sends", "each", "changed", "line", "to", "server", "which", "applies",
+                "it", "and", "tells", "other", "clients", "about", "new", "version", "of", "document"};
+        for (int i = 0; i < POOL.length; i++) {
+            StringBuilder line = new StringBuilder();
+            // Between 0 and about 120 characters, like source code and prose
+            int length = (i * 37) % 121;
+            for (int w = i; line.length() < length; w += 7) {
+                line.append(words[w % words.length]).append(' ');
+            }
+            POOL[i] = line.toString().stripTrailing();
+        }
+    }
+
+    private BenchmarkDocuments() {
+    }
+
+    public static String line(int index) {
+        return POOL[index & (POOL.length - 1)];
+    }
+
+    public static List<String> lines(int first, int count) {
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(line(first + i));
+        }
+        return lines;
+    }
+
+    public static byte[] content(int lineCount) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < lineCount; i++) {
+            content.append(line(i)).append(System.lineSeparator());
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static Path write(Path file, int lineCount) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < lineCount; i++) {
+                writer.write(line(i));
+                writer.newLine();
+            }
+        }
+        return file;
+    }
+
+    public static void delete(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
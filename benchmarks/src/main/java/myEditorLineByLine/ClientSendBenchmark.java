@@ -0,0 +1,53 @@
+package myEditorLineByLine;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@code TextEditorByLineClient.sendChanges} costs after an edit: recording the changed
+ * lines, draining them into edits and encoding the message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientSendBenchmark {
+    private static final String FILE_ID = "/tmp/document.txt";
+
+    @Param({"10000", "1000000"})
+    private int documentLines;
+
+    @Param({"1", "100"})
+    private int editLines;
+
+    @Param({"APPEND", "TOP_INSERT", "SCATTERED"})
+    private EditPattern pattern;
+
+    private final DirtyLineTracker tracker = new DirtyLineTracker();
+    private Random random;
+    private int lineCount;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        random = new Random(42);
+        lineCount = documentLines;
+        tracker.clear();
+    }
+
+    @Benchmark
+    public byte[] sendChanges() {
+        List<LineEdit> edits = pattern.edits(lineCount, editLines, random);
+        pattern.record(tracker, edits, lineCount);
+        for (LineEdit edit : edits) {
+            lineCount += edit.lineDelta();
+        }
+        // The text area is not modelled: the text of a line only depends on its number
+        List<LineEdit> drained = tracker.drain(lineCount, BenchmarkDocuments::line);
+        return WireFormat.BINARY.encode(FILE_ID, drained);
+    }
+}
@@ -0,0 +1,84 @@
+package myEditorLineByLine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Where benchmark edits land in a document.
+ */
+public enum EditPattern {
+    /** New lines (or bytes) typed at the end of the document. */
+    APPEND,
+    /** New lines (or bytes) typed at the very top, moving everything below. */
+    TOP_INSERT,
+    /** Existing lines (or bytes) changed in place at random positions; the size stays the same. */
+    SCATTERED;
+
+    /**
+     * The edits a client sends for {@code editLines} changed lines of a document of
+     * {@code lineCount} lines.
+     */
+    public List<LineEdit> edits(int lineCount, int editLines, Random random) {
+        switch (this) {
+            case APPEND:
+                return List.of(LineEdit.insert(lineCount, BenchmarkDocuments.lines(random.nextInt(1024), editLines)));
+            case TOP_INSERT:
+                return List.of(LineEdit.insert(0, BenchmarkDocuments.lines(random.nextInt(1024), editLines)));
+            default:
+                List<LineEdit> edits = new ArrayList<>(editLines);
+                for (int i = 0; i < editLines; i++) {
+                    edits.add(LineEdit.set(random.nextInt(lineCount), BenchmarkDocuments.line(random.nextInt(1024))));
+                }
+                return edits;
+        }
+    }
+
+    /**
+     * Feeds the tracker the element changes the text area reports for the edits, as
+     * {@code TextEditorByLineClient} does: typing lines that end in line breaks into a line
+     * splits it, changing it and adding the new ones after it.
+     */
+    public void record(DirtyLineTracker tracker, List<LineEdit> edits, int lineCount) {
+        for (LineEdit edit : edits) {
+            if (edit.getKind() == LineEdit.Kind.INSERT) {
+                int line = Math.max(0, Math.min(edit.getLine(), lineCount - 1));
+                tracker.linesReplaced(line, 1, 1 + edit.getLines().size());
+                lineCount += edit.getLines().size();
+            } else {
+                tracker.lineChanged(edit.getLine());
+            }
+        }
+    }
+
+    /**
+     * Returns {@code content} with {@code editBytes} bytes typed or overwritten according to the pattern.
+     */
+    public byte[] edit(byte[] content, int editBytes, Random random) {
+        byte[] typed = new byte[editBytes];
+        for (int i = 0; i < editBytes; i++) {
+            typed[i] = (byte) ('a' + random.nextInt(26));
+        }
+        switch (this) {
+            case APPEND: {
+                byte[] edited = new byte[content.length + editBytes];
+                System.arraycopy(content, 0, edited, 0, content.length);
+                System.arraycopy(typed, 0, edited, content.length, editBytes);
+                return edited;
+            }
+            case TOP_INSERT: {
+                byte[] edited = new byte[content.length + editBytes];
+                System.arraycopy(typed, 0, edited, 0, editBytes);
+                System.arraycopy(content, 0, edited, editBytes, content.length);
+                return edited;
+            }
+            default: {
+                byte[] edited = content.clone();
+                for (byte b : typed) {
+                    edited[random.nextInt(edited.length)] = b;
+                }
+                return edited;
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package myEditorLineByLine;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a document back to disk: one edit followed by the snapshot the write-behind flush
+ * takes, written to a temporary file and moved over the document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PersistenceBenchmark {
+    @Param({"10000", "100000"})
+    private int documentLines;
+
+    @Param({"1", "100"})
+    private int editLines;
+
+    @Param({"APPEND", "TOP_INSERT", "SCATTERED"})
+    private EditPattern pattern;
+
+    @Param({"heap", "mapped"})
+    private String store;
+
+    private Path directory;
+    private String fileId;
+    private LineDocument document;
+    private Random random;
+    private int lineCount;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("editor-bench");
+        fileId = BenchmarkDocuments.write(directory.resolve("document.txt"), documentLines).toString();
+        document = LineDocument.load(fileId, directory.resolve("logs"), 64, "mapped".equals(store) ? 0 : Long.MAX_VALUE, 1000);
+        random = new Random(42);
+        lineCount = documentLines;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        document.close();
+        BenchmarkDocuments.delete(directory);
+    }
+
+    @Benchmark
+    public boolean editAndFlush() throws IOException {
+        List<LineEdit> edits = pattern.edits(lineCount, editLines, random);
+        for (LineEdit edit : edits) {
+            lineCount += edit.lineDelta();
+        }
+        document.apply(List.of(new LineMessage(fileId, "client", edits)));
+        return document.flush();
+    }
+}
@@ -0,0 +1,66 @@
+package myEditorLineByLine;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of what clients send ({@code sendChanges}, {@code processMessage}) and
+ * of the batches the server publishes back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+    private static final String FILE_ID = "/tmp/document.txt";
+
+    @Param({"10000", "1000000"})
+    private int documentLines;
+
+    @Param({"1", "100"})
+    private int editLines;
+
+    @Param({"APPEND", "TOP_INSERT", "SCATTERED"})
+    private EditPattern pattern;
+
+    @Param({"TEXT", "BINARY"})
+    private WireFormat format;
+
+    private List<LineEdit> edits;
+    private byte[] message;
+    private DocumentUpdate update;
+    private byte[] updateFrame;
+
+    @Setup
+    public void setUp() {
+        edits = pattern.edits(documentLines, editLines, new Random(42));
+        message = format.encode(FILE_ID, edits);
+        update = DocumentUpdate.batch(FILE_ID, 1, 41, 42, List.of(new LineMessage(FILE_ID, "client", edits)));
+        updateFrame = BinaryLineCodec.encodeUpdate(update);
+    }
+
+    @Benchmark
+    public byte[] encodeEdits() {
+        return format.encode(FILE_ID, edits);
+    }
+
+    @Benchmark
+    public LineMessage decodeEdits() {
+        return format.decode(message);
+    }
+
+    @Benchmark
+    public byte[] encodeBatch() {
+        return BinaryLineCodec.encodeUpdate(update);
+    }
+
+    @Benchmark
+    public List<LineMessage> decodeBatch() {
+        return WireFormat.decodeUpdate(updateFrame).getSegments();
+    }
+}
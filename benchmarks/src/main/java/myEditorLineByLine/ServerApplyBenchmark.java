@@ -0,0 +1,66 @@
+package myEditorLineByLine;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server side of an edit ({@code updateFile}): logging it, applying it to the document in
+ * memory and building the batch to publish. Each iteration starts from a fresh copy of the
+ * document in a temporary directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerApplyBenchmark {
+    @Param({"10000", "1000000"})
+    private int documentLines;
+
+    @Param({"1", "100"})
+    private int editLines;
+
+    @Param({"APPEND", "TOP_INSERT", "SCATTERED"})
+    private EditPattern pattern;
+
+    // Whether the document is read onto the heap or mapped, see editor.store.mappedBytes
+    @Param({"heap", "mapped"})
+    private String store;
+
+    private Path directory;
+    private String fileId;
+    private LineDocument document;
+    private Random random;
+    private int lineCount;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("editor-bench");
+        fileId = BenchmarkDocuments.write(directory.resolve("document.txt"), documentLines).toString();
+        document = LineDocument.load(fileId, directory.resolve("logs"), 64, "mapped".equals(store) ? 0 : Long.MAX_VALUE, 1000);
+        random = new Random(42);
+        lineCount = documentLines;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        document.close();
+        BenchmarkDocuments.delete(directory);
+    }
+
+    @Benchmark
+    public DocumentUpdate apply() throws IOException {
+        List<LineEdit> edits = pattern.edits(lineCount, editLines, random);
+        for (LineEdit edit : edits) {
+            lineCount += edit.lineDelta();
+        }
+        return document.apply(List.of(new LineMessage(fileId, "client", edits)));
+    }
+}
@@ -0,0 +1,299 @@
+package myEditor;
+
+import myEditorCommon.FrameReader;
+import myEditorCommon.FrameWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * The changes between two versions of a file, as a list of byte ranges copied from the old
+ * version and literal bytes, computed rsync-style: the old version is cut into fixed-size
+ * blocks indexed by a rolling checksum, and the new version is scanned for those blocks one
+ * byte at a time. Both versions are identified by {@link #hash}, so a receiver only applies
+ * a delta to the exact version it was made against.
+ * <p>
+ * Frame: version byte, file id (varint length + UTF-8), base hash and target hash (8 bytes each),
+ * varint target length, varint op count, then ops: {@code 0} copy (varint offset, varint length)
+ * or {@code 1} literal (varint length + bytes).
+ */
+public final class BlockDelta {
+    public static final byte VERSION = 1;
+
+    private static final int MIN_BLOCK_SIZE = 64;
+    private static final int MAX_BLOCK_SIZE = 8192;
+    private static final byte OP_COPY = 0;
+    private static final byte OP_LITERAL = 1;
+    // Largest version a delta may rebuild, e.g. -Deditor.delta.maxBytes=1073741824
+    private static final int MAX_TARGET_LENGTH = Integer.getInteger("editor.delta.maxBytes", 256 << 20);
+
+    private final String fileId;
+    private final long baseHash;
+    private final long targetHash;
+    private final int targetLength;
+    private final List<Op> ops;
+
+    private BlockDelta(String fileId, long baseHash, long targetHash, int targetLength, List<Op> ops) {
+        this.fileId = fileId;
+        this.baseHash = baseHash;
+        this.targetHash = targetHash;
+        this.targetLength = targetLength;
+        this.ops = ops;
+    }
+
+    /**
+     * Identifies a version of a file: the CRC32C of its bytes next to their length.
+     */
+    public static long hash(byte[] content) {
+        CRC32C crc = new CRC32C();
+        crc.update(content, 0, content.length);
+        return ((long) content.length << 32) | crc.getValue();
+    }
+
+    public static BlockDelta compute(String fileId, byte[] base, byte[] target) {
+        // About sqrt(n) bytes per block, like rsync, keeps both the index and the literals small
+        int blockSize = Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, (int) Math.sqrt(base.length)));
+        int blockCount = base.length / blockSize;
+
+        // Weak checksum -> first block with it; next[] chains the blocks that share a checksum
+        Map<Integer, Integer> firstBlock = new HashMap<>(blockCount * 2);
+        int[] next = new int[blockCount];
+        for (int block = blockCount - 1; block >= 0; block--) {
+            Integer previous = firstBlock.put(checksum(base, block * blockSize, blockSize), block);
+            next[block] = previous == null ? -1 : previous;
+        }
+
+        List<Op> ops = new ArrayList<>();
+        int literalStart = 0;
+        int position = 0;
+        int a = 0;
+        int b = 0;
+        boolean rolling = false;
+        while (blockCount > 0 && position + blockSize <= target.length) {
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    int x = target[position + i] & 0xFF;
+                    a += x;
+                    b += (blockSize - i) * x;
+                }
+                rolling = true;
+            }
+
+            int match = -1;
+            Integer candidate = firstBlock.get((a & 0xFFFF) | (b << 16));
+            for (int block = candidate == null ? -1 : candidate; block >= 0; block = next[block]) {
+                if (Arrays.equals(base, block * blockSize, block * blockSize + blockSize, target, position, position + blockSize)) {
+                    match = block;
+                    break;
+                }
+            }
+
+            if (match < 0) {
+                // Roll the window one byte forward
+                if (position + blockSize < target.length) {
+                    int out = target[position] & 0xFF;
+                    int in = target[position + blockSize] & 0xFF;
+                    a += in - out;
+                    b += a - blockSize * out;
+                }
+                position++;
+                continue;
+            }
+
+            // Grow the match both ways past the block edges, as far as the bytes agree
+            int baseStart = match * blockSize;
+            int back = 0;
+            while (position - back > literalStart && baseStart - back > 0
+                    && base[baseStart - back - 1] == target[position - back - 1]) {
+                back++;
+            }
+            int length = blockSize;
+            while (baseStart + length < base.length && position + length < target.length
+                    && base[baseStart + length] == target[position + length]) {
+                length++;
+            }
+
+            addLiteral(ops, target, literalStart, position - back);
+            addCopy(ops, baseStart - back, length + back);
+            position += length;
+            literalStart = position;
+            rolling = false;
+        }
+        addLiteral(ops, target, literalStart, target.length);
+
+        return new BlockDelta(fileId, hash(base), hash(target), target.length, ops);
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    private static void addLiteral(List<Op> ops, byte[] data, int from, int to) {
+        if (from < to) {
+            ops.add(new Op(OP_LITERAL, from, to - from, data));
+        }
+    }
+
+    private static void addCopy(List<Op> ops, int offset, int length) {
+        if (!ops.isEmpty()) {
+            Op last = ops.get(ops.size() - 1);
+            if (last.kind == OP_COPY && last.offset + last.length == offset) {
+                ops.set(ops.size() - 1, new Op(OP_COPY, last.offset, last.length + length, null));
+                return;
+            }
+        }
+        ops.add(new Op(OP_COPY, offset, length, null));
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public long getBaseHash() {
+        return baseHash;
+    }
+
+    public long getTargetHash() {
+        return targetHash;
+    }
+
+    /**
+     * Rebuilds the target version from the base version.
+     *
+     * @throws IllegalArgumentException if {@code base} is not the version this delta was made against
+     */
+    public byte[] apply(byte[] base) {
+        if (hash(base) != baseHash) {
+            throw new IllegalArgumentException("Delta does not apply to this version");
+        }
+        // The frame is not trusted, so check the ops before allocating what they claim to fill
+        for (Op op : ops) {
+            if (op.kind == OP_COPY && op.offset > base.length - op.length) {
+                throw new IllegalArgumentException("Copy past the end of the base version");
+            }
+        }
+        byte[] target = new byte[targetLength];
+        int position = 0;
+        for (Op op : ops) {
+            if (op.kind == OP_COPY) {
+                System.arraycopy(base, op.offset, target, position, op.length);
+            } else {
+                System.arraycopy(op.data, op.offset, target, position, op.length);
+            }
+            position += op.length;
+        }
+        if (position != targetLength || hash(target) != targetHash) {
+            throw new IllegalArgumentException("Delta produced a different version");
+        }
+        return target;
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(VERSION);
+        FrameWriter.writeString(out, fileId);
+        FrameWriter.writeLong(out, baseHash);
+        FrameWriter.writeLong(out, targetHash);
+        FrameWriter.writeVarint(out, targetLength);
+        FrameWriter.writeVarint(out, ops.size());
+        for (Op op : ops) {
+            out.write(op.kind);
+            if (op.kind == OP_COPY) {
+                FrameWriter.writeVarint(out, op.offset);
+                FrameWriter.writeVarint(out, op.length);
+            } else {
+                FrameWriter.writeVarint(out, op.length);
+                out.write(op.data, op.offset, op.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a frame. Literals point into {@code frame} rather than being copied out of it.
+     *
+     * @throws IllegalArgumentException if the frame is truncated or malformed
+     */
+    public static BlockDelta decode(byte[] frame) {
+        FrameReader reader = new FrameReader(frame);
+        int version = reader.readByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported frame version: " + version);
+        }
+        String fileId = reader.readString();
+        long baseHash = reader.readLong();
+        long targetHash = reader.readLong();
+        int targetLength = reader.readVarint();
+        // The target hash starts with the length, so a frame cannot claim one size and hash another
+        if (targetLength != targetHash >>> 32 || targetLength > MAX_TARGET_LENGTH) {
+            throw new IllegalArgumentException("Target length out of range: " + targetLength);
+        }
+        int count = reader.readVarint();
+        // Every op takes at least two bytes, which bounds the count of a corrupt frame
+        List<Op> ops = new ArrayList<>(Math.min(count, reader.remaining() / 2));
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            int kind = reader.readByte();
+            if (kind == OP_COPY) {
+                int offset = reader.readVarint();
+                int length = reader.readVarint();
+                ops.add(new Op(OP_COPY, offset, length, null));
+                total += length;
+            } else if (kind == OP_LITERAL) {
+                int length = reader.readLength();
+                ops.add(new Op(OP_LITERAL, reader.position(), length, frame));
+                reader.skip(length);
+                total += length;
+            } else {
+                throw new IllegalArgumentException("Unknown op code: " + kind);
+            }
+        }
+        if (total != targetLength) {
+            throw new IllegalArgumentException("Ops do not add up to the target length");
+        }
+        return new BlockDelta(fileId, baseHash, targetHash, targetLength, ops);
+    }
+
+    @Override
+    public String toString() {
+        int copied = 0;
+        int literal = 0;
+        for (Op op : ops) {
+            if (op.kind == OP_COPY) {
+                copied += op.length;
+            } else {
+                literal += op.length;
+            }
+        }
+        return "BlockDelta(" + ops.size() + " ops, " + copied + " bytes copied, " + literal + " bytes literal)";
+    }
+
+    private static final class Op {
+        private final byte kind;
+        private final int offset;
+        private final int length;
+        // Literal bytes live in data[offset, offset + length); copies read base[offset, offset + length)
+        private final byte[] data;
+
+        Op(byte kind, int offset, int length, byte[] data) {
+            this.kind = kind;
+            this.offset = offset;
+            this.length = length;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package myEditor;
+
+/**
+ * Content types of the whole-file editor's messages. Messages without one are full
+ * snapshots in the original {@code fileId::content} form.
+ */
+final class SyncMessages {
+    static final String SNAPSHOT_CONTENT_TYPE = "text/plain";
+    // A BlockDelta frame against the last version the sender saw
+    static final String DELTA_CONTENT_TYPE = "application/vnd.editor.delta; v=" + BlockDelta.VERSION;
+    // Client -> server, body is the file id: publish the current snapshot of the file
+    static final String SNAPSHOT_REQUEST_CONTENT_TYPE = "application/vnd.editor.snapshot-request";
+    // Server -> the client named by the app id, body is the file id: its delta did not apply, send a snapshot
+    static final String RESEND_CONTENT_TYPE = "application/vnd.editor.resend";
+
+    private SyncMessages() {
+    }
+}
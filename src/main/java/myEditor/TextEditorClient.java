@@ -1,43 +1,54 @@
 package myEditor;
 
-import com.rabbitmq.client.*;
+import myEditorCommon.DocumentRouting;
+import myEditorCommon.FlushPolicy;
+import myEditorCommon.FlushScheduler;
+import myEditorCommon.Transport;
+import myEditorCommon.TransportChannel;
+import myEditorCommon.TransportMessage;
+
 
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.UUID;
 import java.util.concurrent.TimeoutException;
 
 public class TextEditorClient extends JFrame {
     private static final String QUEUE_NAME = "text_changes_queue";
-    private static final String EXCHANGE_NAME = "text_updates";
     private static final String CLIENTS_EXCHANGE = "clients_updates";
+    // Send block deltas against the last synced version instead of the whole text
+    private static final boolean deltaSync = Boolean.parseBoolean(System.getProperty("editor.delta", "true"));
     private JTextArea textArea;
     private JLabel clientCountLabel;
     private JLabel fileNameLabel;
-    private Channel channel;
-    private Timer timer;
+    private TransportChannel channel;
+    private String updateQueueName;
+    // One scheduler thread for the whole client decides when typing is sent
+    // and hands the sending to the EDT, which owns the text area and lastSentText
+    private final FlushScheduler flushScheduler =
+            new FlushScheduler(FlushPolicy.fromSystemProperties(), () -> SwingUtilities.invokeLater(this::sendChanges));
     private String lastSentText = "";
     private String filePath;
     private String fileId;
+    private final String clientId = UUID.randomUUID().toString();
 
     public TextEditorClient() {
         try {
-            // Set up RabbitMQ connection and channel
-            ConnectionFactory factory = new ConnectionFactory();
-            factory.setHost("localhost");
-            Connection connection = factory.newConnection();
-            channel = connection.createChannel();
-            channel.queueDeclare(QUEUE_NAME, false, false, false, null);
-            channel.exchangeDeclare(EXCHANGE_NAME, BuiltinExchangeType.FANOUT);
-            String updateQueueName = channel.queueDeclare().getQueue();
-            channel.queueBind(updateQueueName, EXCHANGE_NAME, "");
+            // Connect to the broker, or to the in-process transport, see editor.transport
+            Transport transport = Transport.fromSystemProperties();
+            channel = transport.createChannel();
+            channel.declareQueue(QUEUE_NAME);
+            DocumentRouting.declareExchange(channel);
+            // Bound to the open file's routing key once a file is chosen
+            updateQueueName = channel.declareTemporaryQueue();
 
             // Create the text editor GUI
             setTitle("Text Editor Client");
@@ -71,28 +82,59 @@ public class TextEditorClient extends JFrame {
             textArea.getDocument().addDocumentListener(getDocumentListener());
 
             // Listen for updates from the server
-            channel.basicConsume(updateQueueName, true, (consumerTag, delivery) -> {
+            channel.consume(updateQueueName, delivery -> {
+                String contentType = delivery.getContentType();
+                boolean own = clientId.equals(delivery.getAppId());
+                if (SyncMessages.RESEND_CONTENT_TYPE.equals(contentType)) {
+                    // Our last delta did not apply on the server, so send everything
+                    if (own) {
+                        String resent = new String(delivery.getBody(), StandardCharsets.UTF_8);
+                        SwingUtilities.invokeLater(() -> {
+                            if (resent.equals(fileId)) {
+                                sendSnapshot(textArea.getText());
+                            }
+                        });
+                    }
+                    return;
+                }
+                if (own) {
+                    // Our own update, already in the text area
+                    return;
+                }
+                if (SyncMessages.DELTA_CONTENT_TYPE.equals(contentType)) {
+                    BlockDelta delta;
+                    try {
+                        delta = BlockDelta.decode(delivery.getBody());
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("Received malformed delta: " + e.getMessage());
+                        return;
+                    }
+                    if (delta.getFileId().equals(fileId)) {
+                        SwingUtilities.invokeLater(() -> applyDelta(delta));
+                    }
+                    return;
+                }
+
                 String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
                 String[] parts = message.split("::", 2);
                 if (parts.length == 2 && parts[0].equals(fileId)) {
                     String fileContent = parts[1];
                     SwingUtilities.invokeLater(() -> {
                         textArea.getDocument().removeDocumentListener(getDocumentListener());
-                        textArea.setText(fileContent);
+                        patchText(fileContent);
                         lastSentText = fileContent;
                         textArea.getDocument().addDocumentListener(getDocumentListener());
                     });
                 }
-            }, consumerTag -> {
             });
 
             // Listen for client count updates
-            String clientsUpdateQueueName = channel.queueDeclare().getQueue();
-            channel.queueBind(clientsUpdateQueueName, CLIENTS_EXCHANGE, "");
-            channel.basicConsume(clientsUpdateQueueName, true, (consumerTag, delivery) -> {
+            String clientsUpdateQueueName = channel.declareTemporaryQueue();
+            channel.bind(clientsUpdateQueueName, CLIENTS_EXCHANGE, "");
+            channel.consume(clientsUpdateQueueName, delivery -> {
                 String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
                 SwingUtilities.invokeLater(() -> clientCountLabel.setText("Connected clients: " + message));
-            }, consumerTag -> { });
+            });
 
             // Register with the server
             registerClient();
@@ -115,7 +157,7 @@ public class TextEditorClient extends JFrame {
         int result = fileChooser.showOpenDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
             filePath = fileChooser.getSelectedFile().getAbsolutePath();
-            fileId = filePath;
+            subscribeTo(filePath);
             updateFileNameLabel(filePath);
             readFileContent();
         } else {
@@ -125,6 +167,15 @@ public class TextEditorClient extends JFrame {
         }
     }
 
+    private void subscribeTo(String newFileId) {
+        try {
+            DocumentRouting.rebind(channel, updateQueueName, fileId, newFileId);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        fileId = newFileId;
+    }
+
     private void updateFileNameLabel(String filePath) {
         File file = new File(filePath);
         fileNameLabel.setText("Editing file: " + file.getName());
@@ -150,45 +201,112 @@ public class TextEditorClient extends JFrame {
         return new DocumentListener() {
             @Override
             public void insertUpdate(DocumentEvent e) {
-                resetTimer();
+                flushScheduler.edited(e.getLength());
             }
 
             @Override
             public void removeUpdate(DocumentEvent e) {
-                resetTimer();
+                flushScheduler.edited(e.getLength());
             }
 
             @Override
             public void changedUpdate(DocumentEvent e) {
-                resetTimer();
+                flushScheduler.edited(0);
             }
         };
     }
 
-    private void resetTimer() {
-        if (timer != null) {
-            timer.cancel();
+    private void sendChanges() {
+        String text = textArea.getText();
+        if (text.equals(lastSentText)) {
+            return;
+        }
+        if (!deltaSync || lastSentText.isEmpty()) {
+            sendSnapshot(text);
+            return;
+        }
+
+        byte[] content = text.getBytes(StandardCharsets.UTF_8);
+        BlockDelta delta = BlockDelta.compute(fileId, lastSentText.getBytes(StandardCharsets.UTF_8), content);
+        byte[] message = delta.encode();
+        if (message.length >= content.length) {
+            // Nothing left to reuse, the snapshot is as small
+            sendSnapshot(text);
+            return;
+        }
+        try {
+            channel.publish("", QUEUE_NAME, outgoing(SyncMessages.DELTA_CONTENT_TYPE, message));
+            System.out.println("Changes sent to server, " + flushScheduler.latencySummary() + ": " + delta);
+            lastSentText = text;
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                sendChanges();
-            }
-        }, 2000); // Push updated every 2 seconds
     }
 
-    private void sendChanges() {
-        String text = textArea.getText();
-        if (!text.equals(lastSentText)) {
-            try {
-                String message = fileId + "::" + text;
-                channel.basicPublish("", QUEUE_NAME, null, message.getBytes(StandardCharsets.UTF_8));
-                System.out.println("Changes sent to server: " + message);
-                lastSentText = text;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    private void sendSnapshot(String text) {
+        try {
+            String message = fileId + "::" + text;
+            channel.publish("", QUEUE_NAME, outgoing(SyncMessages.SNAPSHOT_CONTENT_TYPE, message.getBytes(StandardCharsets.UTF_8)));
+            System.out.println("Snapshot sent to server: " + text.length() + " characters");
+            lastSentText = text;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private TransportMessage outgoing(String contentType, byte[] body) {
+        return new TransportMessage(contentType, clientId, body);
+    }
+
+    private void applyDelta(BlockDelta delta) {
+        byte[] base = lastSentText.getBytes(StandardCharsets.UTF_8);
+        if (BlockDelta.hash(base) != delta.getBaseHash()) {
+            // We are on another version than the sender: get the whole file instead
+            requestSnapshot();
+            return;
+        }
+        String text;
+        try {
+            text = new String(delta.apply(base), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Could not apply delta: " + e.getMessage());
+            requestSnapshot();
+            return;
+        }
+        patchText(text);
+        lastSentText = text;
+    }
+
+    private void requestSnapshot() {
+        try {
+            channel.publish("", QUEUE_NAME, outgoing(SyncMessages.SNAPSHOT_REQUEST_CONTENT_TYPE, fileId.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replaces only the part of the text area that differs from {@code text}, instead of
+     * resetting the whole document, so large files do not stutter and the caret stays put.
+     */
+    private void patchText(String text) {
+        Document doc = textArea.getDocument();
+        String current = textArea.getText();
+        int prefix = 0;
+        int max = Math.min(current.length(), text.length());
+        while (prefix < max && current.charAt(prefix) == text.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && current.charAt(current.length() - 1 - suffix) == text.charAt(text.length() - 1 - suffix)) {
+            suffix++;
+        }
+        try {
+            doc.remove(prefix, current.length() - prefix - suffix);
+            doc.insertString(prefix, text.substring(prefix, text.length() - suffix), null);
+        } catch (BadLocationException e) {
+            throw new RuntimeException(e);
         }
     }
 
@@ -197,7 +315,7 @@ public class TextEditorClient extends JFrame {
         int result = fileChooser.showOpenDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
             filePath = fileChooser.getSelectedFile().getAbsolutePath();
-            fileId = filePath;
+            subscribeTo(filePath);
             updateFileNameLabel(filePath);
             readFileContent();
         }
@@ -205,7 +323,7 @@ public class TextEditorClient extends JFrame {
 
     private void registerClient() {
         try {
-            channel.basicPublish(CLIENTS_EXCHANGE, "", null, "register".getBytes(StandardCharsets.UTF_8));
+            channel.publish(CLIENTS_EXCHANGE, "", new TransportMessage("register".getBytes(StandardCharsets.UTF_8)));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -213,7 +331,7 @@ public class TextEditorClient extends JFrame {
 
     private void unregisterClient() {
         try {
-            channel.basicPublish(CLIENTS_EXCHANGE, "", null, "unregister".getBytes(StandardCharsets.UTF_8));
+            channel.publish(CLIENTS_EXCHANGE, "", new TransportMessage("unregister".getBytes(StandardCharsets.UTF_8)));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1,65 +1,151 @@
 package myEditor;
 
-import com.rabbitmq.client.*;
+import myEditorCommon.DocumentRouting;
+import myEditorCommon.ShardedExecutor;
+import myEditorCommon.Transport;
+import myEditorCommon.TransportChannel;
+import myEditorCommon.TransportMessage;
+
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TextEditorServer {
     private static final String QUEUE_NAME = "text_changes_queue";
-    private static final String EXCHANGE_NAME = "text_updates";
     private static final String CLIENTS_EXCHANGE = "clients_updates";
     private static final AtomicInteger clientCount = new AtomicInteger(0);
+    // Writes to one file happen in order on its shard; different files are written in parallel
+    private static final ShardedExecutor shards = new ShardedExecutor(ShardedExecutor.shardCountFromSystemProperties(), "file-shard");
+    // Newest snapshot per file that its shard has not written yet; a newer one replaces it
+    private static final Map<String, Snapshot> pendingSnapshots = new ConcurrentHashMap<>();
+    private static final AtomicLong skippedSnapshots = new AtomicLong();
+    // Most files whose last version is kept in memory, e.g. -Deditor.server.cachedFiles=64
+    private static final int cachedFiles = Integer.getInteger("editor.server.cachedFiles", 256);
+    // Last version of the recently used files, which deltas are checked against and applied to.
+    // An evicted file is read back from disk, which holds the same version once it is written.
+    private static final Map<String, FileVersion> files = Collections.synchronizedMap(
+            new LinkedHashMap<String, FileVersion>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FileVersion> eldest) {
+                    return size() > cachedFiles;
+                }
+            });
+    // Most messages taken off the queue and not yet written, e.g. -Deditor.server.prefetch=256
+    private static final int prefetch = Integer.getInteger("editor.server.prefetch", 1024);
 
     public static void main(String[] args) throws IOException, TimeoutException {
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost("localhost");
-        Connection connection = factory.newConnection();
-        Channel channel = connection.createChannel();
+        start(Transport.fromSystemProperties());
+        System.out.println(" [*] Waiting for messages. To exit press CTRL+C");
+    }
 
-        channel.queueDeclare(QUEUE_NAME, false, false, false, null);
-        channel.exchangeDeclare(EXCHANGE_NAME, BuiltinExchangeType.FANOUT);
-        channel.exchangeDeclare(CLIENTS_EXCHANGE, BuiltinExchangeType.FANOUT);
+    /**
+     * Starts taking snapshots and deltas over the transport. Returns once the consumers are in
+     * place. Only one server runs per JVM.
+     */
+    public static void start(Transport transport) throws IOException {
+        TransportChannel channel = transport.createChannel();
 
-        System.out.println(" [*] Waiting for messages. To exit press CTRL+C");
+        channel.declareQueue(QUEUE_NAME);
+        DocumentRouting.declareExchange(channel);
+        channel.declareExchange(CLIENTS_EXCHANGE, TransportChannel.ExchangeType.FANOUT);
+
+        // Each shard publishes on its own channel
+        TransportChannel[] shardChannels = new TransportChannel[shards.shardCount()];
+        for (int i = 0; i < shardChannels.length; i++) {
+            shardChannels[i] = transport.createChannel();
+        }
+
+        // Finish the queued writes before the JVM goes away
+        Runtime.getRuntime().addShutdownHook(new Thread(shards::close, "file-shard-shutdown"));
+        shards.reportQueueDepths(Long.getLong("editor.shards.reportSeconds", 10));
+
+        System.out.println(" [*] File shards: " + shards.shardCount());
+
+        TransportChannel.MessageHandler deliverCallback = delivery -> {
+            String contentType = delivery.getContentType();
+            if (SyncMessages.DELTA_CONTENT_TYPE.equals(contentType)) {
+                BlockDelta delta;
+                try {
+                    delta = BlockDelta.decode(delivery.getBody());
+                } catch (IllegalArgumentException e) {
+                    System.err.println(" [x] Received malformed delta: " + e.getMessage());
+                    delivery.ack();
+                    return;
+                }
+                // Deltas build on each other, so unlike snapshots every one is applied, in order
+                TransportChannel shardChannel = shardChannels[shards.shardOf(delta.getFileId())];
+                shards.execute(delta.getFileId(), () -> {
+                    try {
+                        applyDelta(shardChannel, delta, delivery.getBody(), delivery.getAppId());
+                    } finally {
+                        delivery.ack();
+                    }
+                });
+                return;
+            }
+            if (SyncMessages.SNAPSHOT_REQUEST_CONTENT_TYPE.equals(contentType)) {
+                String filePath = new String(delivery.getBody(), StandardCharsets.UTF_8);
+                TransportChannel shardChannel = shardChannels[shards.shardOf(filePath)];
+                shards.execute(filePath, () -> {
+                    try {
+                        publishSnapshot(shardChannel, filePath);
+                    } finally {
+                        delivery.ack();
+                    }
+                });
+                return;
+            }
 
-        DeliverCallback deliverCallback = (consumerTag, delivery) -> {
             String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
             // Split the message into file path and content
             int delimiterIndex = message.indexOf("::");
             if (delimiterIndex != -1) {
                 String filePath = message.substring(0, delimiterIndex);
-                String fileContent = message.substring(delimiterIndex + 2);
 
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath, false))) {
-                    writer.write(fileContent);
-                    System.out.println(" [x] Received and wrote message to file: " + filePath);
-                } catch (IOException e) {
-                    e.printStackTrace();
+                // Write and publish on the file's shard so this thread can take the next delivery.
+                // Only the newest snapshot matters: if one is already waiting, it is replaced and
+                // the drain queued for it writes this one instead.
+                Snapshot stale = pendingSnapshots.put(filePath, new Snapshot(message, delimiterIndex, delivery));
+                if (stale == null) {
+                    TransportChannel shardChannel = shardChannels[shards.shardOf(filePath)];
+                    shards.execute(filePath, () -> writeLatest(shardChannel, filePath));
+                } else {
+                    // Never written, so it is done with
+                    stale.delivery.ack();
+                    skippedSnapshots.incrementAndGet();
                 }
-
-                // Publish the message to the exchange for clients to update their text areas
-                channel.basicPublish(EXCHANGE_NAME, "", null, message.getBytes(StandardCharsets.UTF_8));
             } else {
                 System.err.println(" [x] Received malformed message: " + message);
+                delivery.ack();
             }
         };
 
-        channel.basicConsume(QUEUE_NAME, true, deliverCallback, consumerTag -> { });
+        // Messages are acknowledged once written, so a slow disk holds back the broker, not the heap
+        channel.consume(QUEUE_NAME, prefetch, deliverCallback);
 
-        connection.addShutdownListener(cause -> {
+        transport.addShutdownListener(() -> {
             int count = clientCount.decrementAndGet();
             updateClientCount(channel, count);
         });
 
         // Listen for client registration
-        String registrationQueue = channel.queueDeclare().getQueue();
-        channel.queueBind(registrationQueue, CLIENTS_EXCHANGE, "");
-        channel.basicConsume(registrationQueue, true, (consumerTag, delivery) -> {
+        String registrationQueue = channel.declareTemporaryQueue();
+        channel.bind(registrationQueue, CLIENTS_EXCHANGE, "");
+        channel.consume(registrationQueue, delivery -> {
             String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
             if ("register".equals(message)) {
                 int count = clientCount.incrementAndGet();
@@ -68,15 +154,148 @@ public class TextEditorServer {
                 int count = clientCount.decrementAndGet();
                 updateClientCount(channel, count);
             }
-        }, consumerTag -> { });
+        });
+    }
+
+    private static void writeLatest(TransportChannel channel, String filePath) {
+        // Taking the snapshot out lets the next delivery queue a new drain
+        Snapshot snapshot = pendingSnapshots.remove(filePath);
+        if (snapshot != null) {
+            try {
+                write(filePath, snapshot.content().getBytes(StandardCharsets.UTF_8));
+                System.out.println(" [x] Received and wrote message to file: " + filePath
+                        + " (stale snapshots skipped so far: " + skippedSnapshots.get() + ")");
+                publish(channel, filePath, snapshot.delivery.getAppId(), SyncMessages.SNAPSHOT_CONTENT_TYPE, snapshot.delivery.getBody());
+            } finally {
+                snapshot.delivery.ack();
+            }
+        }
+    }
+
+    private static void applyDelta(TransportChannel channel, BlockDelta delta, byte[] message, String appId) {
+        String filePath = delta.getFileId();
+        byte[] content;
+        try {
+            FileVersion current = currentVersion(filePath);
+            if (current.hash != delta.getBaseHash()) {
+                // The sender missed a change; its delta cannot be applied here
+                requestResend(channel, filePath, appId);
+                return;
+            }
+            content = delta.apply(current.content);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println(" [x] Could not apply delta to " + filePath + ": " + e.getMessage());
+            requestResend(channel, filePath, appId);
+            return;
+        }
+
+        write(filePath, content);
+        System.out.println(" [x] Received and applied " + delta + " to file: " + filePath);
+        // Clients on the same version apply the delta as is; the others ask for a snapshot
+        publish(channel, filePath, appId, SyncMessages.DELTA_CONTENT_TYPE, message);
+    }
+
+    private static FileVersion currentVersion(String filePath) throws IOException {
+        FileVersion version = files.get(filePath);
+        if (version == null) {
+            version = new FileVersion(Files.readAllBytes(Paths.get(filePath)));
+            files.put(filePath, version);
+        }
+        return version;
     }
 
-    private static void updateClientCount(Channel channel, int count) {
+    private static void write(String filePath, byte[] content) {
+        files.put(filePath, new FileVersion(content));
+        // Written to a temporary file that replaces the file in one move, so a crash never leaves it torn
+        Path path = Paths.get(filePath);
+        Path temporary = path.resolveSibling("." + path.getFileName() + ".tmp");
+        try {
+            try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    file.write(buffer);
+                }
+                file.force(true);
+            }
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+            // Check the next delta against what the disk holds, as an evicted file would be;
+            // a client it does not match sends the whole text again
+            files.remove(filePath);
+        }
+    }
+
+    private static void publishSnapshot(TransportChannel channel, String filePath) {
+        byte[] content;
+        try {
+            content = currentVersion(filePath).content;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        byte[] prefix = (filePath + "::").getBytes(StandardCharsets.UTF_8);
+        byte[] message = new byte[prefix.length + content.length];
+        System.arraycopy(prefix, 0, message, 0, prefix.length);
+        System.arraycopy(content, 0, message, prefix.length, content.length);
+        publish(channel, filePath, null, SyncMessages.SNAPSHOT_CONTENT_TYPE, message);
+    }
+
+    private static void requestResend(TransportChannel channel, String filePath, String appId) {
+        if (appId == null) {
+            // Clients without an app id only send snapshots
+            return;
+        }
+        publish(channel, filePath, appId, SyncMessages.RESEND_CONTENT_TYPE, filePath.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void publish(TransportChannel channel, String filePath, String appId, String contentType, byte[] message) {
+        // Publish the message to the clients that have this file open.
+        // The app id lets the sender skip its own update.
+        try {
+            channel.publish(DocumentRouting.EXCHANGE_NAME, DocumentRouting.routingKey(filePath),
+                    new TransportMessage(contentType, appId, message));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void updateClientCount(TransportChannel channel, int count) {
         String countMessage = String.valueOf(count);
         try {
-            channel.basicPublish(CLIENTS_EXCHANGE, "", null, countMessage.getBytes(StandardCharsets.UTF_8));
+            channel.publish(CLIENTS_EXCHANGE, "", new TransportMessage(countMessage.getBytes(StandardCharsets.UTF_8)));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    private static final class Snapshot {
+        private final String message;
+        private final int delimiterIndex;
+        private final TransportMessage delivery;
+
+        Snapshot(String message, int delimiterIndex, TransportMessage delivery) {
+            this.message = message;
+            this.delimiterIndex = delimiterIndex;
+            this.delivery = delivery;
+        }
+
+        String content() {
+            return message.substring(delimiterIndex + 2);
+        }
+    }
+
+    private static final class FileVersion {
+        private final byte[] content;
+        private final long hash;
+
+        FileVersion(byte[] content) {
+            this.content = content;
+            this.hash = BlockDelta.hash(content);
+        }
+    }
 }
@@ -0,0 +1,262 @@
+package myEditorCommon;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.impl.recovery.AutorecoveringConnection;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * The transport over a RabbitMQ broker. A durable transport declares shared queues durable and
+ * publishes persistent messages, so the edits a server has not acknowledged yet survive a
+ * broker restart. Every process declaring a queue must agree on that.
+ */
+public final class AmqpTransport implements Transport {
+    private static final String SENT_AT_HEADER = "x-sent-at-us";
+    private static final String SEQUENCE_HEADER = "x-sequence";
+
+    private final Connection connection;
+    private final boolean durable;
+
+    private AmqpTransport(Connection connection, boolean durable) {
+        this.connection = connection;
+        this.durable = durable;
+    }
+
+    public static AmqpTransport connect(String host) throws IOException, TimeoutException {
+        return connect(host, false);
+    }
+
+    public static AmqpTransport connect(String host, boolean durable) throws IOException, TimeoutException {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(host);
+        return new AmqpTransport(factory.newConnection(), durable);
+    }
+
+    @Override
+    public TransportChannel createChannel() throws IOException {
+        return new AmqpChannel(connection.createChannel(), durable);
+    }
+
+    @Override
+    public void addShutdownListener(Runnable listener) {
+        connection.addShutdownListener(cause -> listener.run());
+    }
+
+    @Override
+    public void addQueueRenameListener(BiConsumer<String, String> listener) {
+        if (connection instanceof AutorecoveringConnection) {
+            ((AutorecoveringConnection) connection).addQueueRecoveryListener(listener::accept);
+        }
+    }
+
+    @Override
+    public void addRecoveryListener(Runnable listener) {
+        if (connection instanceof AutorecoveringConnection) {
+            ((AutorecoveringConnection) connection).addRecoveryListener(new RecoveryListener() {
+                @Override
+                public void handleRecovery(Recoverable recoverable) {
+                    listener.run();
+                }
+
+                @Override
+                public void handleRecoveryStarted(Recoverable recoverable) {
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+
+    private static final class AmqpChannel implements TransportChannel {
+        private final Channel channel;
+        private final boolean durable;
+        // The consumer of each queue this channel consumes, to cancel it by queue
+        private final Map<String, QueueConsumer> consumers = new ConcurrentHashMap<>();
+
+        AmqpChannel(Channel channel, boolean durable) {
+            this.channel = channel;
+            this.durable = durable;
+        }
+
+        @Override
+        public void declareQueue(String name) throws IOException {
+            channel.queueDeclare(name, durable, false, false, null);
+        }
+
+        @Override
+        public String declareTemporaryQueue() throws IOException {
+            return channel.queueDeclare().getQueue();
+        }
+
+        @Override
+        public String declareTemporaryQueue(int maxLength) throws IOException {
+            // Dropping the oldest message is the broker's default once a queue is full
+            return channel.queueDeclare("", false, true, true, Map.of("x-max-length", maxLength, "x-overflow", "drop-head")).getQueue();
+        }
+
+        @Override
+        public void declareExchange(String name, ExchangeType type) throws IOException {
+            channel.exchangeDeclare(name, type == ExchangeType.DIRECT ? BuiltinExchangeType.DIRECT : BuiltinExchangeType.FANOUT);
+        }
+
+        @Override
+        public void bind(String queue, String exchange, String routingKey) throws IOException {
+            channel.queueBind(queue, exchange, routingKey);
+        }
+
+        @Override
+        public void unbind(String queue, String exchange, String routingKey) throws IOException {
+            channel.queueUnbind(queue, exchange, routingKey);
+        }
+
+        @Override
+        public void publish(String exchange, String routingKey, TransportMessage message) throws IOException {
+            AMQP.BasicProperties properties = null;
+            if (message.getContentType() != null || message.getAppId() != null || message.getReplyTo() != null
+                    || message.getSentAtMicros() != 0 || durable) {
+                Map<String, Object> headers = null;
+                if (message.getSentAtMicros() != 0) {
+                    headers = Map.of(SENT_AT_HEADER, message.getSentAtMicros(), SEQUENCE_HEADER, message.getSequence());
+                }
+                properties = new AMQP.BasicProperties.Builder()
+                        .contentType(message.getContentType())
+                        .appId(message.getAppId())
+                        .replyTo(message.getReplyTo())
+                        .headers(headers)
+                        // Only kept on disk in durable queues
+                        .deliveryMode(durable ? 2 : null)
+                        .build();
+            }
+            channel.basicPublish(exchange, routingKey, properties, message.getBody());
+        }
+
+        @Override
+        public void consume(String queue, MessageHandler handler) throws IOException {
+            consume(queue, true, handler);
+        }
+
+        @Override
+        public void consume(String queue, int prefetch, MessageHandler handler) throws IOException {
+            channel.basicQos(prefetch);
+            consume(queue, false, handler);
+        }
+
+        private void consume(String queue, boolean autoAck, MessageHandler handler) throws IOException {
+            QueueConsumer consumer = new QueueConsumer(channel, handler, autoAck);
+            channel.basicConsume(queue, autoAck, consumer);
+            consumers.put(queue, consumer);
+        }
+
+        @Override
+        public void cancel(String queue) throws IOException {
+            QueueConsumer consumer = consumers.remove(queue);
+            if (consumer != null) {
+                channel.basicCancel(consumer.getConsumerTag());
+                consumer.awaitCancelled();
+            }
+        }
+    }
+
+    /**
+     * Hands a queue's deliveries to a handler. The client calls it on one thread per channel, and
+     * confirms a cancel only after the deliveries that came before it.
+     */
+    private static final class QueueConsumer extends DefaultConsumer {
+        private final TransportChannel.MessageHandler handler;
+        private final boolean autoAck;
+        private final CountDownLatch cancelled = new CountDownLatch(1);
+
+        QueueConsumer(Channel channel, TransportChannel.MessageHandler handler, boolean autoAck) {
+            super(channel);
+            this.handler = handler;
+            this.autoAck = autoAck;
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            TransportMessage message = message(properties, body);
+            if (autoAck) {
+                handler.handle(message);
+                return;
+            }
+            long deliveryTag = envelope.getDeliveryTag();
+            if (envelope.isRedeliver()) {
+                message = message.asRedelivered();
+            }
+            AtomicBoolean requeue = new AtomicBoolean(true);
+            message = message.withAcknowledgement(() -> settle(deliveryTag, true, false),
+                    () -> settle(deliveryTag, false, requeue.get()));
+            try {
+                handler.handle(message);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                // A message that failed before would only fail again: it is dead-lettered if
+                // the queue has a dead-letter exchange, and dropped otherwise
+                requeue.set(!message.isRedelivered());
+                message.reject();
+            }
+        }
+
+        private void settle(long deliveryTag, boolean handled, boolean requeue) {
+            try {
+                if (handled) {
+                    getChannel().basicAck(deliveryTag, false);
+                } else {
+                    getChannel().basicNack(deliveryTag, false, requeue);
+                }
+            } catch (IOException e) {
+                // The channel is gone; the broker redelivers the message to the next consumer
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void handleCancelOk(String consumerTag) {
+            cancelled.countDown();
+        }
+
+        /**
+         * Waits until the handler has seen every delivery made before the cancel.
+         */
+        void awaitCancelled() throws IOException {
+            try {
+                if (!cancelled.await(30, TimeUnit.SECONDS)) {
+                    throw new IOException("Cancel of " + getConsumerTag() + " not confirmed");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for a cancel", e);
+            }
+        }
+
+        private static TransportMessage message(AMQP.BasicProperties properties, byte[] body) {
+            TransportMessage message = new TransportMessage(properties.getContentType(), properties.getAppId(),
+                    properties.getReplyTo(), body);
+            Map<String, Object> headers = properties.getHeaders();
+            if (headers != null && headers.get(SENT_AT_HEADER) instanceof Number) {
+                Object sequence = headers.get(SEQUENCE_HEADER);
+                message = message.withTiming(((Number) headers.get(SENT_AT_HEADER)).longValue(),
+                        sequence instanceof Number ? ((Number) sequence).longValue() : 0);
+            }
+            return message;
+        }
+    }
+}
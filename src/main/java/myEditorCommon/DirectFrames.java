@@ -0,0 +1,162 @@
+package myEditorCommon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The frames {@link DirectTransport} clients and the {@link DirectServer} exchange. A frame is an
+ * int with the number of bytes that follow, a type byte and the type's fields. Strings are an int
+ * byte count, -1 for null, and UTF-8. A message's body goes last, so it can be written straight
+ * from the array it arrived in.
+ * <ul>
+ *     <li>Requests, each answered by a {@code REPLY} with the same id:
+ *     {@code DECLARE_QUEUE id name}, {@code DECLARE_TEMPORARY_QUEUE id maxLength},
+ *     {@code DECLARE_EXCHANGE id name type}, {@code BIND id queue exchange key},
+ *     {@code UNBIND id queue exchange key}, {@code CONSUME id consumer queue prefetch}, {@code CANCEL id queue}</li>
+ *     <li>{@code PUBLISH exchange key message}, {@code ACK deliveryTag} and {@code REJECT deliveryTag},
+ *     which are not answered</li>
+ *     <li>From the server: {@code REPLY id status text} and {@code DELIVER consumer deliveryTag redelivered message},
+ *     where a delivery tag of 0 needs no ack and {@code redelivered} is a byte, 1 for a message delivered before</li>
+ * </ul>
+ * A message is its content type, app id and reply-to queue, sent-at time, sequence, body length and body.
+ */
+final class DirectFrames {
+    static final byte DECLARE_QUEUE = 1;
+    static final byte DECLARE_TEMPORARY_QUEUE = 2;
+    static final byte DECLARE_EXCHANGE = 3;
+    static final byte BIND = 4;
+    static final byte UNBIND = 5;
+    static final byte CONSUME = 6;
+    static final byte PUBLISH = 7;
+    static final byte ACK = 8;
+    static final byte CANCEL = 9;
+    static final byte REJECT = 10;
+    static final byte REPLY = 20;
+    static final byte DELIVER = 21;
+
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+
+    // Whole snapshots travel in one frame, so this stays well above editor.client.pagedBytes
+    static final int MAX_FRAME_BYTES = 256 * 1024 * 1024;
+
+    private DirectFrames() {
+    }
+
+    /**
+     * Checks the length a frame starts with.
+     */
+    static int frameLength(int length) throws IOException {
+        if (length < 1 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad frame length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Builds the start of a frame, up to the message body that follows it if there is one.
+     */
+    static final class Header {
+        private final byte type;
+        private final int bodyLength;
+        private final Object[] fields;
+
+        private Header(byte type, int bodyLength, Object[] fields) {
+            this.type = type;
+            this.bodyLength = bodyLength;
+            this.fields = fields;
+        }
+
+        /**
+         * A frame of String, Long, Integer and Byte fields, written in the order given.
+         */
+        static Header of(byte type, Object... fields) {
+            return new Header(type, 0, fields);
+        }
+
+        /**
+         * A frame whose last field is {@code message}, after the other fields.
+         */
+        static Header withMessage(byte type, TransportMessage message, Object... fields) {
+            Object[] all = new Object[fields.length + 5];
+            System.arraycopy(fields, 0, all, 0, fields.length);
+            all[fields.length] = message.getContentType();
+            all[fields.length + 1] = message.getAppId();
+            all[fields.length + 2] = message.getReplyTo();
+            all[fields.length + 3] = message.getSentAtMicros();
+            all[fields.length + 4] = message.getSequence();
+            return new Header(type, message.getBody().length, all);
+        }
+
+        /**
+         * The header as bytes: the frame length covers the body that has to follow it.
+         */
+        byte[] toBytes() {
+            byte[][] strings = new byte[fields.length][];
+            int size = 4 + 1 + (isMessage() ? 4 : 0);
+            for (int i = 0; i < fields.length; i++) {
+                Object field = fields[i];
+                if (field instanceof Long) {
+                    size += 8;
+                } else if (field instanceof Integer) {
+                    size += 4;
+                } else if (field instanceof Byte) {
+                    size += 1;
+                } else {
+                    strings[i] = field == null ? null : ((String) field).getBytes(StandardCharsets.UTF_8);
+                    size += 4 + (strings[i] == null ? 0 : strings[i].length);
+                }
+            }
+            ByteBuffer out = ByteBuffer.allocate(size);
+            out.putInt(size - 4 + bodyLength);
+            out.put(type);
+            for (int i = 0; i < fields.length; i++) {
+                Object field = fields[i];
+                if (field instanceof Long) {
+                    out.putLong((Long) field);
+                } else if (field instanceof Integer) {
+                    out.putInt((Integer) field);
+                } else if (field instanceof Byte) {
+                    out.put((Byte) field);
+                } else if (strings[i] == null) {
+                    out.putInt(-1);
+                } else {
+                    out.putInt(strings[i].length).put(strings[i]);
+                }
+            }
+            if (isMessage()) {
+                out.putInt(bodyLength);
+            }
+            return out.array();
+        }
+
+        private boolean isMessage() {
+            return type == PUBLISH || type == DELIVER;
+        }
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the message that ends a frame. The body is copied out, so the buffer can be reused.
+     */
+    static TransportMessage readMessage(ByteBuffer in) {
+        String contentType = readString(in);
+        String appId = readString(in);
+        String replyTo = readString(in);
+        long sentAtMicros = in.getLong();
+        long sequence = in.getLong();
+        byte[] body = new byte[in.getInt()];
+        in.get(body);
+        return new TransportMessage(contentType, appId, replyTo, body).withTiming(sentAtMicros, sequence);
+    }
+}
@@ -0,0 +1,419 @@
+package myEditorCommon;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes the editor server its own broker: its queues and exchanges live in this JVM, as with
+ * {@link InProcessTransport}, and {@link DirectTransport} clients reach them over TCP. An edit
+ * then takes one network hop to the server and an update one hop back, with no broker in between.
+ * <p>
+ * One thread runs a {@link Selector} over every connection and handles the frames it reads
+ * (see {@link DirectFrames}) on the spot; the queues only ever append there. Deliveries are
+ * written by the thread that delivers them, straight away unless the connection still has
+ * frames waiting, in which case the selector thread writes them as the socket drains, several
+ * in one gathering write. A header goes out from a pooled direct buffer and the body from the
+ * array it was published in, so an update fanned out to many clients is never copied.
+ */
+public final class DirectServer implements AutoCloseable {
+    public static final int DEFAULT_PORT = 5680;
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final int HEADER_BUFFER_BYTES = 512;
+    // Most frames of one connection gathered into a single write
+    private static final int MAX_GATHER = 64;
+
+    private final InProcessTransport.Broker broker = new InProcessTransport.Broker();
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final BufferPool readBuffers = new BufferPool(READ_BUFFER_BYTES, 256);
+    private final BufferPool headerBuffers = new BufferPool(HEADER_BUFFER_BYTES, 4096);
+    // Connections a delivering thread failed to write to, closed by the selector thread
+    private final Queue<Connection> broken = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    private DirectServer(ServerSocketChannel server, Selector selector) {
+        this.server = server;
+        this.selector = selector;
+    }
+
+    /**
+     * Starts taking connections on {@code port} of every interface.
+     */
+    public static DirectServer listen(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        Selector selector = Selector.open();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        DirectServer direct = new DirectServer(server, selector);
+        // Not a daemon: like a broker connection, it keeps the server's JVM running
+        new Thread(direct::run, "direct-transport-selector").start();
+        System.out.println(" [*] Direct transport listening on port " + server.socket().getLocalPort());
+        return direct;
+    }
+
+    /**
+     * The port it takes connections on, e.g. the one picked for port 0.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * A connection to the queues the clients reach, for the server itself.
+     */
+    public InProcessTransport connect() {
+        return InProcessTransport.connect(broker);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        server.close();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Connection connection;
+                while ((connection = broken.poll()) != null) {
+                    connection.close();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else {
+                        handle(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socket = server.accept();
+        if (socket == null) {
+            return;
+        }
+        socket.configureBlocking(false);
+        // Frames are whole messages already; waiting to fill a segment only adds latency
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(socket);
+        connection.key = socket.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private void handle(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            // A client that goes away mid-frame, or sends garbage, only loses its own connection
+            System.err.println("Direct transport: closing " + connection + ": " + e);
+            connection.close();
+        }
+    }
+
+    /**
+     * A client connection, with its own connection to the broker so its temporary queues go
+     * away with it.
+     */
+    private final class Connection {
+        private final SocketChannel socket;
+        private final InProcessTransport transport = connect();
+        private final TransportChannel channel = transport.createChannel();
+        private final ByteBuffer pooledIn = readBuffers.acquire();
+        // The pooled buffer, or a bigger one while a frame that does not fit it comes in
+        private ByteBuffer in = pooledIn;
+        // Frames waiting for the socket to drain, each a header and maybe a body
+        private final ArrayDeque<ByteBuffer[]> pending = new ArrayDeque<>();
+        private final Map<Long, TransportMessage> unacknowledged = new ConcurrentHashMap<>();
+        private final AtomicLong deliveryTags = new AtomicLong();
+        private SelectionKey key;
+        private boolean closed;
+
+        Connection(SocketChannel socket) {
+            this.socket = socket;
+        }
+
+        void read() throws IOException {
+            if (socket.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= 4 && in.remaining() - 4 >= DirectFrames.frameLength(in.getInt(in.position()))) {
+                int length = in.getInt();
+                ByteBuffer frame = in.slice();
+                frame.limit(length);
+                in.position(in.position() + length);
+                receive(frame);
+            }
+            int needed = in.remaining() >= 4 ? 4 + in.getInt(in.position()) : 0;
+            ByteBuffer next = in;
+            if (needed > in.capacity()) {
+                next = ByteBuffer.allocate(needed);
+            } else if (in != pooledIn && !in.hasRemaining()) {
+                next = pooledIn;
+            }
+            if (next == in) {
+                in.compact();
+            } else {
+                next.clear();
+                next.put(in);
+                in = next;
+            }
+        }
+
+        private void receive(ByteBuffer frame) {
+            byte type = frame.get();
+            if (type == DirectFrames.PUBLISH) {
+                String exchange = DirectFrames.readString(frame);
+                String routingKey = DirectFrames.readString(frame);
+                try {
+                    channel.publish(exchange, routingKey, DirectFrames.readMessage(frame));
+                } catch (IOException e) {
+                    // Nobody waits for an answer, as with an AMQP publish
+                    System.err.println("Direct transport: " + e.getMessage());
+                }
+                return;
+            }
+            if (type == DirectFrames.ACK || type == DirectFrames.REJECT) {
+                TransportMessage delivery = unacknowledged.remove(frame.getLong());
+                if (delivery != null && type == DirectFrames.ACK) {
+                    delivery.ack();
+                } else if (delivery != null) {
+                    delivery.reject();
+                }
+                return;
+            }
+            long request = frame.getLong();
+            try {
+                send(DirectFrames.Header.of(DirectFrames.REPLY, request, DirectFrames.OK, execute(type, frame)).toBytes(), null);
+            } catch (IOException | RuntimeException e) {
+                send(DirectFrames.Header.of(DirectFrames.REPLY, request, DirectFrames.FAILED, String.valueOf(e.getMessage())).toBytes(), null);
+            }
+        }
+
+        /**
+         * Runs a request on the broker and returns the text of its reply.
+         */
+        private String execute(byte type, ByteBuffer frame) throws IOException {
+            switch (type) {
+                case DirectFrames.DECLARE_QUEUE:
+                    channel.declareQueue(DirectFrames.readString(frame));
+                    return null;
+                case DirectFrames.DECLARE_TEMPORARY_QUEUE:
+                    return channel.declareTemporaryQueue(frame.getInt());
+                case DirectFrames.DECLARE_EXCHANGE:
+                    channel.declareExchange(DirectFrames.readString(frame), TransportChannel.ExchangeType.values()[frame.get()]);
+                    return null;
+                case DirectFrames.BIND:
+                    channel.bind(DirectFrames.readString(frame), DirectFrames.readString(frame), DirectFrames.readString(frame));
+                    return null;
+                case DirectFrames.UNBIND:
+                    channel.unbind(DirectFrames.readString(frame), DirectFrames.readString(frame), DirectFrames.readString(frame));
+                    return null;
+                case DirectFrames.CONSUME:
+                    int consumer = frame.getInt();
+                    String queue = DirectFrames.readString(frame);
+                    int prefetch = frame.getInt();
+                    if (prefetch == 0) {
+                        channel.consume(queue, message -> deliver(consumer, 0, message));
+                    } else {
+                        channel.consume(queue, prefetch, message -> {
+                            // The broker counts it against the prefetch until the client's ack comes back
+                            long tag = deliveryTags.incrementAndGet();
+                            unacknowledged.put(tag, message);
+                            deliver(consumer, tag, message);
+                        });
+                    }
+                    return null;
+                case DirectFrames.CANCEL:
+                    channel.cancel(DirectFrames.readString(frame));
+                    return null;
+                default:
+                    throw new IOException("Unknown frame type " + type);
+            }
+        }
+
+        private void deliver(int consumer, long tag, TransportMessage message) {
+            byte redelivered = (byte) (message.isRedelivered() ? 1 : 0);
+            send(DirectFrames.Header.withMessage(DirectFrames.DELIVER, message, consumer, tag, redelivered).toBytes(), message.getBody());
+        }
+
+        /**
+         * Writes a frame now if nothing is waiting ahead of it, and leaves the rest to the selector thread.
+         */
+        private void send(byte[] header, byte[] body) {
+            ByteBuffer head = header.length <= HEADER_BUFFER_BYTES ? headerBuffers.acquire() : ByteBuffer.allocate(header.length);
+            head.put(header).flip();
+            ByteBuffer[] frame = body == null || body.length == 0 ? new ByteBuffer[] {head} : new ByteBuffer[] {head, ByteBuffer.wrap(body)};
+            synchronized (this) {
+                if (closed) {
+                    headerBuffers.release(head);
+                    return;
+                }
+                pending.add(frame);
+                try {
+                    if (pending.size() == 1) {
+                        write();
+                    }
+                    if (!pending.isEmpty()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        selector.wakeup();
+                    }
+                } catch (IOException e) {
+                    broken.add(this);
+                    selector.wakeup();
+                }
+            }
+        }
+
+        synchronized void flush() throws IOException {
+            write();
+            if (pending.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Writes as many waiting frames as the socket takes, gathered into one call.
+         */
+        private void write() throws IOException {
+            while (!pending.isEmpty()) {
+                List<ByteBuffer> buffers = new ArrayList<>();
+                int frames = 0;
+                for (ByteBuffer[] frame : pending) {
+                    if (frames++ == MAX_GATHER) {
+                        break;
+                    }
+                    for (ByteBuffer buffer : frame) {
+                        buffers.add(buffer);
+                    }
+                }
+                socket.write(buffers.toArray(new ByteBuffer[0]));
+                while (!pending.isEmpty() && !pending.peek()[pending.peek().length - 1].hasRemaining()) {
+                    headerBuffers.release(pending.poll()[0]);
+                }
+                if (buffers.get(buffers.size() - 1).hasRemaining()) {
+                    // The socket is full; the selector tells us when it drains
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Drops the connection and its temporary queues. Its unacknowledged deliveries are requeued.
+         */
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                for (ByteBuffer[] frame : pending) {
+                    headerBuffers.release(frame[0]);
+                }
+                pending.clear();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            readBuffers.release(pooledIn);
+            transport.close();
+            // As a broker does for a closed channel, its unacknowledged deliveries go back to their queues
+            for (TransportMessage delivery : unacknowledged.values()) {
+                delivery.reject();
+            }
+            unacknowledged.clear();
+        }
+
+        @Override
+        public String toString() {
+            try {
+                return String.valueOf(socket.getRemoteAddress());
+            } catch (IOException e) {
+                return "closed connection";
+            }
+        }
+    }
+
+    /**
+     * Direct buffers of one size, reused instead of allocated per connection or frame. Direct
+     * buffers go to the socket without the copy a heap buffer needs.
+     */
+    private static final class BufferPool {
+        private final int bufferBytes;
+        private final int maxPooled;
+        private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        BufferPool(int bufferBytes, int maxPooled) {
+            this.bufferBytes = bufferBytes;
+            this.maxPooled = maxPooled;
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer == null) {
+                return ByteBuffer.allocateDirect(bufferBytes);
+            }
+            pooled.decrementAndGet();
+            return buffer;
+        }
+
+        /**
+         * Takes back a buffer once nothing refers to it. Buffers of another size are left to the GC.
+         */
+        void release(ByteBuffer buffer) {
+            if (!buffer.isDirect() || buffer.capacity() != bufferBytes) {
+                return;
+            }
+            if (pooled.incrementAndGet() > maxPooled) {
+                pooled.decrementAndGet();
+                return;
+            }
+            buffer.clear();
+            buffers.offer(buffer);
+        }
+    }
+}
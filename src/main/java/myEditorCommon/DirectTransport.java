@@ -0,0 +1,320 @@
+package myEditorCommon;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The transport straight to a server started with {@code -Deditor.transport=direct}, over one
+ * TCP connection and without a broker in between (see {@link DirectServer}). Declaring, binding,
+ * consuming and cancelling wait for the server's answer; publishing and acknowledging do not.
+ * Each consumer gets its deliveries in order on a virtual thread of its own while it has any,
+ * so a slow consumer holds up neither the connection nor the others.
+ */
+public final class DirectTransport implements Transport {
+    private final SocketChannel socket;
+    private final DataInputStream in;
+    private final AtomicLong requestIds = new AtomicLong();
+    private final ConcurrentMap<Long, CompletableFuture<String>> replies = new ConcurrentHashMap<>();
+    private final AtomicInteger consumerIds = new AtomicInteger();
+    private final ConcurrentMap<Integer, Consumer> consumers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> consumersByQueue = new ConcurrentHashMap<>();
+    private final ExecutorService deliveries = Executors.newVirtualThreadPerTaskExecutor();
+    private final List<Runnable> shutdownListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private DirectTransport(SocketChannel socket) throws IOException {
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(socket), 64 * 1024));
+    }
+
+    public static DirectTransport connect(String host, int port) throws IOException {
+        SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port));
+        // A keystroke should go out now, not once a segment fills up
+        socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        DirectTransport transport = new DirectTransport(socket);
+        Thread reader = new Thread(transport::readFrames, "direct-transport-reader");
+        reader.setDaemon(true);
+        reader.start();
+        return transport;
+    }
+
+    @Override
+    public TransportChannel createChannel() {
+        return new DirectChannel();
+    }
+
+    @Override
+    public void addShutdownListener(Runnable listener) {
+        shutdownListeners.add(listener);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        shutDown();
+    }
+
+    private void shutDown() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        for (CompletableFuture<String> reply : replies.values()) {
+            reply.completeExceptionally(new IOException("Connection closed"));
+        }
+        deliveries.shutdown();
+        for (Runnable listener : shutdownListeners) {
+            listener.run();
+        }
+    }
+
+    private void readFrames() {
+        try {
+            while (true) {
+                byte[] bytes = new byte[DirectFrames.frameLength(in.readInt())];
+                in.readFully(bytes);
+                ByteBuffer frame = ByteBuffer.wrap(bytes);
+                byte type = frame.get();
+                if (type == DirectFrames.REPLY) {
+                    CompletableFuture<String> reply = replies.get(frame.getLong());
+                    byte status = frame.get();
+                    String text = DirectFrames.readString(frame);
+                    if (reply == null) {
+                        continue;
+                    }
+                    if (status == DirectFrames.OK) {
+                        reply.complete(text);
+                    } else {
+                        reply.completeExceptionally(new IOException(text));
+                    }
+                } else if (type == DirectFrames.DELIVER) {
+                    Consumer consumer = consumers.get(frame.getInt());
+                    long tag = frame.getLong();
+                    boolean redelivered = frame.get() != 0;
+                    TransportMessage message = DirectFrames.readMessage(frame);
+                    if (redelivered) {
+                        message = message.asRedelivered();
+                    }
+                    if (tag != 0) {
+                        message = message.withAcknowledgement(() -> settle(DirectFrames.ACK, tag), () -> settle(DirectFrames.REJECT, tag));
+                    }
+                    if (consumer != null) {
+                        consumer.offer(message);
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            // The server went away
+        } catch (IOException e) {
+            if (!closed.get()) {
+                e.printStackTrace();
+            }
+        } finally {
+            shutDown();
+        }
+    }
+
+    private void settle(byte type, long tag) {
+        try {
+            send(DirectFrames.Header.of(type, tag).toBytes(), null);
+        } catch (IOException e) {
+            // The connection is gone, and the server forgets the delivery with it
+        }
+    }
+
+    /**
+     * Sends a request and waits for its answer. Returns the answer's text; throws if the server
+     * could not do it.
+     */
+    private String request(byte type, Object... fields) throws IOException {
+        long id = requestIds.incrementAndGet();
+        Object[] withId = new Object[fields.length + 1];
+        withId[0] = id;
+        System.arraycopy(fields, 0, withId, 1, fields.length);
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        replies.put(id, reply);
+        try {
+            if (closed.get()) {
+                throw new IOException("Connection closed");
+            }
+            send(DirectFrames.Header.of(type, withId).toBytes(), null);
+            return reply.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the server", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            replies.remove(id);
+        }
+    }
+
+    /**
+     * Writes a frame whole, the header and body in one gathering write.
+     */
+    private void send(byte[] header, byte[] body) throws IOException {
+        ByteBuffer[] frame = body == null || body.length == 0
+                ? new ByteBuffer[] {ByteBuffer.wrap(header)}
+                : new ByteBuffer[] {ByteBuffer.wrap(header), ByteBuffer.wrap(body)};
+        ByteBuffer last = frame[frame.length - 1];
+        synchronized (socket) {
+            while (last.hasRemaining()) {
+                socket.write(frame);
+            }
+        }
+    }
+
+    private final class DirectChannel implements TransportChannel {
+        @Override
+        public void declareQueue(String name) throws IOException {
+            request(DirectFrames.DECLARE_QUEUE, name);
+        }
+
+        @Override
+        public String declareTemporaryQueue() throws IOException {
+            return declareTemporaryQueue(Integer.MAX_VALUE);
+        }
+
+        @Override
+        public String declareTemporaryQueue(int maxLength) throws IOException {
+            return request(DirectFrames.DECLARE_TEMPORARY_QUEUE, maxLength);
+        }
+
+        @Override
+        public void declareExchange(String name, ExchangeType type) throws IOException {
+            request(DirectFrames.DECLARE_EXCHANGE, name, (byte) type.ordinal());
+        }
+
+        @Override
+        public void bind(String queue, String exchange, String routingKey) throws IOException {
+            request(DirectFrames.BIND, queue, exchange, routingKey);
+        }
+
+        @Override
+        public void unbind(String queue, String exchange, String routingKey) throws IOException {
+            request(DirectFrames.UNBIND, queue, exchange, routingKey);
+        }
+
+        @Override
+        public void publish(String exchange, String routingKey, TransportMessage message) throws IOException {
+            send(DirectFrames.Header.withMessage(DirectFrames.PUBLISH, message, exchange, routingKey).toBytes(), message.getBody());
+        }
+
+        @Override
+        public void consume(String queue, MessageHandler handler) throws IOException {
+            consume(queue, handler, 0);
+        }
+
+        @Override
+        public void consume(String queue, int prefetch, MessageHandler handler) throws IOException {
+            if (prefetch < 1) {
+                throw new IllegalArgumentException("prefetch must be >= 1: " + prefetch);
+            }
+            consume(queue, handler, prefetch);
+        }
+
+        private void consume(String queue, MessageHandler handler, int prefetch) throws IOException {
+            int id = consumerIds.incrementAndGet();
+            consumers.put(id, new Consumer(handler));
+            try {
+                request(DirectFrames.CONSUME, id, queue, prefetch);
+            } catch (IOException e) {
+                consumers.remove(id);
+                throw e;
+            }
+            consumersByQueue.put(queue, id);
+        }
+
+        @Override
+        public void cancel(String queue) throws IOException {
+            request(DirectFrames.CANCEL, queue);
+            // Deliveries come in before the answer, so none follow it; wait until the handler has them all
+            Integer id = consumersByQueue.remove(queue);
+            Consumer consumer = id == null ? null : consumers.remove(id);
+            if (consumer != null) {
+                consumer.awaitIdle();
+            }
+        }
+    }
+
+    /**
+     * Hands a consumer's deliveries to its handler one at a time, in the order they came in.
+     */
+    private final class Consumer {
+        private final TransportChannel.MessageHandler handler;
+        private final Queue<TransportMessage> messages = new ConcurrentLinkedQueue<>();
+        // Set while a thread delivers this consumer's messages, so only one ever does
+        private final AtomicBoolean delivering = new AtomicBoolean();
+
+        Consumer(TransportChannel.MessageHandler handler) {
+            this.handler = handler;
+        }
+
+        void offer(TransportMessage message) {
+            messages.add(message);
+            scheduleDelivery();
+        }
+
+        /**
+         * Waits until the handler has been given every message offered so far.
+         */
+        void awaitIdle() throws IOException {
+            try {
+                while (!messages.isEmpty() || delivering.get()) {
+                    Thread.sleep(1);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for deliveries", e);
+            }
+        }
+
+        private void scheduleDelivery() {
+            if (!messages.isEmpty() && delivering.compareAndSet(false, true)) {
+                deliveries.execute(this::deliver);
+            }
+        }
+
+        private void deliver() {
+            try {
+                TransportMessage message;
+                while ((message = messages.poll()) != null) {
+                    try {
+                        handler.handle(message);
+                    } catch (RuntimeException e) {
+                        // Delivered again once, as with the other transports
+                        e.printStackTrace();
+                        if (message.isRedelivered()) {
+                            message.ack();
+                        } else {
+                            message.reject();
+                        }
+                    }
+                }
+            } finally {
+                delivering.set(false);
+            }
+            // Messages that came in while we were finishing found the consumer still delivering
+            scheduleDelivery();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package myEditorCommon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Routes document updates through a direct exchange keyed by document, so a client only
+ * receives updates for the document it has open instead of every update on the server.
+ * File ids are paths that can exceed the 255 byte routing key limit, so the key is a hash of the id.
+ * <p>
+ * Edits and sync requests go the other way through {@link #EDITS_EXCHANGE}, to one queue per
+ * partition of the documents. Each partition is consumed by the server node that owns it, so
+ * the edits to a document reach one node, in the order they were sent.
+ */
+public final class DocumentRouting {
+    public static final String EXCHANGE_NAME = "text_updates_by_document";
+    public static final String EDITS_EXCHANGE = "text_changes_by_partition";
+    // Clients and servers must agree, e.g. -Deditor.cluster.partitions=256
+    private static final int partitions = Integer.getInteger("editor.cluster.partitions", 64);
+
+    private DocumentRouting() {
+    }
+
+    public static int partitions() {
+        return partitions;
+    }
+
+    /**
+     * The partition of a document, from a hash of its id.
+     */
+    public static int partitionOf(String fileId) {
+        return Math.floorMod(ByteBuffer.wrap(sha256(fileId)).getInt(), partitions);
+    }
+
+    public static String partitionQueue(int partition) {
+        return "text_changes_queue." + partition;
+    }
+
+    /**
+     * Declares the edits exchange and every partition's queue. The queues are shared, so edits
+     * sent while no server is up wait for one.
+     */
+    public static void declareEditQueues(TransportChannel channel) throws IOException {
+        channel.declareExchange(EDITS_EXCHANGE, TransportChannel.ExchangeType.DIRECT);
+        for (int partition = 0; partition < partitions; partition++) {
+            channel.declareQueue(partitionQueue(partition));
+            channel.bind(partitionQueue(partition), EDITS_EXCHANGE, String.valueOf(partition));
+        }
+    }
+
+    /**
+     * Sends an edit or sync request to the server that owns the document.
+     */
+    public static void publishEdit(TransportChannel channel, String fileId, TransportMessage message) throws IOException {
+        channel.publish(EDITS_EXCHANGE, String.valueOf(partitionOf(fileId)), message);
+    }
+
+    public static void declareExchange(TransportChannel channel) throws IOException {
+        channel.declareExchange(EXCHANGE_NAME, TransportChannel.ExchangeType.DIRECT);
+    }
+
+    public static String routingKey(String fileId) {
+        return HexFormat.of().formatHex(sha256(fileId));
+    }
+
+    public static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Moves a client's update queue from the previously open document to the new one.
+     * Either id may be null.
+     */
+    public static void rebind(TransportChannel channel, String queue, String oldFileId, String newFileId) throws IOException {
+        if (newFileId != null && newFileId.equals(oldFileId)) {
+            return;
+        }
+        // Bind first so no update to the new document falls in between
+        if (newFileId != null) {
+            channel.bind(queue, EXCHANGE_NAME, routingKey(newFileId));
+        }
+        if (oldFileId != null) {
+            channel.unbind(queue, EXCHANGE_NAME, routingKey(oldFileId));
+        }
+    }
+}
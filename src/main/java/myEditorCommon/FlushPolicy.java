@@ -0,0 +1,53 @@
+package myEditorCommon;
+
+/**
+ * Decides when a client sends what was typed. Edits go out once typing pauses for
+ * {@code minDelayMillis}, but none waits longer than {@code maxDelayMillis}, and they go out
+ * right away once {@code maxPendingBytes} of changes are waiting. Small edits therefore reach
+ * the others within tens of milliseconds, while a fast burst is sent in a few batches.
+ */
+public class FlushPolicy {
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+    private final long maxPendingBytes;
+
+    public FlushPolicy(long minDelayMillis, long maxDelayMillis, long maxPendingBytes) {
+        if (minDelayMillis < 0) {
+            throw new IllegalArgumentException("minDelayMillis must be >= 0: " + minDelayMillis);
+        }
+        if (maxDelayMillis < minDelayMillis) {
+            throw new IllegalArgumentException("maxDelayMillis must be >= minDelayMillis: " + maxDelayMillis);
+        }
+        if (maxPendingBytes < 1) {
+            throw new IllegalArgumentException("maxPendingBytes must be >= 1: " + maxPendingBytes);
+        }
+        this.minDelayMillis = minDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    // e.g. -Deditor.client.flush.minMs=20 -Deditor.client.flush.maxMs=250 -Deditor.client.flush.maxBytes=65536
+    public static FlushPolicy fromSystemProperties() {
+        long minDelay = Long.getLong("editor.client.flush.minMs", 50);
+        long maxDelay = Long.getLong("editor.client.flush.maxMs", 500);
+        long maxBytes = Long.getLong("editor.client.flush.maxBytes", 16 * 1024);
+        return new FlushPolicy(minDelay, maxDelay, maxBytes);
+    }
+
+    public long getMinDelayMillis() {
+        return minDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public long getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "minDelay=" + minDelayMillis + "ms, maxDelay=" + maxDelayMillis + "ms, maxPendingBytes=" + maxPendingBytes;
+    }
+}
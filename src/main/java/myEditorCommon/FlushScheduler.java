@@ -0,0 +1,98 @@
+package myEditorCommon;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a client's flush when its {@link FlushPolicy} says so. Every edit only moves the
+ * deadline of the next flush on the client's one scheduler thread, so typing never starts a
+ * thread. Also keeps track of how long edits actually waited before they were flushed.
+ */
+public class FlushScheduler implements AutoCloseable {
+    private final FlushPolicy policy;
+    private final Runnable flush;
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> scheduled;
+    private boolean pending = false;
+    private long firstEditNanos;
+    private long pendingBytes;
+
+    private long flushes = 0;
+    private long lastLatencyNanos;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+
+    public FlushScheduler(FlushPolicy policy, Runnable flush) {
+        this.policy = policy;
+        this.flush = flush;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "edit-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public FlushPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Records an edit of about {@code bytes} bytes and moves the next flush accordingly.
+     */
+    public synchronized void edited(int bytes) {
+        long now = System.nanoTime();
+        if (!pending) {
+            pending = true;
+            firstEditNanos = now;
+            pendingBytes = 0;
+        }
+        pendingBytes += bytes;
+
+        long deadline;
+        if (pendingBytes >= policy.getMaxPendingBytes()) {
+            deadline = now;
+        } else {
+            deadline = Math.min(now + TimeUnit.MILLISECONDS.toNanos(policy.getMinDelayMillis()),
+                    firstEditNanos + TimeUnit.MILLISECONDS.toNanos(policy.getMaxDelayMillis()));
+        }
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        scheduled = scheduler.schedule(this::fire, Math.max(0, deadline - now), TimeUnit.NANOSECONDS);
+    }
+
+    private void fire() {
+        synchronized (this) {
+            // A flush that was already running took the edits this one was for
+            if (!pending) {
+                return;
+            }
+            pending = false;
+            scheduled = null;
+            lastLatencyNanos = System.nanoTime() - firstEditNanos;
+            totalLatencyNanos += lastLatencyNanos;
+            maxLatencyNanos = Math.max(maxLatencyNanos, lastLatencyNanos);
+            flushes++;
+        }
+        flush.run();
+    }
+
+    /**
+     * How long the edits of the last flush waited, and the average and worst so far.
+     */
+    public synchronized String latencySummary() {
+        if (flushes == 0) {
+            return "no flushes yet";
+        }
+        return "waited " + TimeUnit.NANOSECONDS.toMillis(lastLatencyNanos) + " ms (average "
+                + TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos / flushes) + " ms, max "
+                + TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos) + " ms over " + flushes + " flushes)";
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
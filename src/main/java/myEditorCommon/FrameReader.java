@@ -0,0 +1,122 @@
+package myEditorCommon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the fields of a binary frame, as written by {@link FrameWriter}: bytes, unsigned LEB128
+ * varints, big-endian longs, and strings as a varint length and their UTF-8 bytes. Every read
+ * checks the frame's bounds, so a truncated or corrupt frame fails with an
+ * {@link IllegalArgumentException} instead of a huge allocation or a wrong value.
+ */
+public final class FrameReader {
+    private final byte[] bytes;
+    private int position;
+
+    public FrameReader(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    public int remaining() {
+        return bytes.length - position;
+    }
+
+    /**
+     * Moves past {@code length} bytes the caller reads from the frame itself.
+     */
+    public void skip(int length) {
+        if (length > remaining()) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        position += length;
+    }
+
+    public int readByte() {
+        if (position >= bytes.length) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        return bytes[position++] & 0xFF;
+    }
+
+    public int readVarint() {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte();
+            if (shift == 28 && (b & 0x7F) > 0x07) {
+                // Bits past the sign bit would be dropped, and the sign bit makes it negative
+                throw new IllegalArgumentException("Varint out of range");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IllegalArgumentException("Varint out of range");
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    public long readVarlong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            if (shift == 63 && (b & 0x7F) > 0x01) {
+                throw new IllegalArgumentException("Varint out of range");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /**
+     * Reads a varint length of bytes that must still be in the frame.
+     */
+    public int readLength() {
+        int length = readVarint();
+        if (length > remaining()) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        return length;
+    }
+
+    public long readLong() {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | readByte();
+        }
+        return value;
+    }
+
+    public String readString() {
+        int length = readLength();
+        // Decode straight from the frame, no intermediate copy
+        String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    /**
+     * Reads a varint count and that many strings.
+     */
+    public List<String> readLines() {
+        int count = readVarint();
+        // Every line takes at least its length byte
+        if (count > remaining()) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(readString());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,354 @@
+package myEditorCommon;
+
+import java.io.IOException;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A transport whose queues and exchanges live in this JVM, for running the server logic against
+ * thousands of simulated clients without a broker. Publishing is lock-free: it appends to a
+ * {@link ConcurrentLinkedDeque}, and the first publisher to find the queue idle starts a virtual
+ * thread that delivers to its consumer, one message at a time and in order, until it is empty
+ * or, with manual acknowledgements, until the consumer holds its prefetch of unacknowledged ones.
+ * A rejected message goes back to the head of its queue.
+ * Bodies are handed over as they are, not copied, so publishers must not reuse them.
+ */
+public final class InProcessTransport implements Transport {
+    // Deliveries of one queue never go past this many before letting other queues run
+    private static final int MAX_DRAIN = 256;
+
+    private final Broker broker;
+    private final List<MessageQueue> temporaryQueues = new CopyOnWriteArrayList<>();
+    // Shared queues this connection consumes, which stop delivering to it once it closes
+    private final List<MessageQueue> consumedQueues = new CopyOnWriteArrayList<>();
+    private final List<Runnable> shutdownListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private InProcessTransport(Broker broker) {
+        this.broker = broker;
+    }
+
+    /**
+     * Connects to the broker shared by the whole JVM.
+     */
+    public static InProcessTransport connect() {
+        return connect(Broker.SHARED);
+    }
+
+    public static InProcessTransport connect(Broker broker) {
+        return new InProcessTransport(broker);
+    }
+
+    @Override
+    public TransportChannel createChannel() {
+        return new InProcessChannel();
+    }
+
+    @Override
+    public void addShutdownListener(Runnable listener) {
+        shutdownListeners.add(listener);
+    }
+
+    /**
+     * Deletes the temporary queues of this connection, dropping what they still hold.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        for (MessageQueue queue : temporaryQueues) {
+            broker.delete(queue);
+        }
+        for (MessageQueue queue : consumedQueues) {
+            queue.cancel();
+        }
+        for (Runnable listener : shutdownListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * The queues and exchanges that connections to it share.
+     */
+    public static final class Broker {
+        static final Broker SHARED = new Broker();
+
+        private final ConcurrentMap<String, MessageQueue> queues = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, Exchange> exchanges = new ConcurrentHashMap<>();
+        private final ExecutorService deliveries = Executors.newVirtualThreadPerTaskExecutor();
+        private final AtomicLong queueNames = new AtomicLong();
+
+        MessageQueue queue(String name) throws IOException {
+            MessageQueue queue = queues.get(name);
+            if (queue == null) {
+                throw new IOException("No queue '" + name + "'");
+            }
+            return queue;
+        }
+
+        Exchange exchange(String name) throws IOException {
+            Exchange exchange = exchanges.get(name);
+            if (exchange == null) {
+                throw new IOException("No exchange '" + name + "'");
+            }
+            return exchange;
+        }
+
+        void delete(MessageQueue queue) {
+            queues.remove(queue.name, queue);
+            for (Exchange exchange : exchanges.values()) {
+                exchange.unbindAll(queue);
+            }
+        }
+    }
+
+    private final class InProcessChannel implements TransportChannel {
+        @Override
+        public void declareQueue(String name) {
+            broker.queues.computeIfAbsent(name, n -> new MessageQueue(n, broker.deliveries, Integer.MAX_VALUE));
+        }
+
+        @Override
+        public String declareTemporaryQueue() throws IOException {
+            return declareTemporaryQueue(Integer.MAX_VALUE);
+        }
+
+        @Override
+        public String declareTemporaryQueue(int maxLength) throws IOException {
+            if (closed.get()) {
+                throw new IOException("Connection closed");
+            }
+            String name = "inprocess.gen-" + broker.queueNames.incrementAndGet();
+            MessageQueue queue = new MessageQueue(name, broker.deliveries, maxLength);
+            broker.queues.put(name, queue);
+            temporaryQueues.add(queue);
+            return name;
+        }
+
+        @Override
+        public void declareExchange(String name, ExchangeType type) throws IOException {
+            Exchange exchange = broker.exchanges.computeIfAbsent(name, n -> new Exchange(type));
+            if (exchange.type != type) {
+                throw new IOException("Exchange '" + name + "' was declared as " + exchange.type + ", not " + type);
+            }
+        }
+
+        @Override
+        public void bind(String queue, String exchange, String routingKey) throws IOException {
+            broker.exchange(exchange).bind(routingKey, broker.queue(queue));
+        }
+
+        @Override
+        public void unbind(String queue, String exchange, String routingKey) throws IOException {
+            broker.exchange(exchange).unbind(routingKey, broker.queue(queue));
+        }
+
+        @Override
+        public void publish(String exchange, String routingKey, TransportMessage message) throws IOException {
+            if (exchange.isEmpty()) {
+                // Like the AMQP default exchange, a message for a queue that does not exist is dropped
+                MessageQueue queue = broker.queues.get(routingKey);
+                if (queue != null) {
+                    queue.offer(message);
+                }
+                return;
+            }
+            for (MessageQueue queue : broker.exchange(exchange).route(routingKey)) {
+                queue.offer(message);
+            }
+        }
+
+        @Override
+        public void consume(String queue, MessageHandler handler) throws IOException {
+            consume(broker.queue(queue), handler, 0);
+        }
+
+        @Override
+        public void consume(String queue, int prefetch, MessageHandler handler) throws IOException {
+            if (prefetch < 1) {
+                throw new IllegalArgumentException("prefetch must be >= 1: " + prefetch);
+            }
+            consume(broker.queue(queue), handler, prefetch);
+        }
+
+        private void consume(MessageQueue queue, MessageHandler handler, int prefetch) throws IOException {
+            queue.consume(handler, prefetch);
+            if (!temporaryQueues.contains(queue)) {
+                consumedQueues.add(queue);
+            }
+        }
+
+        @Override
+        public void cancel(String queue) throws IOException {
+            MessageQueue messageQueue = broker.queue(queue);
+            if (consumedQueues.remove(messageQueue) || temporaryQueues.contains(messageQueue)) {
+                messageQueue.cancel();
+            }
+        }
+    }
+
+    private static final class Exchange {
+        private final TransportChannel.ExchangeType type;
+        private final ConcurrentMap<String, Set<MessageQueue>> bindings = new ConcurrentHashMap<>();
+
+        Exchange(TransportChannel.ExchangeType type) {
+            this.type = type;
+        }
+
+        private String key(String routingKey) {
+            // A fanout exchange ignores routing keys
+            return type == TransportChannel.ExchangeType.FANOUT ? "" : routingKey;
+        }
+
+        void bind(String routingKey, MessageQueue queue) {
+            bindings.computeIfAbsent(key(routingKey), k -> ConcurrentHashMap.newKeySet()).add(queue);
+        }
+
+        void unbind(String routingKey, MessageQueue queue) {
+            Set<MessageQueue> queues = bindings.get(key(routingKey));
+            if (queues != null) {
+                queues.remove(queue);
+            }
+        }
+
+        void unbindAll(MessageQueue queue) {
+            for (Set<MessageQueue> queues : bindings.values()) {
+                queues.remove(queue);
+            }
+        }
+
+        Iterable<MessageQueue> route(String routingKey) {
+            Set<MessageQueue> queues = bindings.get(key(routingKey));
+            return queues == null ? List.of() : queues;
+        }
+    }
+
+    private static final class MessageQueue {
+        private final String name;
+        private final ExecutorService deliveries;
+        private final int maxLength;
+        private final Deque<TransportMessage> messages = new ConcurrentLinkedDeque<>();
+        // The size of messages, which the queue itself can only count by walking it
+        private final AtomicInteger length = new AtomicInteger();
+        // Deliveries the consumer has not acknowledged yet, only counted with a prefetch
+        private final AtomicInteger unacknowledged = new AtomicInteger();
+        // Set while a thread delivers this queue's messages, so only one ever does
+        private final AtomicBoolean delivering = new AtomicBoolean();
+        // Held while the consumer handles a message
+        private final ReentrantLock handling = new ReentrantLock();
+        private volatile TransportChannel.MessageHandler handler;
+        private volatile int prefetch;
+
+        MessageQueue(String name, ExecutorService deliveries, int maxLength) {
+            if (maxLength < 1) {
+                throw new IllegalArgumentException("maxLength must be >= 1: " + maxLength);
+            }
+            this.name = name;
+            this.deliveries = deliveries;
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * A prefetch of 0 acknowledges every message as it is delivered.
+         */
+        synchronized void consume(TransportChannel.MessageHandler handler, int prefetch) throws IOException {
+            if (this.handler != null) {
+                throw new IOException("Queue '" + name + "' already has a consumer");
+            }
+            this.prefetch = prefetch;
+            this.handler = handler;
+            scheduleDelivery();
+        }
+
+        /**
+         * Stops delivering. Returns once the message being delivered, if any, is handled.
+         */
+        synchronized void cancel() {
+            handler = null;
+            // Wait out a delivery in progress, so that none follows the cancel
+            handling.lock();
+            handling.unlock();
+        }
+
+        void offer(TransportMessage message) {
+            messages.add(message);
+            if (length.incrementAndGet() > maxLength && messages.poll() != null) {
+                // Full: the oldest message makes room, as with an AMQP queue's drop-head overflow
+                length.decrementAndGet();
+            }
+            scheduleDelivery();
+        }
+
+        private boolean mayDeliver() {
+            return prefetch == 0 || unacknowledged.get() < prefetch;
+        }
+
+        private void scheduleDelivery() {
+            if (handler != null && !messages.isEmpty() && mayDeliver() && delivering.compareAndSet(false, true)) {
+                deliveries.execute(this::deliver);
+            }
+        }
+
+        private void deliver() {
+            try {
+                for (int i = 0; i < MAX_DRAIN; i++) {
+                    handling.lock();
+                    try {
+                        TransportChannel.MessageHandler handler = this.handler;
+                        TransportMessage message;
+                        if (handler == null || !mayDeliver() || (message = messages.poll()) == null) {
+                            break;
+                        }
+                        length.decrementAndGet();
+                        if (prefetch > 0) {
+                            unacknowledged.incrementAndGet();
+                            TransportMessage delivered = message;
+                            message = message.withAcknowledgement(this::acknowledged, () -> rejected(delivered));
+                        }
+                        try {
+                            handler.handle(message);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                            if (message.isRedelivered()) {
+                                // Failed before and would only fail again, so it is dropped, as
+                                // by the AMQP transport on a queue without a dead-letter exchange
+                                message.ack();
+                            } else {
+                                message.reject();
+                            }
+                        }
+                    } finally {
+                        handling.unlock();
+                    }
+                }
+            } finally {
+                delivering.set(false);
+            }
+            // Messages published while we were finishing found the queue still delivering
+            scheduleDelivery();
+        }
+
+        private void acknowledged() {
+            unacknowledged.decrementAndGet();
+            scheduleDelivery();
+        }
+
+        private void rejected(TransportMessage message) {
+            messages.addFirst(message.asRedelivered());
+            length.incrementAndGet();
+            acknowledged();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package myEditorCommon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks on a fixed number of single-threaded shards, picking the shard from a key.
+ * Tasks with the same key run one at a time in submission order, while tasks for keys on
+ * different shards run in parallel. The servers key by document id, so the edits to one
+ * document stay ordered and different documents use different cores.
+ */
+public class ShardedExecutor implements AutoCloseable {
+    private final List<ThreadPoolExecutor> shards;
+    private final String threadNamePrefix;
+    private ScheduledExecutorService reporter;
+
+    public ShardedExecutor(int shardCount, String threadNamePrefix) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be >= 1: " + shardCount);
+        }
+        this.threadNamePrefix = threadNamePrefix;
+        shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            String threadName = threadNamePrefix + "-" + i;
+            shards.add(new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }));
+        }
+    }
+
+    // e.g. -Deditor.shards=8
+    public static int shardCountFromSystemProperties() {
+        return Integer.getInteger("editor.shards", Runtime.getRuntime().availableProcessors());
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    public int shardOf(String key) {
+        return Math.floorMod(key.hashCode(), shards.size());
+    }
+
+    public void execute(String key, Runnable task) {
+        shards.get(shardOf(key)).execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Keep the shard alive for the next document's edits
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Number of tasks waiting on each shard, not counting the one running.
+     */
+    public int[] queueDepths() {
+        int[] depths = new int[shards.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = shards.get(i).getQueue().size();
+        }
+        return depths;
+    }
+
+    /**
+     * Prints the shard queue depths every {@code periodSeconds} while any shard has a backlog.
+     * A period of 0 turns the report off.
+     */
+    public synchronized void reportQueueDepths(long periodSeconds) {
+        if (periodSeconds <= 0 || reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, threadNamePrefix + "-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            int[] depths = queueDepths();
+            if (Arrays.stream(depths).anyMatch(depth -> depth > 0)) {
+                System.out.println(" [*] Shard queue depths: " + Arrays.toString(depths));
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops taking tasks and waits up to {@code timeoutMillis} for the queued ones to finish.
+     */
+    public void shutdown(long timeoutMillis) {
+        synchronized (this) {
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+        }
+        for (ThreadPoolExecutor shard : shards) {
+            shard.shutdown();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (ThreadPoolExecutor shard : shards) {
+                shard.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        shutdown(5000);
+    }
+}
@@ -0,0 +1,56 @@
+package myEditorCommon;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * A connection the editor's servers and clients talk over. {@link AmqpTransport} goes through a
+ * RabbitMQ broker; {@link InProcessTransport} keeps every queue in this JVM, so the server logic
+ * can run against many simulated clients without a broker; {@link DirectTransport} connects to
+ * a server that is its own broker, one hop away.
+ */
+public interface Transport extends AutoCloseable {
+
+    // e.g. -Deditor.transport=inprocess or -Deditor.transport=amqp -Deditor.amqp.host=broker.local -Deditor.amqp.durable=true
+    // or -Deditor.transport=direct -Deditor.direct.host=editor.local
+    static Transport fromSystemProperties() throws IOException, TimeoutException {
+        String kind = System.getProperty("editor.transport", "amqp");
+        switch (kind) {
+            case "amqp":
+                return AmqpTransport.connect(System.getProperty("editor.amqp.host", "localhost"),
+                        Boolean.getBoolean("editor.amqp.durable"));
+            case "inprocess":
+                return InProcessTransport.connect();
+            case "direct":
+                return DirectTransport.connect(System.getProperty("editor.direct.host", "localhost"),
+                        Integer.getInteger("editor.direct.port", DirectServer.DEFAULT_PORT));
+            default:
+                throw new IllegalArgumentException("Unknown transport: " + kind);
+        }
+    }
+
+    TransportChannel createChannel() throws IOException;
+
+    /**
+     * Runs {@code listener} when the connection goes away.
+     */
+    void addShutdownListener(Runnable listener);
+
+    /**
+     * Tells {@code listener} the old and new name of each temporary queue redeclared after the
+     * connection recovered. Only connections that can recover ever call it.
+     */
+    default void addQueueRenameListener(BiConsumer<String, String> listener) {
+    }
+
+    /**
+     * Runs {@code listener} after the connection recovered from a failure. Only connections that
+     * can recover ever call it.
+     */
+    default void addRecoveryListener(Runnable listener) {
+    }
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,61 @@
+package myEditorCommon;
+
+import java.io.IOException;
+
+/**
+ * Declares queues and exchanges, and publishes and consumes messages, with the semantics of an
+ * AMQP channel: the exchange {@code ""} delivers straight to the queue named by the routing key,
+ * and a queue's messages reach its consumer one at a time, in order. Like an AMQP channel, one
+ * channel should not be published on from several threads at once.
+ */
+public interface TransportChannel {
+    enum ExchangeType { DIRECT, FANOUT }
+
+    interface MessageHandler {
+        void handle(TransportMessage message);
+    }
+
+    /**
+     * Declares a shared queue, if it does not exist yet.
+     */
+    void declareQueue(String name) throws IOException;
+
+    /**
+     * Declares a queue that only lives as long as this connection, and returns its name.
+     */
+    String declareTemporaryQueue() throws IOException;
+
+    /**
+     * Declares a temporary queue that holds at most {@code maxLength} messages. Once it is full,
+     * every new message drops the oldest one, so a consumer that falls behind loses messages
+     * instead of the queue growing without bound.
+     */
+    String declareTemporaryQueue(int maxLength) throws IOException;
+
+    void declareExchange(String name, ExchangeType type) throws IOException;
+
+    void bind(String queue, String exchange, String routingKey) throws IOException;
+
+    void unbind(String queue, String exchange, String routingKey) throws IOException;
+
+    void publish(String exchange, String routingKey, TransportMessage message) throws IOException;
+
+    /**
+     * Hands every message of the queue to {@code handler}, acknowledged as soon as it is delivered.
+     */
+    void consume(String queue, MessageHandler handler) throws IOException;
+
+    /**
+     * Hands the messages of the queue to {@code handler}, at most {@code prefetch} of them not yet
+     * acknowledged at a time. Each one must be acknowledged with {@link TransportMessage#ack()} once
+     * it is handled; until then the queue keeps the rest. A message the handler throws on is
+     * acknowledged and lost.
+     */
+    void consume(String queue, int prefetch, MessageHandler handler) throws IOException;
+
+    /**
+     * Stops this channel's consumer of the queue. Messages delivered before are still handled
+     * and acknowledged as usual; the rest stay in the queue for the next consumer.
+     */
+    void cancel(String queue) throws IOException;
+}
@@ -0,0 +1,141 @@
+package myEditorCommon;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A message as it travels over a {@link Transport}: the body and the few properties the editor
+ * uses. Properties it does not set are null.
+ */
+public final class TransportMessage {
+    private final String contentType;
+    private final String appId;
+    private final String replyTo;
+    private final byte[] body;
+    private final long sentAtMicros;
+    private final long sequence;
+    private final Runnable acknowledgement;
+    private final Runnable rejection;
+    private final boolean redelivered;
+
+    public TransportMessage(byte[] body) {
+        this(null, null, null, body);
+    }
+
+    public TransportMessage(String contentType, String appId, byte[] body) {
+        this(contentType, appId, null, body);
+    }
+
+    public TransportMessage(String contentType, String appId, String replyTo, byte[] body) {
+        this(contentType, appId, replyTo, body, 0, 0, null, null, false);
+    }
+
+    private TransportMessage(String contentType, String appId, String replyTo, byte[] body, long sentAtMicros, long sequence,
+                             Runnable acknowledgement, Runnable rejection, boolean redelivered) {
+        this.contentType = contentType;
+        this.appId = appId;
+        this.replyTo = replyTo;
+        this.body = body;
+        this.sentAtMicros = sentAtMicros;
+        this.sequence = sequence;
+        this.acknowledgement = acknowledgement;
+        this.rejection = rejection;
+        this.redelivered = redelivered;
+    }
+
+    /**
+     * The same message stamped with when its content was sent, in wall-clock microseconds,
+     * and its place among the sender's messages.
+     */
+    public TransportMessage withTiming(long sentAtMicros, long sequence) {
+        return new TransportMessage(contentType, appId, replyTo, body, sentAtMicros, sequence, acknowledgement, rejection, redelivered);
+    }
+
+    /**
+     * The same message, delivered by a transport that runs {@code acknowledgement} when it is
+     * acknowledged and {@code rejection} when it is rejected. Only the first {@link #ack()} or
+     * {@link #reject()} of the message and its copies runs either.
+     */
+    public TransportMessage withAcknowledgement(Runnable acknowledgement, Runnable rejection) {
+        AtomicBoolean settled = new AtomicBoolean();
+        return new TransportMessage(contentType, appId, replyTo, body, sentAtMicros, sequence, () -> {
+            if (settled.compareAndSet(false, true)) {
+                acknowledgement.run();
+            }
+        }, () -> {
+            if (settled.compareAndSet(false, true)) {
+                rejection.run();
+            }
+        }, redelivered);
+    }
+
+    /**
+     * The same message, marked as delivered before.
+     */
+    TransportMessage asRedelivered() {
+        return new TransportMessage(contentType, appId, replyTo, body, sentAtMicros, sequence, acknowledgement, rejection, true);
+    }
+
+    /**
+     * Tells the transport this delivery is handled, so it can be forgotten and the next one sent.
+     * Does nothing for messages that were acknowledged on delivery. Any thread may call it.
+     */
+    public void ack() {
+        if (acknowledgement != null) {
+            acknowledgement.run();
+        }
+    }
+
+    /**
+     * Tells the transport this delivery could not be handled now, so that it is delivered again,
+     * maybe to another consumer. Does nothing for messages that were acknowledged on delivery.
+     * Any thread may call it.
+     */
+    public void reject() {
+        if (rejection != null) {
+            rejection.run();
+        }
+    }
+
+    /**
+     * True if the message was delivered before and not acknowledged then.
+     */
+    public boolean isRedelivered() {
+        return redelivered;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Id of the client that sent the message, or null if unknown.
+     */
+    public String getAppId() {
+        return appId;
+    }
+
+    /**
+     * Queue the sender wants the answer on, or null.
+     */
+    public String getReplyTo() {
+        return replyTo;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * When the content was sent, in microseconds since the epoch, or 0 if unknown.
+     */
+    public long getSentAtMicros() {
+        return sentAtMicros;
+    }
+
+    /**
+     * Counts up by one with each message of a sender, or 0 if unknown.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+}
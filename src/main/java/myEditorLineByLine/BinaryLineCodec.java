@@ -0,0 +1,650 @@
+package myEditorLineByLine;
+
+import myEditorCommon.FrameReader;
+import myEditorCommon.FrameWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of line edits. Every frame starts with its type and the version of that type's
+ * format, one byte each, which its content type repeats (see {@link WireFormat}); a type's
+ * format can then change without touching the others. An {@link #EDITS} frame is
+ * <pre>
+ *   type, version  1 byte each
+ *   fileId         varint length + UTF-8 bytes
+ *   edit count     varint
+ *   edits          op byte, varint line, then by op:
+ *                    SET      one line
+ *                    INSERT   varint line count + lines
+ *                    DELETE   varint count
+ *                    REPLACE  varint count, varint line count + lines
+ *   made at        optionally, the epoch (8 bytes) and varint version the edits were made at
+ * </pre>
+ * Varints are unsigned LEB128 and each line is a varint length followed by its raw UTF-8 bytes,
+ * so content may hold any character, including the ';' and ':' the text format splits on.
+ * <p>
+ * The server publishes {@link DocumentUpdate}s, whose frame types share {@link #UPDATE_VERSION}.
+ * After the header and file id, they carry the document epoch (8 bytes) and versions as unsigned varints:
+ * <pre>
+ *   BATCH      base version, version, varint segment count, then per segment the
+ *              sender's app id (empty if unknown), edit count and edits
+ *   SNAPSHOT   version, varint line count + lines
+ *   PAGE       version, varint first line, varint document line count, varint line count + lines
+ * </pre>
+ * Clients catch up with a {@link #SYNC_REQUEST} frame: file id, epoch, version, and
+ * optionally a varint first line and line count to ask for a page, then a flags byte whose
+ * lowest bit asks for the {@link LineSequence} with a snapshot.
+ * <p>
+ * Clients that merge edits send {@link #OPS} frames instead of edits: file id, epoch,
+ * base version and {@link CrdtOp}s. An op is an op byte, then by op:
+ * <pre>
+ *   INSERT   anchor (varint site + 1, 0 for none, then its clock), id, varint line count + lines
+ *   DELETE   id, varint count
+ *   SET      id, stamp, one line
+ * </pre>
+ * Ids are a varint site and the clock as a zigzag varint delta from the clock before it in the
+ * frame, so the ids of nearby lines take two or three bytes. Batches carry the ops after their
+ * segments, where older clients stop reading: varint horizon, then per segment a flags byte
+ * ({@code 1} ops follow, {@code 2} rejected, followed by the epoch and base version the ops were
+ * made at) and the ops. A {@link #CRDT_SNAPSHOT} frame is a snapshot followed by its
+ * sequence: the client's site, clock and collected horizon, the runs with their site, clock,
+ * length, flags byte ({@code 1} deleted, followed by the version), and last-followed version,
+ * then the stamps of lines set since they were inserted as pairs of ids.
+ * <p>
+ * A {@link #PROBE} frame checks hashes: file id, epoch, version, varint line count,
+ * flags byte (lowest bit as for sync requests), varint level, varint node count, then per node
+ * its index as a varint delta from the one before and its 8-byte hash.
+ */
+public final class BinaryLineCodec {
+    // Frame types
+    public static final byte EDITS = 1;
+    public static final byte BATCH = 2;
+    public static final byte SNAPSHOT = 3;
+    public static final byte PAGE = 4;
+    public static final byte CRDT_SNAPSHOT = 5;
+    public static final byte SYNC_REQUEST = 6;
+    public static final byte OPS = 7;
+    public static final byte PROBE = 8;
+
+    // Format version of each kind of frame; the update frames travel under one content type and share theirs
+    public static final byte EDITS_VERSION = 1;
+    public static final byte UPDATE_VERSION = 1;
+    public static final byte SYNC_REQUEST_VERSION = 1;
+    public static final byte OPS_VERSION = 1;
+    public static final byte PROBE_VERSION = 1;
+
+    private static final byte OP_SET = 0;
+    private static final byte OP_INSERT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final byte OP_REPLACE = 3;
+
+    private static final int SEGMENT_OPS = 1;
+    private static final int SEGMENT_REJECTED = 2;
+    private static final int REQUEST_CRDT = 1;
+    private static final int RUN_DELETED = 1;
+
+    private BinaryLineCodec() {
+    }
+
+    public static byte[] encode(String fileId, List<LineEdit> edits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeHeader(out, EDITS, EDITS_VERSION);
+        FrameWriter.writeString(out, fileId);
+        writeEdits(out, edits);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes edits made on a copy of the document at {@code baseVersion} of {@code epoch}, see {@link LineMessage#madeAt}.
+     */
+    public static byte[] encode(String fileId, long epoch, long baseVersion, List<LineEdit> edits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeHeader(out, EDITS, EDITS_VERSION);
+        FrameWriter.writeString(out, fileId);
+        writeEdits(out, edits);
+        FrameWriter.writeLong(out, epoch);
+        FrameWriter.writeVarlong(out, baseVersion);
+        return out.toByteArray();
+    }
+
+    public static byte[] encodeUpdate(DocumentUpdate update) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        writeHeader(out, update.getSequence() != null ? CRDT_SNAPSHOT
+                : update.isPage() ? PAGE : update.isSnapshot() ? SNAPSHOT : BATCH, UPDATE_VERSION);
+        FrameWriter.writeString(out, update.getFileId());
+        FrameWriter.writeLong(out, update.getEpoch());
+        if (update.getSequence() != null) {
+            FrameWriter.writeVarlong(out, update.getVersion());
+            writeSnapshotLines(out, update);
+            writeSequence(out, update.getSequence());
+        } else if (update.isPage()) {
+            FrameWriter.writeVarlong(out, update.getVersion());
+            FrameWriter.writeVarint(out, update.getFirstLine());
+            FrameWriter.writeVarint(out, update.getTotalLines());
+            writeSnapshotLines(out, update);
+        } else if (update.isSnapshot()) {
+            FrameWriter.writeVarlong(out, update.getVersion());
+            writeSnapshotLines(out, update);
+        } else {
+            FrameWriter.writeVarlong(out, update.getBaseVersion());
+            FrameWriter.writeVarlong(out, update.getVersion());
+            FrameWriter.writeVarint(out, update.getSegments().size());
+            for (LineMessage segment : update.getSegments()) {
+                FrameWriter.writeString(out, segment.getOrigin() == null ? "" : segment.getOrigin());
+                writeEdits(out, segment.getEdits());
+            }
+            if (hasOps(update)) {
+                FrameWriter.writeVarlong(out, update.getHorizon());
+                for (LineMessage segment : update.getSegments()) {
+                    out.write((segment.getOps() != null ? SEGMENT_OPS : 0) | (segment.isRejected() ? SEGMENT_REJECTED : 0));
+                    if (segment.isRejected()) {
+                        // Edits of clients that did not say their version were made at none they could have loaded
+                        FrameWriter.writeLong(out, segment.getEpoch());
+                        FrameWriter.writeVarlong(out, Math.max(0, segment.getBaseVersion()));
+                    }
+                    if (segment.getOps() != null) {
+                        writeOps(out, segment.getOps());
+                    }
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean hasOps(DocumentUpdate update) {
+        if (update.getHorizon() > 0) {
+            return true;
+        }
+        for (LineMessage segment : update.getSegments()) {
+            if (segment.getOps() != null || segment.isRejected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static byte[] encodeOps(String fileId, long epoch, long baseVersion, List<CrdtOp> ops) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeHeader(out, OPS, OPS_VERSION);
+        FrameWriter.writeString(out, fileId);
+        FrameWriter.writeLong(out, epoch);
+        FrameWriter.writeVarlong(out, baseVersion);
+        writeOps(out, ops);
+        return out.toByteArray();
+    }
+
+    public static byte[] encodeSyncRequest(SyncRequest request) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeHeader(out, SYNC_REQUEST, SYNC_REQUEST_VERSION);
+        FrameWriter.writeString(out, request.getFileId());
+        FrameWriter.writeLong(out, request.getEpoch());
+        FrameWriter.writeVarlong(out, request.getVersion());
+        if (request.getLineCount() != SyncRequest.ALL_LINES || request.isCrdt()) {
+            FrameWriter.writeVarint(out, request.getFirstLine());
+            FrameWriter.writeVarint(out, request.getLineCount());
+        }
+        if (request.isCrdt()) {
+            out.write(REQUEST_CRDT);
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] encodeProbe(HashProbe probe) {
+        int[] nodes = probe.getNodes();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 + nodes.length * 10);
+        writeHeader(out, PROBE, PROBE_VERSION);
+        FrameWriter.writeString(out, probe.getFileId());
+        FrameWriter.writeLong(out, probe.getEpoch());
+        FrameWriter.writeVarlong(out, probe.getVersion());
+        FrameWriter.writeVarint(out, probe.getLineCount());
+        out.write(probe.isCrdt() ? REQUEST_CRDT : 0);
+        FrameWriter.writeVarint(out, probe.getLevel());
+        FrameWriter.writeVarint(out, nodes.length);
+        int previous = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            FrameWriter.writeVarint(out, nodes[i] - previous);
+            FrameWriter.writeLong(out, probe.getHashes()[i]);
+            previous = nodes[i];
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes just the edits, without a header or file id, for records whose owner is known.
+     */
+    static byte[] encodeEdits(List<LineEdit> edits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        writeEdits(out, edits);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes what {@link #encodeEdits} wrote.
+     *
+     * @throws IllegalArgumentException if the bytes are truncated or have an unknown op code
+     */
+    static List<LineEdit> decodeEdits(byte[] bytes) {
+        return readEdits(new FrameReader(bytes));
+    }
+
+    /**
+     * Encodes a whole sequence, with the last op seen from each site that the frames leave out,
+     * for a document set aside on disk.
+     */
+    static byte[] encodeSequence(LineSequence sequence) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        writeSequence(out, sequence);
+        Map<Integer, Long> seen = sequence.seen();
+        FrameWriter.writeVarint(out, seen.size());
+        for (Map.Entry<Integer, Long> site : seen.entrySet()) {
+            FrameWriter.writeVarint(out, site.getKey());
+            FrameWriter.writeVarlong(out, site.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes what {@link #encodeSequence} wrote.
+     *
+     * @throws IllegalArgumentException if the bytes are truncated or invalid
+     */
+    static LineSequence decodeSequence(byte[] bytes) {
+        FrameReader reader = new FrameReader(bytes);
+        LineSequence sequence = readSequence(reader);
+        int sites = reader.readVarint();
+        for (int i = 0; i < sites; i++) {
+            sequence.restoreSeen(reader.readVarint(), reader.readVarlong());
+        }
+        return sequence;
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, byte type, byte version) {
+        out.write(type);
+        out.write(version);
+    }
+
+    /**
+     * Reads a frame's type and format version, and returns the type.
+     *
+     * @throws IllegalArgumentException if the type is none of {@code types}, or the version is not {@code version}
+     */
+    private static int readHeader(FrameReader reader, byte version, byte... types) {
+        int type = reader.readByte();
+        int frameVersion = reader.readByte();
+        for (byte expected : types) {
+            if (type == expected) {
+                if (frameVersion != version) {
+                    throw new IllegalArgumentException("Unsupported version " + frameVersion + " of frame type " + type);
+                }
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unexpected frame type: " + type);
+    }
+
+    private static void writeOps(ByteArrayOutputStream out, List<CrdtOp> ops) {
+        FrameWriter.writeVarint(out, ops.size());
+        Clocks clocks = new Clocks();
+        for (CrdtOp op : ops) {
+            switch (op.getKind()) {
+                case INSERT:
+                    out.write(OP_INSERT);
+                    LineId anchor = op.getAnchor();
+                    FrameWriter.writeVarint(out, anchor == null ? 0 : anchor.getSite() + 1);
+                    if (anchor != null) {
+                        clocks.writeClock(out, anchor.getClock());
+                    }
+                    clocks.write(out, op.getId().getSite(), op.getId().getClock());
+                    FrameWriter.writeLines(out, op.getLines());
+                    break;
+                case DELETE:
+                    out.write(OP_DELETE);
+                    clocks.write(out, op.getId().getSite(), op.getId().getClock());
+                    FrameWriter.writeVarint(out, op.getCount());
+                    break;
+                case SET:
+                    out.write(OP_SET);
+                    clocks.write(out, op.getId().getSite(), op.getId().getClock());
+                    clocks.write(out, op.getStamp().getSite(), op.getStamp().getClock());
+                    FrameWriter.writeString(out, op.getLines().get(0));
+                    break;
+            }
+        }
+    }
+
+    private static void writeSequence(ByteArrayOutputStream out, LineSequence sequence) {
+        FrameWriter.writeVarint(out, sequence.getSite());
+        FrameWriter.writeVarlong(out, sequence.getClock());
+        FrameWriter.writeVarlong(out, sequence.getCollectedThrough());
+        List<LineSequence.Run> runs = sequence.runs();
+        FrameWriter.writeVarint(out, runs.size());
+        Clocks clocks = new Clocks();
+        for (LineSequence.Run run : runs) {
+            clocks.write(out, run.site, run.clock);
+            FrameWriter.writeVarint(out, run.length);
+            out.write(run.deleted ? RUN_DELETED : 0);
+            if (run.deleted) {
+                FrameWriter.writeVarlong(out, run.deletedAt);
+            }
+            FrameWriter.writeVarlong(out, run.touched);
+        }
+        Map<LineId, LineId> stamps = sequence.stamps();
+        FrameWriter.writeVarint(out, stamps.size());
+        for (Map.Entry<LineId, LineId> stamp : stamps.entrySet()) {
+            clocks.write(out, stamp.getKey().getSite(), stamp.getKey().getClock());
+            clocks.write(out, stamp.getValue().getSite(), stamp.getValue().getClock());
+        }
+    }
+
+    private static void writeEdits(ByteArrayOutputStream out, List<LineEdit> edits) {
+        FrameWriter.writeVarint(out, edits.size());
+        for (LineEdit edit : edits) {
+            switch (edit.getKind()) {
+                case SET:
+                    out.write(OP_SET);
+                    FrameWriter.writeVarint(out, edit.getLine());
+                    FrameWriter.writeString(out, edit.getLines().get(0));
+                    break;
+                case INSERT:
+                    out.write(OP_INSERT);
+                    FrameWriter.writeVarint(out, edit.getLine());
+                    FrameWriter.writeLines(out, edit.getLines());
+                    break;
+                case DELETE:
+                    out.write(OP_DELETE);
+                    FrameWriter.writeVarint(out, edit.getLine());
+                    FrameWriter.writeVarint(out, edit.getCount());
+                    break;
+                case REPLACE:
+                    out.write(OP_REPLACE);
+                    FrameWriter.writeVarint(out, edit.getLine());
+                    FrameWriter.writeVarint(out, edit.getCount());
+                    FrameWriter.writeLines(out, edit.getLines());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Decodes a whole frame. Unlike the text format a bad entry cannot be skipped, since
+     * the entries after it have no separator to resync on, so any error rejects the frame.
+     *
+     * @throws IllegalArgumentException if the frame is truncated, has another type or version, or an unknown op code
+     */
+    public static LineMessage decode(byte[] frame) {
+        FrameReader reader = new FrameReader(frame);
+        readHeader(reader, EDITS_VERSION, EDITS);
+        String fileId = reader.readString();
+        LineMessage message = new LineMessage(fileId, readEdits(reader));
+        return reader.remaining() > 0 ? message.madeAt(reader.readLong(), reader.readVarlong()) : message;
+    }
+
+    /**
+     * Decodes an {@link #OPS} frame.
+     *
+     * @throws IllegalArgumentException if the frame is truncated, has another type or version, or an unknown op code
+     */
+    public static LineMessage decodeOps(byte[] frame) {
+        FrameReader reader = new FrameReader(frame);
+        readHeader(reader, OPS_VERSION, OPS);
+        String fileId = reader.readString();
+        long epoch = reader.readLong();
+        long baseVersion = reader.readVarlong();
+        return LineMessage.crdt(fileId, epoch, baseVersion, readOps(reader));
+    }
+
+    /**
+     * Decodes a batch, snapshot or page frame.
+     *
+     * @throws IllegalArgumentException if the frame is truncated, has another type or version, or an unknown op code
+     */
+    public static DocumentUpdate decodeUpdate(byte[] frame) {
+        FrameReader reader = new FrameReader(frame);
+        int type = readHeader(reader, UPDATE_VERSION, BATCH, SNAPSHOT, PAGE, CRDT_SNAPSHOT);
+        String fileId = reader.readString();
+        long epoch = reader.readLong();
+        if (type == CRDT_SNAPSHOT) {
+            long documentVersion = reader.readVarlong();
+            List<String> lines = reader.readLines();
+            LineSequence sequence = readSequence(reader);
+            if (sequence.size() != lines.size()) {
+                throw new IllegalArgumentException("Snapshot has " + lines.size() + " lines but its sequence " + sequence.size());
+            }
+            return DocumentUpdate.snapshot(fileId, epoch, documentVersion, lines).withSequence(sequence);
+        }
+        if (type == SNAPSHOT) {
+            long documentVersion = reader.readVarlong();
+            return DocumentUpdate.snapshot(fileId, epoch, documentVersion, reader.readLines());
+        }
+        if (type == PAGE) {
+            long documentVersion = reader.readVarlong();
+            int firstLine = reader.readVarint();
+            int totalLines = reader.readVarint();
+            return DocumentUpdate.page(fileId, epoch, documentVersion, firstLine, totalLines, reader.readLines());
+        }
+        long baseVersion = reader.readVarlong();
+        long documentVersion = reader.readVarlong();
+        int count = reader.readVarint();
+        // Every segment takes at least two bytes
+        List<LineMessage> segments = new ArrayList<>(Math.min(count, reader.remaining() / 2));
+        for (int i = 0; i < count; i++) {
+            String origin = reader.readString();
+            segments.add(new LineMessage(fileId, origin.isEmpty() ? null : origin, readEdits(reader)));
+        }
+        long horizon = 0;
+        if (reader.remaining() > 0) {
+            horizon = reader.readVarlong();
+            for (int i = 0; i < count; i++) {
+                int flags = reader.readByte();
+                LineMessage segment = segments.get(i);
+                if ((flags & SEGMENT_REJECTED) != 0) {
+                    long segmentEpoch = reader.readLong();
+                    long segmentBase = reader.readVarlong();
+                    segment = segment.madeAt(segmentEpoch, segmentBase).rejected();
+                }
+                if ((flags & SEGMENT_OPS) != 0) {
+                    segment = segment.withOps(readOps(reader));
+                }
+                segments.set(i, segment);
+            }
+        }
+        return DocumentUpdate.batch(fileId, epoch, baseVersion, documentVersion, segments, horizon);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the frame is truncated or not a sync request
+     */
+    public static SyncRequest decodeSyncRequest(byte[] frame) {
+        FrameReader reader = new FrameReader(frame);
+        readHeader(reader, SYNC_REQUEST_VERSION, SYNC_REQUEST);
+        String fileId = reader.readString();
+        long epoch = reader.readLong();
+        long documentVersion = reader.readVarlong();
+        if (reader.remaining() == 0) {
+            return new SyncRequest(fileId, epoch, documentVersion);
+        }
+        int firstLine = reader.readVarint();
+        int lineCount = reader.readVarint();
+        boolean crdt = reader.remaining() > 0 && (reader.readByte() & REQUEST_CRDT) != 0;
+        return new SyncRequest(fileId, epoch, documentVersion, firstLine, lineCount, crdt);
+    }
+
+    public static HashProbe decodeProbe(byte[] frame) {
+        FrameReader reader = new FrameReader(frame);
+        readHeader(reader, PROBE_VERSION, PROBE);
+        String fileId = reader.readString();
+        long epoch = reader.readLong();
+        long documentVersion = reader.readVarlong();
+        int lineCount = reader.readVarint();
+        boolean crdt = (reader.readByte() & REQUEST_CRDT) != 0;
+        int level = reader.readVarint();
+        int count = reader.readVarint();
+        // Every node takes at least nine bytes
+        if (count > reader.remaining() / 9) {
+            throw new IllegalArgumentException("Truncated probe of " + count + " nodes");
+        }
+        int[] nodes = new int[count];
+        long[] hashes = new long[count];
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            int delta = reader.readVarint();
+            if (delta > Integer.MAX_VALUE - previous) {
+                throw new IllegalArgumentException("Node index out of range");
+            }
+            nodes[i] = previous + delta;
+            hashes[i] = reader.readLong();
+            previous = nodes[i];
+        }
+        return new HashProbe(fileId, epoch, documentVersion, lineCount, crdt, level, nodes, hashes);
+    }
+
+    private static List<CrdtOp> readOps(FrameReader reader) {
+        int count = reader.readVarint();
+        // Every op takes at least three bytes
+        List<CrdtOp> ops = new ArrayList<>(Math.min(count, reader.remaining() / 3));
+        Clocks clocks = new Clocks();
+        for (int i = 0; i < count; i++) {
+            int op = reader.readByte();
+            switch (op) {
+                case OP_INSERT:
+                    int anchorSite = reader.readVarint();
+                    LineId anchor = anchorSite == 0 ? null : new LineId(anchorSite - 1, clocks.readClock(reader));
+                    LineId id = clocks.read(reader);
+                    List<String> lines = reader.readLines();
+                    if (lines.isEmpty()) {
+                        throw new IllegalArgumentException("An insert needs at least one line");
+                    }
+                    ops.add(CrdtOp.insert(anchor, id, lines));
+                    break;
+                case OP_DELETE:
+                    LineId first = clocks.read(reader);
+                    ops.add(CrdtOp.delete(first, reader.readVarint()));
+                    break;
+                case OP_SET:
+                    LineId line = clocks.read(reader);
+                    LineId stamp = clocks.read(reader);
+                    ops.add(CrdtOp.set(line, stamp, reader.readString()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown op code: " + op);
+            }
+        }
+        return ops;
+    }
+
+    private static LineSequence readSequence(FrameReader reader) {
+        int site = reader.readVarint();
+        long clock = reader.readVarlong();
+        long collectedThrough = reader.readVarlong();
+        LineSequence sequence = new LineSequence(site);
+        int runs = reader.readVarint();
+        // Every run takes at least five bytes
+        if (runs > reader.remaining() / 5) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        Clocks clocks = new Clocks();
+        for (int i = 0; i < runs; i++) {
+            int runSite = reader.readVarint();
+            long runClock = clocks.readClock(reader);
+            int length = reader.readVarint();
+            boolean deleted = (reader.readByte() & RUN_DELETED) != 0;
+            long deletedAt = deleted ? reader.readVarlong() : 0;
+            sequence.appendRun(runSite, runClock, length, deleted, deletedAt, reader.readVarlong());
+        }
+        sequence.restore(clock, collectedThrough);
+        int stamps = reader.readVarint();
+        for (int i = 0; i < stamps; i++) {
+            LineId line = clocks.read(reader);
+            sequence.restoreStamp(line, clocks.read(reader));
+        }
+        return sequence;
+    }
+
+    private static List<LineEdit> readEdits(FrameReader reader) {
+        int count = reader.readVarint();
+        // Every edit takes at least two bytes, which bounds the count of a corrupt frame
+        List<LineEdit> edits = new ArrayList<>(Math.min(count, reader.remaining() / 2));
+        for (int i = 0; i < count; i++) {
+            int op = reader.readByte();
+            int line = reader.readVarint();
+            switch (op) {
+                case OP_SET:
+                    edits.add(LineEdit.set(line, reader.readString()));
+                    break;
+                case OP_INSERT:
+                    edits.add(LineEdit.insert(line, reader.readLines()));
+                    break;
+                case OP_DELETE:
+                    edits.add(LineEdit.delete(line, reader.readVarint()));
+                    break;
+                case OP_REPLACE:
+                    int replaced = reader.readVarint();
+                    edits.add(LineEdit.replace(line, replaced, reader.readLines()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown op code: " + op);
+            }
+        }
+        return edits;
+    }
+
+    private static void writeSnapshotLines(ByteArrayOutputStream out, DocumentUpdate update) {
+        List<ByteBuffer> lineBytes = update.getLineBytes();
+        if (lineBytes == null) {
+            FrameWriter.writeLines(out, update.getLines());
+            return;
+        }
+        // Already UTF-8, so the bytes go into the frame without decoding
+        FrameWriter.writeVarint(out, lineBytes.size());
+        byte[] chunk = null;
+        for (ByteBuffer line : lineBytes) {
+            ByteBuffer source = line.duplicate();
+            FrameWriter.writeVarint(out, source.remaining());
+            if (source.hasArray()) {
+                out.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+                continue;
+            }
+            if (chunk == null) {
+                chunk = new byte[8192];
+            }
+            while (source.hasRemaining()) {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Writes and reads the clocks of one frame as zigzag deltas from the one before.
+     */
+    private static final class Clocks {
+        private long last;
+
+        void write(ByteArrayOutputStream out, int site, long clock) {
+            FrameWriter.writeVarint(out, site);
+            writeClock(out, clock);
+        }
+
+        void writeClock(ByteArrayOutputStream out, long clock) {
+            long delta = clock - last;
+            last = clock;
+            FrameWriter.writeVarlong(out, (delta << 1) ^ (delta >> 63));
+        }
+
+        LineId read(FrameReader reader) {
+            int site = reader.readVarint();
+            return new LineId(site, readClock(reader));
+        }
+
+        long readClock(FrameReader reader) {
+            long zigzag = reader.readVarlong();
+            last += (zigzag >>> 1) ^ -(zigzag & 1);
+            return last;
+        }
+    }
+}
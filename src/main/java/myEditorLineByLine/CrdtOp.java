@@ -0,0 +1,106 @@
+package myEditorLineByLine;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One operation on a {@link LineSequence}. Ops name lines by {@link LineId}, never by position,
+ * so concurrent ops from different sites can be applied in any order and still agree.
+ * <ul>
+ *     <li>{@code INSERT} puts lines with the ids {@code id}, {@code id + 1}, ... of one site right after {@code anchor}, or at the start if there is none</li>
+ *     <li>{@code DELETE} removes the {@code count} lines of one site with ids from {@code id} on</li>
+ *     <li>{@code SET} overwrites line {@code id}; of concurrent sets of a line the one with the greatest {@code stamp} wins</li>
+ * </ul>
+ */
+public final class CrdtOp {
+    public enum Kind { INSERT, DELETE, SET }
+
+    private final Kind kind;
+    private final LineId id;
+    private final LineId anchor;
+    private final LineId stamp;
+    private final int count;
+    private final List<String> lines;
+
+    private CrdtOp(Kind kind, LineId id, LineId anchor, LineId stamp, int count, List<String> lines) {
+        if (count < 1) {
+            throw new IllegalArgumentException("An op needs at least one line: " + count);
+        }
+        this.kind = kind;
+        this.id = id;
+        this.anchor = anchor;
+        this.stamp = stamp;
+        this.count = count;
+        this.lines = lines;
+    }
+
+    public static CrdtOp insert(LineId anchor, LineId id, List<String> lines) {
+        return new CrdtOp(Kind.INSERT, id, anchor, null, lines.size(), List.copyOf(lines));
+    }
+
+    public static CrdtOp delete(LineId id, int count) {
+        return new CrdtOp(Kind.DELETE, id, null, null, count, Collections.emptyList());
+    }
+
+    public static CrdtOp set(LineId id, LineId stamp, String content) {
+        return new CrdtOp(Kind.SET, id, null, stamp, 1, Collections.singletonList(content));
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * The first line the op inserts, deletes or sets.
+     */
+    public LineId getId() {
+        return id;
+    }
+
+    /**
+     * The line an insert follows, or null for the start of the document.
+     */
+    public LineId getAnchor() {
+        return anchor;
+    }
+
+    /**
+     * When a set was made, on the clock of the site that made it. Null for other ops.
+     */
+    public LineId getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Number of lines the op inserts, deletes or sets.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * Returns this insert with other text for its lines.
+     */
+    CrdtOp withLines(List<String> newLines) {
+        if (kind != Kind.INSERT || newLines.size() != count) {
+            throw new IllegalArgumentException("Not an insert of " + newLines.size() + " lines: " + this);
+        }
+        return insert(anchor, id, newLines);
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case INSERT:
+                return "INSERT(" + id + " after " + anchor + ", " + count + " lines)";
+            case DELETE:
+                return "DELETE(" + id + ", " + count + ")";
+            default:
+                return "SET(" + id + " at " + stamp + ")";
+        }
+    }
+}
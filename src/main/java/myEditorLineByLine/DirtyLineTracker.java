@@ -0,0 +1,146 @@
+package myEditorLineByLine;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Records what changed in the local document since the last flush, straight from the edit events.
+ * Added and removed lines become structural {@link LineEdit}s; lines whose text changed are kept
+ * as dirty line numbers and only read when the changes are drained, so a flush costs O(edit)
+ * no matter how long the document is.
+ * Safe to feed from the EDT while another thread drains it.
+ */
+public class DirtyLineTracker {
+    private final List<LineEdit> structuralEdits = new ArrayList<>();
+    // Dirty lines, numbered as in the current document
+    private final BitSet dirty = new BitSet();
+
+    /**
+     * A single line was edited without adding or removing line breaks.
+     */
+    public synchronized void lineChanged(int line) {
+        dirty.set(line);
+    }
+
+    /**
+     * Lines {@code index .. index + removed - 1} were replaced by {@code added} new lines.
+     */
+    public synchronized void linesReplaced(int index, int removed, int added) {
+        if (added > removed) {
+            List<String> blanks = Collections.nCopies(added - removed, "");
+            addStructuralEdit(LineEdit.insert(index + removed, blanks));
+            openGap(index + removed, added - removed);
+        } else if (removed > added) {
+            addStructuralEdit(LineEdit.delete(index + added, removed - added));
+            closeGap(index + added, removed - added);
+        }
+        // The surviving and new lines get their text from the replace entries sent after the structural edits
+        dirty.set(index, index + added);
+    }
+
+    /**
+     * Lines {@code index .. index + removed - 1} were replaced by {@code added} new lines, and the
+     * caller sends the lines added or removed itself. Only the lines' text is left to send.
+     */
+    public synchronized void linesMoved(int index, int removed, int added) {
+        if (added > removed) {
+            openGap(index + removed, added - removed);
+        } else if (removed > added) {
+            closeGap(index + added, removed - added);
+        }
+        dirty.set(index, index + added);
+    }
+
+    /**
+     * Lines were added or removed by someone else and are already part of the local document.
+     * Our dirty lines move with them, but there is nothing to send.
+     */
+    public synchronized void remoteLinesReplaced(int index, int removed, int added) {
+        if (added > removed) {
+            openGap(index + removed, added - removed);
+        } else if (removed > added) {
+            closeGap(index + added, removed - added);
+        }
+        int delta = added - removed;
+        if (delta != 0) {
+            for (int i = 0; i < structuralEdits.size(); i++) {
+                LineEdit edit = structuralEdits.get(i);
+                if (edit.getLine() >= index + removed) {
+                    structuralEdits.set(i, edit.shift(delta));
+                }
+            }
+        }
+    }
+
+    private void addStructuralEdit(LineEdit edit) {
+        // Typing Enter or Backspace repeatedly at the same spot collapses into one edit
+        if (!structuralEdits.isEmpty()) {
+            LineEdit last = structuralEdits.get(structuralEdits.size() - 1);
+            if (last.getKind() == LineEdit.Kind.INSERT && edit.getKind() == LineEdit.Kind.INSERT
+                    && last.getLine() + last.getLines().size() == edit.getLine()) {
+                List<String> lines = new ArrayList<>(last.getLines());
+                lines.addAll(edit.getLines());
+                structuralEdits.set(structuralEdits.size() - 1, LineEdit.insert(last.getLine(), lines));
+                return;
+            }
+            if (last.getKind() == LineEdit.Kind.DELETE && edit.getKind() == LineEdit.Kind.DELETE
+                    && (edit.getLine() == last.getLine() || edit.getLine() + edit.getCount() == last.getLine())) {
+                structuralEdits.set(structuralEdits.size() - 1,
+                        LineEdit.delete(Math.min(last.getLine(), edit.getLine()), last.getCount() + edit.getCount()));
+                return;
+            }
+        }
+        structuralEdits.add(edit);
+    }
+
+    private void openGap(int at, int length) {
+        BitSet tail = dirty.get(at, Math.max(at, dirty.length()));
+        dirty.clear(at, Math.max(at, dirty.length()));
+        tail.stream().forEach(bit -> dirty.set(at + length + bit));
+    }
+
+    private void closeGap(int at, int length) {
+        BitSet tail = dirty.get(at + length, Math.max(at + length, dirty.length()));
+        dirty.clear(at, Math.max(at, dirty.length()));
+        tail.stream().forEach(bit -> dirty.set(at + bit));
+    }
+
+    public synchronized boolean isEmpty() {
+        return structuralEdits.isEmpty() && dirty.isEmpty();
+    }
+
+    public synchronized void clear() {
+        structuralEdits.clear();
+        dirty.clear();
+    }
+
+    /**
+     * Returns the pending changes as edits and forgets them: first the structural edits in the
+     * order they happened, then one entry per run of dirty lines with the text read from
+     * {@code lineText}. Must be called while the document cannot change.
+     */
+    public synchronized List<LineEdit> drain(int lineCount, IntFunction<String> lineText) {
+        List<LineEdit> edits = new ArrayList<>(structuralEdits);
+        structuralEdits.clear();
+
+        int start = dirty.nextSetBit(0);
+        while (start >= 0 && start < lineCount) {
+            int end = Math.min(dirty.nextClearBit(start), lineCount);
+            if (end - start == 1) {
+                edits.add(LineEdit.set(start, lineText.apply(start)));
+            } else {
+                List<String> lines = new ArrayList<>(end - start);
+                for (int line = start; line < end; line++) {
+                    lines.add(lineText.apply(line));
+                }
+                edits.add(LineEdit.replace(start, end - start, lines));
+            }
+            start = dirty.nextSetBit(end);
+        }
+        dirty.clear();
+        return edits;
+    }
+}
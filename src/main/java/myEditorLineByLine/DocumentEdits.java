@@ -0,0 +1,101 @@
+package myEditorLineByLine;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Applies {@link LineEdit}s to a Swing {@link Document}, using the root element to find lines.
+ */
+final class DocumentEdits {
+    /**
+     * Told how an edit moved lines: lines {@code index .. index + removed - 1} became {@code added} lines.
+     */
+    interface LinesReplaced {
+        void linesReplaced(int index, int removed, int added);
+    }
+
+    private DocumentEdits() {
+    }
+
+    /**
+     * Applies edits in order, with the same result as {@link LineEdit#applyTo} on the document's
+     * lines, but as a single replace of the lines between the first and last ones they touch. Listeners see one
+     * change however many lines the edits cover, so {@code changes} is told about each edit.
+     */
+    static void applyAll(Document doc, List<LineEdit> edits, LinesReplaced changes) throws BadLocationException {
+        if (edits.isEmpty()) {
+            return;
+        }
+        Element root = doc.getDefaultRootElement();
+        int lineCount = root.getElementCount();
+
+        // Follow the line count through the edits to find how many leading and trailing lines none of them touches
+        int prefix = lineCount;
+        int suffix = lineCount;
+        int lines = lineCount;
+        for (LineEdit edit : edits) {
+            int line = edit.getLine();
+            if (edit.getKind() == LineEdit.Kind.DELETE && line >= lines) {
+                continue;
+            }
+            int padding = Math.max(0, line - lines);
+            int removed = edit.getKind() == LineEdit.Kind.INSERT ? 0 : Math.max(0, Math.min(edit.getCount(), lines - line));
+            int added = edit.getKind() == LineEdit.Kind.DELETE ? 0 : edit.getLines().size();
+            int from = Math.min(line, lines);
+            changes.linesReplaced(from, removed, padding + added);
+            prefix = Math.min(prefix, from);
+            suffix = Math.min(suffix, lines - from - removed);
+            lines += padding + added - removed;
+            if (lines == 0) {
+                // The empty line left when everything is deleted, see below
+                changes.linesReplaced(0, 0, 1);
+                lines = 1;
+            }
+        }
+        int end = lineCount - suffix;
+        if (prefix > end) {
+            // Only deletes past the end
+            return;
+        }
+
+        // Replay the edits on the lines in between, then swap those lines for the result
+        int start = root.getElement(prefix < lineCount ? prefix : lineCount - 1).getStartOffset();
+        int stop = suffix > 0 ? root.getElement(end).getStartOffset() : doc.getLength();
+        List<String> middle = new ArrayList<>();
+        if (prefix < end) {
+            String text = doc.getText(start, stop - start);
+            middle.addAll(Arrays.asList((suffix > 0 ? text.substring(0, text.length() - 1) : text).split("\n", -1)));
+        }
+        for (LineEdit edit : edits) {
+            edit.shift(-prefix).applyTo(middle);
+            if (prefix + middle.size() + suffix == 0) {
+                // Like the text area, which keeps one empty line when everything is deleted
+                middle.add("");
+            }
+        }
+
+        String replacement;
+        if (suffix > 0) {
+            replacement = middle.isEmpty() ? "" : join(middle) + "\n";
+        } else {
+            // The last line has no line break, so the break in front of the middle goes or stays with it
+            start = prefix > 0 ? root.getElement(prefix - 1).getEndOffset() - 1 : 0;
+            replacement = middle.isEmpty() ? "" : (prefix > 0 ? "\n" : "") + join(middle);
+        }
+        if (doc instanceof AbstractDocument) {
+            ((AbstractDocument) doc).replace(start, stop - start, replacement, null);
+        } else {
+            doc.remove(start, stop - start);
+            doc.insertString(start, replacement, null);
+        }
+    }
+
+    static String join(List<String> lines) {
+        return String.join("\n", lines);
+    }
+}
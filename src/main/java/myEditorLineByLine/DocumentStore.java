@@ -0,0 +1,429 @@
+package myEditorLineByLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Keeps every open document in memory and writes it back to disk behind the edits,
+ * according to a {@link WriteBehindPolicy}. Edits touch memory and are appended to the
+ * document's {@link OperationLog}; a single flusher thread writes the snapshots, and a
+ * syncer thread makes all logged edits durable every {@code logSyncMillis} with one fsync
+ * per document. What waits for an edit to be durable, see {@link #whenDurable}, waits for
+ * that fsync.
+ * <p>
+ * Documents nobody edited or read for {@code idleMillis}, and the least recently used ones
+ * beyond {@code maxDocuments}, are written and set aside (see {@link LineDocument#setAside})
+ * to free their memory, and loaded again when they are next used.
+ */
+public class DocumentStore implements AutoCloseable {
+    private final Map<String, LineDocument> documents = new ConcurrentHashMap<>();
+    private final WriteBehindPolicy policy;
+    private final ScheduledExecutorService flusher;
+    private final ScheduledExecutorService syncer;
+    private final Path logRoot;
+    private final int tailVersions;
+    private final long mappedBytes;
+    private final long gcVersions;
+    private final int maxDocuments;
+    private final long idleNanos;
+    // Nanoseconds per snapshot written and per log fsync that had something to force
+    private final LatencyHistogram flushTimes = new LatencyHistogram();
+    private final LatencyHistogram syncTimes = new LatencyHistogram();
+
+    public DocumentStore(WriteBehindPolicy policy, Path logRoot, long logSyncMillis, int tailVersions, long mappedBytes, long gcVersions,
+                         int maxDocuments, long idleMillis) {
+        if (logSyncMillis < 1) {
+            throw new IllegalArgumentException("logSyncMillis must be >= 1: " + logSyncMillis);
+        }
+        if (tailVersions < 0) {
+            throw new IllegalArgumentException("tailVersions must be >= 0: " + tailVersions);
+        }
+        if (gcVersions < 1) {
+            throw new IllegalArgumentException("gcVersions must be >= 1: " + gcVersions);
+        }
+        if (maxDocuments < 1) {
+            throw new IllegalArgumentException("maxDocuments must be >= 1: " + maxDocuments);
+        }
+        if (idleMillis < 1) {
+            throw new IllegalArgumentException("idleMillis must be >= 1: " + idleMillis);
+        }
+        this.policy = policy;
+        this.logRoot = logRoot;
+        this.tailVersions = tailVersions;
+        this.mappedBytes = mappedBytes;
+        this.gcVersions = gcVersions;
+        this.maxDocuments = maxDocuments;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "document-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Closing writes every dirty document anyway, so it need not wait out their delays
+        flusher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.flusher = flusher;
+        this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "operation-log-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::syncAll, logSyncMillis, logSyncMillis, TimeUnit.MILLISECONDS);
+        // Setting aside writes files too, so it shares the flusher thread
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                setAsideColdDocuments();
+            } catch (RuntimeException e) {
+                // Thrown out of here it would stop the schedule
+                e.printStackTrace();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // e.g. -Deditor.log.dir=/var/lib/editor/oplog -Deditor.log.syncMs=5 -Deditor.catchup.versions=5000 -Deditor.store.mappedBytes=1048576
+    // -Deditor.crdt.gcVersions=200 keeps deleted lines for 200 versions, and rejects ops made further back
+    // -Deditor.store.maxDocuments=50000 -Deditor.store.idleSeconds=60
+    public static DocumentStore fromSystemProperties() {
+        Path logRoot = Paths.get(System.getProperty("editor.log.dir", "oplog"));
+        long syncMillis = Long.getLong("editor.log.syncMs", 10);
+        int tailVersions = Integer.getInteger("editor.catchup.versions", 1000);
+        long mappedBytes = Long.getLong("editor.store.mappedBytes", 16L * 1024 * 1024);
+        long gcVersions = Long.getLong("editor.crdt.gcVersions", 1000);
+        int maxDocuments = Integer.getInteger("editor.store.maxDocuments", 10_000);
+        long idleMillis = TimeUnit.SECONDS.toMillis(Long.getLong("editor.store.idleSeconds", 600));
+        return new DocumentStore(WriteBehindPolicy.fromSystemProperties(), logRoot, syncMillis, tailVersions, mappedBytes, gcVersions,
+                maxDocuments, idleMillis);
+    }
+
+    public WriteBehindPolicy getPolicy() {
+        return policy;
+    }
+
+    public LatencyHistogram getFlushTimes() {
+        return flushTimes;
+    }
+
+    public LatencyHistogram getSyncTimes() {
+        return syncTimes;
+    }
+
+    public Path getLogRoot() {
+        return logRoot;
+    }
+
+    /**
+     * Opens every document that has an operation log, replaying the edits that did not make
+     * it into its file before the last shutdown, and schedules their snapshots. Documents
+     * that were set aside have nothing to replay and stay on disk until used.
+     * Returns the number of documents opened.
+     */
+    public int recover() throws IOException {
+        return recover(filePath -> true);
+    }
+
+    /**
+     * Like {@link #recover()}, for the documents {@code owned} accepts only.
+     */
+    public int recover(Predicate<String> owned) throws IOException {
+        if (!Files.isDirectory(logRoot)) {
+            return 0;
+        }
+        int opened = 0;
+        try (Stream<Path> directories = Files.list(logRoot)) {
+            for (Path directory : (Iterable<Path>) directories::iterator) {
+                if (LineDocument.isSetAside(directory)) {
+                    continue;
+                }
+                String filePath = OperationLog.documentPathIn(directory);
+                if (filePath == null || !owned.test(filePath)) {
+                    continue;
+                }
+                LineDocument document = open(filePath);
+                if (document != null) {
+                    opened++;
+                    if (document.isDirty()) {
+                        scheduleFlush(document, 0);
+                    }
+                }
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * Applies the segments' line edits to the in-memory copy of the file as one new version,
+     * loading it on first use. Returns the update to publish, or null if the file does not
+     * exist or cannot be read.
+     *
+     * @throws IOException if the edits could not be logged. None of them applied, and the
+     *                     document is closed, to be loaded again from its file and log.
+     */
+    public DocumentUpdate apply(String filePath, List<LineMessage> segments) throws IOException {
+        LineDocument document;
+        DocumentUpdate update;
+        do {
+            document = open(filePath);
+            if (document == null) {
+                return null;
+            }
+            try {
+                // Null if it was set aside after we found it; it is loaded again once that is done
+                update = document.apply(segments);
+            } catch (IOException e) {
+                documents.remove(filePath, document);
+                try {
+                    document.close();
+                } catch (IOException closeFailed) {
+                    e.addSuppressed(closeFailed);
+                }
+                throw e;
+            }
+        } while (update == null);
+
+        if (document.dirtyLineCount() >= policy.getDirtyLineThreshold()) {
+            scheduleFlush(document, 0);
+        } else {
+            scheduleFlush(document, policy.getMaxFlushDelayMillis());
+        }
+        return update;
+    }
+
+    /**
+     * Runs {@code task} once every edit applied to the file so far is durable in its log: on the
+     * syncer thread, or right away if they are, or the document is not open. A document closes
+     * its log, which forces it, before it leaves the store.
+     */
+    public void whenDurable(String filePath, Runnable task) {
+        LineDocument document = documents.get(filePath);
+        if (document == null) {
+            task.run();
+        } else {
+            document.whenDurable(task);
+        }
+    }
+
+    /**
+     * Returns what the client that sent the request needs to catch up on the file, see
+     * {@link LineDocument#catchUp}. Null if the file does not exist or cannot be read.
+     */
+    public DocumentUpdate catchUp(SyncRequest request) {
+        while (true) {
+            LineDocument document = open(request.getFileId());
+            if (document == null) {
+                return null;
+            }
+            DocumentUpdate update = document.catchUp(request);
+            if (update != null) {
+                return update;
+            }
+        }
+    }
+
+    /**
+     * The hash tree of a document at {@code epoch} and {@code version}, see {@link LineDocument#hashTree}.
+     * Null if the document is elsewhere in its history, or cannot be read.
+     */
+    LineHashTree hashTree(String fileId, long epoch, long version) {
+        while (true) {
+            LineDocument document = open(fileId);
+            if (document == null) {
+                return null;
+            }
+            LineHashTree tree = document.hashTree(epoch, version);
+            if (tree != null || !(document.isSetAside() || document.isDiscarded())) {
+                return tree;
+            }
+        }
+    }
+
+    private LineDocument open(String filePath) {
+        LineDocument document = documents.get(filePath);
+        if (document != null) {
+            if (document.isSetAside() || document.isDiscarded()) {
+                // Being removed from the map right now
+                Thread.onSpinWait();
+            }
+            return document;
+        }
+
+        File file = new File(filePath);
+        if (!file.exists()) {
+            System.err.println("File does not exist: " + filePath);
+            return null;
+        }
+        return documents.computeIfAbsent(filePath, key -> {
+            try {
+                return LineDocument.load(key, OperationLog.directoryFor(logRoot, key), tailVersions, mappedBytes, gcVersions);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        });
+    }
+
+    private void scheduleFlush(LineDocument document, long delayMillis) {
+        if (delayMillis == 0) {
+            flusher.execute(() -> flush(document));
+        } else if (document.markFlushScheduled()) {
+            flusher.schedule(() -> flush(document), delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush(LineDocument document) {
+        try {
+            long start = System.nanoTime();
+            if (document.flush()) {
+                flushTimes.record(System.nanoTime() - start);
+                System.out.println("File updated: " + document.getPath());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            // Try again later rather than dropping the edits
+            scheduleFlush(document, policy.getMaxFlushDelayMillis());
+        }
+    }
+
+    private void syncAll() {
+        for (LineDocument document : documents.values()) {
+            try {
+                long start = System.nanoTime();
+                if (document.sync()) {
+                    syncTimes.record(System.nanoTime() - start);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes every dirty document now, on the calling thread.
+     */
+    public void flushAll() {
+        for (LineDocument document : documents.values()) {
+            try {
+                if (document.flush()) {
+                    System.out.println("File updated: " + document.getPath());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sets aside the open documents {@code released} accepts, so whoever opens them next
+     * carries on from their files where this store left off. Nothing may be applying edits to
+     * them meanwhile. Returns the number of documents closed.
+     */
+    public int release(Predicate<String> released) {
+        int closed = 0;
+        for (Map.Entry<String, LineDocument> entry : documents.entrySet()) {
+            if (!released.test(entry.getKey())) {
+                continue;
+            }
+            LineDocument document = entry.getValue();
+            if (!setAside(entry.getKey(), document)) {
+                // The log keeps what the file misses, and the next owner replays it in a new epoch
+                documents.remove(entry.getKey(), document);
+                try {
+                    document.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            closed++;
+        }
+        return closed;
+    }
+
+    /**
+     * Sets aside the documents idle for longer than {@code idleMillis}, then the least recently
+     * used ones until at most {@code maxDocuments} stay open.
+     */
+    private void setAsideColdDocuments() {
+        List<Map.Entry<String, LineDocument>> open = new ArrayList<>(documents.entrySet());
+        long[] lastUsed = new long[open.size()];
+        Integer[] order = new Integer[open.size()];
+        for (int i = 0; i < open.size(); i++) {
+            lastUsed[i] = open.get(i).getValue().lastUsedNanos();
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> lastUsed[i]));
+        long now = System.nanoTime();
+        int excess = open.size() - maxDocuments;
+        int setAside = 0;
+        for (int i : order) {
+            if (excess <= 0 && now - lastUsed[i] < idleNanos) {
+                break;
+            }
+            if (setAside(open.get(i).getKey(), open.get(i).getValue())) {
+                setAside++;
+                excess--;
+            }
+        }
+        if (setAside > 0) {
+            System.out.println(" [*] Set aside " + setAside + " cold documents, " + documents.size() + " open");
+        }
+    }
+
+    /**
+     * Writes a document and sets it aside. Returns false if it could not be written, or was
+     * edited meanwhile; it then stays open.
+     */
+    private boolean setAside(String filePath, LineDocument document) {
+        try {
+            if (document.flush()) {
+                System.out.println("File updated: " + document.getPath());
+            }
+            if (!document.setAside()) {
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        documents.remove(filePath, document);
+        return true;
+    }
+
+    public int openDocumentCount() {
+        return documents.size();
+    }
+
+    @Override
+    public void close() {
+        // Not shutdownNow(): an interrupt inside a write or force closes the log's channel, and
+        // then neither the last snapshot nor the acks waiting on the next sync would go through
+        flusher.shutdown();
+        syncer.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+            syncer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+        for (LineDocument document : documents.values()) {
+            try {
+                document.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
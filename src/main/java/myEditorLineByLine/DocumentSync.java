@@ -0,0 +1,441 @@
+package myEditorLineByLine;
+
+import myEditorCommon.DocumentRouting;
+import myEditorCommon.TransportChannel;
+import myEditorCommon.TransportMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Keeps a client's copy of one document in step with the server's, for both
+ * {@link TextEditorByLineClient} and {@link HeadlessClient}. It knows where the copy stands in
+ * the server's history, catches up after a gap, applies batches in version order, merges ops
+ * into the copy's {@link LineSequence}, reloads the document when the server turns our edits
+ * down, and checks the copy against the server's with {@link HashProbe}s and repairs the lines
+ * that differ. The client holds the lines, behind {@link Copy}, and calls in from one thread at a time.
+ */
+class DocumentSync {
+    /**
+     * The lines a client holds.
+     */
+    interface Copy {
+        /**
+         * The lines as they are now, as the server counts them.
+         */
+        List<String> lines();
+
+        /**
+         * Hashes of {@link #lines}.
+         */
+        default LineHashTree hashTree() {
+            return LineHashTree.ofLines(lines());
+        }
+
+        /**
+         * True if the copy holds the whole document and nothing that was not sent. Only then is it checked.
+         */
+        boolean isSettled();
+
+        /**
+         * Puts the lines of a snapshot in place of all of ours. Returns false to keep ours,
+         * e.g. to send what was typed first and ask again.
+         */
+        boolean load(DocumentUpdate snapshot);
+
+        /**
+         * Applies an edit the server applied, in line numbers of the whole document. Our own
+         * edits are in the copy already, but come by too. Returns false if the copy lost track
+         * of where the edits go, and has to be loaded again.
+         */
+        boolean apply(LineEdit edit, boolean own);
+
+        /**
+         * Asks for the lines around a paged window again, in place of the whole document, see
+         * {@link #requestPage}. Returns false if the copy is of the whole document.
+         */
+        boolean reloadWindow();
+    }
+
+    private final String clientId;
+    private final TransportChannel channel;
+    private final Supplier<String> replyQueue;
+    private final boolean crdt;
+    private final Copy copy;
+    private final Consumer<String> log;
+    private final AtomicLong resyncs;
+    private final AtomicLong rejections;
+    private final AtomicLong repairs;
+    private final AtomicLong messagesOut;
+    private final AtomicLong bytesOut;
+    private String fileId;
+    // Where the copy stands in the server's history of the open document
+    private long epoch = SyncRequest.UNKNOWN_EPOCH;
+    private long version = 0;
+    // Numbers our edit messages, so the server can tell if any went missing
+    private long sequence = 0;
+    private boolean syncPending = false;
+    // Set while the answer we wait for is a page, which batches do not stand in for
+    private boolean pageReload = false;
+    // The ids of the copy's lines, from the last snapshot on; null if we go by line numbers
+    private LineSequence replica;
+    // Version of the last snapshot; rejections of edits made before it are old news
+    private long loadedVersion = 0;
+    private boolean reloading = false;
+    // Our sequence number when we sent the last probe; its answers are void once we send edits
+    private long probedAt = -1;
+
+    /**
+     * Sends on {@code channel} as {@code clientId}, and has answers sent to {@code replyQueue}.
+     * With {@code crdt} whole documents are loaded with their ids, so edits can be merged as ops.
+     * Counts what it does in {@code counters}, and tells of it in {@code log}.
+     */
+    DocumentSync(String clientId, TransportChannel channel, Supplier<String> replyQueue, boolean crdt, Copy copy,
+                 Function<String, AtomicLong> counters, Consumer<String> log) {
+        this.clientId = clientId;
+        this.channel = channel;
+        this.replyQueue = replyQueue;
+        this.crdt = crdt;
+        this.copy = copy;
+        this.log = log;
+        this.resyncs = counters.apply("resyncs");
+        this.rejections = counters.apply("rejections");
+        this.repairs = counters.apply("repairs");
+        this.messagesOut = counters.apply("messagesOut");
+        this.bytesOut = counters.apply("bytesOut");
+    }
+
+    /**
+     * Follows {@code newFileId} instead of the open document, or nothing if it is null. The copy
+     * is empty until the next snapshot, see {@link #requestSync}.
+     */
+    void open(String newFileId) throws IOException {
+        DocumentRouting.rebind(channel, replyQueue.get(), fileId, newFileId);
+        fileId = newFileId;
+        epoch = SyncRequest.UNKNOWN_EPOCH;
+        version = 0;
+        replica = null;
+        syncPending = false;
+        pageReload = false;
+        reloading = false;
+    }
+
+    String getFileId() {
+        return fileId;
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * True once the lines of the open document arrived from the server.
+     */
+    boolean isSynced() {
+        return epoch != SyncRequest.UNKNOWN_EPOCH;
+    }
+
+    /**
+     * True while the server turned our edits down and the document is on its way again.
+     * What is typed meanwhile is lost, so there is no point sending it.
+     */
+    boolean isReloading() {
+        return reloading;
+    }
+
+    /**
+     * The ids of the copy's lines, or null if we go by line numbers.
+     */
+    LineSequence getReplica() {
+        return replica;
+    }
+
+    long getResyncs() {
+        return resyncs.get();
+    }
+
+    long getRejections() {
+        return rejections.get();
+    }
+
+    long getRepairs() {
+        return repairs.get();
+    }
+
+    /**
+     * Asks the server for what we miss of the open document. It answers with the batches since
+     * our version, or a snapshot if it no longer has them. A paged copy reloads its window instead.
+     */
+    void requestSync() {
+        if (fileId == null || copy.reloadWindow()) {
+            return;
+        }
+        syncPending = true;
+        publishSyncRequest(new SyncRequest(fileId, epoch, version, crdt));
+    }
+
+    /**
+     * Asks for a page of the open document, at whatever version the server has. A page that
+     * reloads the copy is awaited like a snapshot, and goes to {@link #loaded} when it arrives.
+     */
+    void requestPage(int firstLine, int lineCount, boolean reload) {
+        syncPending = reload;
+        pageReload = reload;
+        publishSyncRequest(new SyncRequest(fileId, SyncRequest.UNKNOWN_EPOCH, 0, firstLine, lineCount));
+    }
+
+    /**
+     * Applies an update from the server to the copy. Returns false if it was not applied,
+     * because it is old, comes after a gap, or is a snapshot we did not ask for.
+     */
+    boolean update(DocumentUpdate update) {
+        if (update.isSnapshot()) {
+            if (update.isPage() || (!syncPending && !reloading)) {
+                // Not what we asked for, e.g. the answer to a request we sent again: older than edits we sent since
+                return false;
+            }
+            if (!copy.load(update)) {
+                return false;
+            }
+            loaded(update);
+            return true;
+        }
+        if (update.getEpoch() != epoch || update.getBaseVersion() > version) {
+            // The server reloaded the document or we missed batches: edits would land on the wrong lines.
+            // Batches go missing when we fall so far behind that the broker drops the oldest from our queue.
+            if (!syncPending) {
+                resyncs.incrementAndGet();
+                log.accept(" [*] Missed updates after version " + version + ", catching up");
+                requestSync();
+            }
+            return false;
+        }
+        if (update.getVersion() <= version) {
+            // Already have it, e.g. a live batch that was also part of a catch-up
+            return false;
+        }
+        boolean rejected = false;
+        for (LineMessage segment : update.getSegments()) {
+            rejected |= clientId.equals(segment.getOrigin()) && segment.isRejected()
+                    && segment.getEpoch() == epoch && segment.getBaseVersion() >= loadedVersion;
+        }
+        boolean lost = false;
+        if (replica != null) {
+            rejected |= !merge(update);
+        } else {
+            lost = !applyEdits(update);
+        }
+        epoch = update.getEpoch();
+        version = update.getVersion();
+        if (!pageReload) {
+            syncPending = false;
+        }
+        if (rejected && !reloading) {
+            // What we sent since builds on what the server turned down, so start over from its lines
+            rejections.incrementAndGet();
+            log.accept(" [*] Edits after version " + loadedVersion + " were turned down, reloading");
+            reloading = true;
+            if (!copy.reloadWindow()) {
+                publishSyncRequest(new SyncRequest(fileId, SyncRequest.UNKNOWN_EPOCH, 0, crdt));
+            }
+        } else if (lost) {
+            requestSync();
+        }
+        return true;
+    }
+
+    /**
+     * Takes note that the copy now holds the lines of {@code snapshot}, a snapshot or a page that reloaded it.
+     */
+    void loaded(DocumentUpdate snapshot) {
+        replica = snapshot.getSequence();
+        loadedVersion = snapshot.getVersion();
+        reloading = false;
+        syncPending = false;
+        pageReload = false;
+        epoch = snapshot.getEpoch();
+        version = snapshot.getVersion();
+    }
+
+    /**
+     * Merges the ops of a batch into the replica, and applies the edits they make to the copy.
+     * Our own ops are already in the replica, and come back only to learn their version.
+     * Returns false if the replica cannot take them.
+     */
+    private boolean merge(DocumentUpdate update) {
+        for (LineMessage segment : update.getSegments()) {
+            try {
+                for (CrdtOp op : segment.getOps() == null ? List.<CrdtOp>of() : segment.getOps()) {
+                    for (LineEdit edit : replica.apply(op, update.getVersion())) {
+                        copy.apply(edit, false);
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                // Our replica is off, so start over from the server's
+                System.err.println("Cannot merge version " + update.getVersion() + ": " + e.getMessage());
+                return false;
+            }
+        }
+        replica.collect(update.getHorizon());
+        return true;
+    }
+
+    /**
+     * Applies the edits of a batch to a copy that goes by line numbers. Returns false if the copy lost track.
+     */
+    private boolean applyEdits(DocumentUpdate update) {
+        for (LineMessage segment : update.getSegments()) {
+            boolean own = clientId.equals(segment.getOrigin());
+            for (LineEdit edit : segment.getEdits()) {
+                if (!copy.apply(edit, own)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends edits made on the copy at our version. The server turns them down if others changed
+     * the document since, see {@link LineMessage#madeAt}. Returns the size of the message.
+     */
+    int sendEdits(List<LineEdit> edits) throws IOException {
+        return publishEdit(WireFormat.BINARY.getContentType(), BinaryLineCodec.encode(fileId, epoch, version, edits));
+    }
+
+    /**
+     * Sends ops made on the replica at {@code baseVersion}. Returns the size of the message.
+     */
+    int sendOps(long baseVersion, List<CrdtOp> ops) throws IOException {
+        return publishEdit(WireFormat.CRDT_CONTENT_TYPE, BinaryLineCodec.encodeOps(fileId, epoch, baseVersion, ops));
+    }
+
+    private int publishEdit(String contentType, byte[] message) throws IOException {
+        DocumentRouting.publishEdit(channel, fileId, new TransportMessage(contentType, clientId, message)
+                .withTiming(Metrics.nowMicros(), ++sequence));
+        messagesOut.incrementAndGet();
+        bytesOut.addAndGet(message.length);
+        return message.length;
+    }
+
+    /**
+     * Checks the copy against the server's, see {@link HashProbe}. The server answers once it has
+     * applied the edits we sent before, and not at all if that takes it past our version.
+     * Returns false without checking while the copy is not settled, or we catch up or reload.
+     */
+    boolean verify() {
+        if (!isSettled()) {
+            return false;
+        }
+        probedAt = sequence;
+        publishProbe(HashProbe.root(fileId, epoch, version, crdt, copy.hashTree()));
+        return true;
+    }
+
+    private boolean isSettled() {
+        return fileId != null && isSynced() && !syncPending && !reloading && copy.isSettled();
+    }
+
+    /**
+     * True while the copy is the one the last probe was about, give or take what the server changes.
+     */
+    private boolean isProbed() {
+        return isSettled() && probedAt == sequence;
+    }
+
+    /**
+     * Sends back our hashes of the nodes the server has other hashes for, so it looks below them.
+     */
+    void answer(HashProbe probe) {
+        if (!probe.getFileId().equals(fileId) || probe.getEpoch() != epoch || probe.getVersion() != version || !isProbed()) {
+            // The copy moved on since we asked, and the next check starts over
+            return;
+        }
+        LineHashTree tree = copy.hashTree();
+        int level = probe.getLevel();
+        if (probe.getLineCount() != tree.lineCount() || level >= tree.height()) {
+            return;
+        }
+        int[] nodes = new int[probe.getNodes().length];
+        long[] hashes = new long[nodes.length];
+        int differing = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            int node = probe.getNodes()[i];
+            if (node < tree.width(level) && tree.hash(level, node) != probe.getHashes()[i]) {
+                nodes[differing] = node;
+                hashes[differing++] = tree.hash(level, node);
+            }
+        }
+        if (differing > 0) {
+            publishProbe(new HashProbe(fileId, epoch, version, tree.lineCount(), crdt, level,
+                    Arrays.copyOf(nodes, differing), Arrays.copyOf(hashes, differing)));
+        }
+    }
+
+    /**
+     * Puts the lines of a page in place of the copy's, if they are still the lines the check
+     * compared. They stay the same lines, so a replica needs no change. If the copy has lines
+     * too many or too few, the server sent the whole document with its ids instead, and it
+     * replaces the copy and the replica. Returns false if the repair changed nothing.
+     */
+    boolean repair(DocumentUpdate page) {
+        if (page.getEpoch() != epoch || page.getVersion() != version || !isProbed()) {
+            return false;
+        }
+        List<String> current = copy.lines();
+        if (page.getTotalLines() != current.size()) {
+            if (page.isPage() || (replica != null && page.getSequence() == null) || !copy.load(page)) {
+                return false;
+            }
+            if (replica != null) {
+                replica = page.getSequence();
+                loadedVersion = page.getVersion();
+            }
+            repairs.incrementAndGet();
+            log.accept(" [*] " + current.size() + " lines where the server has " + page.getTotalLines() + ", reloaded them");
+            return true;
+        }
+        int repaired = 0;
+        List<String> lines = page.getLines();
+        for (int i = 0; i < lines.size(); i++) {
+            int line = page.getFirstLine() + i;
+            if (!lines.get(i).equals(current.get(line))) {
+                copy.apply(LineEdit.set(line, lines.get(i)), false);
+                repaired++;
+            }
+        }
+        if (repaired > 0) {
+            repairs.incrementAndGet();
+            log.accept(" [*] Lines " + page.getFirstLine() + ".." + (page.getFirstLine() + lines.size() - 1)
+                    + " differed from the server's, repaired " + repaired);
+        }
+        return repaired > 0;
+    }
+
+    private void publishProbe(HashProbe probe) {
+        publishRequest(probe.getFileId(), WireFormat.PROBE_CONTENT_TYPE, BinaryLineCodec.encodeProbe(probe));
+    }
+
+    private void publishSyncRequest(SyncRequest request) {
+        publishRequest(request.getFileId(), WireFormat.SYNC_REQUEST_CONTENT_TYPE, BinaryLineCodec.encodeSyncRequest(request));
+    }
+
+    private void publishRequest(String fileId, String contentType, byte[] message) {
+        try {
+            DocumentRouting.publishEdit(channel, fileId, new TransportMessage(contentType, clientId, replyQueue.get(), message));
+            messagesOut.incrementAndGet();
+            bytesOut.addAndGet(message.length);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package myEditorLineByLine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the server sends clients about a document: either a batch of edits that takes the
+ * document from {@code baseVersion} to {@code version}, or a snapshot of its lines at
+ * {@code version}. A snapshot may be a page that holds only some of the lines.
+ * <p>
+ * Snapshots the server builds hold the lines as UTF-8 slices of its line store, which are
+ * copied into the frame as they are; decoded snapshots hold strings. Versions count applied batches and only mean something within one
+ * {@code epoch}, which changes every time the server loads the document.
+ * <p>
+ * A snapshot for a client that merges edits also carries the document's {@link LineSequence},
+ * and a batch tells such clients the horizon up to which they may collect tombstones.
+ */
+public final class DocumentUpdate {
+    private final String fileId;
+    private final long epoch;
+    private final long baseVersion;
+    private final long version;
+    private final List<LineMessage> segments;
+    private List<String> lines;
+    private final List<ByteBuffer> lineBytes;
+    private final int firstLine;
+    private final int totalLines;
+    private final LineSequence sequence;
+    private final long horizon;
+
+    private DocumentUpdate(String fileId, long epoch, long baseVersion, long version, List<LineMessage> segments,
+                           List<String> lines, List<ByteBuffer> lineBytes, int firstLine, int totalLines) {
+        this(fileId, epoch, baseVersion, version, segments, lines, lineBytes, firstLine, totalLines, null, 0);
+    }
+
+    private DocumentUpdate(String fileId, long epoch, long baseVersion, long version, List<LineMessage> segments,
+                           List<String> lines, List<ByteBuffer> lineBytes, int firstLine, int totalLines,
+                           LineSequence sequence, long horizon) {
+        this.fileId = fileId;
+        this.epoch = epoch;
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.segments = segments;
+        this.lines = lines;
+        this.lineBytes = lineBytes;
+        this.firstLine = firstLine;
+        this.totalLines = totalLines;
+        this.sequence = sequence;
+        this.horizon = horizon;
+    }
+
+    public static DocumentUpdate batch(String fileId, long epoch, long baseVersion, long version, List<LineMessage> segments) {
+        return batch(fileId, epoch, baseVersion, version, segments, 0);
+    }
+
+    public static DocumentUpdate batch(String fileId, long epoch, long baseVersion, long version, List<LineMessage> segments, long horizon) {
+        return new DocumentUpdate(fileId, epoch, baseVersion, version, segments, null, null, 0, 0, null, horizon);
+    }
+
+    public static DocumentUpdate snapshot(String fileId, long epoch, long version, List<String> lines) {
+        return new DocumentUpdate(fileId, epoch, version, version, null, lines, null, 0, lines.size());
+    }
+
+    /**
+     * A snapshot of lines {@code firstLine .. firstLine + lines.size() - 1} of a document that has {@code totalLines} lines.
+     */
+    public static DocumentUpdate page(String fileId, long epoch, long version, int firstLine, int totalLines, List<String> lines) {
+        return new DocumentUpdate(fileId, epoch, version, version, null, lines, null, firstLine, totalLines);
+    }
+
+    /**
+     * A page whose lines are given as their UTF-8 bytes, without line breaks. A page of all
+     * lines is a snapshot.
+     */
+    public static DocumentUpdate encodedPage(String fileId, long epoch, long version, int firstLine, int totalLines, List<ByteBuffer> lineBytes) {
+        return new DocumentUpdate(fileId, epoch, version, version, null, null, lineBytes, firstLine, totalLines);
+    }
+
+    /**
+     * Returns this snapshot of the whole document with the sequence that names its lines.
+     */
+    public DocumentUpdate withSequence(LineSequence sequence) {
+        if (!isSnapshot() || isPage() || sequence.size() != totalLines) {
+            throw new IllegalArgumentException("A sequence of " + sequence.size() + " lines does not fit " + totalLines + " lines");
+        }
+        return new DocumentUpdate(fileId, epoch, baseVersion, version, segments, lines, lineBytes, firstLine, totalLines, sequence, horizon);
+    }
+
+    public boolean isSnapshot() {
+        return lines != null || lineBytes != null;
+    }
+
+    /**
+     * True for a snapshot that leaves out some of the document's lines.
+     */
+    public boolean isPage() {
+        return isSnapshot() && (firstLine != 0 || lineCount() != totalLines);
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Version the edits apply to; the same as {@link #getVersion} for a snapshot.
+     */
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Edits of a batch, grouped by sender. Null for a snapshot.
+     */
+    public List<LineMessage> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Lines of a snapshot. Null for a batch.
+     */
+    public List<String> getLines() {
+        if (lines == null && lineBytes != null) {
+            List<String> decoded = new ArrayList<>(lineBytes.size());
+            for (ByteBuffer line : lineBytes) {
+                decoded.add(StandardCharsets.UTF_8.decode(line.duplicate()).toString());
+            }
+            lines = decoded;
+        }
+        return lines;
+    }
+
+    /**
+     * UTF-8 bytes of the lines of a snapshot the server built, or null.
+     */
+    List<ByteBuffer> getLineBytes() {
+        return lineBytes;
+    }
+
+    private int lineCount() {
+        return lines != null ? lines.size() : lineBytes.size();
+    }
+
+    /**
+     * Document line the first of {@link #getLines} is. 0 for a full snapshot.
+     */
+    public int getFirstLine() {
+        return firstLine;
+    }
+
+    /**
+     * Number of lines in the whole document, for a snapshot or page.
+     */
+    public int getTotalLines() {
+        return totalLines;
+    }
+
+    /**
+     * The sequence of a snapshot asked for by a merging client, with a site of its own for its
+     * ops. Null otherwise.
+     */
+    public LineSequence getSequence() {
+        return sequence;
+    }
+
+    /**
+     * For a batch: tombstones deleted and last followed at or before this version may be
+     * collected once the batch is applied. 0 if none may.
+     */
+    public long getHorizon() {
+        return horizon;
+    }
+}
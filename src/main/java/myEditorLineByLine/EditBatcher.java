@@ -0,0 +1,291 @@
+package myEditorLineByLine;
+
+import myEditorCommon.ShardedExecutor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the messages that arrive for a document while its shard is busy and hands them
+ * to the handler as one batch. A batch holds at most {@code maxMessages} messages, and a
+ * message waits at most {@code lingerMillis} before its batch is drained. With no linger an
+ * idle document is handled right away, and batches only form under load.
+ * <p>
+ * Consecutive messages from the same client are merged into one segment, in which later
+ * writes to a line replace earlier ones. Segments from different clients are kept apart
+ * so each client can still skip its own edits.
+ * <p>
+ * A message can come with an acknowledgement, which runs once the handler is done with its
+ * batch, and a rejection, which runs instead if the handler could not apply the batch and its
+ * messages should come again. The server acknowledges deliveries that way only after their
+ * edits are applied.
+ * A task can also wait its turn behind the messages offered before it, see {@link #afterPending}.
+ */
+class EditBatcher {
+    interface BatchHandler {
+        /**
+         * Returns false if the batch could not be applied, and its messages should come again.
+         */
+        boolean handle(String fileId, List<LineMessage> segments);
+    }
+
+    private final ShardedExecutor shards;
+    private final int maxMessages;
+    private final long lingerMillis;
+    private final BatchHandler handler;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService lingerTimer;
+
+    EditBatcher(ShardedExecutor shards, int maxMessages, long lingerMillis, BatchHandler handler) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("maxMessages must be >= 1: " + maxMessages);
+        }
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("lingerMillis must be >= 0: " + lingerMillis);
+        }
+        this.shards = shards;
+        this.maxMessages = maxMessages;
+        this.lingerMillis = lingerMillis;
+        this.handler = handler;
+        this.lingerTimer = lingerMillis == 0 ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "edit-batch-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // e.g. -Deditor.batch.maxMessages=500 -Deditor.batch.lingerMs=20
+    static EditBatcher fromSystemProperties(ShardedExecutor shards, BatchHandler handler) {
+        int maxMessages = Integer.getInteger("editor.batch.maxMessages", 256);
+        long lingerMillis = Long.getLong("editor.batch.lingerMs", 0);
+        return new EditBatcher(shards, maxMessages, lingerMillis, handler);
+    }
+
+    int getMaxMessages() {
+        return maxMessages;
+    }
+
+    long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    void offer(LineMessage message) {
+        offer(message, () -> { }, () -> { });
+    }
+
+    void offer(LineMessage message, Runnable acknowledgement, Runnable rejection) {
+        String fileId = message.getFileId();
+        Pending queue;
+        while (true) {
+            queue = pending.computeIfAbsent(fileId, key -> new Pending());
+            synchronized (queue) {
+                if (queue.removed) {
+                    // Went idle and left the map after we looked it up
+                    continue;
+                }
+                queue.messages.add(message);
+                queue.acknowledgements.add(acknowledgement);
+                queue.rejections.add(rejection);
+                queue.offered++;
+                if (queue.drainScheduled) {
+                    return;
+                }
+                queue.drainScheduled = true;
+                break;
+            }
+        }
+        Pending scheduled = queue;
+        if (lingerTimer == null) {
+            shards.execute(fileId, () -> drain(fileId, scheduled));
+        } else {
+            lingerTimer.schedule(() -> shards.execute(fileId, () -> drain(fileId, scheduled)), lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Runs {@code task} on the document's shard once the handler is done with every message
+     * offered for it so far, even those still lingering or left over from a full batch.
+     */
+    void afterPending(String fileId, Runnable task) {
+        // A document without a queue has nothing pending, and a removed queue had nothing either
+        Pending queue = pending.get(fileId);
+        if (queue != null) {
+            synchronized (queue) {
+                if (queue.drainScheduled) {
+                    // Run by the drain that takes the last of them
+                    queue.waitingFor.add(queue.offered);
+                    queue.waitingTasks.add(task);
+                    return;
+                }
+            }
+        }
+        shards.execute(fileId, task);
+    }
+
+    private void drain(String fileId, Pending queue) {
+        List<LineMessage> batch = new ArrayList<>();
+        List<Runnable> acknowledgements = new ArrayList<>();
+        List<Runnable> rejections = new ArrayList<>();
+        boolean more;
+        synchronized (queue) {
+            while (batch.size() < maxMessages && !queue.messages.isEmpty()) {
+                batch.add(queue.messages.poll());
+                acknowledgements.add(queue.acknowledgements.poll());
+                rejections.add(queue.rejections.poll());
+                queue.drained++;
+            }
+            more = !queue.messages.isEmpty();
+            queue.drainScheduled = more;
+        }
+        if (more) {
+            // The rest has waited long enough already, so it goes right behind this batch
+            shards.execute(fileId, () -> drain(fileId, queue));
+        }
+        boolean applied = true;
+        try {
+            if (!batch.isEmpty()) {
+                applied = handler.handle(fileId, segments(batch));
+            }
+        } finally {
+            // Also when the handler threw: the same edits would only fail again
+            (applied ? acknowledgements : rejections).forEach(Runnable::run);
+            runWaiting(queue);
+            removeIfIdle(fileId, queue);
+        }
+    }
+
+    /**
+     * Drops the queue of a document nothing is pending for, so that the map only holds the
+     * documents being edited. Offers that still find it look it up again.
+     */
+    private void removeIfIdle(String fileId, Pending queue) {
+        synchronized (queue) {
+            if (!queue.drainScheduled && queue.messages.isEmpty() && queue.waitingTasks.isEmpty()) {
+                queue.removed = true;
+                pending.remove(fileId, queue);
+            }
+        }
+    }
+
+    int pendingDocuments() {
+        return pending.size();
+    }
+
+    private static void runWaiting(Pending queue) {
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (queue) {
+            while (!queue.waitingFor.isEmpty() && queue.waitingFor.peek() <= queue.drained) {
+                queue.waitingFor.poll();
+                ready.add(queue.waitingTasks.poll());
+            }
+        }
+        ready.forEach(Runnable::run);
+    }
+
+    /**
+     * Groups consecutive messages from the same origin into one segment with coalesced edits.
+     * Messages that say which version they were made at only group with those made in the same
+     * epoch, and their segment counts as made at the oldest base version among them, as if all
+     * were made there. A segment was sent when its first message was.
+     */
+    static List<LineMessage> segments(List<LineMessage> messages) {
+        List<LineMessage> segments = new ArrayList<>();
+        int start = 0;
+        while (start < messages.size()) {
+            LineMessage first = messages.get(start);
+            List<LineEdit> edits = new ArrayList<>();
+            List<CrdtOp> ops = new ArrayList<>();
+            long baseVersion = first.getBaseVersion();
+            int end = start;
+            while (end < messages.size() && sameSender(first, messages.get(end))) {
+                LineMessage next = messages.get(end);
+                if (first.isCrdt()) {
+                    ops.addAll(next.getOps());
+                } else {
+                    edits.addAll(next.getEdits());
+                }
+                baseVersion = Math.min(baseVersion, next.getBaseVersion());
+                end++;
+            }
+            LineMessage segment = first.isCrdt()
+                    ? LineMessage.crdt(first.getFileId(), first.getEpoch(), baseVersion, ops).withOrigin(first.getOrigin())
+                    : new LineMessage(first.getFileId(), first.getOrigin(), coalesce(edits));
+            if (!first.isCrdt() && baseVersion >= 0) {
+                segment = segment.madeAt(first.getEpoch(), baseVersion);
+            }
+            segments.add(segment.withSentAt(first.getSentAtMicros()));
+            start = end;
+        }
+        return segments;
+    }
+
+    private static boolean sameSender(LineMessage first, LineMessage next) {
+        String a = first.getOrigin();
+        String b = next.getOrigin();
+        return (a == null ? b == null : a.equals(b)) && first.isCrdt() == next.isCrdt()
+                && (first.getBaseVersion() < 0) == (next.getBaseVersion() < 0) && first.getEpoch() == next.getEpoch();
+    }
+
+    /**
+     * Folds a write to a line into the previous edit when that edit wrote the same line,
+     * so a line typed into over several messages is sent once with its last content.
+     * The result applies to any document exactly like the input.
+     */
+    static List<LineEdit> coalesce(List<LineEdit> edits) {
+        List<LineEdit> result = new ArrayList<>(edits.size());
+        for (LineEdit edit : edits) {
+            if (edit.getKind() == LineEdit.Kind.SET && !result.isEmpty()) {
+                LineEdit previous = result.get(result.size() - 1);
+                LineEdit merged = overwrite(previous, edit.getLine(), edit.getLines().get(0));
+                if (merged != null) {
+                    result.set(result.size() - 1, merged);
+                    continue;
+                }
+            }
+            result.add(edit);
+        }
+        return result;
+    }
+
+    /**
+     * Returns {@code previous} with the line it wrote at {@code line} replaced, or null if it did not write that line.
+     */
+    private static LineEdit overwrite(LineEdit previous, int line, String content) {
+        int offset = line - previous.getLine();
+        if (previous.getKind() == LineEdit.Kind.DELETE || offset < 0 || offset >= previous.getLines().size()) {
+            return null;
+        }
+        List<String> lines = new ArrayList<>(previous.getLines());
+        lines.set(offset, content);
+        switch (previous.getKind()) {
+            case SET:
+                return LineEdit.set(line, content);
+            case INSERT:
+                return LineEdit.insert(previous.getLine(), lines);
+            default:
+                return LineEdit.replace(previous.getLine(), previous.getCount(), lines);
+        }
+    }
+
+    private static final class Pending {
+        private final Queue<LineMessage> messages = new ArrayDeque<>();
+        // One of each per message, in the same order
+        private final Queue<Runnable> acknowledgements = new ArrayDeque<>();
+        private final Queue<Runnable> rejections = new ArrayDeque<>();
+        private boolean drainScheduled = false;
+        // Out of the map, so nothing may be added to it
+        private boolean removed = false;
+        // Messages offered and drained so far, and the tasks waiting for the drained count to reach a mark
+        private long offered;
+        private long drained;
+        private final Queue<Long> waitingFor = new ArrayDeque<>();
+        private final Queue<Runnable> waitingTasks = new ArrayDeque<>();
+    }
+}
@@ -0,0 +1,85 @@
+package myEditorLineByLine;
+
+import java.util.Arrays;
+
+/**
+ * Hashes of some nodes of one level of a document's {@link LineHashTree}, at a version. A client
+ * sends its root to check its copy; the server answers each node that differs from its own with
+ * the hashes of that node's children, and the client sends back those that differ from its own,
+ * until the server reaches the blocks and sends their lines as pages. Copies with different line
+ * counts never get that far: the server sends a snapshot instead.
+ * <p>
+ * Merging clients say so, so that a snapshot comes with the {@link LineSequence}.
+ */
+public final class HashProbe {
+    private final String fileId;
+    private final long epoch;
+    private final long version;
+    private final int lineCount;
+    private final boolean crdt;
+    private final int level;
+    private final int[] nodes;
+    private final long[] hashes;
+
+    public HashProbe(String fileId, long epoch, long version, int lineCount, boolean crdt, int level, int[] nodes, long[] hashes) {
+        if (nodes.length != hashes.length || lineCount < 0 || level < 0) {
+            throw new IllegalArgumentException("Invalid probe of " + nodes.length + " nodes on level " + level);
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            // The frame sends each index as the gap from the one before
+            if (nodes[i] < 0 || (i > 0 && nodes[i] <= nodes[i - 1])) {
+                throw new IllegalArgumentException("Node indexes must ascend: " + Arrays.toString(nodes));
+            }
+        }
+        this.fileId = fileId;
+        this.epoch = epoch;
+        this.version = version;
+        this.lineCount = lineCount;
+        this.crdt = crdt;
+        this.level = level;
+        this.nodes = nodes;
+        this.hashes = hashes;
+    }
+
+    /**
+     * The root of {@code tree}, to start checking a copy at {@code epoch} and {@code version}.
+     */
+    static HashProbe root(String fileId, long epoch, long version, boolean crdt, LineHashTree tree) {
+        return new HashProbe(fileId, epoch, version, tree.lineCount(), crdt, tree.height() - 1, new int[] {0}, new long[] {tree.root()});
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public boolean isCrdt() {
+        return crdt;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * The node indexes on the level, in ascending order.
+     */
+    public int[] getNodes() {
+        return nodes;
+    }
+
+    public long[] getHashes() {
+        return hashes;
+    }
+}
@@ -0,0 +1,37 @@
+package myEditorLineByLine;
+
+import myEditorCommon.DocumentRouting;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of partitions onto nodes. Every node takes {@code virtualNodes} points on a
+ * ring of longs, and a partition belongs to the node of the first point at or after its own. When
+ * a node joins or leaves, only the partitions next to its points change owner.
+ */
+public final class HashRing {
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("A ring needs nodes and points: " + nodes + ", " + virtualNodes);
+        }
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public String ownerOf(int partition) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash("partition-" + partition));
+        return (point == null ? points.firstEntry() : point).getValue();
+    }
+
+    private static long hash(String key) {
+        return ByteBuffer.wrap(DocumentRouting.sha256(key)).getLong();
+    }
+}
@@ -0,0 +1,288 @@
+package myEditorLineByLine;
+
+import myEditorCommon.DocumentRouting;
+import myEditorCommon.Transport;
+import myEditorCommon.TransportChannel;
+import myEditorCommon.TransportMessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A client without a window. It speaks the same protocol as {@link TextEditorByLineClient}, through
+ * the same {@link DocumentSync}, for one document at a time and keeps the lines in a list: it
+ * catches up on open and after a gap, applies the others' edits in version order and sends its
+ * own edits straight away.
+ * Like the window client it merges edits as ops on a {@link LineSequence}, unless told not to
+ * with {@code -Deditor.client.crdt=false}. Once started, every {@code editor.client.verifySeconds}
+ * it checks its lines against the server's with a {@link HashProbe}, and repairs those that differ.
+ * Meant for load tests and scripts.
+ */
+public class HeadlessClient implements AutoCloseable {
+    private static final String CLIENTS_EXCHANGE = "clients_updates";
+    // Same bounds as the window client's, see TextEditorByLineClient
+    private static final int prefetch = Integer.getInteger("editor.client.prefetch", 256);
+    private static final int maxQueuedUpdates = Integer.getInteger("editor.client.maxQueuedUpdates", 1000);
+    private static final boolean crdt = Boolean.parseBoolean(System.getProperty("editor.client.crdt", "true"));
+    private static final long verifySeconds = Long.getLong("editor.client.verifySeconds", 30);
+    // One thread starts the checks of every client in the JVM; the checks themselves are a message each
+    private static final ScheduledExecutorService verifier = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "client-verify");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String clientId = UUID.randomUUID().toString();
+    private final TransportChannel channel;
+    private final String updateQueueName;
+    private final Consumer<DocumentUpdate> listener;
+    private final List<String> lines = new ArrayList<>();
+    // Hashes of the lines as they are now, null once they change
+    private LineHashTree hashTree;
+    private final DocumentSync sync;
+    // Null until start, or for good without checks
+    private ScheduledFuture<?> verifyTask;
+
+    /**
+     * Connects over {@code transport}. {@code listener} sees every update once it has been
+     * applied, on the thread that delivered it. The checks begin with {@link #start}.
+     */
+    public HeadlessClient(Transport transport, Consumer<DocumentUpdate> listener) throws IOException {
+        this.listener = listener;
+        channel = transport.createChannel();
+        DocumentRouting.declareEditQueues(channel);
+        DocumentRouting.declareExchange(channel);
+        updateQueueName = channel.declareTemporaryQueue(maxQueuedUpdates);
+        sync = new DocumentSync(clientId, channel, () -> updateQueueName, crdt, new ListCopy(), counter -> new AtomicLong(), message -> { });
+        channel.consume(updateQueueName, prefetch, delivery -> {
+            try {
+                receive(delivery);
+            } finally {
+                delivery.ack();
+            }
+        });
+        channel.publish(CLIENTS_EXCHANGE, "", new TransportMessage("register".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Starts checking the open document against the server's every {@code editor.client.verifySeconds}.
+     */
+    public synchronized void start() {
+        if (verifyTask != null || verifySeconds <= 0) {
+            return;
+        }
+        // Spread over the period, so that clients started together do not all check at once
+        verifyTask = verifier.scheduleWithFixedDelay(this::verifyQuietly,
+                ThreadLocalRandom.current().nextLong(TimeUnit.SECONDS.toMillis(verifySeconds)) + 1,
+                TimeUnit.SECONDS.toMillis(verifySeconds), TimeUnit.MILLISECONDS);
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Switches to another document and asks the server for its current lines.
+     */
+    public synchronized void open(String newFileId) throws IOException {
+        sync.open(newFileId);
+        lines.clear();
+        hashTree = null;
+        sync.requestSync();
+    }
+
+    /**
+     * True once the lines of the open document arrived from the server.
+     */
+    public synchronized boolean isSynced() {
+        return sync.isSynced();
+    }
+
+    public synchronized long getVersion() {
+        return sync.getVersion();
+    }
+
+    /**
+     * How often this client missed updates and had to catch up, e.g. because it fell behind.
+     */
+    public synchronized long getResyncs() {
+        return sync.getResyncs();
+    }
+
+    /**
+     * How often the server turned down our ops or edits and we reloaded the document, losing them.
+     */
+    public synchronized long getRejections() {
+        return sync.getRejections();
+    }
+
+    /**
+     * How often a check found lines that differ from the server's, and put them right.
+     */
+    public synchronized long getRepairs() {
+        return sync.getRepairs();
+    }
+
+    public synchronized int lineCount() {
+        return lines.size();
+    }
+
+    public synchronized List<String> getLines() {
+        return new ArrayList<>(lines);
+    }
+
+    /**
+     * Applies the edits to our copy and sends them to the server, as the window client does
+     * after a flush. While reloading, the snapshot on its way replaces them, so they are not sent.
+     */
+    public synchronized void edit(List<LineEdit> edits) throws IOException {
+        hashTree = null;
+        LineSequence replica = sync.getReplica();
+        if (replica != null) {
+            List<CrdtOp> ops = new ArrayList<>();
+            for (LineEdit edit : edits) {
+                ops.addAll(replica.localEdit(edit, LineSequence.PENDING));
+                edit.applyTo(lines);
+            }
+            if (!sync.isReloading()) {
+                sync.sendOps(sync.getVersion(), ops);
+            }
+            return;
+        }
+        for (LineEdit edit : edits) {
+            edit.applyTo(lines);
+        }
+        if (!sync.isReloading()) {
+            sync.sendEdits(edits);
+        }
+    }
+
+    /**
+     * True while we merge edits as ops on a {@link LineSequence}, rather than send line numbers.
+     */
+    synchronized boolean isMerging() {
+        return sync.getReplica() != null;
+    }
+
+    /**
+     * Changes a line of our copy and not the server's, as a lost update would. For testing {@link #verify}.
+     */
+    synchronized void damage(int line, String text) {
+        lines.set(line, text);
+        hashTree = null;
+    }
+
+    /**
+     * Checks our copy of the document against the server's, see {@link HashProbe}. The server
+     * sends the lines it has otherwise, or the whole document if we have lines too many or too
+     * few, and {@link #getRepairs} counts them in. The server answers once it has applied the
+     * edits we sent before, and not at all if that takes it past our version. Returns false
+     * without checking while we catch up or reload.
+     */
+    public synchronized boolean verify() {
+        return sync.verify();
+    }
+
+    private void verifyQuietly() {
+        // An exception would end the schedule
+        try {
+            verify();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void receive(TransportMessage delivery) {
+        if (WireFormat.PROBE_CONTENT_TYPE.equals(delivery.getContentType())) {
+            HashProbe probe = WireFormat.decodeProbe(delivery.getBody());
+            if (probe != null) {
+                synchronized (this) {
+                    sync.answer(probe);
+                }
+            }
+            return;
+        }
+        boolean repair = WireFormat.REPAIR_CONTENT_TYPE.equals(delivery.getContentType());
+        if (!repair && !WireFormat.BATCH_CONTENT_TYPE.equals(delivery.getContentType())) {
+            return;
+        }
+        DocumentUpdate update = WireFormat.decodeUpdate(delivery.getBody());
+        if (update == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!update.getFileId().equals(sync.getFileId()) || !(repair ? sync.repair(update) : sync.update(update))) {
+                return;
+            }
+        }
+        listener.accept(update);
+    }
+
+    /**
+     * Unregisters and stops following the document. The transport stays open.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (verifyTask != null) {
+            verifyTask.cancel(false);
+        }
+        sync.open(null);
+        channel.publish(CLIENTS_EXCHANGE, "", new TransportMessage("unregister".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * The lines in a list, with their hashes kept until they change.
+     */
+    private final class ListCopy implements DocumentSync.Copy {
+        @Override
+        public List<String> lines() {
+            return lines;
+        }
+
+        @Override
+        public LineHashTree hashTree() {
+            if (hashTree == null) {
+                hashTree = LineHashTree.ofLines(lines);
+            }
+            return hashTree;
+        }
+
+        @Override
+        public boolean isSettled() {
+            return true;
+        }
+
+        @Override
+        public boolean load(DocumentUpdate snapshot) {
+            lines.clear();
+            lines.addAll(snapshot.getLines());
+            hashTree = null;
+            return true;
+        }
+
+        @Override
+        public boolean apply(LineEdit edit, boolean own) {
+            // Our own edits are already in the list
+            if (!own) {
+                edit.applyTo(lines);
+                hashTree = null;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean reloadWindow() {
+            return false;
+        }
+    }
+}
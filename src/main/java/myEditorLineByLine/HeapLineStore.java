@@ -0,0 +1,273 @@
+package myEditorLineByLine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * A document read onto the heap as UTF-8, without an object per line. The bytes live in a few
+ * large chunks, and line {@code i} is {@code lengths[i]} bytes at {@code refs[i]}: a chunk index
+ * in the high int and an offset in the low one. The file's content is the first chunk as read;
+ * edited lines are appended to later chunks, which grow as the document is edited. Chunks are
+ * never written twice, so snapshots and slices share them instead of copying. Once most of the
+ * bytes belong to lines that were replaced, the live ones are copied into fresh chunks.
+ */
+final class HeapLineStore implements LineStore {
+    private static final int MIN_CHUNK = 4 * 1024;
+    private static final int MAX_CHUNK = 1024 * 1024;
+    private static final byte[] SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final long fileHash;
+    private byte[][] chunks = new byte[1][];
+    private int chunkCount;
+    // Bytes used of the last chunk
+    private int chunkUsed;
+    private long[] refs;
+    private int[] lengths;
+    private int size;
+    // Bytes of the lines in the document, and of every line appended to the chunks
+    private long liveBytes;
+    private long usedBytes;
+
+    private HeapLineStore(long fileHash) {
+        this.fileHash = fileHash;
+    }
+
+    /**
+     * Reads a file and indexes its lines where {@link String#lines} would split them.
+     */
+    static HeapLineStore read(Path path) throws IOException {
+        byte[] content = Files.readAllBytes(path);
+        HeapLineStore store = new HeapLineStore(OperationLog.hash(content));
+        store.chunks[0] = content;
+        store.chunkCount = 1;
+        store.chunkUsed = content.length;
+        store.usedBytes = content.length;
+        store.refs = new long[16];
+        store.lengths = new int[16];
+        int lineStart = 0;
+        for (int i = 0; i < content.length; i++) {
+            byte b = content[i];
+            if (b == '\n' || b == '\r') {
+                store.index(lineStart, i - lineStart);
+                if (b == '\r' && i + 1 < content.length && content[i + 1] == '\n') {
+                    i++;
+                }
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < content.length) {
+            store.index(lineStart, content.length - lineStart);
+        }
+        return store;
+    }
+
+    private void index(int offset, int length) {
+        if (size == refs.length) {
+            refs = Arrays.copyOf(refs, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        refs[size] = offset;
+        lengths[size] = length;
+        liveBytes += length;
+        size++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long fileHash() {
+        return fileHash;
+    }
+
+    /**
+     * Applies an edit exactly like {@link LineEdit#applyTo}.
+     */
+    @Override
+    public void apply(LineEdit edit) {
+        int line = edit.getLine();
+        if (edit.getKind() == LineEdit.Kind.DELETE) {
+            int end = Math.min(line + edit.getCount(), size);
+            if (line < end) {
+                replace(line, end, Collections.emptyList());
+            }
+            return;
+        }
+
+        if (size < line) {
+            replace(size, size, Collections.nCopies(line - size, ""));
+        }
+        switch (edit.getKind()) {
+            case SET:
+                replace(line, Math.min(line + 1, size), edit.getLines());
+                break;
+            case INSERT:
+                replace(line, line, edit.getLines());
+                break;
+            case REPLACE:
+                replace(line, Math.min(line + edit.getCount(), size), edit.getLines());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void replace(int from, int to, List<String> lines) {
+        int delta = lines.size() - (to - from);
+        if (size + delta > refs.length) {
+            int capacity = Math.max(size + delta, refs.length + (refs.length >> 1));
+            refs = Arrays.copyOf(refs, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        for (int i = from; i < to; i++) {
+            liveBytes -= lengths[i];
+        }
+        System.arraycopy(refs, to, refs, to + delta, size - to);
+        System.arraycopy(lengths, to, lengths, to + delta, size - to);
+        for (int i = 0; i < lines.size(); i++) {
+            byte[] bytes = lines.get(i).getBytes(StandardCharsets.UTF_8);
+            refs[from + i] = append(bytes, 0, bytes.length);
+            lengths[from + i] = bytes.length;
+            liveBytes += bytes.length;
+        }
+        size += delta;
+        if (usedBytes - liveBytes > Math.max(liveBytes, MAX_CHUNK)) {
+            compact();
+        }
+    }
+
+    /**
+     * Copies bytes to the end of the last chunk, or to a new one if they do not fit, and
+     * returns where they went.
+     */
+    private long append(byte[] bytes, int offset, int length) {
+        byte[] chunk = chunks[chunkCount - 1];
+        if (chunk == null || chunk.length - chunkUsed < length) {
+            int next = chunk == null ? MIN_CHUNK : Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, chunk.length * 2));
+            chunk = newChunk(Math.max(length, next));
+        }
+        System.arraycopy(bytes, offset, chunk, chunkUsed, length);
+        long ref = ((long) (chunkCount - 1) << 32) | chunkUsed;
+        chunkUsed += length;
+        usedBytes += length;
+        return ref;
+    }
+
+    private byte[] newChunk(int capacity) {
+        if (chunks[chunkCount - 1] != null) {
+            if (chunkCount == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunkCount * 2);
+            }
+            chunkCount++;
+        }
+        chunks[chunkCount - 1] = new byte[capacity];
+        chunkUsed = 0;
+        return chunks[chunkCount - 1];
+    }
+
+    /**
+     * Copies the lines into fresh chunks, leaving the old ones to snapshots that still hold them.
+     */
+    private void compact() {
+        byte[][] old = chunks;
+        chunks = new byte[1][];
+        chunkCount = 1;
+        usedBytes = 0;
+        newChunk((int) Math.min(Math.max(liveBytes, MIN_CHUNK), MAX_CHUNK));
+        for (int i = 0; i < size; i++) {
+            refs[i] = append(old[(int) (refs[i] >>> 32)], (int) refs[i], lengths[i]);
+        }
+    }
+
+    private static ByteBuffer line(byte[][] chunks, long ref, int length) {
+        return ByteBuffer.wrap(chunks[(int) (ref >>> 32)], (int) ref, length).slice();
+    }
+
+    @Override
+    public List<ByteBuffer> slices(int from, int to) {
+        List<ByteBuffer> slices = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            slices.add(line(chunks, refs[i], lengths[i]));
+        }
+        return slices;
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        return new HeapSnapshot(Arrays.copyOf(chunks, chunkCount), Arrays.copyOf(refs, size), Arrays.copyOf(lengths, size));
+    }
+
+    @Override
+    public void snapshotWritten(Path file, Snapshot snapshot) {
+        // The lines stay on the heap either way
+    }
+
+    private static final class HeapSnapshot implements Snapshot {
+        private final byte[][] chunks;
+        private final long[] refs;
+        private final int[] lengths;
+
+        HeapSnapshot(byte[][] chunks, long[] refs, int[] lengths) {
+            this.chunks = chunks;
+            this.refs = refs;
+            this.lengths = lengths;
+        }
+
+        @Override
+        public int lineCount() {
+            return refs.length;
+        }
+
+        @Override
+        public long hash() {
+            CRC32C crc = new CRC32C();
+            long length = 0;
+            for (int i = 0; i < refs.length; i++) {
+                crc.update(chunks[(int) (refs[i] >>> 32)], (int) refs[i], lengths[i]);
+                crc.update(SEPARATOR, 0, SEPARATOR.length);
+                length += lengths[i] + SEPARATOR.length;
+            }
+            return OperationLog.hash(length, crc.getValue());
+        }
+
+        @Override
+        public void writeTo(FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            for (int i = 0; i < refs.length; i++) {
+                ByteBuffer line = line(chunks, refs[i], lengths[i]);
+                if (line.remaining() + SEPARATOR.length > buffer.remaining()) {
+                    drain(channel, buffer);
+                }
+                if (line.remaining() + SEPARATOR.length > buffer.remaining()) {
+                    // Longer than the buffer: straight from the chunk
+                    while (line.hasRemaining()) {
+                        channel.write(line);
+                    }
+                } else {
+                    buffer.put(line);
+                }
+                buffer.put(SEPARATOR);
+            }
+            drain(channel, buffer);
+        }
+
+        private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
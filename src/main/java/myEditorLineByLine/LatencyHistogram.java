@@ -0,0 +1,89 @@
+package myEditorLineByLine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in log-linear buckets: exact below 128 ns, then 64 buckets per power of two,
+ * so a percentile is off by at most 1/64 of its value. Recording is lock-free and allocation-free.
+ * Values are nanoseconds; negative ones count as 0.
+ */
+public final class LatencyHistogram {
+    private static final int LINEAR = 128;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + (63 - 7) * SUB_BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - 7) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The middle of the values a bucket holds.
+     */
+    private static long valueOf(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exponent = (index - LINEAR) / SUB_BUCKETS + 7;
+        long sub = (index - LINEAR) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + sub * width + width / 2;
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * The latency {@code fraction} of the recorded ones are at or below, 0 if none were recorded.
+     */
+    public long percentile(double fraction) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(valueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "p50 " + millis(percentile(0.5)) + " ms, p90 " + millis(percentile(0.9)) + " ms, p99 "
+                + millis(percentile(0.99)) + " ms, p99.9 " + millis(percentile(0.999)) + " ms, max "
+                + millis(max()) + " ms (" + count() + " samples)";
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,508 @@
+package myEditorLineByLine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A document kept resident in memory, its lines held by a {@link LineStore}. All access goes through the
+ * instance lock so the delivery thread and the flusher never see a half-applied edit.
+ * Every applied edit is appended to the document's {@link OperationLog}; a flush writes a
+ * snapshot of the whole document and lets the log drop what the snapshot covers.
+ * <p>
+ * Each applied batch bumps the document version, and the last {@code tailVersions} batches
+ * are kept so a client that fell behind can catch up without a full snapshot.
+ * <p>
+ * The lines are also named by a {@link LineSequence}. Ops from merging clients are applied to it
+ * and turned into the line edits the store, the log and index clients see; line edits from
+ * index clients become ops on the server's own site, so merging clients see every change as
+ * ops. Tombstones are collected once {@code gcVersions} versions old, and ops made before the
+ * last collection are rejected.
+ * <p>
+ * An idle document can be set aside: once its file holds every edit, what only memory knows
+ * (its epoch, version and the ids of its lines) is written compressed next to its log, and the
+ * next {@link #load} picks it up. Clients then go on as if it had never left, instead of
+ * reloading it; only the batches kept for catching up are lost.
+ */
+class LineDocument {
+    private static final String SET_ASIDE_FILE = "set-aside.gz";
+    private static final int SET_ASIDE_FORMAT = 1;
+    // Most blank lines an edit past the end may pad the document with, e.g. -Deditor.edit.maxPaddingLines=1000000
+    private static final int MAX_PADDING_LINES = Integer.getInteger("editor.edit.maxPaddingLines", 100_000);
+
+    private final String fileId;
+    private final Path path;
+    private final LineStore lines;
+    private final OperationLog log;
+    private final int tailVersions;
+    private final LineSequence sequence;
+    private final long gcVersions;
+    private final Path setAsideFile;
+    // Sites handed to clients with their snapshots; the server's own is 0
+    private int lastSite = LineSequence.SERVER_SITE;
+    private final Deque<DocumentUpdate> tail = new ArrayDeque<>();
+    // Versions restart whenever the document is loaded from its file alone, so clients tell loads apart by epoch
+    private final long epoch;
+    private long version = 0;
+    private int dirtyLines = 0;
+    private boolean flushScheduled = false;
+    // The hash of the file as last read or written, and whether a snapshot is being written to it
+    private long fileHash;
+    private boolean writing = false;
+    private long lastUsedNanos = System.nanoTime();
+    private boolean setAside = false;
+    // Set when a batch could not be logged; see apply
+    private boolean discarded = false;
+    // Built for the first probe at a version, and kept for the others
+    private LineHashTree hashTree;
+    private long hashTreeVersion;
+
+    private LineDocument(String fileId, Path path, LineStore lines, OperationLog log, int tailVersions, long gcVersions,
+                         Path setAsideFile, SetAside restored) {
+        if (gcVersions < 1) {
+            throw new IllegalArgumentException("gcVersions must be >= 1: " + gcVersions);
+        }
+        this.fileId = fileId;
+        this.path = path;
+        this.lines = lines;
+        this.log = log;
+        this.tailVersions = tailVersions;
+        this.gcVersions = gcVersions;
+        this.setAsideFile = setAsideFile;
+        this.fileHash = lines.fileHash();
+        if (restored != null) {
+            this.sequence = restored.sequence;
+            this.epoch = restored.epoch;
+            this.version = restored.version;
+            this.lastSite = restored.lastSite;
+        } else {
+            this.sequence = LineSequence.forServer(lines.size());
+            this.epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Loads the last snapshot of a document and replays the edits logged after it. Files of
+     * {@code mappedBytes} or more are mapped rather than read. A document that was set aside
+     * comes back as it was, if its file has not changed since.
+     */
+    static LineDocument load(String filePath, Path logDirectory, int tailVersions, long mappedBytes, long gcVersions) throws IOException {
+        Path path = Paths.get(filePath);
+        LineStore lines = LineStore.open(path, mappedBytes);
+        List<List<LineEdit>> recovered = new ArrayList<>();
+        OperationLog log = OperationLog.open(logDirectory, filePath, lines.fileHash(), recovered);
+
+        Path setAsideFile = logDirectory.resolve(SET_ASIDE_FILE);
+        SetAside restored = recovered.isEmpty() ? SetAside.read(setAsideFile, lines) : null;
+        // From now on memory moves ahead of what was set aside
+        Files.deleteIfExists(setAsideFile);
+        LineDocument document = new LineDocument(filePath, path, lines, log, tailVersions, gcVersions, setAsideFile, restored);
+        for (List<LineEdit> edits : recovered) {
+            for (LineEdit edit : edits) {
+                document.sequence.localEdit(edit, 0);
+            }
+            document.applyInMemory(edits);
+        }
+        if (!recovered.isEmpty()) {
+            System.out.println("Recovered " + recovered.size() + " logged edits for " + path);
+        }
+        return document;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * True if the document in {@code logDirectory} was set aside with nothing left in its log to replay.
+     */
+    static boolean isSetAside(Path logDirectory) {
+        return Files.exists(logDirectory.resolve(SET_ASIDE_FILE));
+    }
+
+    /**
+     * Applies the edits of the segments in order as one new version, and returns the batch
+     * that takes clients from the previous version to it. Its segments carry both the edits
+     * and the ops of what was applied. Returns null if the document was set aside meanwhile.
+     *
+     * @throws IOException if the batch could not be logged. Its ids are in the sequence by then,
+     *                     but its edits are neither in the log nor in the lines, so the document
+     *                     is discarded: it takes nothing more, and has to be loaded again.
+     */
+    synchronized DocumentUpdate apply(List<LineMessage> segments) throws IOException {
+        if (setAside || discarded) {
+            return null;
+        }
+        lastUsedNanos = System.nanoTime();
+        long next = version + 1;
+        List<LineEdit> edits = new ArrayList<>();
+        List<LineMessage> applied = new ArrayList<>(segments.size());
+        for (LineMessage segment : segments) {
+            applied.add(segment.isCrdt() ? applyOps(segment, next, edits) : applyEdits(segment, next, edits, applied));
+        }
+        try {
+            log.append(edits);
+        } catch (IOException e) {
+            discarded = true;
+            throw e;
+        }
+        applyInMemory(edits);
+
+        // Collect now and then rather than every version, since it walks all tombstones
+        long horizon = next - gcVersions;
+        if (horizon >= sequence.getCollectedThrough() + Math.max(1, gcVersions / 8)) {
+            sequence.collect(horizon);
+        }
+        DocumentUpdate update = DocumentUpdate.batch(fileId, epoch, version, next, applied, sequence.getCollectedThrough());
+        version = next;
+        tail.addLast(update);
+        if (tail.size() > tailVersions) {
+            tail.removeFirst();
+        }
+        return update;
+    }
+
+    /**
+     * Applies the ops of a merging client, adding the edits they make to {@code edits}.
+     * Ops from another epoch, or made before tombstones they may follow were collected, are
+     * rejected; so is the rest of a segment once an op follows a line we never had, which only
+     * happens after an earlier rejection.
+     */
+    private LineMessage applyOps(LineMessage segment, long next, List<LineEdit> edits) {
+        if (segment.getEpoch() != epoch || segment.getBaseVersion() < sequence.getCollectedThrough()) {
+            return segment.withOps(Collections.emptyList()).rejected();
+        }
+        List<LineEdit> made = new ArrayList<>();
+        List<CrdtOp> ops = new ArrayList<>(segment.getOps().size());
+        boolean rejected = false;
+        for (CrdtOp op : segment.getOps()) {
+            try {
+                made.addAll(sequence.apply(op, next));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Rejected edits from " + segment.getOrigin() + ": " + e.getMessage());
+                rejected = true;
+                break;
+            }
+            ops.add(op);
+        }
+        edits.addAll(made);
+        LineMessage result = segment.withEdits(made).withOps(ops);
+        return rejected ? result.rejected() : result;
+    }
+
+    /**
+     * Applies line edits from an index client as ops of our own. Edits made at a version that
+     * others changed the document after point at lines that may have moved, so they are
+     * rejected, see {@link #changedSince}. Each edit is checked before it reaches the sequence,
+     * which cannot take an op back: one that would pad the document with more than
+     * {@code MAX_PADDING_LINES} blank lines is rejected with the rest of its segment.
+     */
+    private LineMessage applyEdits(LineMessage segment, long next, List<LineEdit> edits, List<LineMessage> applied) {
+        if (segment.getBaseVersion() >= 0 && changedSince(segment, applied)) {
+            return segment.withEdits(Collections.emptyList()).withOps(Collections.emptyList()).rejected();
+        }
+        List<LineEdit> accepted = new ArrayList<>(segment.getEdits().size());
+        List<CrdtOp> ops = new ArrayList<>();
+        boolean rejected = false;
+        for (LineEdit edit : segment.getEdits()) {
+            if (edit.getLine() - sequence.size() > MAX_PADDING_LINES) {
+                System.err.println("Rejected edits from " + segment.getOrigin() + ": line " + edit.getLine()
+                        + " is far past the end, at " + sequence.size());
+                rejected = true;
+                break;
+            }
+            ops.addAll(sequence.localEdit(edit, next));
+            accepted.add(edit);
+        }
+        edits.addAll(accepted);
+        LineMessage result = segment.withEdits(accepted).withOps(ops);
+        return rejected ? result.rejected() : result;
+    }
+
+    /**
+     * True unless every change to the document after the version {@code segment} was made at
+     * came from its own sender, counting the segments of this batch {@code applied} so far.
+     * A rejected segment of the sender counts as a change too, since the sender made what
+     * followed on top of it. Versions no longer in the tail are taken as changed.
+     */
+    private boolean changedSince(LineMessage segment, List<LineMessage> applied) {
+        long base = segment.getBaseVersion();
+        if (segment.getEpoch() != epoch || base > version
+                || (base < version && (tail.isEmpty() || tail.peekFirst().getBaseVersion() > base))) {
+            return true;
+        }
+        for (Iterator<DocumentUpdate> updates = tail.descendingIterator(); updates.hasNext(); ) {
+            DocumentUpdate update = updates.next();
+            if (update.getVersion() <= base) {
+                break;
+            }
+            if (!onlyFrom(segment.getOrigin(), update.getSegments())) {
+                return true;
+            }
+        }
+        return !onlyFrom(segment.getOrigin(), applied);
+    }
+
+    private static boolean onlyFrom(String origin, List<LineMessage> segments) {
+        for (LineMessage segment : segments) {
+            boolean own = origin != null && origin.equals(segment.getOrigin());
+            if (own ? segment.isRejected() : !segment.getEdits().isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns what the client that sent {@code request} needs to reach the current version:
+     * the batches since its version merged into one, or a snapshot if they are no longer kept
+     * or the client knows another epoch. A client that asked for a line range gets a page of
+     * those lines instead of a snapshot, and a merging client gets the sequence, with a site
+     * of its own, along with its snapshot. Returns null if the document was set aside meanwhile.
+     */
+    synchronized DocumentUpdate catchUp(SyncRequest request) {
+        if (setAside || discarded) {
+            return null;
+        }
+        lastUsedNanos = System.nanoTime();
+        long knownVersion = request.getVersion();
+        boolean inTail = request.getEpoch() == epoch && knownVersion <= version
+                && (knownVersion == version || (!tail.isEmpty() && tail.peekFirst().getBaseVersion() <= knownVersion));
+        if (!inTail) {
+            if (request.getLineCount() == SyncRequest.ALL_LINES) {
+                DocumentUpdate snapshot = DocumentUpdate.encodedPage(fileId, epoch, version, 0, lines.size(), lines.slices(0, lines.size()));
+                return request.isCrdt() ? snapshot.withSequence(sequence.copyFor(++lastSite)) : snapshot;
+            }
+            int first = Math.min(request.getFirstLine(), lines.size());
+            int end = (int) Math.min((long) first + request.getLineCount(), lines.size());
+            return DocumentUpdate.encodedPage(fileId, epoch, version, first, lines.size(), lines.slices(first, end));
+        }
+        List<LineMessage> segments = new ArrayList<>();
+        for (DocumentUpdate update : tail) {
+            if (update.getBaseVersion() >= knownVersion) {
+                segments.addAll(update.getSegments());
+            }
+        }
+        return DocumentUpdate.batch(fileId, epoch, knownVersion, version, segments, sequence.getCollectedThrough());
+    }
+
+    /**
+     * The hash tree of the lines, if the document is at {@code epoch} and {@code version}.
+     * Returns null if it is not, or was set aside meanwhile. Probes do not count as use,
+     * so clients checking their copies do not keep an idle document in memory.
+     */
+    synchronized LineHashTree hashTree(long epoch, long version) {
+        if (setAside || discarded || epoch != this.epoch || version != this.version) {
+            return null;
+        }
+        if (hashTree == null || hashTreeVersion != version) {
+            hashTree = LineHashTree.ofBytes(lines.slices(0, lines.size()));
+            hashTreeVersion = version;
+        }
+        return hashTree;
+    }
+
+    /**
+     * When the document was last edited or read, by {@link System#nanoTime}.
+     */
+    synchronized long lastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    synchronized boolean isSetAside() {
+        return setAside;
+    }
+
+    synchronized boolean isDiscarded() {
+        return discarded;
+    }
+
+    synchronized int dirtyLineCount() {
+        return dirtyLines;
+    }
+
+    private int applyInMemory(List<LineEdit> edits) {
+        for (LineEdit edit : edits) {
+            lines.apply(edit);
+            dirtyLines += Math.max(1, Math.max(edit.getCount(), edit.getLines().size()));
+        }
+        return dirtyLines;
+    }
+
+    synchronized boolean isDirty() {
+        return dirtyLines > 0;
+    }
+
+    synchronized int lineCount() {
+        return lines.size();
+    }
+
+    /**
+     * Marks a flush as pending. Returns false when one is already scheduled, so callers only queue one per document.
+     */
+    synchronized boolean markFlushScheduled() {
+        if (flushScheduled) {
+            return false;
+        }
+        flushScheduled = true;
+        return true;
+    }
+
+    /**
+     * Makes the logged edits durable.
+     */
+    boolean sync() throws IOException {
+        return log.sync();
+    }
+
+    /**
+     * Runs {@code task} once every edit applied so far is durable, see {@link OperationLog#whenSynced}.
+     */
+    void whenDurable(Runnable task) {
+        log.whenSynced(task);
+    }
+
+    /**
+     * Writes a snapshot if the document is dirty. Lines are captured under the lock and written
+     * outside it, so edits keep applying while the disk is busy. The snapshot goes to a
+     * temporary file that replaces the document in one move, so a crash never leaves it torn.
+     */
+    boolean flush() throws IOException {
+        LineStore.Snapshot snapshot;
+        long snapshotHash;
+        long coveredSegments;
+        synchronized (this) {
+            flushScheduled = false;
+            // A discarded document's log is closed, and its next load writes what it missed
+            if (dirtyLines == 0 || discarded) {
+                return false;
+            }
+            snapshot = lines.snapshot();
+            snapshotHash = snapshot.hash();
+            coveredSegments = log.rollOver(snapshotHash);
+            dirtyLines = 0;
+            writing = true;
+        }
+        try {
+            Path temporary = path.resolveSibling("." + path.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                snapshot.writeTo(channel);
+                channel.force(true);
+            }
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            synchronized (this) {
+                fileHash = snapshotHash;
+                writing = false;
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                // Keep the document dirty so the next flush retries the write; the log still has every edit
+                dirtyLines = Math.max(dirtyLines, 1);
+                writing = false;
+            }
+            throw e;
+        }
+        log.deleteThrough(coveredSegments);
+        try {
+            // A mapped store now serves the lines it kept on the heap from the new file
+            lines.snapshotWritten(path, snapshot);
+        } catch (IOException e) {
+            // The snapshot is safe; the store just keeps serving from the old file
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    /**
+     * Sets the document aside if its file holds every edit, see {@link #flush}, and closes it.
+     * Returns false, and changes nothing, if there are edits the file does not have yet. Once
+     * set aside, the document takes no more edits and has to be loaded again.
+     */
+    synchronized boolean setAside() throws IOException {
+        if (setAside) {
+            return true;
+        }
+        if (dirtyLines > 0 || writing || discarded) {
+            return false;
+        }
+        Path temporary = setAsideFile.resolveSibling(SET_ASIDE_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temporary))))) {
+            byte[] ids = BinaryLineCodec.encodeSequence(sequence);
+            out.writeInt(SET_ASIDE_FORMAT);
+            out.writeLong(fileHash);
+            out.writeLong(epoch);
+            out.writeLong(version);
+            out.writeInt(lastSite);
+            out.writeInt(ids.length);
+            out.write(ids);
+        }
+        Files.move(temporary, setAsideFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        setAside = true;
+        log.close();
+        return true;
+    }
+
+    void close() throws IOException {
+        log.close();
+    }
+
+    /**
+     * What {@link #setAside} wrote of a document.
+     */
+    private static final class SetAside {
+        private final long epoch;
+        private final long version;
+        private final int lastSite;
+        private final LineSequence sequence;
+
+        private SetAside(long epoch, long version, int lastSite, LineSequence sequence) {
+            this.epoch = epoch;
+            this.version = version;
+            this.lastSite = lastSite;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Reads a set-aside document whose file now reads as {@code lines}. Null if there is none,
+         * or it does not belong to that file, which then starts a new epoch.
+         */
+        static SetAside read(Path file, LineStore lines) {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+                if (in.readInt() != SET_ASIDE_FORMAT || in.readLong() != lines.fileHash()) {
+                    return null;
+                }
+                long epoch = in.readLong();
+                long version = in.readLong();
+                int lastSite = in.readInt();
+                byte[] ids = new byte[in.readInt()];
+                in.readFully(ids);
+                LineSequence sequence = BinaryLineCodec.decodeSequence(ids);
+                return sequence.size() == lines.size() ? new SetAside(epoch, version, lastSite, sequence) : null;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Cannot restore " + file + ", loading the document afresh: " + e);
+                return null;
+            }
+        }
+    }
+}
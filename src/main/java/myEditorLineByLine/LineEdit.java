@@ -0,0 +1,152 @@
+package myEditorLineByLine;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One operation on a document seen as a list of lines.
+ * <ul>
+ *     <li>{@code SET} overwrites one line, padding the document with empty lines if needed (the original protocol)</li>
+ *     <li>{@code INSERT} inserts lines before {@code line}</li>
+ *     <li>{@code DELETE} removes {@code count} lines starting at {@code line}</li>
+ *     <li>{@code REPLACE} swaps {@code count} lines starting at {@code line} for the given lines</li>
+ * </ul>
+ */
+public final class LineEdit {
+    public enum Kind { SET, INSERT, DELETE, REPLACE }
+
+    private final Kind kind;
+    private final int line;
+    private final int count;
+    private final List<String> lines;
+
+    private LineEdit(Kind kind, int line, int count, List<String> lines) {
+        if (line < 0) {
+            throw new IllegalArgumentException("Line number out of bounds: " + line);
+        }
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative line count: " + count);
+        }
+        this.kind = kind;
+        this.line = line;
+        this.count = count;
+        this.lines = lines;
+    }
+
+    public static LineEdit set(int line, String content) {
+        return new LineEdit(Kind.SET, line, 1, Collections.singletonList(content));
+    }
+
+    public static LineEdit insert(int line, List<String> lines) {
+        requireLines(lines);
+        return new LineEdit(Kind.INSERT, line, 0, List.copyOf(lines));
+    }
+
+    public static LineEdit delete(int line, int count) {
+        return new LineEdit(Kind.DELETE, line, count, Collections.emptyList());
+    }
+
+    public static LineEdit replace(int line, int count, List<String> lines) {
+        requireLines(lines);
+        return new LineEdit(Kind.REPLACE, line, count, List.copyOf(lines));
+    }
+
+    private static void requireLines(List<String> lines) {
+        if (lines.isEmpty()) {
+            throw new IllegalArgumentException("An insert or replace needs at least one line");
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * Number of existing lines this edit removes or overwrites.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * Change in the number of lines once this edit is applied to a document that is long enough.
+     */
+    public int lineDelta() {
+        switch (kind) {
+            case INSERT:
+                return lines.size();
+            case DELETE:
+                return -count;
+            case REPLACE:
+                return lines.size() - count;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns this edit moved by {@code delta} lines.
+     */
+    public LineEdit shift(int delta) {
+        return delta == 0 ? this : new LineEdit(kind, Math.max(0, line + delta), count, lines);
+    }
+
+    /**
+     * Applies the edit to a list of lines. Edits past the end pad the list with empty lines,
+     * like the original line overwrite always did.
+     */
+    public void applyTo(List<String> target) {
+        if (kind == Kind.DELETE) {
+            int end = Math.min(line + count, target.size());
+            if (line < end) {
+                target.subList(line, end).clear();
+            }
+            return;
+        }
+
+        while (target.size() < line) {
+            target.add("");
+        }
+        switch (kind) {
+            case SET:
+                if (line == target.size()) {
+                    target.add(lines.get(0));
+                } else {
+                    target.set(line, lines.get(0));
+                }
+                break;
+            case INSERT:
+                target.addAll(line, lines);
+                break;
+            case REPLACE:
+                int end = Math.min(line + count, target.size());
+                List<String> replaced = target.subList(line, end);
+                int overlap = Math.min(replaced.size(), lines.size());
+                for (int i = 0; i < overlap; i++) {
+                    replaced.set(i, lines.get(i));
+                }
+                if (lines.size() > overlap) {
+                    replaced.addAll(lines.subList(overlap, lines.size()));
+                } else {
+                    replaced.subList(overlap, replaced.size()).clear();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return kind + "(" + line + (kind == Kind.SET || kind == Kind.INSERT ? "" : ", " + count)
+                + (kind == Kind.DELETE ? "" : ", " + lines.size() + " lines") + ")";
+    }
+}
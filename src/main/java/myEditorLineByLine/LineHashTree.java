@@ -0,0 +1,131 @@
+package myEditorLineByLine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hash tree over a document's lines, for finding the lines two copies disagree on without
+ * sending them. Level 0 has a hash per block of {@link #BLOCK_LINES} lines, and each level above
+ * one per {@link #FANOUT} nodes of the level below, up to a single root that also covers the line
+ * count. Lines hash as their UTF-8 bytes, so the server's bytes and a client's strings agree.
+ * Two copies with the same root hold the same lines; where the roots differ, comparing the
+ * children of the nodes that differ, level by level, leads to the blocks that do.
+ */
+final class LineHashTree {
+    static final int BLOCK_LINES = 64;
+    static final int FANOUT = 16;
+
+    private final int lineCount;
+    // levels[0] are the blocks, the last level is the root
+    private final long[][] levels;
+
+    private LineHashTree(int lineCount, long[] blocks) {
+        this.lineCount = lineCount;
+        List<long[]> levels = new ArrayList<>();
+        levels.add(blocks);
+        long[] level = blocks;
+        while (level.length > 1) {
+            long[] parents = new long[(level.length + FANOUT - 1) / FANOUT];
+            for (int i = 0; i < parents.length; i++) {
+                long hash = 0;
+                for (int child = i * FANOUT; child < Math.min(level.length, (i + 1) * FANOUT); child++) {
+                    hash = mix(hash ^ level[child]);
+                }
+                parents[i] = hash;
+            }
+            levels.add(parents);
+            level = parents;
+        }
+        level[0] = mix(level[0] ^ lineCount);
+        this.levels = levels.toArray(new long[0][]);
+    }
+
+    /**
+     * The tree of lines as the server keeps them, see {@link LineStore#slices}.
+     */
+    static LineHashTree ofBytes(List<ByteBuffer> lines) {
+        long[] blocks = new long[blockCount(lines.size())];
+        for (int i = 0; i < lines.size(); i++) {
+            blocks[i / BLOCK_LINES] = mix(blocks[i / BLOCK_LINES] ^ hashLine(lines.get(i)));
+        }
+        return new LineHashTree(lines.size(), blocks);
+    }
+
+    static LineHashTree ofLines(List<String> lines) {
+        long[] blocks = new long[blockCount(lines.size())];
+        for (int i = 0; i < lines.size(); i++) {
+            ByteBuffer bytes = ByteBuffer.wrap(lines.get(i).getBytes(StandardCharsets.UTF_8));
+            blocks[i / BLOCK_LINES] = mix(blocks[i / BLOCK_LINES] ^ hashLine(bytes));
+        }
+        return new LineHashTree(lines.size(), blocks);
+    }
+
+    private static int blockCount(int lineCount) {
+        // An empty document still has a block, so every tree has a root
+        return Math.max(1, (lineCount + BLOCK_LINES - 1) / BLOCK_LINES);
+    }
+
+    /**
+     * FNV-1a over the bytes, finished with the length so that lines that only differ in
+     * where they end hash apart.
+     */
+    private static long hashLine(ByteBuffer line) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = line.position(); i < line.limit(); i++) {
+            hash = (hash ^ (line.get(i) & 0xff)) * 0x100000001b3L;
+        }
+        return mix(hash ^ line.remaining());
+    }
+
+    /**
+     * The MurmurHash3 finalizer, so that every input bit moves every output bit.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    int lineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Number of levels; the root is on level {@code height() - 1}.
+     */
+    int height() {
+        return levels.length;
+    }
+
+    long root() {
+        return levels[levels.length - 1][0];
+    }
+
+    int width(int level) {
+        return levels[level].length;
+    }
+
+    long hash(int level, int index) {
+        return levels[level][index];
+    }
+
+    /**
+     * The nodes one level down that node {@code index} covers.
+     */
+    static int firstChild(int index) {
+        return index * FANOUT;
+    }
+
+    int childCount(int level, int index) {
+        return Math.min(FANOUT, width(level - 1) - firstChild(index));
+    }
+
+    static int firstLine(int block) {
+        return block * BLOCK_LINES;
+    }
+}
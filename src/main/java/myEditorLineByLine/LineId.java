@@ -0,0 +1,59 @@
+package myEditorLineByLine;
+
+/**
+ * Names a line of a {@link LineSequence} for as long as it exists: the site that inserted it and
+ * that site's Lamport clock when it did. Ids are unique and totally ordered, by clock and then by
+ * site, and a site only makes ids greater than every id it has seen.
+ */
+public final class LineId implements Comparable<LineId> {
+    private final int site;
+    private final long clock;
+
+    public LineId(int site, long clock) {
+        if (site < 0 || clock < 1) {
+            throw new IllegalArgumentException("Invalid line id: " + site + ":" + clock);
+        }
+        this.site = site;
+        this.clock = clock;
+    }
+
+    public int getSite() {
+        return site;
+    }
+
+    public long getClock() {
+        return clock;
+    }
+
+    static int compare(int site, long clock, int otherSite, long otherClock) {
+        int byClock = Long.compare(clock, otherClock);
+        return byClock != 0 ? byClock : Integer.compare(site, otherSite);
+    }
+
+    @Override
+    public int compareTo(LineId other) {
+        return compare(site, clock, other.site, other.clock);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LineId)) {
+            return false;
+        }
+        LineId other = (LineId) o;
+        return site == other.site && clock == other.clock;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * site + Long.hashCode(clock);
+    }
+
+    @Override
+    public String toString() {
+        return site + ":" + clock;
+    }
+}
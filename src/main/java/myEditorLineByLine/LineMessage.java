@@ -0,0 +1,152 @@
+package myEditorLineByLine;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A decoded line edit message: the document it targets, the edits to apply in order and,
+ * when known, the app id of the client that made them.
+ * <p>
+ * Clients that keep a {@link LineSequence} send {@link CrdtOp}s instead, made at a base version
+ * of one epoch, and the server works out the edits. The segments the server publishes carry
+ * both: edits for clients that go by line numbers, ops for those that merge. A segment the
+ * server turned down is marked rejected, so its sender knows to reload.
+ * <p>
+ * Clients that go by line numbers say which version their edits were made at too, see
+ * {@link #madeAt}: the numbers only hold if nothing else changed the document since.
+ */
+public final class LineMessage {
+    private final String fileId;
+    private final String origin;
+    private final List<LineEdit> edits;
+    private final long sentAtMicros;
+    private final List<CrdtOp> ops;
+    private final boolean crdt;
+    private final long epoch;
+    // -1 unless the client said which version it made its ops or edits at
+    private final long baseVersion;
+    private final boolean rejected;
+
+    public LineMessage(String fileId, List<LineEdit> edits) {
+        this(fileId, null, edits);
+    }
+
+    public LineMessage(String fileId, String origin, List<LineEdit> edits) {
+        this(fileId, origin, edits, 0, null, false, 0, -1, false);
+    }
+
+    private LineMessage(String fileId, String origin, List<LineEdit> edits, long sentAtMicros,
+                        List<CrdtOp> ops, boolean crdt, long epoch, long baseVersion, boolean rejected) {
+        this.fileId = fileId;
+        this.origin = origin;
+        this.edits = edits;
+        this.sentAtMicros = sentAtMicros;
+        this.ops = ops;
+        this.crdt = crdt;
+        this.epoch = epoch;
+        this.baseVersion = baseVersion;
+        this.rejected = rejected;
+    }
+
+    /**
+     * Ops a client made on its copy of the document at {@code baseVersion} of {@code epoch}.
+     */
+    public static LineMessage crdt(String fileId, long epoch, long baseVersion, List<CrdtOp> ops) {
+        if (baseVersion < 0) {
+            throw new IllegalArgumentException("Negative base version: " + baseVersion);
+        }
+        return new LineMessage(fileId, null, Collections.emptyList(), 0, ops, true, epoch, baseVersion, false);
+    }
+
+    /**
+     * The same edits, made on a copy of the document at {@code baseVersion} of {@code epoch}.
+     */
+    public LineMessage madeAt(long epoch, long baseVersion) {
+        if (baseVersion < 0) {
+            throw new IllegalArgumentException("Negative base version: " + baseVersion);
+        }
+        return new LineMessage(fileId, origin, edits, sentAtMicros, ops, crdt, epoch, baseVersion, rejected);
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    /**
+     * App id of the client that sent the edits, or null if unknown.
+     */
+    public String getOrigin() {
+        return origin;
+    }
+
+    public LineMessage withOrigin(String origin) {
+        return new LineMessage(fileId, origin, edits, sentAtMicros, ops, crdt, epoch, baseVersion, rejected);
+    }
+
+    /**
+     * When the client sent the edits, in {@link Metrics#nowMicros()}, or 0 if unknown.
+     * Only used for metrics; it does not go over the wire with the edits.
+     */
+    public long getSentAtMicros() {
+        return sentAtMicros;
+    }
+
+    public LineMessage withSentAt(long sentAtMicros) {
+        return new LineMessage(fileId, origin, edits, sentAtMicros, ops, crdt, epoch, baseVersion, rejected);
+    }
+
+    public List<LineEdit> getEdits() {
+        return edits;
+    }
+
+    public LineMessage withEdits(List<LineEdit> edits) {
+        return new LineMessage(fileId, origin, edits, sentAtMicros, ops, crdt, epoch, baseVersion, rejected);
+    }
+
+    /**
+     * True if a client sent ops on its {@link LineSequence}, which the server still has to turn into edits.
+     */
+    public boolean isCrdt() {
+        return crdt;
+    }
+
+    /**
+     * The ops of the message, or null if it only has edits.
+     */
+    public List<CrdtOp> getOps() {
+        return ops;
+    }
+
+    public LineMessage withOps(List<CrdtOp> ops) {
+        return new LineMessage(fileId, origin, edits, sentAtMicros, ops, crdt, epoch, baseVersion, rejected);
+    }
+
+    /**
+     * Epoch of the document the client made its ops or edits in, see {@link #getBaseVersion}.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Version of the document the client made its ops or edits at, or -1 if it did not say.
+     * Clients that merge always say, see {@link #isCrdt}.
+     */
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    /**
+     * True if the server did not apply the ops, or the ones after {@link #getOps}, because they
+     * were made in another epoch or before tombstones they may refer to were collected; or the
+     * edits after {@link #getEdits}, because one reached too far past the end of the document,
+     * or all of them, because others changed the document after the version they were made at.
+     */
+    public boolean isRejected() {
+        return rejected;
+    }
+
+    public LineMessage rejected() {
+        return new LineMessage(fileId, origin, edits, sentAtMicros, ops, crdt, epoch, baseVersion, true);
+    }
+}
@@ -0,0 +1,152 @@
+package myEditorLineByLine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Text encoding of line edits: {@code fileId::entry;entry;...} where each entry is one of
+ * <pre>
+ *   n:content          overwrite line n (the original format)
+ *   +n:l1\nl2          insert the lines before line n
+ *   -n:count           delete count lines starting at line n
+ *   ~n:count:l1\nl2    replace count lines starting at line n
+ * </pre>
+ * Lines never contain a line break, so '\n' separates the lines of one entry.
+ * This is the legacy {@link WireFormat#TEXT} format: content holding ';' does not survive it,
+ * which is why clients now send {@link BinaryLineCodec} frames. Clients from before the other
+ * entries read every entry as {@code n:content}, so what they are sent goes through {@link #toSets}.
+ */
+public final class LineProtocol {
+    private static final String FILE_SEPARATOR = "::";
+    private static final char ENTRY_SEPARATOR = ';';
+
+    private LineProtocol() {
+    }
+
+    public static String format(String fileId, List<LineEdit> edits) {
+        StringBuilder builder = new StringBuilder(fileId).append(FILE_SEPARATOR);
+        for (LineEdit edit : edits) {
+            switch (edit.getKind()) {
+                case SET:
+                    builder.append(edit.getLine()).append(':').append(edit.getLines().get(0));
+                    break;
+                case INSERT:
+                    builder.append('+').append(edit.getLine()).append(':');
+                    appendLines(builder, edit.getLines());
+                    break;
+                case DELETE:
+                    builder.append('-').append(edit.getLine()).append(':').append(edit.getCount());
+                    break;
+                case REPLACE:
+                    builder.append('~').append(edit.getLine()).append(':').append(edit.getCount()).append(':');
+                    appendLines(builder, edit.getLines());
+                    break;
+            }
+            builder.append(ENTRY_SEPARATOR);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the same edits as {@code n:content} entries only, or null if they add or remove lines,
+     * which those entries cannot say.
+     */
+    public static List<LineEdit> toSets(List<LineEdit> edits) {
+        List<LineEdit> sets = new ArrayList<>(edits.size());
+        for (LineEdit edit : edits) {
+            switch (edit.getKind()) {
+                case SET:
+                    sets.add(edit);
+                    break;
+                case REPLACE:
+                    if (edit.getCount() != edit.getLines().size()) {
+                        return null;
+                    }
+                    for (int i = 0; i < edit.getCount(); i++) {
+                        sets.add(LineEdit.set(edit.getLine() + i, edit.getLines().get(i)));
+                    }
+                    break;
+                case DELETE:
+                    if (edit.getCount() > 0) {
+                        return null;
+                    }
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return sets;
+    }
+
+    private static void appendLines(StringBuilder builder, List<String> lines) {
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0) {
+                builder.append('\n');
+            }
+            builder.append(lines.get(i));
+        }
+    }
+
+    /**
+     * Returns the file id of a message, or null if it is not a line edit message.
+     */
+    public static String fileIdOf(String message) {
+        int separator = message.indexOf(FILE_SEPARATOR);
+        return separator < 0 ? null : message.substring(0, separator);
+    }
+
+    /**
+     * Parses the entries of a message. Malformed entries are reported and skipped.
+     */
+    public static List<LineEdit> parseEdits(String message) {
+        List<LineEdit> edits = new ArrayList<>();
+        int separator = message.indexOf(FILE_SEPARATOR);
+        if (separator < 0) {
+            System.err.println("Invalid message format");
+            return edits;
+        }
+
+        String[] entries = message.substring(separator + FILE_SEPARATOR.length()).split(String.valueOf(ENTRY_SEPARATOR));
+        for (String entry : entries) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            try {
+                edits.add(parseEntry(entry));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid line change format: " + entry);
+            }
+        }
+        return edits;
+    }
+
+    private static LineEdit parseEntry(String entry) {
+        char op = entry.charAt(0);
+        if (op == '+' || op == '-' || op == '~') {
+            String[] parts = entry.substring(1).split(":", op == '~' ? 3 : 2);
+            if (parts.length < 2 || (op == '~' && parts.length < 3)) {
+                throw new IllegalArgumentException(entry);
+            }
+            int line = Integer.parseInt(parts[0]);
+            switch (op) {
+                case '+':
+                    return LineEdit.insert(line, splitLines(parts[1]));
+                case '-':
+                    return LineEdit.delete(line, Integer.parseInt(parts[1]));
+                default:
+                    return LineEdit.replace(line, Integer.parseInt(parts[1]), splitLines(parts[2]));
+            }
+        }
+
+        String[] lineParts = entry.split(":", 2);
+        if (lineParts.length != 2) {
+            throw new IllegalArgumentException(entry);
+        }
+        return LineEdit.set(Integer.parseInt(lineParts[0]), lineParts[1]);
+    }
+
+    private static List<String> splitLines(String text) {
+        return Arrays.asList(text.split("\n", -1));
+    }
+}
@@ -0,0 +1,601 @@
+package myEditorLineByLine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A document as a sequence CRDT, a replicated growable array of lines. Every line has a
+ * {@link LineId}, and {@link CrdtOp}s name lines by id, so replicas that apply the same ops end
+ * up with the same lines whatever order concurrent ops arrive in, with no locks and no
+ * coordination beyond each site applying its own ops in order. An insert goes right after its
+ * anchor, behind any lines inserted there concurrently with greater ids; a set only wins over
+ * sets of the line with smaller stamps; a delete wins over a concurrent set.
+ * <p>
+ * Lines are kept as runs of consecutive ids from one insert, so a pasted block or a loaded file
+ * is one entry until edits split it. Runs sit in blocks that count their visible lines, which
+ * maps a line number to an id in O(blocks), and are indexed by site and clock to find an id.
+ * The sequence holds ids, not text: its owner applies the {@link LineEdit}s {@link #apply}
+ * returns, or the local edits it turned into ops, to wherever the text lives.
+ * <p>
+ * Deleted lines stay as tombstones while concurrent inserts may still follow them. A tombstone
+ * remembers the version it was deleted at and the last version an insert was anchored to it;
+ * {@link #collect} drops those at or below a horizon the server picks, and the server turns down
+ * ops made before that horizon, which may still refer to them. Versions of local ops are
+ * {@link #PENDING} until the server echoes them. Not thread-safe.
+ */
+public final class LineSequence {
+    public static final int SERVER_SITE = 0;
+    // The version of an op the server has not sequenced yet
+    public static final long PENDING = Long.MAX_VALUE;
+    // Runs per block after a split; blocks split at twice this
+    private static final int BLOCK_RUNS = 64;
+
+    private final int site;
+    private long clock;
+    private final List<Block> blocks = new ArrayList<>();
+    private final Map<Integer, TreeMap<Long, Run>> sites = new HashMap<>();
+    // Highest clock applied from each site. A site's ops arrive in the order it made them, so lower ones are repeats
+    private final Map<Integer, Long> seen = new HashMap<>();
+    // Stamps of visible lines that were set after they were inserted; the others are stamped by their own id
+    private final Map<LineId, LineId> stamps = new HashMap<>();
+    private final List<Run> tombstones = new ArrayList<>();
+    private int size;
+    private long collectedThrough;
+
+    /**
+     * An empty sequence whose local ops are made by {@code site}.
+     */
+    public LineSequence(int site) {
+        this.site = site;
+    }
+
+    /**
+     * The lines of a file the server loaded, with the ids {@code 0:1 .. 0:lineCount}.
+     */
+    public static LineSequence forServer(int lineCount) {
+        LineSequence sequence = new LineSequence(SERVER_SITE);
+        if (lineCount > 0) {
+            sequence.appendRun(SERVER_SITE, 1, lineCount, false, 0, 0);
+            sequence.clock = lineCount;
+            sequence.seen.put(SERVER_SITE, (long) lineCount);
+        }
+        return sequence;
+    }
+
+    public int getSite() {
+        return site;
+    }
+
+    public long getClock() {
+        return clock;
+    }
+
+    /**
+     * Number of visible lines.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The highest horizon tombstones were collected at. Ops made before it may refer to lines that are gone.
+     */
+    public long getCollectedThrough() {
+        return collectedThrough;
+    }
+
+    public LineId idAt(int index) {
+        Position position = locate(index);
+        return new LineId(position.run.site, position.run.clock + position.offset);
+    }
+
+    /**
+     * The line number of {@code id}, or -1 if the line is deleted or unknown.
+     */
+    public int indexOf(LineId id) {
+        Run run = find(id.getSite(), id.getClock());
+        if (run == null || run.deleted) {
+            return -1;
+        }
+        return indexOf(run) + (int) (id.getClock() - run.clock);
+    }
+
+    /**
+     * Applies an op from another site, or one of ours coming back from the server, as part of
+     * {@code version}. Returns the line edits that take the visible lines to the new state, in
+     * order; none if the op was applied before or lost to a concurrent op.
+     *
+     * @throws IllegalArgumentException if the op follows a line this sequence never had
+     */
+    public List<LineEdit> apply(CrdtOp op, long version) {
+        switch (op.getKind()) {
+            case INSERT:
+                return applyInsert(op, version);
+            case DELETE:
+                return applyDelete(op, version);
+            default:
+                return applySet(op, version);
+        }
+    }
+
+    private List<LineEdit> applyInsert(CrdtOp op, long version) {
+        LineId id = op.getId();
+        if (isRepeat(id.getSite(), id.getClock())) {
+            // Already in place, e.g. our own insert coming back: only learn its version
+            touch(op.getAnchor(), version);
+            return Collections.emptyList();
+        }
+        Run run = integrate(op.getAnchor(), id.getSite(), id.getClock(), op.getCount());
+        observe(id.getSite(), id.getClock() + op.getCount() - 1);
+        touch(op.getAnchor(), version);
+        return List.of(LineEdit.insert(indexOf(run), op.getLines()));
+    }
+
+    private List<LineEdit> applyDelete(CrdtOp op, long version) {
+        LineId id = op.getId();
+        TreeMap<Long, Run> runs = sites.get(id.getSite());
+        if (runs == null) {
+            return Collections.emptyList();
+        }
+        long from = id.getClock();
+        long to = from + op.getCount();
+        Long first = runs.floorKey(from);
+        List<LineEdit> edits = new ArrayList<>();
+        for (Run run : new ArrayList<>(runs.subMap(first == null ? from : first, true, to, false).values())) {
+            if (run.clock + run.length <= from) {
+                continue;
+            }
+            if (run.clock < from) {
+                run = split(run, (int) (from - run.clock));
+            }
+            if (run.clock + run.length > to) {
+                split(run, (int) (to - run.clock));
+            }
+            if (run.deleted) {
+                // Deleted here first, or by us before the server had our delete
+                run.deletedAt = Math.min(run.deletedAt, version);
+            } else {
+                int index = indexOf(run);
+                markDeleted(run, version);
+                edits.add(LineEdit.delete(index, run.length));
+            }
+        }
+        return edits;
+    }
+
+    private List<LineEdit> applySet(CrdtOp op, long version) {
+        LineId stamp = op.getStamp();
+        if (isRepeat(stamp.getSite(), stamp.getClock())) {
+            return Collections.emptyList();
+        }
+        observe(stamp.getSite(), stamp.getClock());
+        LineId id = op.getId();
+        Run run = find(id.getSite(), id.getClock());
+        if (run == null || run.deleted) {
+            return Collections.emptyList();
+        }
+        LineId current = stamps.getOrDefault(id, id);
+        if (stamp.compareTo(current) <= 0) {
+            return Collections.emptyList();
+        }
+        stamps.put(id, stamp);
+        return List.of(LineEdit.set(indexOf(run) + (int) (id.getClock() - run.clock), op.getLines().get(0)));
+    }
+
+    /**
+     * Turns an edit the owner made to its lines into ops, and applies them here. The edit means
+     * what {@link LineEdit#applyTo} does with it, padding past the end included. {@code version}
+     * is {@link #PENDING} unless the owner is the server.
+     */
+    public List<CrdtOp> localEdit(LineEdit edit, long version) {
+        int line = edit.getLine();
+        List<String> lines = edit.getLines();
+        switch (edit.getKind()) {
+            case DELETE:
+                return line >= size ? Collections.emptyList() : localDelete(line, Math.min(edit.getCount(), size - line), version);
+            case SET:
+                if (line < size) {
+                    return List.of(localSet(line, lines.get(0)));
+                }
+                return List.of(localInsert(size, padded(line - size, lines), version));
+            case INSERT:
+                return List.of(line > size ? localInsert(size, padded(line - size, lines), version) : localInsert(line, lines, version));
+            default:
+                break;
+        }
+        if (line >= size) {
+            return List.of(localInsert(size, padded(line - size, lines), version));
+        }
+        // A replace overwrites the lines it keeps, then inserts or deletes the difference
+        int replaced = Math.min(edit.getCount(), size - line);
+        int overlap = Math.min(replaced, lines.size());
+        List<CrdtOp> ops = new ArrayList<>(overlap + 1);
+        for (int i = 0; i < overlap; i++) {
+            ops.add(localSet(line + i, lines.get(i)));
+        }
+        if (lines.size() > overlap) {
+            ops.add(localInsert(line + overlap, lines.subList(overlap, lines.size()), version));
+        } else if (replaced > overlap) {
+            ops.addAll(localDelete(line + overlap, replaced - overlap, version));
+        }
+        return ops;
+    }
+
+    private static List<String> padded(int blanks, List<String> lines) {
+        if (blanks == 0) {
+            return lines;
+        }
+        List<String> padded = new ArrayList<>(Collections.nCopies(blanks, ""));
+        padded.addAll(lines);
+        return padded;
+    }
+
+    /**
+     * Inserts lines before line {@code index}, which may be {@link #size()}.
+     */
+    public CrdtOp localInsert(int index, List<String> lines, long version) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Line " + index + " of " + size);
+        }
+        LineId anchor = index == 0 ? null : idAt(index - 1);
+        long first = clock + 1;
+        // Our id is greater than any we have seen, so it goes right after the anchor
+        integrate(anchor, site, first, lines.size());
+        observe(site, first + lines.size() - 1);
+        touch(anchor, version);
+        return CrdtOp.insert(anchor, new LineId(site, first), lines);
+    }
+
+    /**
+     * Deletes lines {@code index .. index + count - 1}, as one op per run of consecutive ids.
+     */
+    public List<CrdtOp> localDelete(int index, int count, long version) {
+        if (index < 0 || count < 0 || index + count > size) {
+            throw new IndexOutOfBoundsException("Lines " + index + " + " + count + " of " + size);
+        }
+        List<CrdtOp> ops = new ArrayList<>();
+        int remaining = count;
+        while (remaining > 0) {
+            Position position = locate(index);
+            Run run = position.offset > 0 ? split(position.run, position.offset) : position.run;
+            if (run.length > remaining) {
+                split(run, remaining);
+            }
+            remaining -= run.length;
+            markDeleted(run, version);
+            CrdtOp last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+            if (last != null && last.getId().getSite() == run.site && last.getId().getClock() + last.getCount() == run.clock) {
+                ops.set(ops.size() - 1, CrdtOp.delete(last.getId(), last.getCount() + run.length));
+            } else {
+                ops.add(CrdtOp.delete(new LineId(run.site, run.clock), run.length));
+            }
+        }
+        return ops;
+    }
+
+    public CrdtOp localSet(int index, String content) {
+        LineId id = idAt(index);
+        LineId stamp = new LineId(site, clock + 1);
+        observe(site, stamp.getClock());
+        stamps.put(id, stamp);
+        return CrdtOp.set(id, stamp, content);
+    }
+
+    /**
+     * Drops the tombstones deleted and last followed at or before {@code horizon}. Returns the
+     * number of deleted lines dropped.
+     */
+    public int collect(long horizon) {
+        if (horizon <= collectedThrough) {
+            return 0;
+        }
+        collectedThrough = horizon;
+        int collected = 0;
+        List<Run> kept = new ArrayList<>();
+        for (Run run : tombstones) {
+            if (run.deletedAt <= horizon && run.touched <= horizon) {
+                remove(run);
+                collected += run.length;
+            } else {
+                kept.add(run);
+            }
+        }
+        tombstones.clear();
+        tombstones.addAll(kept);
+        return collected;
+    }
+
+    /**
+     * A copy to hand to a client, whose local ops are made by {@code newSite}.
+     */
+    public LineSequence copyFor(int newSite) {
+        LineSequence copy = new LineSequence(newSite);
+        for (Block block : blocks) {
+            for (Run run : block.runs) {
+                copy.appendRun(run.site, run.clock, run.length, run.deleted, run.deletedAt, run.touched);
+            }
+        }
+        copy.restore(clock, collectedThrough);
+        copy.stamps.putAll(stamps);
+        copy.seen.putAll(seen);
+        return copy;
+    }
+
+    /**
+     * Every run, visible or not, in document order. For encoding.
+     */
+    List<Run> runs() {
+        List<Run> runs = new ArrayList<>();
+        for (Block block : blocks) {
+            runs.addAll(block.runs);
+        }
+        return runs;
+    }
+
+    Map<LineId, LineId> stamps() {
+        return Collections.unmodifiableMap(stamps);
+    }
+
+    /**
+     * Adds a run after all others, for decoding.
+     */
+    void appendRun(int runSite, long runClock, int length, boolean deleted, long deletedAt, long touched) {
+        if (length < 1 || runClock < 1 || find(runSite, runClock) != null) {
+            throw new IllegalArgumentException("Invalid run " + runSite + ":" + runClock + " + " + length);
+        }
+        if (blocks.isEmpty() || blocks.get(blocks.size() - 1).runs.size() >= BLOCK_RUNS) {
+            blocks.add(new Block());
+        }
+        Run run = new Run(runSite, runClock, length);
+        run.deleted = deleted;
+        run.deletedAt = deletedAt;
+        run.touched = touched;
+        Block last = blocks.get(blocks.size() - 1);
+        insertRun(last, last.runs.size(), run);
+    }
+
+    void restore(long newClock, long newCollectedThrough) {
+        clock = Math.max(clock, newClock);
+        collectedThrough = newCollectedThrough;
+    }
+
+    void restoreStamp(LineId id, LineId stamp) {
+        stamps.put(id, stamp);
+    }
+
+    /**
+     * The highest clock of an op applied from each site, which tells repeats apart.
+     */
+    Map<Integer, Long> seen() {
+        return Collections.unmodifiableMap(seen);
+    }
+
+    void restoreSeen(int opSite, long opClock) {
+        seen.merge(opSite, opClock, Math::max);
+    }
+
+    private boolean isRepeat(int opSite, long opClock) {
+        Long last = seen.get(opSite);
+        return last != null && opClock <= last;
+    }
+
+    private void observe(int opSite, long opClock) {
+        seen.merge(opSite, opClock, Math::max);
+        clock = Math.max(clock, opClock);
+    }
+
+    private void touch(LineId anchor, long version) {
+        if (anchor == null || version == PENDING) {
+            return;
+        }
+        Run run = find(anchor.getSite(), anchor.getClock());
+        if (run != null) {
+            run.touched = Math.max(run.touched, version);
+        }
+    }
+
+    /**
+     * Places a new run: right after its anchor, then past every run with a greater id than its
+     * own. Those were inserted at the same place concurrently, or follow such a run, and sort first.
+     */
+    private Run integrate(LineId anchor, int runSite, long runClock, int length) {
+        int blockIndex = 0;
+        int runIndex = 0;
+        if (anchor != null) {
+            Run before = find(anchor.getSite(), anchor.getClock());
+            if (before == null) {
+                throw new IllegalArgumentException("Unknown anchor line " + anchor);
+            }
+            int offset = (int) (anchor.getClock() - before.clock);
+            if (offset < before.length - 1) {
+                split(before, offset + 1);
+            }
+            blockIndex = blocks.indexOf(before.block);
+            runIndex = before.block.runs.indexOf(before) + 1;
+        }
+        while (blockIndex < blocks.size()) {
+            List<Run> runs = blocks.get(blockIndex).runs;
+            if (runIndex == runs.size()) {
+                blockIndex++;
+                runIndex = 0;
+                continue;
+            }
+            Run next = runs.get(runIndex);
+            if (LineId.compare(next.site, next.clock, runSite, runClock) < 0) {
+                break;
+            }
+            runIndex++;
+        }
+        if (blockIndex == blocks.size()) {
+            if (blocks.isEmpty()) {
+                blocks.add(new Block());
+            }
+            blockIndex = blocks.size() - 1;
+            runIndex = blocks.get(blockIndex).runs.size();
+        }
+        Run run = new Run(runSite, runClock, length);
+        insertRun(blocks.get(blockIndex), runIndex, run);
+        return run;
+    }
+
+    private void insertRun(Block block, int index, Run run) {
+        run.block = block;
+        block.runs.add(index, run);
+        sites.computeIfAbsent(run.site, key -> new TreeMap<>()).put(run.clock, run);
+        if (run.deleted) {
+            tombstones.add(run);
+        } else {
+            block.visible += run.length;
+            size += run.length;
+        }
+        if (block.runs.size() > 2 * BLOCK_RUNS) {
+            Block second = new Block();
+            List<Run> moved = block.runs.subList(BLOCK_RUNS, block.runs.size());
+            for (Run next : moved) {
+                next.block = second;
+                second.runs.add(next);
+                if (!next.deleted) {
+                    second.visible += next.length;
+                }
+            }
+            moved.clear();
+            block.visible -= second.visible;
+            blocks.add(blocks.indexOf(block) + 1, second);
+        }
+    }
+
+    /**
+     * Cuts a run in two after {@code offset} lines and returns the second part.
+     */
+    private Run split(Run run, int offset) {
+        Run rest = new Run(run.site, run.clock + offset, run.length - offset);
+        rest.deleted = run.deleted;
+        rest.deletedAt = run.deletedAt;
+        rest.touched = run.touched;
+        run.length = offset;
+        if (!run.deleted) {
+            // Counted again as the second part goes in
+            run.block.visible -= rest.length;
+            size -= rest.length;
+        }
+        insertRun(run.block, run.block.runs.indexOf(run) + 1, rest);
+        return rest;
+    }
+
+    private void markDeleted(Run run, long version) {
+        run.deleted = true;
+        run.deletedAt = version;
+        run.block.visible -= run.length;
+        size -= run.length;
+        tombstones.add(run);
+        if (!stamps.isEmpty()) {
+            for (int i = 0; i < run.length; i++) {
+                stamps.remove(new LineId(run.site, run.clock + i));
+            }
+        }
+    }
+
+    private void remove(Run run) {
+        Block block = run.block;
+        block.runs.remove(run);
+        if (block.runs.isEmpty()) {
+            blocks.remove(block);
+        }
+        sites.get(run.site).remove(run.clock);
+        run.block = null;
+    }
+
+    private Run find(int runSite, long runClock) {
+        TreeMap<Long, Run> runs = sites.get(runSite);
+        Map.Entry<Long, Run> entry = runs == null ? null : runs.floorEntry(runClock);
+        if (entry == null) {
+            return null;
+        }
+        Run run = entry.getValue();
+        return runClock < run.clock + run.length ? run : null;
+    }
+
+    /**
+     * Visible lines before the run.
+     */
+    private int indexOf(Run run) {
+        int index = 0;
+        for (Block block : blocks) {
+            if (block == run.block) {
+                break;
+            }
+            index += block.visible;
+        }
+        for (Run other : run.block.runs) {
+            if (other == run) {
+                break;
+            }
+            if (!other.deleted) {
+                index += other.length;
+            }
+        }
+        return index;
+    }
+
+    private Position locate(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Line " + index + " of " + size);
+        }
+        int remaining = index;
+        for (Block block : blocks) {
+            if (remaining >= block.visible) {
+                remaining -= block.visible;
+                continue;
+            }
+            for (Run run : block.runs) {
+                if (run.deleted) {
+                    continue;
+                }
+                if (remaining < run.length) {
+                    return new Position(run, remaining);
+                }
+                remaining -= run.length;
+            }
+        }
+        throw new IllegalStateException("Visible line counts do not add up to " + size);
+    }
+
+    /**
+     * Lines with the ids {@code site:clock .. site:clock + length - 1}, inserted together.
+     */
+    static final class Run {
+        final int site;
+        final long clock;
+        int length;
+        boolean deleted;
+        long deletedAt;
+        // Last version an insert was anchored to one of the lines
+        long touched;
+        private Block block;
+
+        Run(int site, long clock, int length) {
+            this.site = site;
+            this.clock = clock;
+            this.length = length;
+        }
+    }
+
+    private static final class Block {
+        private final List<Run> runs = new ArrayList<>();
+        private int visible;
+    }
+
+    private static final class Position {
+        private final Run run;
+        private final int offset;
+
+        Position(Run run, int offset) {
+            this.run = run;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package myEditorLineByLine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Holds the lines of a resident document. Small files are read onto the heap as UTF-8 in a few
+ * large arrays ({@link HeapLineStore}); files of {@code mappedBytes} or more are memory-mapped and
+ * only their edited lines live on the heap ({@link MappedLineStore}).
+ * Callers serialize access, except for {@link #snapshotWritten}.
+ */
+interface LineStore {
+    /**
+     * A copy of the lines at one moment, which can be hashed and written while edits go on.
+     */
+    interface Snapshot {
+        int lineCount();
+
+        /**
+         * The {@link OperationLog#hash} of the bytes {@link #writeTo} writes.
+         */
+        long hash();
+
+        /**
+         * Writes every line followed by the platform line separator.
+         */
+        void writeTo(FileChannel channel) throws IOException;
+    }
+
+    static LineStore open(Path path, long mappedBytes) throws IOException {
+        return Files.size(path) >= mappedBytes ? MappedLineStore.map(path) : HeapLineStore.read(path);
+    }
+
+    int size();
+
+    /**
+     * The {@link OperationLog#hash} of the file the store was opened from.
+     */
+    long fileHash();
+
+    void apply(LineEdit edit);
+
+    /**
+     * The UTF-8 bytes of lines {@code from .. to - 1}, without line breaks. The buffers may be
+     * views of the mapped file, and stay valid after the document changes.
+     */
+    List<ByteBuffer> slices(int from, int to);
+
+    Snapshot snapshot();
+
+    /**
+     * Tells the store that {@code snapshot} now is the content of {@code file}, so it can drop
+     * what it kept on the heap for lines the file now holds. Runs without the caller's lock.
+     */
+    void snapshotWritten(Path file, Snapshot snapshot) throws IOException;
+}
@@ -0,0 +1,121 @@
+package myEditorLineByLine;
+
+/**
+ * The part of a large document that a paged client holds: lines {@code start .. end - 1} of a
+ * document with {@code totalLines} lines, numbered as of the last version the client saw.
+ * Line {@code i} of the text area is document line {@code start + i}.
+ * <p>
+ * Every edit the server publishes moves the window along, whether or not the client shows it,
+ * so page requests always name lines the way the server numbers them.
+ */
+final class LineWindow {
+    enum Placement {
+        // Entirely above the window, which moves up or down with it
+        BEFORE,
+        // Within the window (or appending to a window that reaches the end of the document)
+        INSIDE,
+        // Entirely below the window, which stays where it is
+        AFTER,
+        // Across an edge of the window, which has to be loaded again
+        ACROSS
+    }
+
+    private int start = 0;
+    private int end = 0;
+    private int totalLines = 0;
+
+    void reset(int start, int lineCount, int totalLines) {
+        this.start = start;
+        this.end = start + lineCount;
+        this.totalLines = totalLines;
+    }
+
+    int getStart() {
+        return start;
+    }
+
+    int getEnd() {
+        return end;
+    }
+
+    int size() {
+        return end - start;
+    }
+
+    int getTotalLines() {
+        return totalLines;
+    }
+
+    boolean reachesEnd() {
+        return end >= totalLines;
+    }
+
+    /**
+     * Follows an edit to the document and returns where it landed relative to the window.
+     * An {@link Placement#INSIDE} edit applies to the text area once shifted by {@code -start},
+     * which must be computed before this call.
+     */
+    Placement follow(LineEdit edit) {
+        int line = edit.getLine();
+        if (edit.getKind() == LineEdit.Kind.DELETE && line >= totalLines) {
+            return Placement.AFTER;
+        }
+        // Writing past the end first pads the document with empty lines
+        int padding = Math.max(0, line - totalLines);
+        int removed = edit.getKind() == LineEdit.Kind.INSERT ? 0 : Math.max(0, Math.min(edit.getCount(), totalLines - line));
+        int added = edit.getKind() == LineEdit.Kind.DELETE ? 0 : edit.getLines().size();
+        int delta = padding + added - removed;
+
+        // The edit replaces lines [from, to) of the document as it was
+        int from = Math.min(line, totalLines);
+        int to = from + removed;
+        Placement placement;
+        if (from < start && to <= start) {
+            placement = Placement.BEFORE;
+            start += delta;
+            end += delta;
+        } else if (from > end || (from == end && end < totalLines)) {
+            placement = Placement.AFTER;
+        } else if (from >= start && to <= end) {
+            placement = Placement.INSIDE;
+            end += delta;
+        } else {
+            placement = Placement.ACROSS;
+        }
+        totalLines += delta;
+        return placement;
+    }
+
+    /**
+     * Lines were added at the end of the window.
+     */
+    void grownAtEnd(int lines) {
+        end += lines;
+    }
+
+    /**
+     * Lines were added in front of the window.
+     */
+    void grownAtStart(int lines) {
+        start -= lines;
+    }
+
+    /**
+     * Lines were dropped from the start of the window.
+     */
+    void shrunkAtStart(int lines) {
+        start += lines;
+    }
+
+    /**
+     * Lines were dropped from the end of the window.
+     */
+    void shrunkAtEnd(int lines) {
+        end -= lines;
+    }
+
+    @Override
+    public String toString() {
+        return "lines " + (start + 1) + "-" + end + " of " + totalLines;
+    }
+}
@@ -0,0 +1,387 @@
+package myEditorLineByLine;
+
+import myEditorCommon.InProcessTransport;
+import myEditorCommon.Transport;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs virtual editors against the line-by-line server and reports how long edits take to reach
+ * the other editors of the same document, and how many edits the server gets through.
+ * Every editor is a {@link HeadlessClient} typing at random intervals around its rate. Lines it
+ * types carry the time they were sent, so each editor that receives them records the latency.
+ * Once typing stops, the editors of each document should converge on the same lines, and with
+ * {@code -Deditor.load.damage} they should get there again after lines of theirs are corrupted.
+ * With {@code -Deditor.transport=inprocess} the server runs in this JVM; otherwise start it first.
+ */
+public class LoadGenerator {
+    private static final String SENT_MARK = "lt:";
+
+    private enum EditShape { TYPE, NEWLINE, PASTE, DELETE }
+
+    // e.g. -Deditor.load.editors=1000 -Deditor.load.documents=50 -Deditor.load.rate=10 -Deditor.load.shape=type:80,paste:20
+    private static final int editors = Integer.getInteger("editor.load.editors", 100);
+    private static final int documents = Integer.getInteger("editor.load.documents", 10);
+    private static final double rate = Double.parseDouble(System.getProperty("editor.load.rate", "5"));
+    private static final String shape = System.getProperty("editor.load.shape", "type:90,newline:7,paste:2,delete:1");
+    private static final int pasteLines = Integer.getInteger("editor.load.pasteLines", 20);
+    private static final int documentLines = Integer.getInteger("editor.load.documentLines", 1000);
+    private static final long warmupSeconds = Long.getLong("editor.load.warmupSeconds", 5);
+    private static final long seconds = Long.getLong("editor.load.seconds", 30);
+    private static final long reportSeconds = Long.getLong("editor.load.reportSeconds", 5);
+    // In-process only: server nodes sharing the documents, and when the last one leaves, e.g.
+    // -Deditor.load.servers=3 -Deditor.load.leaveAfterSeconds=10 (0 stays to the end)
+    private static final int servers = Integer.getInteger("editor.load.servers", 1);
+    private static final long leaveAfterSeconds = Long.getLong("editor.load.leaveAfterSeconds", 0);
+    // Lines changed behind the server's back once typing stops, for the editors' checks to find, e.g. -Deditor.load.damage=20
+    private static final int damage = Integer.getInteger("editor.load.damage", 0);
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicBoolean measuring = new AtomicBoolean();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    // Highest version any editor saw of each document
+    private final AtomicLongArray versions = new AtomicLongArray(documents);
+    private final List<EditShape> shapes = parseShape(shape);
+    private final List<Editor> all = new ArrayList<>();
+    private final List<TextEditorByLineServer> nodes = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException, TimeoutException, InterruptedException {
+        Transport transport = Transport.fromSystemProperties();
+        LoadGenerator generator = new LoadGenerator();
+        if (transport instanceof InProcessTransport) {
+            if (servers == 1) {
+                generator.nodes.add(TextEditorByLineServer.start(transport));
+            } else {
+                // Each node on a connection of its own, so leaving cancels only its consumers
+                for (int i = 1; i <= servers; i++) {
+                    generator.nodes.add(TextEditorByLineServer.start(InProcessTransport.connect(), "node-" + i));
+                }
+            }
+        }
+        // The documents go to a fresh temporary directory unless told otherwise, e.g. -Deditor.load.dir=load
+        String dir = System.getProperty("editor.load.dir");
+        Path directory = dir == null ? Files.createTempDirectory("editor-load") : Files.createDirectories(Paths.get(dir));
+        generator.run(transport, directory);
+        transport.close();
+        System.exit(0);
+    }
+
+    void run(Transport transport, Path directory) throws IOException, InterruptedException {
+        List<String> fileIds = new ArrayList<>();
+        for (int i = 0; i < documents; i++) {
+            fileIds.add(writeDocument(directory.resolve("document-" + i + ".txt")).toAbsolutePath().toString());
+        }
+        System.out.println(" [*] " + editors + " editors on " + documents + " documents in " + directory.toAbsolutePath()
+                + ", " + rate + " edits/s each, shape " + shape
+                + (Boolean.parseBoolean(System.getProperty("editor.client.crdt", "true")) ? ", merging with the line CRDT" : ", by line index"));
+
+        for (int i = 0; i < editors; i++) {
+            Editor editor = new Editor(i % documents);
+            editor.client = new HeadlessClient(transport, editor::received);
+            editor.client.start();
+            editor.client.open(fileIds.get(editor.document));
+            all.add(editor);
+        }
+        awaitSynced();
+
+        ScheduledExecutorService typists = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "load-editor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Editor editor : all) {
+            typists.schedule(() -> editor.type(typists), nextDelayMicros(), TimeUnit.MICROSECONDS);
+        }
+
+        System.out.println(" [*] Warming up for " + warmupSeconds + " s");
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        long[] startVersions = snapshotVersions();
+        long start = System.nanoTime();
+        measuring.set(true);
+        System.out.println(" [*] Measuring for " + seconds + " s");
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        if (leaveAfterSeconds > 0 && nodes.size() > 1) {
+            // The others take over its documents while the editors keep typing
+            TextEditorByLineServer leaving = nodes.get(nodes.size() - 1);
+            typists.schedule(() -> {
+                System.out.println(" [*] Node " + leaving.getCluster().getNodeId() + " leaves");
+                leaving.close();
+            }, leaveAfterSeconds, TimeUnit.SECONDS);
+        }
+        while (System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(Math.min(TimeUnit.SECONDS.toMillis(Math.max(1, reportSeconds)),
+                    Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.printf(" [.] %.0f s: sent %.0f edits/s, server applied %.0f edits/s, latency p99 %.2f ms%n",
+                    elapsed, sent.get() / elapsed, applied.get() / elapsed, latencies.percentile(0.99) / 1e6);
+        }
+        measuring.set(false);
+        running.set(false);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long[] endVersions = snapshotVersions();
+        typists.shutdownNow();
+        int converged = awaitConverged(fileIds.size());
+        if (damage > 0) {
+            converged = damageAndRepair(fileIds.size());
+        }
+
+        long newVersions = 0;
+        for (int i = 0; i < documents; i++) {
+            newVersions += endVersions[i] - startVersions[i];
+        }
+        System.out.println(" [*] Results over " + String.format("%.1f", elapsed) + " s");
+        System.out.printf("     Edits sent:        %d (%.0f/s)%n", sent.get(), sent.get() / elapsed);
+        System.out.printf("     Server throughput: %.0f edits/s applied, %.0f versions/s published%n",
+                applied.get() / elapsed, newVersions / elapsed);
+        System.out.printf("     Batches delivered: %d (%.0f/s)%n", delivered.get(), delivered.get() / elapsed);
+        System.out.println("     Propagation:       " + latencies);
+        long resyncs = 0;
+        for (Editor editor : all) {
+            resyncs += editor.client.getResyncs();
+        }
+        // Editors that fell too far behind lost updates from their queue and caught up
+        System.out.println("     Resyncs:           " + resyncs);
+        long rejections = 0;
+        for (Editor editor : all) {
+            rejections += editor.client.getRejections();
+        }
+        // Ops the server turned down because they were made too far back; their editors reloaded
+        System.out.println("     Rejections:        " + rejections);
+        long repairs = 0;
+        for (Editor editor : all) {
+            repairs += editor.client.getRepairs();
+        }
+        // Lines an editor's check found to differ from the server's, damaged or lost on the way
+        System.out.println("     Repaired:          " + repairs);
+        System.out.println("     Converged:         " + converged + " of " + documents + " documents");
+
+        for (Editor editor : all) {
+            editor.client.close();
+        }
+    }
+
+    private void awaitSynced() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        for (Editor editor : all) {
+            while (!editor.client.isSynced()) {
+                if (System.nanoTime() > deadline) {
+                    throw new IllegalStateException("Editors did not receive their documents within 30 s; is the server running?");
+                }
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Waits up to 10 s for the editors of each document to hold the same version and lines.
+     * Returns the number of documents whose editors agree.
+     */
+    private int awaitConverged(int documentCount) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            int converged = 0;
+            for (int document = 0; document < documentCount; document++) {
+                if (converged(document)) {
+                    converged++;
+                }
+            }
+            if (converged == documentCount || System.nanoTime() > deadline) {
+                return converged;
+            }
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+    }
+
+    private boolean converged(int document) {
+        long version = -1;
+        List<String> lines = null;
+        for (Editor editor : all) {
+            if (editor.document != document) {
+                continue;
+            }
+            if (lines == null) {
+                version = editor.client.getVersion();
+                lines = editor.client.getLines();
+            } else if (editor.client.getVersion() != version || !editor.client.getLines().equals(lines)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Changes random lines of random editors without telling the server, then has every editor
+     * check its copy. Returns the number of documents whose editors agree again.
+     */
+    private int damageAndRepair(int documentCount) throws InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < damage; i++) {
+            HeadlessClient client = all.get(random.nextInt(all.size())).client;
+            if (client.lineCount() > 0) {
+                client.damage(random.nextInt(client.lineCount()), "damaged line " + i);
+            }
+        }
+        System.out.println(" [*] Damaged " + damage + " lines, checking the editors' copies");
+        for (Editor editor : all) {
+            editor.client.verify();
+        }
+        return awaitConverged(documentCount);
+    }
+
+    private long[] snapshotVersions() {
+        long[] snapshot = new long[documents];
+        for (int i = 0; i < documents; i++) {
+            snapshot[i] = versions.get(i);
+        }
+        return snapshot;
+    }
+
+    private static long nextDelayMicros() {
+        // Exponential gaps: keystrokes come at random, at the configured rate on average
+        double gap = -Math.log(1 - ThreadLocalRandom.current().nextDouble()) / rate;
+        return (long) (gap * 1_000_000);
+    }
+
+    private static Path writeDocument(Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < documentLines; i++) {
+                writer.write("line " + i + " of a document edited by the load generator");
+                writer.newLine();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * "type:90,newline:7,paste:2,delete:1" as a list to draw shapes from, each shape appearing as often as its weight.
+     */
+    private static List<EditShape> parseShape(String spec) {
+        Map<EditShape, Integer> weights = new EnumMap<>(EditShape.class);
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            weights.put(EditShape.valueOf(parts[0].trim().toUpperCase()), parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1);
+        }
+        List<EditShape> shapes = new ArrayList<>();
+        weights.forEach((editShape, weight) -> shapes.addAll(Collections.nCopies(weight, editShape)));
+        if (shapes.isEmpty()) {
+            throw new IllegalArgumentException("No edit shapes in " + spec);
+        }
+        return shapes;
+    }
+
+    /**
+     * The time a typed line was sent, or -1 if it was not typed by us.
+     */
+    private static long sentAt(String line) {
+        if (!line.startsWith(SENT_MARK)) {
+            return -1;
+        }
+        int end = line.indexOf(' ', SENT_MARK.length());
+        try {
+            return Long.parseLong(line.substring(SENT_MARK.length(), end < 0 ? line.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private final class Editor {
+        private final int document;
+        private HeadlessClient client;
+        private int cursor;
+        private int typed;
+
+        Editor(int document) {
+            this.document = document;
+        }
+
+        void type(ScheduledExecutorService typists) {
+            if (!running.get()) {
+                return;
+            }
+            try {
+                client.edit(nextEdits());
+                if (measuring.get()) {
+                    sent.incrementAndGet();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            typists.schedule(() -> type(typists), nextDelayMicros(), TimeUnit.MICROSECONDS);
+        }
+
+        private List<LineEdit> nextEdits() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int lineCount = Math.max(1, client.lineCount());
+            if (random.nextInt(20) == 0) {
+                // Now and then the caret jumps elsewhere
+                cursor = random.nextInt(lineCount);
+            }
+            cursor = Math.min(cursor, lineCount - 1);
+            String line = SENT_MARK + System.nanoTime() + " typed " + (++typed);
+            switch (shapes.get(random.nextInt(shapes.size()))) {
+                case NEWLINE:
+                    cursor++;
+                    return List.of(LineEdit.insert(cursor, List.of(line)));
+                case PASTE: {
+                    List<String> pasted = new ArrayList<>(pasteLines);
+                    pasted.add(line);
+                    for (int i = 1; i < pasteLines; i++) {
+                        pasted.add("pasted line " + i);
+                    }
+                    return List.of(LineEdit.insert(cursor, pasted));
+                }
+                case DELETE:
+                    if (lineCount > 1) {
+                        return List.of(LineEdit.delete(cursor, 1));
+                    }
+                    return List.of(LineEdit.set(cursor, line));
+                default:
+                    return List.of(LineEdit.set(cursor, line));
+            }
+        }
+
+        void received(DocumentUpdate update) {
+            long now = System.nanoTime();
+            versions.accumulateAndGet(document, update.getVersion(), Math::max);
+            if (!measuring.get() || update.isSnapshot()) {
+                return;
+            }
+            delivered.incrementAndGet();
+            for (LineMessage segment : update.getSegments()) {
+                if (client.getClientId().equals(segment.getOrigin())) {
+                    // The server applied one of our edits
+                    applied.incrementAndGet();
+                    continue;
+                }
+                for (LineEdit edit : segment.getEdits()) {
+                    long sentAt = edit.getLines().isEmpty() ? -1 : sentAt(edit.getLines().get(0));
+                    if (sentAt >= 0) {
+                        latencies.record(now - sentAt);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
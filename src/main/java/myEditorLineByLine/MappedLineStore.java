@@ -0,0 +1,315 @@
+package myEditorLineByLine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * A document kept as a read-only mapping of its file plus an overlay of the lines edited since.
+ * The file is indexed once by line start offsets; the document is an array of ints, one per
+ * line, each naming either a line of the file (n >= 0) or a line of the overlay (~n). Lines of
+ * the file are never decoded: ranges and snapshots are served as slices of the mapping.
+ * <p>
+ * Once a snapshot has replaced the file, the new file is mapped and every line the snapshot
+ * holds is pointed at it, so the overlay only keeps the lines edited since that snapshot.
+ */
+final class MappedLineStore implements LineStore {
+    // A mapping covers at most this many bytes, so a line may not be longer
+    private static final long MAX_REGION = Integer.MAX_VALUE;
+    private static final byte[] SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final long fileHash;
+    private Base base;
+    private int[] entries;
+    private int size;
+    private List<String> overlay = new ArrayList<>();
+
+    private MappedLineStore(Base base) {
+        this.base = base;
+        this.fileHash = base.hash;
+        this.size = base.lineCount;
+        this.entries = new int[Math.max(16, size)];
+        for (int i = 0; i < size; i++) {
+            entries[i] = i;
+        }
+    }
+
+    static MappedLineStore map(Path path) throws IOException {
+        return new MappedLineStore(Base.map(path));
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public long fileHash() {
+        return fileHash;
+    }
+
+    /**
+     * Applies an edit exactly like {@link LineEdit#applyTo}.
+     */
+    @Override
+    public synchronized void apply(LineEdit edit) {
+        int line = edit.getLine();
+        if (edit.getKind() == LineEdit.Kind.DELETE) {
+            int end = Math.min(line + edit.getCount(), size);
+            if (line < end) {
+                replace(line, end, Collections.emptyList());
+            }
+            return;
+        }
+
+        if (size < line) {
+            replace(size, size, Collections.nCopies(line - size, ""));
+        }
+        switch (edit.getKind()) {
+            case SET:
+                replace(line, Math.min(line + 1, size), edit.getLines());
+                break;
+            case INSERT:
+                replace(line, line, edit.getLines());
+                break;
+            case REPLACE:
+                replace(line, Math.min(line + edit.getCount(), size), edit.getLines());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void replace(int from, int to, List<String> lines) {
+        int delta = lines.size() - (to - from);
+        if (size + delta > entries.length) {
+            entries = Arrays.copyOf(entries, Math.max(size + delta, entries.length + (entries.length >> 1)));
+        }
+        System.arraycopy(entries, to, entries, to + delta, size - to);
+        for (int i = 0; i < lines.size(); i++) {
+            entries[from + i] = ~overlay.size();
+            overlay.add(lines.get(i));
+        }
+        size += delta;
+    }
+
+    @Override
+    public synchronized List<ByteBuffer> slices(int from, int to) {
+        List<ByteBuffer> slices = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            int entry = entries[i];
+            slices.add(entry >= 0 ? base.line(entry) : ByteBuffer.wrap(overlay.get(~entry).getBytes(StandardCharsets.UTF_8)));
+        }
+        return slices;
+    }
+
+    @Override
+    public synchronized Snapshot snapshot() {
+        return new MappedSnapshot(base, Arrays.copyOf(entries, size), overlay.toArray(new String[0]));
+    }
+
+    @Override
+    public void snapshotWritten(Path file, Snapshot snapshot) throws IOException {
+        MappedSnapshot written = (MappedSnapshot) snapshot;
+        Base mapped = Base.map(file);
+        if (mapped.lineCount != written.lineCount()) {
+            // A line held a line break of another platform; keep serving from the old mapping
+            System.err.println("Snapshot of " + file + " reads back as " + mapped.lineCount + " lines instead of "
+                    + written.lineCount() + ", keeping edits in memory");
+            return;
+        }
+        synchronized (this) {
+            if (written.base != base) {
+                return;
+            }
+            // Where each line of the old file and of the overlay ended up in the new file
+            int[] baseToNew = new int[base.lineCount];
+            int[] overlayToNew = new int[written.overlay.length];
+            Arrays.fill(overlayToNew, -1);
+            for (int i = 0; i < written.entries.length; i++) {
+                int entry = written.entries[i];
+                if (entry >= 0) {
+                    baseToNew[entry] = i;
+                } else {
+                    overlayToNew[~entry] = i;
+                }
+            }
+            // Lines of the old file can only have moved or gone since the snapshot, never come back,
+            // so each one still in the document is in the new file. Lines edited since stay in the overlay.
+            List<String> remaining = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                int entry = entries[i];
+                if (entry >= 0) {
+                    entries[i] = baseToNew[entry];
+                } else if (~entry < overlayToNew.length && overlayToNew[~entry] >= 0) {
+                    entries[i] = overlayToNew[~entry];
+                } else {
+                    entries[i] = ~remaining.size();
+                    remaining.add(overlay.get(~entry));
+                }
+            }
+            base = mapped;
+            overlay = remaining;
+        }
+    }
+
+    /**
+     * A mapped file and the offsets of its lines. Line {@code i} spans
+     * {@code lineStarts[i] .. lineStarts[i + 1] - 2}, the last byte being its line break.
+     */
+    private static final class Base {
+        private final MappedByteBuffer[] regions;
+        private final long[] regionStarts;
+        private final long[] lineStarts;
+        private final int lineCount;
+        private final long hash;
+
+        private Base(MappedByteBuffer[] regions, long[] regionStarts, long[] lineStarts, int lineCount, long hash) {
+            this.regions = regions;
+            this.regionStarts = regionStarts;
+            this.lineStarts = lineStarts;
+            this.lineCount = lineCount;
+            this.hash = hash;
+        }
+
+        /**
+         * Maps a file and indexes its lines in one pass. Files over 2 GiB are mapped in several
+         * regions, each starting at a line, so every line lies within one region.
+         */
+        static Base map(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long fileSize = channel.size();
+                List<MappedByteBuffer> regions = new ArrayList<>();
+                List<Long> regionStarts = new ArrayList<>();
+                long[] lineStarts = new long[1024];
+                int lineCount = 0;
+                CRC32C crc = new CRC32C();
+
+                long regionStart = 0;
+                long lineStart = 0;
+                while (regionStart < fileSize) {
+                    long length = Math.min(MAX_REGION, fileSize - regionStart);
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, length);
+                    regions.add(region);
+                    regionStarts.add(regionStart);
+                    for (int i = 0; i < length; i++) {
+                        if (region.get(i) == '\n') {
+                            if (lineCount + 2 > lineStarts.length) {
+                                lineStarts = Arrays.copyOf(lineStarts, lineStarts.length * 2);
+                            }
+                            lineStarts[lineCount++] = lineStart;
+                            lineStart = regionStart + i + 1;
+                        }
+                    }
+                    // The line running past the end of this region starts the next one
+                    long next = regionStart + length == fileSize ? fileSize : lineStart;
+                    if (next == regionStart) {
+                        throw new IOException("Line longer than " + MAX_REGION + " bytes in " + path);
+                    }
+                    crc.update(region.slice(0, (int) (next - regionStart)));
+                    regionStart = next;
+                }
+                if (lineCount + 2 > lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, lineCount + 2);
+                }
+                if (lineStart < fileSize) {
+                    // The last line has no line break; pretend it has one past the end of the file
+                    lineStarts[lineCount++] = lineStart;
+                    lineStarts[lineCount] = fileSize + 1;
+                } else {
+                    lineStarts[lineCount] = fileSize;
+                }
+                return new Base(regions.toArray(new MappedByteBuffer[0]),
+                        regionStarts.stream().mapToLong(Long::longValue).toArray(),
+                        Arrays.copyOf(lineStarts, lineCount + 1), lineCount, OperationLog.hash(fileSize, crc.getValue()));
+            }
+        }
+
+        ByteBuffer line(int line) {
+            long start = lineStarts[line];
+            int region = Arrays.binarySearch(regionStarts, start);
+            if (region < 0) {
+                region = -region - 2;
+            }
+            int offset = (int) (start - regionStarts[region]);
+            int length = (int) (lineStarts[line + 1] - 1 - start);
+            if (length > 0 && regions[region].get(offset + length - 1) == '\r') {
+                length--;
+            }
+            return regions[region].slice(offset, length);
+        }
+    }
+
+    private static final class MappedSnapshot implements Snapshot {
+        private final Base base;
+        private final int[] entries;
+        private final String[] overlay;
+
+        MappedSnapshot(Base base, int[] entries, String[] overlay) {
+            this.base = base;
+            this.entries = entries;
+            this.overlay = overlay;
+        }
+
+        private ByteBuffer line(int line) {
+            int entry = entries[line];
+            return entry >= 0 ? base.line(entry) : ByteBuffer.wrap(overlay[~entry].getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int lineCount() {
+            return entries.length;
+        }
+
+        @Override
+        public long hash() {
+            CRC32C crc = new CRC32C();
+            long length = 0;
+            for (int i = 0; i < entries.length; i++) {
+                ByteBuffer line = line(i);
+                length += line.remaining() + SEPARATOR.length;
+                crc.update(line);
+                crc.update(SEPARATOR, 0, SEPARATOR.length);
+            }
+            return OperationLog.hash(length, crc.getValue());
+        }
+
+        @Override
+        public void writeTo(FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            for (int i = 0; i < entries.length; i++) {
+                ByteBuffer line = line(i);
+                if (line.remaining() + SEPARATOR.length > buffer.remaining()) {
+                    drain(channel, buffer);
+                }
+                if (line.remaining() + SEPARATOR.length > buffer.remaining()) {
+                    // Longer than the buffer: straight from the mapping
+                    while (line.hasRemaining()) {
+                        channel.write(line);
+                    }
+                } else {
+                    buffer.put(line);
+                }
+                buffer.put(SEPARATOR);
+            }
+            drain(channel, buffer);
+        }
+
+        private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package myEditorLineByLine;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counters and latency histograms of one process, readable over JMX as the MBean
+ * {@code myEditor:type=Metrics,name=<name>} and printed as a summary every few seconds.
+ * A counter {@code c} is the attribute {@code c}; a histogram {@code h} is the attributes
+ * {@code h.count}, {@code h.p50Millis}, {@code h.p99Millis}, {@code h.p999Millis} and {@code h.maxMillis}.
+ */
+public final class Metrics implements DynamicMBean {
+    private static final String[] HISTOGRAM_ATTRIBUTES = {"count", "p50Millis", "p99Millis", "p999Millis", "maxMillis"};
+
+    private final String name;
+    private final Map<String, AtomicLong> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    private Metrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Creates the metrics of this process and registers them with the platform MBean server.
+     */
+    public static Metrics register(String name) {
+        Metrics metrics = new Metrics(name);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("myEditor:type=Metrics,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            // Still counted and logged, only not visible over JMX
+            e.printStackTrace();
+        }
+        return metrics;
+    }
+
+    /**
+     * Wall-clock time in microseconds, to stamp messages that are timed in another process.
+     */
+    public static long nowMicros() {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+    }
+
+    public AtomicLong counter(String counter) {
+        return counters.computeIfAbsent(counter, key -> new AtomicLong());
+    }
+
+    public LatencyHistogram histogram(String histogram) {
+        return histograms.computeIfAbsent(histogram, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Publishes a histogram kept elsewhere under this name.
+     */
+    public void histogram(String histogram, LatencyHistogram values) {
+        histograms.put(histogram, values);
+    }
+
+    // e.g. -Deditor.metrics.reportSeconds=10, 0 turns the summary off
+    public void logFromSystemProperties() {
+        logEvery(Long.getLong("editor.metrics.reportSeconds", 60));
+    }
+
+    /**
+     * Prints every counter with its rate since the last summary, and every histogram, each
+     * {@code seconds} seconds.
+     */
+    public void logEvery(long seconds) {
+        if (seconds <= 0) {
+            return;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, Long> previous = new HashMap<>();
+        reporter.scheduleAtFixedRate(() -> System.out.println(summary(previous, seconds)), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    private String summary(Map<String, Long> previous, long seconds) {
+        StringBuilder summary = new StringBuilder(" [m] ").append(name).append(':');
+        counters.forEach((counter, value) -> {
+            long now = value.get();
+            long rate = (now - previous.getOrDefault(counter, 0L)) / seconds;
+            previous.put(counter, now);
+            summary.append("\n     ").append(counter).append(' ').append(now).append(" (").append(rate).append("/s)");
+        });
+        histograms.forEach((histogram, values) -> {
+            if (values.count() > 0) {
+                summary.append("\n     ").append(histogram).append(' ').append(values);
+            }
+        });
+        return summary.toString();
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        AtomicLong counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        int dot = attribute.lastIndexOf('.');
+        LatencyHistogram values = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+        if (values != null) {
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return values.count();
+                case "p50Millis":
+                    return values.percentile(0.5) / 1e6;
+                case "p99Millis":
+                    return values.percentile(0.99) / 1e6;
+                case "p999Millis":
+                    return values.percentile(0.999) / 1e6;
+                case "maxMillis":
+                    return values.max() / 1e6;
+                default:
+                    break;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out, as the interface asks
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        // Built on every call, since metrics are created as the process first uses them
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String counter : counters.keySet()) {
+            attributes.add(new MBeanAttributeInfo(counter, "long", "Total so far", true, false, false));
+        }
+        for (String histogram : histograms.keySet()) {
+            for (String attribute : HISTOGRAM_ATTRIBUTES) {
+                attributes.add(new MBeanAttributeInfo(histogram + "." + attribute,
+                        attribute.equals("count") ? "long" : "double", histogram + " " + attribute, true, false, false));
+            }
+        }
+        return new MBeanInfo(Metrics.class.getName(), "Editor metrics: " + name,
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
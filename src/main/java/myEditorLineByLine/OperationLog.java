@@ -0,0 +1,332 @@
+package myEditorLineByLine;
+
+import myEditorCommon.DocumentRouting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of the edits applied to one document since its last snapshot (the document
+ * file itself). The log is a sequence of numbered segments; each segment starts with the
+ * {@link #hash} of the snapshot it builds on, followed by records of
+ * {@code [int length][int crc32c][edits]}. Taking a snapshot starts a new segment, and the
+ * older ones are deleted once the snapshot is safely on disk.
+ * <p>
+ * On recovery the newest segment whose base matches the document file is the first one
+ * replayed, so a crash between writing a snapshot and deleting the segments it covers does
+ * not apply any edit twice. A torn record at the end of the log is cut off.
+ * <p>
+ * Appends only reach the page cache; {@link #sync} makes them durable and is called for all
+ * logs at once by the store's syncer thread, so one fsync covers every edit since the last.
+ * Whatever must wait for that, such as acknowledging the edits' deliveries, waits with
+ * {@link #whenSynced}.
+ */
+class OperationLog implements AutoCloseable {
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String DOCUMENT_FILE = "document";
+    private static final int HEADER_BYTES = Long.BYTES;
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+
+    private final Path directory;
+    private FileChannel segment;
+    private long generation;
+    private boolean unsynced = false;
+    // Records appended and forced so far, and the tasks waiting for the forced count to reach a mark
+    private long appended;
+    private long synced;
+    private final Queue<Long> waitingFor = new ArrayDeque<>();
+    private final Queue<Runnable> waitingTasks = new ArrayDeque<>();
+
+    private OperationLog(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Identifies a snapshot: the CRC32C of its bytes next to their length.
+     */
+    static long hash(byte[] content) {
+        CRC32C crc = new CRC32C();
+        crc.update(content, 0, content.length);
+        return hash(content.length, crc.getValue());
+    }
+
+    /**
+     * The hash of {@code length} bytes whose CRC32C is {@code crc}, for content that is not in one array.
+     */
+    static long hash(long length, long crc) {
+        return (length << 32) | crc;
+    }
+
+    /**
+     * The log directory of a document under {@code root}. Paths can be long or contain
+     * separators, so the directory is named after the document's routing key.
+     */
+    static Path directoryFor(Path root, String documentPath) {
+        return root.resolve(DocumentRouting.routingKey(documentPath));
+    }
+
+    /**
+     * Returns the document path recorded in a log directory, or null if there is none.
+     */
+    static String documentPathIn(Path directory) throws IOException {
+        Path file = directory.resolve(DOCUMENT_FILE);
+        return Files.exists(file) ? Files.readString(file, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Opens the log of a document whose snapshot currently has the {@link #hash} {@code snapshotHash},
+     * and adds the edits that were logged after that snapshot to {@code recovered}, in order.
+     */
+    static OperationLog open(Path directory, String documentPath, long snapshotHash, List<List<LineEdit>> recovered) throws IOException {
+        Files.createDirectories(directory);
+        Files.writeString(directory.resolve(DOCUMENT_FILE), documentPath, StandardCharsets.UTF_8);
+
+        OperationLog log = new OperationLog(directory);
+        TreeMap<Long, Path> segments = log.segments();
+        // A segment torn while it was created has no base and cannot hold any synced edit
+        for (Long generation : new ArrayList<>(segments.keySet())) {
+            if (readBaseHash(segments.get(generation)) == -1) {
+                Files.delete(segments.remove(generation));
+            }
+        }
+
+        // Replay from the newest segment built on this snapshot
+        Long first = null;
+        for (Long generation : segments.descendingKeySet()) {
+            if (readBaseHash(segments.get(generation)) == snapshotHash) {
+                first = generation;
+                break;
+            }
+        }
+        if (first == null && !segments.isEmpty()) {
+            System.err.println("Document changed outside the server, dropping its log: " + documentPath);
+        }
+
+        long last = segments.isEmpty() ? 0 : segments.lastKey();
+        if (first != null) {
+            for (Path path : segments.tailMap(first, true).values()) {
+                readRecords(path, recovered);
+            }
+            // Keep appending to the last segment; its tail was truncated to the last good record
+            log.generation = last;
+            log.segment = FileChannel.open(segments.get(last), StandardOpenOption.WRITE);
+            log.segment.position(log.segment.size());
+            log.deleteThrough(first - 1);
+        } else {
+            log.generation = last;
+            log.startSegment(snapshotHash);
+            log.deleteThrough(last);
+        }
+        return log;
+    }
+
+    private TreeMap<Long, Path> segments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(path -> {
+                String name = path.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), path);
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            });
+        }
+        return segments;
+    }
+
+    private static long readBaseHash(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading
+            }
+            return header.hasRemaining() ? -1 : header.getLong(0);
+        }
+    }
+
+    private static void readRecords(Path path, List<List<LineEdit>> recovered) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(HEADER_BYTES);
+        while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                truncate(path, start);
+                return;
+            }
+            CRC32C check = new CRC32C();
+            check.update(bytes, buffer.position(), length);
+            if ((int) check.getValue() != crc) {
+                truncate(path, start);
+                return;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            try {
+                recovered.add(BinaryLineCodec.decodeEdits(payload));
+            } catch (IllegalArgumentException e) {
+                truncate(path, start);
+                return;
+            }
+        }
+        if (buffer.hasRemaining()) {
+            truncate(path, buffer.position());
+        }
+    }
+
+    private static void truncate(Path path, long size) throws IOException {
+        System.err.println("Cutting torn record off operation log: " + path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private void startSegment(long baseHash) throws IOException {
+        generation++;
+        segment = FileChannel.open(directory.resolve(String.format("%019d", generation) + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putLong(0, baseHash);
+        while (header.hasRemaining()) {
+            segment.write(header);
+        }
+        unsynced = true;
+    }
+
+    /**
+     * Appends one record. It is durable after the next {@link #sync}.
+     */
+    synchronized void append(List<LineEdit> edits) throws IOException {
+        byte[] payload = BinaryLineCodec.encodeEdits(edits);
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .flip();
+        while (record.hasRemaining()) {
+            segment.write(record);
+        }
+        appended++;
+        unsynced = true;
+    }
+
+    /**
+     * Runs {@code task} once every record appended so far is on disk: right away if it is, or
+     * else on the thread of the {@link #sync} that forces the last of them.
+     */
+    void whenSynced(Runnable task) {
+        synchronized (this) {
+            if (synced < appended) {
+                waitingFor.add(appended);
+                waitingTasks.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Forces everything appended so far to disk. Appends to this log carry on meanwhile.
+     * Returns false if there was nothing to force.
+     */
+    boolean sync() throws IOException {
+        FileChannel channel;
+        long mark;
+        synchronized (this) {
+            if (!unsynced) {
+                return false;
+            }
+            channel = segment;
+            mark = appended;
+            unsynced = false;
+        }
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // Rolled over meanwhile, which forced the segment before closing it
+        } catch (IOException e) {
+            synchronized (this) {
+                // The next sync tries again, and the waiting tasks wait for it
+                unsynced = true;
+            }
+            throw e;
+        }
+        runSynced(mark);
+        return true;
+    }
+
+    private void runSynced(long mark) {
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (this) {
+            synced = Math.max(synced, mark);
+            while (!waitingFor.isEmpty() && waitingFor.peek() <= synced) {
+                waitingFor.poll();
+                ready.add(waitingTasks.poll());
+            }
+        }
+        ready.forEach(Runnable::run);
+    }
+
+    /**
+     * Starts a new segment for the edits made after a snapshot with the given hash, and
+     * returns the generation of the last segment that snapshot covers.
+     */
+    synchronized long rollOver(long snapshotHash) throws IOException {
+        segment.force(false);
+        segment.close();
+        long covered = generation;
+        startSegment(snapshotHash);
+        return covered;
+    }
+
+    /**
+     * Deletes the segments up to and including {@code lastGeneration}, once a snapshot covers them.
+     */
+    void deleteThrough(long lastGeneration) throws IOException {
+        for (Path path : segments().headMap(lastGeneration, true).values()) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Forces and closes the log, and runs the tasks waiting for that. If the force fails they
+     * never run.
+     */
+    @Override
+    public void close() throws IOException {
+        long mark;
+        synchronized (this) {
+            if (!segment.isOpen()) {
+                return;
+            }
+            segment.force(false);
+            segment.close();
+            mark = appended;
+        }
+        runSynced(mark);
+    }
+
+    @Override
+    public String toString() {
+        return "OperationLog(" + directory + ", segment " + generation + ")";
+    }
+}
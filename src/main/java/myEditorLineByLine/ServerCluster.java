@@ -0,0 +1,363 @@
+package myEditorLineByLine;
+
+import myEditorCommon.DocumentRouting;
+import myEditorCommon.Transport;
+import myEditorCommon.TransportChannel;
+import myEditorCommon.TransportMessage;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits the documents among the server nodes that share a transport. Every document belongs to a
+ * partition with its own queue of edits (see {@link DocumentRouting#partitionOf}), and a
+ * {@link HashRing} over the live nodes names each partition's owner: the only node that consumes
+ * the queue and opens the partition's documents.
+ * <p>
+ * Nodes send heartbeats naming the partitions they hold to a fanout exchange; a node that misses
+ * them for {@code editor.cluster.timeoutMs} is taken for gone. A node takes a partition the ring
+ * gives it once no other live node holds it. It gives one up in three steps: it stops consuming
+ * the queue, waits until every edit it took is applied and acknowledged, and writes and closes
+ * the partition's documents. Only then does it stop naming the partition, so the next owner starts
+ * from the files, with the edits not applied yet still in the queue, in order.
+ * <p>
+ * A queue that must be consumed by one node at a time, like the one older clients send to, can
+ * be handed from node to node the same way: it counts as one more partition, without documents.
+ */
+public final class ServerCluster implements AutoCloseable {
+    public static final String EXCHANGE_NAME = "editor_cluster";
+    // Points per node on the ring; more spread the partitions more evenly
+    private static final int VIRTUAL_NODES = 100;
+
+    // e.g. -Deditor.cluster.node=editor-2 -Deditor.cluster.heartbeatMs=200 -Deditor.cluster.timeoutMs=1000
+    private static final long heartbeatMillis = Long.getLong("editor.cluster.heartbeatMs", 500);
+    private static final long timeoutMillis = Long.getLong("editor.cluster.timeoutMs", 3000);
+
+    private enum Holding { NONE, OWNED, RELEASING }
+
+    private final String nodeId;
+    private final DocumentStore store;
+    private final TransportChannel.MessageHandler handler;
+    private final String forwardedQueue;
+    private final TransportChannel.MessageHandler forwarder;
+    private final int prefetch;
+    private final TransportChannel heartbeatChannel;
+    private final TransportChannel partitionChannel;
+    // One more than there are partitions: the last stands for the forwarded queue
+    private final Holding[] holdings = new Holding[DocumentRouting.partitions() + 1];
+    // Deliveries of each partition handed to the handler and not acknowledged yet
+    private final AtomicInteger[] inFlight = new AtomicInteger[DocumentRouting.partitions() + 1];
+    private final Map<String, Member> members = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ticker;
+    private final ExecutorService handoffs;
+    private final long startedAt = System.nanoTime();
+    private Set<String> nodes = Set.of();
+    private HashRing ring;
+    private boolean closed;
+
+    private ServerCluster(String nodeId, Transport transport, DocumentStore store, int prefetch,
+                          TransportChannel.MessageHandler handler, String forwardedQueue,
+                          TransportChannel.MessageHandler forwarder) throws IOException {
+        this.nodeId = nodeId;
+        this.store = store;
+        this.prefetch = prefetch;
+        this.handler = handler;
+        this.forwardedQueue = forwardedQueue;
+        this.forwarder = forwarder;
+        this.heartbeatChannel = transport.createChannel();
+        this.partitionChannel = transport.createChannel();
+        for (int partition = 0; partition < holdings.length; partition++) {
+            holdings[partition] = Holding.NONE;
+            inFlight[partition] = new AtomicInteger();
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.handoffs = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-handoff-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Joins the nodes on {@code transport} as {@code nodeId}, which must be unique among them.
+     * The partitions this node comes to own are consumed with {@code prefetch} each, and their
+     * deliveries go to {@code handler}, which must acknowledge them once they are applied.
+     * If {@code forwardedQueue} is not null, one node at a time consumes it with {@code forwarder},
+     * which must also acknowledge what it handled, so its messages are handled in the order they came.
+     */
+    public static ServerCluster join(String nodeId, Transport transport, DocumentStore store, int prefetch,
+                                     TransportChannel.MessageHandler handler, String forwardedQueue,
+                                     TransportChannel.MessageHandler forwarder) throws IOException {
+        if (nodeId.isEmpty() || nodeId.contains(" ")) {
+            throw new IllegalArgumentException("Invalid node id: '" + nodeId + "'");
+        }
+        ServerCluster cluster = new ServerCluster(nodeId, transport, store, prefetch, handler, forwardedQueue, forwarder);
+        TransportChannel channel = cluster.heartbeatChannel;
+        DocumentRouting.declareEditQueues(channel);
+        channel.declareExchange(EXCHANGE_NAME, TransportChannel.ExchangeType.FANOUT);
+        String heartbeats = channel.declareTemporaryQueue();
+        channel.bind(heartbeats, EXCHANGE_NAME, "");
+        channel.consume(heartbeats, delivery -> cluster.heard(new String(delivery.getBody(), StandardCharsets.UTF_8)));
+        cluster.ticker.scheduleWithFixedDelay(cluster::tick, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+        return cluster;
+    }
+
+    /**
+     * The node id from {@code -Deditor.cluster.node}, or one made of the host name and process id.
+     */
+    public static String nodeIdFromSystemProperties() {
+        String nodeId = System.getProperty("editor.cluster.node");
+        if (nodeId != null) {
+            return nodeId;
+        }
+        try {
+            return InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid();
+        } catch (IOException e) {
+            return ManagementFactory.getRuntimeMXBean().getName().replace('@', '-');
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * True if this node consumes the forwarded queue.
+     */
+    public synchronized boolean forwarding() {
+        return holdings[DocumentRouting.partitions()] == Holding.OWNED;
+    }
+
+    /**
+     * Number of partitions this node consumes.
+     */
+    public synchronized int ownedPartitions() {
+        int owned = 0;
+        for (int partition = 0; partition < DocumentRouting.partitions(); partition++) {
+            if (holdings[partition] == Holding.OWNED) {
+                owned++;
+            }
+        }
+        return owned;
+    }
+
+    private void heard(String heartbeat) {
+        // "alive <node> <partition>,<partition>,..." or "leave <node>"
+        String[] parts = heartbeat.split(" ", 3);
+        if (parts.length < 2 || parts[1].equals(nodeId)) {
+            return;
+        }
+        if ("leave".equals(parts[0])) {
+            members.remove(parts[1]);
+            return;
+        }
+        BitSet held = new BitSet();
+        if (parts.length == 3 && !parts[2].isEmpty()) {
+            for (String partition : parts[2].split(",")) {
+                held.set(Integer.parseInt(partition));
+            }
+        }
+        members.put(parts[1], new Member(System.nanoTime(), held));
+    }
+
+    private void tick() {
+        // An exception would stop the schedule, and with it the heartbeats
+        try {
+            rebalance();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void rebalance() throws IOException {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        members.values().removeIf(member -> now - member.heardAt > TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        publishHeartbeat();
+        // Every node heartbeats once per interval, so after two we have heard from each one that is up
+        if (now - startedAt < TimeUnit.MILLISECONDS.toNanos(2 * heartbeatMillis)) {
+            return;
+        }
+
+        Set<String> live = new TreeSet<>(members.keySet());
+        live.add(nodeId);
+        if (!live.equals(nodes)) {
+            nodes = live;
+            ring = new HashRing(live, VIRTUAL_NODES);
+            System.out.println(" [*] Cluster nodes: " + live);
+        }
+        BitSet taking = new BitSet();
+        for (int partition = 0; partition < holdings.length; partition++) {
+            if (partition == DocumentRouting.partitions() && forwardedQueue == null) {
+                continue;
+            }
+            boolean ours = ring.ownerOf(partition).equals(nodeId);
+            if (ours && holdings[partition] == Holding.NONE && !heldByOthers(partition)) {
+                taking.set(partition);
+            } else if (!ours && holdings[partition] == Holding.OWNED) {
+                holdings[partition] = Holding.RELEASING;
+                int released = partition;
+                handoffs.execute(() -> release(released));
+            }
+        }
+        if (!taking.isEmpty()) {
+            take(taking);
+        }
+    }
+
+    private boolean heldByOthers(int partition) {
+        for (Member member : members.values()) {
+            if (member.held.get(partition)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replays the logs the last owners left of the partitions' documents, then consumes their queues.
+     */
+    private void take(BitSet taking) throws IOException {
+        int recovered = store.recover(filePath -> taking.get(DocumentRouting.partitionOf(filePath)));
+        for (int partition = taking.nextSetBit(0); partition >= 0; partition = taking.nextSetBit(partition + 1)) {
+            int taken = partition;
+            try {
+                partitionChannel.consume(queueOf(partition), prefetch, delivery -> deliver(taken, delivery));
+                holdings[partition] = Holding.OWNED;
+            } catch (IOException e) {
+                // Nothing else holds the queue: consumers are not exclusive, the heartbeats keep other
+                // nodes off it. So the channel failed; give back what was recovered and retry on the next heartbeat
+                System.err.println("Cannot take partition " + partition + ": " + e.getMessage());
+                store.release(filePath -> DocumentRouting.partitionOf(filePath) == taken);
+            }
+        }
+        if (taking.get(DocumentRouting.partitions())) {
+            taking.clear(DocumentRouting.partitions());
+            System.out.println(" [*] Node " + nodeId + (forwarding() ? " forwards " : " cannot forward ") + forwardedQueue);
+        }
+        if (!taking.isEmpty()) {
+            System.out.println(" [*] Node " + nodeId + " took partitions " + taking + ", owns " + ownedPartitions()
+                    + " (" + recovered + " documents recovered)");
+        }
+        publishHeartbeat();
+    }
+
+    private void deliver(int partition, TransportMessage delivery) {
+        inFlight[partition].incrementAndGet();
+        (partition == DocumentRouting.partitions() ? forwarder : handler).handle(delivery.withAcknowledgement(() -> {
+            delivery.ack();
+            inFlight[partition].decrementAndGet();
+        }, () -> {
+            delivery.reject();
+            inFlight[partition].decrementAndGet();
+        }));
+    }
+
+    /**
+     * Stops consuming a partition, and closes its documents once its edits are all applied.
+     * Runs on the handoff thread, so heartbeats go on meanwhile.
+     */
+    private void release(int partition) {
+        try {
+            // Not under the monitor: a cancel can wait on the broker for long, and the heartbeats must go on
+            partitionChannel.cancel(queueOf(partition));
+            while (inFlight[partition].get() > 0) {
+                TimeUnit.MILLISECONDS.sleep(5);
+            }
+            int documents = store.release(filePath -> DocumentRouting.partitionOf(filePath) == partition);
+            synchronized (this) {
+                holdings[partition] = Holding.NONE;
+                if (!closed) {
+                    publishHeartbeat();
+                }
+            }
+            if (documents > 0) {
+                System.out.println(" [*] Node " + nodeId + " handed off partition " + partition + " (" + documents + " documents)");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                // Still ours; the next heartbeat tries again
+                holdings[partition] = Holding.OWNED;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String queueOf(int partition) {
+        return partition == DocumentRouting.partitions() ? forwardedQueue : DocumentRouting.partitionQueue(partition);
+    }
+
+    private void publishHeartbeat() throws IOException {
+        StringBuilder heartbeat = new StringBuilder("alive ").append(nodeId).append(' ');
+        for (int partition = 0; partition < holdings.length; partition++) {
+            if (holdings[partition] != Holding.NONE) {
+                heartbeat.append(partition).append(',');
+            }
+        }
+        heartbeatChannel.publish(EXCHANGE_NAME, "", new TransportMessage(heartbeat.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Leaves the cluster: hands off every partition as if the other nodes had taken it over,
+     * and tells them so they need not wait for the timeout.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (int partition = 0; partition < holdings.length; partition++) {
+                if (holdings[partition] == Holding.OWNED) {
+                    holdings[partition] = Holding.RELEASING;
+                    int released = partition;
+                    handoffs.execute(() -> release(released));
+                }
+            }
+        }
+        ticker.shutdownNow();
+        handoffs.shutdown();
+        try {
+            handoffs.awaitTermination(1, TimeUnit.MINUTES);
+            heartbeatChannel.publish(EXCHANGE_NAME, "", new TransportMessage(("leave " + nodeId).getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The last heartbeat of another node: when we heard it, and the partitions it held.
+     */
+    private static final class Member {
+        private final long heardAt;
+        private final BitSet held;
+
+        Member(long heardAt, BitSet held) {
+            this.heardAt = heardAt;
+            this.held = held;
+        }
+    }
+}
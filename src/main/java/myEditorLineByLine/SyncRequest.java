@@ -0,0 +1,77 @@
+package myEditorLineByLine;
+
+/**
+ * A client asking to catch up on a document. It names the epoch and version it already has;
+ * an epoch of {@link #UNKNOWN_EPOCH} means it has nothing and wants a snapshot.
+ * <p>
+ * Clients that only hold part of a large document also name the lines they want, and get a
+ * page of those lines instead of a snapshot of the whole document.
+ * <p>
+ * Clients that merge edits with a {@link LineSequence} say so, and their snapshots come with it.
+ */
+public final class SyncRequest {
+    public static final long UNKNOWN_EPOCH = 0;
+    // Line count that asks for the whole document
+    public static final int ALL_LINES = 0;
+
+    private final String fileId;
+    private final long epoch;
+    private final long version;
+    private final int firstLine;
+    private final int lineCount;
+    private final boolean crdt;
+
+    public SyncRequest(String fileId, long epoch, long version) {
+        this(fileId, epoch, version, 0, ALL_LINES);
+    }
+
+    public SyncRequest(String fileId, long epoch, long version, boolean crdt) {
+        this(fileId, epoch, version, 0, ALL_LINES, crdt);
+    }
+
+    public SyncRequest(String fileId, long epoch, long version, int firstLine, int lineCount) {
+        this(fileId, epoch, version, firstLine, lineCount, false);
+    }
+
+    public SyncRequest(String fileId, long epoch, long version, int firstLine, int lineCount, boolean crdt) {
+        if (firstLine < 0 || lineCount < 0) {
+            throw new IllegalArgumentException("Invalid line range: " + firstLine + " + " + lineCount);
+        }
+        this.fileId = fileId;
+        this.epoch = epoch;
+        this.version = version;
+        this.firstLine = firstLine;
+        this.lineCount = lineCount;
+        this.crdt = crdt;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getFirstLine() {
+        return firstLine;
+    }
+
+    /**
+     * Most lines of a page to send, or {@link #ALL_LINES}.
+     */
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * True if a snapshot should carry the document's {@link LineSequence}.
+     */
+    public boolean isCrdt() {
+        return crdt;
+    }
+}
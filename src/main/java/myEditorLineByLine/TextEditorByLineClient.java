@@ -1,57 +1,104 @@
 package myEditorLineByLine;
 
-import com.rabbitmq.client.BuiltinExchangeType;
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
+import myEditorCommon.DocumentRouting;
+import myEditorCommon.FlushPolicy;
+import myEditorCommon.FlushScheduler;
+import myEditorCommon.Transport;
+import myEditorCommon.TransportChannel;
+import myEditorCommon.TransportMessage;
 
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
+import javax.swing.text.Element;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @SuppressWarnings("ALL")
 public class TextEditorByLineClient extends JFrame {
-    private static final String QUEUE_NAME = "text_changes_queue";
-    private static final String EXCHANGE_NAME = "text_updates";
     private static final String CLIENTS_EXCHANGE = "clients_updates";
+    // Files at least this big are paged in around the view instead of loaded whole
+    private static final long pagedBytes = Long.getLong("editor.client.pagedBytes", 64L * 1024 * 1024);
+    private static final int pageLines = Integer.getInteger("editor.client.pageLines", 2000);
+    private static final int windowPages = Math.max(2, Integer.getInteger("editor.client.windowPages", 3));
+    // Remote updates are applied at most once per frame
+    private static final int frameMillis = Integer.getInteger("editor.client.frameMs", 16);
+    // Most updates held in memory before they are applied; the broker keeps the rest
+    private static final int prefetch = Integer.getInteger("editor.client.prefetch", 256);
+    // Most updates the broker keeps for us. Beyond that the oldest are dropped, and the gap makes us catch up
+    private static final int maxQueuedUpdates = Integer.getInteger("editor.client.maxQueuedUpdates", 1000);
+    // Whole documents merge concurrent edits as ops on line ids, unless -Deditor.client.crdt=false
+    private static final boolean crdt = Boolean.parseBoolean(System.getProperty("editor.client.crdt", "true"));
+    // How often a whole document is checked against the server's, see HashProbe; 0 never checks
+    private static final long verifySeconds = Long.getLong("editor.client.verifySeconds", 30);
+
+    private enum PageFetch { RELOAD, BEFORE, AFTER }
+
     private JTextArea textArea;
+    private JScrollPane scrollPane;
     private JLabel clientCountLabel;
     private JLabel fileNameLabel;
-    private Channel channel;
-    private Timer timer;
-    private Map<Integer, String> lineContentMap = new HashMap<>();
+    private TransportChannel channel;
+    private volatile String updateQueueName;
+    // One scheduler thread for the whole client decides when typing is sent;
+    // the window and the dirty lines belong to the EDT, so the send itself runs there
+    private final FlushScheduler flushScheduler =
+            new FlushScheduler(FlushPolicy.fromSystemProperties(), () -> SwingUtilities.invokeLater(this::sendChanges));
+    private final DirtyLineTracker dirtyLines = new DirtyLineTracker();
     private String filePath;
-    private String fileId;
+    // Set on the EDT while it changes the text area itself; the changes are not ours to send
     private boolean ignoreChanges = false;
+    private boolean applyingRemoteEdits = false;
+    private final String clientId = UUID.randomUUID().toString();
+    private final Metrics metrics = Metrics.register("line-client-" + clientId.substring(0, 8));
+    // Where the text area stands in the server's history of the open document
+    private DocumentSync sync;
+    // The lines of a paged document the text area holds, null when it holds the whole document
+    private LineWindow window;
+    private PageFetch pageFetch;
+    private int pageFirstLine;
+    // Updates from the server, waiting for the next frame
+    private final Queue<Received> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private javax.swing.Timer frameTimer;
+    private final List<LineEdit> pendingEdits = new ArrayList<>();
+    private ViewAnchor anchor;
+    // Inserts and deletes made since the last send, and the version the first of them was made at
+    private final List<CrdtOp> pendingOps = new ArrayList<>();
+    private long pendingOpsBase;
 
     public TextEditorByLineClient() {
         try {
-            // Set up RabbitMQ connection and channel
-            ConnectionFactory factory = new ConnectionFactory();
-            factory.setHost("localhost");
-            Connection connection = factory.newConnection();
-            channel = connection.createChannel();
-            channel.queueDeclare(QUEUE_NAME, false, false, false, null);
-            channel.exchangeDeclare(EXCHANGE_NAME, BuiltinExchangeType.FANOUT);
-            String updateQueueName = channel.queueDeclare().getQueue();
-            channel.queueBind(updateQueueName, EXCHANGE_NAME, "");
+            // Connect to the broker, or to the in-process transport, see editor.transport
+            Transport transport = Transport.fromSystemProperties();
+            channel = transport.createChannel();
+            DocumentRouting.declareEditQueues(channel);
+            DocumentRouting.declareExchange(channel);
+            // Bound to the open document's routing key once a file is chosen
+            updateQueueName = channel.declareTemporaryQueue(maxQueuedUpdates);
+            sync = new DocumentSync(clientId, channel, () -> updateQueueName, crdt, new TextAreaCopy(), metrics::counter, System.out::println);
 
             // Create the text editor GUI
             setTitle("Text Editor Client");
             textArea = new JTextArea();
-            JScrollPane scrollPane = new JScrollPane(textArea);
+            scrollPane = new JScrollPane(textArea);
+            scrollPane.getVerticalScrollBar().getModel().addChangeListener(e -> fetchPageIfNeeded());
 
             clientCountLabel = new JLabel("Connected clients: 0");
             fileNameLabel = new JLabel("No file opened");
@@ -77,50 +124,64 @@ public class TextEditorByLineClient extends JFrame {
             SwingUtilities.invokeLater(this::openFile);
 
             textArea.getDocument().addDocumentListener(getDocumentListener());
-
-            // Listen for updates from the server
-            channel.basicConsume(updateQueueName, true, (consumerTag, delivery) -> {
-                String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                String[] parts = message.split("::", 2);
-                if (parts.length == 2 && parts[0].equals(fileId)) {
-                    String[] lines = parts[1].split(";");
-//                    Map<Integer, String> receivedLineContentMap = new HashMap<>();
-
-                    for (String line : lines) {
-                        if (!line.isEmpty()) {
-                            String[] lineParts = line.split(":", 2);
-                            if (lineParts.length == 2) {
-                                int lineNumber = Integer.parseInt(lineParts[0]);
-                                String content = lineParts[1];
-                                try {
-                                    Document doc = textArea.getDocument();
-                                    int lineStart = textArea.getLineStartOffset(lineNumber);
-
-                                    int endCheck = textArea.getLineEndOffset(lineNumber);
-                                    int lineEnd = endCheck-1 > 0 && endCheck - lineStart > 0 ? endCheck-1 : endCheck;
-                                    ignoreChanges = true;
-
-                                    doc.remove(lineStart, lineEnd - lineStart);
-                                    doc.insertString(lineStart, lineParts[1], null);
-                                } catch (BadLocationException e) {
-                                    throw new RuntimeException(e);
-                                }
-                                finally{
-                                    ignoreChanges = false;
-                                }
+            frameTimer = new javax.swing.Timer(frameMillis, e -> applyIncoming());
+            frameTimer.setRepeats(false);
+            if (verifySeconds > 0) {
+                new javax.swing.Timer((int) TimeUnit.SECONDS.toMillis(verifySeconds), e -> sync.verify()).start();
+            }
+            metrics.logFromSystemProperties();
+
+            // Listen for updates from the server to the open document
+            // Each is acknowledged once it is in the text area, so a slow EDT holds back the broker, not our heap
+            channel.consume(updateQueueName, prefetch, delivery -> {
+                metrics.counter("messagesIn").incrementAndGet();
+                metrics.counter("bytesIn").addAndGet(delivery.getBody().length);
+                if (WireFormat.PROBE_CONTENT_TYPE.equals(delivery.getContentType())) {
+                    HashProbe probe = WireFormat.decodeProbe(delivery.getBody());
+                    SwingUtilities.invokeLater(() -> {
+                        try {
+                            if (probe != null) {
+                                sync.answer(probe);
                             }
+                        } finally {
+                            delivery.ack();
                         }
-                    }
+                    });
+                    return;
                 }
-            }, consumerTag -> { });
+                // Updates are routed as batch frames; the text copies go to the old fanout exchange
+                boolean repair = WireFormat.REPAIR_CONTENT_TYPE.equals(delivery.getContentType());
+                if (!repair && !WireFormat.BATCH_CONTENT_TYPE.equals(delivery.getContentType())) {
+                    delivery.ack();
+                    return;
+                }
+                DocumentUpdate update = WireFormat.decodeUpdate(delivery.getBody());
+                if (update == null) {
+                    delivery.ack();
+                    return;
+                }
+                // Swing only, so updates are applied on the EDT, all those of one frame together
+                incoming.add(new Received(update, delivery, repair));
+                if (drainScheduled.compareAndSet(false, true)) {
+                    SwingUtilities.invokeLater(frameTimer::restart);
+                }
+            });
+
+            // A recovered connection redeclares our queue under a new name and may have missed updates
+            transport.addQueueRenameListener((oldName, newName) -> {
+                if (oldName.equals(updateQueueName)) {
+                    updateQueueName = newName;
+                }
+            });
+            transport.addRecoveryListener(() -> SwingUtilities.invokeLater(() -> sync.requestSync()));
 
             // Listen for client count updates
-            String clientsUpdateQueueName = channel.queueDeclare().getQueue();
-            channel.queueBind(clientsUpdateQueueName, CLIENTS_EXCHANGE, "");
-            channel.basicConsume(clientsUpdateQueueName, true, (consumerTag, delivery) -> {
+            String clientsUpdateQueueName = channel.declareTemporaryQueue();
+            channel.bind(clientsUpdateQueueName, CLIENTS_EXCHANGE, "");
+            channel.consume(clientsUpdateQueueName, delivery -> {
                 String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
                 SwingUtilities.invokeLater(() -> clientCountLabel.setText("Connected clients: " + message));
-            }, consumerTag -> { });
+            });
 
             // Register with the server
             registerClient();
@@ -148,9 +209,12 @@ public class TextEditorByLineClient extends JFrame {
         int result = fileChooser.showOpenDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
             filePath = fileChooser.getSelectedFile().getAbsolutePath();
-            fileId = filePath;
+            subscribeTo(filePath);
             updateFileNameLabel(filePath);
-            readFileContent();
+            window = new File(filePath).length() >= pagedBytes ? new LineWindow() : null;
+            pageFetch = null;
+            // The server's copy may be ahead of the file on disk, so start from its snapshot
+            sync.requestSync();
         }
         else {
             // If no file is selected, just close the application
@@ -160,121 +224,411 @@ public class TextEditorByLineClient extends JFrame {
     }
 
 
-    private void readFileContent() {
-        if (filePath == null || filePath.isEmpty()) return;
+    private void subscribeTo(String newFileId) {
+        if (sync.getFileId() != null) {
+            // The last edits to the document we leave, before the dirty lines are of the next one
+            sendChanges();
+        }
+        dirtyLines.clear();
+        try {
+            sync.open(newFileId);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        pendingOps.clear();
+    }
+
+    /**
+     * Asks for a page of the open document, at whatever version the server has. Only one page is
+     * asked for at a time, and a reload replaces any scroll page still on its way.
+     */
+    private void requestPage(PageFetch fetch, int firstLine, int lineCount) {
+        pageFetch = fetch;
+        pageFirstLine = firstLine;
+        sync.requestPage(firstLine, lineCount, fetch == PageFetch.RELOAD);
+    }
+
+    /**
+     * Pages in the lines next to the window once the view comes within a screen of its edge.
+     */
+    private void fetchPageIfNeeded() {
+        if (window == null || pageFetch != null) return;
+
+        BoundedRangeModel model = scrollPane.getVerticalScrollBar().getModel();
+        int margin = model.getExtent();
+        if (model.getValue() + model.getExtent() >= model.getMaximum() - margin && !window.reachesEnd()) {
+            requestPage(PageFetch.AFTER, window.getEnd(), pageLines);
+        } else if (model.getValue() <= margin && window.getStart() > 0) {
+            int first = Math.max(0, window.getStart() - pageLines);
+            requestPage(PageFetch.BEFORE, first, window.getStart() - first);
+        }
+    }
+
+    /**
+     * Applies the updates that arrived since the last frame. Their edits go into the text area
+     * as one change, and the caret and view stay on the lines they were on.
+     */
+    private void applyIncoming() {
+        drainScheduled.set(false);
+        List<Received> updates = new ArrayList<>();
+        Received received;
+        while ((received = incoming.poll()) != null) {
+            updates.add(received);
+        }
+
+        long start = System.nanoTime();
+        anchor = ViewAnchor.capture(textArea, scrollPane.getViewport());
+        try {
+            for (Received next : updates) {
+                // Updates for the previous document can still be queued right after opening another one
+                if (!next.update.getFileId().equals(sync.getFileId())) {
+                    continue;
+                }
+                if (next.repair) {
+                    sync.repair(next.update);
+                } else if (window != null && next.update.isSnapshot()) {
+                    applyPage(next.update);
+                } else {
+                    sync.update(next.update);
+                }
+            }
+            applyPendingEdits();
+        } finally {
+            anchor.restore();
+            anchor = null;
+            for (Received next : updates) {
+                next.delivery.ack();
+            }
+        }
+        metrics.histogram("frameApplyTime").record(System.nanoTime() - start);
+
+        // From another client's send to its edits being on our screen
+        long now = Metrics.nowMicros();
+        for (Received next : updates) {
+            long sentAt = next.delivery.getSentAtMicros();
+            if (sentAt > 0 && next.hasOthersEdits(clientId)) {
+                metrics.histogram("renderLatency").record(TimeUnit.MICROSECONDS.toNanos(now - sentAt));
+            }
+        }
+        if (window != null) {
+            showWindow();
+        }
+    }
+
+    /**
+     * The lines of the text area, as the server counts them: the line after the last line break
+     * is only one if something is on it.
+     */
+    private List<String> textLines() {
+        List<String> lines = new ArrayList<>();
+        Document doc = textArea.getDocument();
+        doc.render(() -> {
+            Element root = doc.getDefaultRootElement();
+            for (int i = 0; i < root.getElementCount(); i++) {
+                lines.add(lineText(doc, root.getElement(i)));
+            }
+        });
+        if (!lines.isEmpty() && lines.get(lines.size() - 1).isEmpty()) {
+            lines.remove(lines.size() - 1);
+        }
+        return lines;
+    }
+
+    /**
+     * Puts the remote edits collected so far into the text area, as one document change.
+     */
+    private void applyPendingEdits() {
+        if (pendingEdits.isEmpty()) {
+            return;
+        }
+        applyingRemoteEdits = true;
+        try {
+            DocumentEdits.applyAll(textArea.getDocument(), pendingEdits, (index, removed, added) -> {
+                // The document sees one big change, so our dirty lines and the view follow edit by edit
+                dirtyLines.remoteLinesReplaced(index, removed, added);
+                anchor.linesReplaced(index, removed, added);
+            });
+        } catch (BadLocationException e) {
+            throw new RuntimeException(e);
+        } finally {
+            applyingRemoteEdits = false;
+            pendingEdits.clear();
+        }
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            int lineNumber = 0;
-            while ((line = reader.readLine()) != null) {
-                lineContentMap.put(lineNumber, line);
-                lineNumber++;
+    /**
+     * Puts a page into the text area, either in place of the window or next to it. Returns false
+     * if the page is not the one we are waiting for, or no longer fits the window.
+     */
+    private boolean applyPage(DocumentUpdate page) {
+        PageFetch fetch = pageFetch;
+        if (fetch == null || (fetch != PageFetch.RELOAD && page.getFirstLine() != pageFirstLine)) {
+            // Superseded by a reload
+            return false;
+        }
+        pageFetch = null;
+        List<String> lines = page.getLines();
+        if (fetch == PageFetch.RELOAD) {
+            if (sendBeforeLoading()) {
+                return false;
             }
-            // Set the initial content of the text area
-            StringBuilder content = new StringBuilder();
-            for (String value : lineContentMap.values()) {
-                content.append(value).append(System.lineSeparator());
-            };
+            setLines(lines);
+            window.reset(page.getFirstLine(), lines.size(), page.getTotalLines());
+            sync.loaded(page);
+            return true;
+        }
+
+        boolean fits = page.getEpoch() == sync.getEpoch() && page.getVersion() == sync.getVersion()
+                && (fetch == PageFetch.AFTER ? page.getFirstLine() == window.getEnd()
+                                             : page.getFirstLine() + lines.size() == window.getStart());
+        if (!fits) {
+            sync.requestSync();
+            return false;
+        }
+        // Lines that are about to leave the window must reach the server while we still know where they are
+        applyPendingEdits();
+        sendChanges();
+        Document doc = textArea.getDocument();
+        Element root = doc.getDefaultRootElement();
+        ignoreChanges = true;
+        try {
+            String text = DocumentEdits.join(lines) + "\n";
+            int excess = window.size() + lines.size() - windowPages * pageLines;
+            if (fetch == PageFetch.AFTER) {
+                doc.insertString(root.getElement(window.size()).getStartOffset(), text, null);
+                window.grownAtEnd(lines.size());
+                if (excess > 0) {
+                    doc.remove(0, root.getElement(excess).getStartOffset());
+                    window.shrunkAtStart(excess);
+                    anchor.linesReplaced(0, excess, 0);
+                }
+            } else {
+                doc.insertString(0, text, null);
+                window.grownAtStart(lines.size());
+                anchor.linesReplaced(0, 0, lines.size());
+                if (excess > 0) {
+                    int start = root.getElement(window.size() - excess).getStartOffset();
+                    doc.remove(start, root.getElement(window.size()).getStartOffset() - start);
+                    window.shrunkAtEnd(excess);
+                }
+            }
+        } catch (BadLocationException e) {
+            throw new RuntimeException(e);
+        } finally {
+            ignoreChanges = false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends what we typed since the last send, and asks for the document again, instead of
+     * loading a snapshot over it: the snapshot is older than those edits, the next one has them.
+     * While reloading our edits were turned down, and the snapshot replaces them.
+     */
+    private boolean sendBeforeLoading() {
+        if (sync.isReloading() || (dirtyLines.isEmpty() && pendingOps.isEmpty())) {
+            return false;
+        }
+        sendChanges();
+        sync.requestSync();
+        return true;
+    }
+
+    private void setLines(List<String> lines) {
+        // Whatever was still to be applied is part of the new text, and nothing is left to send
+        pendingEdits.clear();
+        pendingOps.clear();
+        StringBuilder content = new StringBuilder();
+        for (String line : lines) {
+            content.append(line).append('\n');
+        }
+        anchor.linesReplaced(0, textArea.getLineCount(), lines.size() + 1);
+        // Loading the document is not an edit, so keep it out of the dirty lines
+        ignoreChanges = true;
+        try {
             textArea.setText(content.toString());
-        } catch (IOException e) {
-            e.printStackTrace();
+        } finally {
+            ignoreChanges = false;
         }
+        dirtyLines.clear();
+    }
+
+    private void showWindow() {
+        fileNameLabel.setText("Editing file: " + new File(filePath).getName() + " (" + window + ")");
     }
 
     private DocumentListener getDocumentListener() {
         return new DocumentListener() {
             @Override
             public void insertUpdate(DocumentEvent e) {
+                if (applyingRemoteEdits) {
+                    return;
+                }
                 if (!ignoreChanges) {
-                    resetTimer();
+                    recordDirtyLines(e);
+                    flushScheduler.edited(e.getLength());
+                } else {
+                    recordRemoteLines(e);
                 }
             }
 
             @Override
             public void removeUpdate(DocumentEvent e) {
+                if (applyingRemoteEdits) {
+                    return;
+                }
                 if (!ignoreChanges) {
-                    resetTimer();
+                    recordDirtyLines(e);
+                    flushScheduler.edited(e.getLength());
+                } else {
+                    recordRemoteLines(e);
                 }
             }
 
             @Override
             public void changedUpdate(DocumentEvent e) {
-                if (!ignoreChanges) {
-                    resetTimer();
-                }
+                // Attribute changes only, the text is the same
             }
         };
     }
 
-    private void resetTimer() {
-        if (timer != null) {
-            timer.cancel();
-        }
-        timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                sendChanges();
+    private void recordDirtyLines(DocumentEvent e) {
+        Element root = e.getDocument().getDefaultRootElement();
+        DocumentEvent.ElementChange change = e.getChange(root);
+        LineSequence replica = sync.getReplica();
+        if (change != null && replica != null) {
+            // Lines get their ids right away, while the replica still lines up with the text area
+            int index = change.getIndex();
+            int removed = change.getChildrenRemoved().length;
+            int added = change.getChildrenAdded().length;
+            if (pendingOps.isEmpty()) {
+                pendingOpsBase = sync.getVersion();
             }
-        }, 2000); // Push updated every 2 seconds
+            if (added > removed) {
+                pendingOps.addAll(replica.localEdit(LineEdit.insert(index + removed, Collections.nCopies(added - removed, "")), LineSequence.PENDING));
+            } else if (removed > added) {
+                pendingOps.addAll(replica.localEdit(LineEdit.delete(index + added, removed - added), LineSequence.PENDING));
+            }
+            dirtyLines.linesMoved(index, removed, added);
+        } else if (change != null) {
+            // Line breaks were inserted or removed: the root element tells us exactly which lines were swapped
+            dirtyLines.linesReplaced(change.getIndex(), change.getChildrenRemoved().length, change.getChildrenAdded().length);
+        } else {
+            dirtyLines.lineChanged(root.getElementIndex(e.getOffset()));
+        }
+    }
+
+    private void recordRemoteLines(DocumentEvent e) {
+        DocumentEvent.ElementChange change = e.getChange(e.getDocument().getDefaultRootElement());
+        if (change != null) {
+            // Keep our unsent changes pointing at the same lines after a remote edit moved them
+            dirtyLines.remoteLinesReplaced(change.getIndex(), change.getChildrenRemoved().length, change.getChildrenAdded().length);
+        }
     }
 
     private void sendChanges() {
-        String text = textArea.getText();
-        text = text.replace("\r", "");
-        Map<Integer, String> currentLineContentMap = new HashMap<>();
-        String[] lines = text.split("\n");
-        int lineNumber = 0;
-        for (String line:lines) {
-            currentLineContentMap.put(lineNumber,line);
-            lineNumber++;
+        if (sync.getReplica() != null) {
+            sendOps();
+            return;
+        }
+        if (sync.isReloading() || dirtyLines.isEmpty()) {
+            // While reloading, the snapshot or page on its way replaces what we type
+            return;
         }
 
-        if (!currentLineContentMap.equals(lineContentMap)) {
-            try {
-                StringBuilder messageBuilder = new StringBuilder();
-                if(currentLineContentMap.size() >= lineContentMap.size()) {
-                    for (Map.Entry<Integer, String> entry : currentLineContentMap.entrySet()) {
-                        Integer key = entry.getKey();
-                        String currentValue = entry.getValue();
-                        String previousValue = lineContentMap.getOrDefault(key,"");;
-
-                        // Only append the entry if the value is different from the previous value
-                        if (!currentValue.equals(previousValue)) {
-                            messageBuilder.append(key).append(":").append(currentValue).append(";");
-                        }
-                    }
-                }
-                else
-                {
-                    for (Map.Entry<Integer, String> entry : lineContentMap.entrySet()) {
-                        Integer key = entry.getKey();
-                        String currentValue = currentLineContentMap.getOrDefault(key, "");
+        // Read only the dirty lines, under the document's read lock
+        List<LineEdit> edits = new ArrayList<>();
+        Document doc = textArea.getDocument();
+        doc.render(() -> {
+            Element root = doc.getDefaultRootElement();
+            edits.addAll(dirtyLines.drain(root.getElementCount(), line -> lineText(doc, root.getElement(line))));
+        });
+        if (window != null) {
+            // The text area starts at the first line of the window
+            int start = window.getStart();
+            edits.replaceAll(edit -> edit.shift(start));
+        }
 
-                        String previousValue = lineContentMap.getOrDefault(key,null);
+        if (!edits.isEmpty()) {
+            try {
+                sync.sendEdits(edits);
+                System.out.println("Changes sent to server, " + flushScheduler.latencySummary() + ": " + edits);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-                        // Only append the entry if the value is different from the previous value
-                        if (!currentValue.equals(previousValue)) {
-                            messageBuilder.append(key).append(":").append(currentValue).append(";");
-                        }
-                    }
+    /**
+     * Sends the inserts and deletes made since the last send, with the text the inserted lines
+     * have now, and a set for every other changed line.
+     */
+    private void sendOps() {
+        if (sync.isReloading() || (pendingOps.isEmpty() && dirtyLines.isEmpty())) {
+            // While reloading, the snapshot on its way replaces what we type
+            return;
+        }
+        LineSequence replica = sync.getReplica();
+        List<CrdtOp> ops = new ArrayList<>(pendingOps.size());
+        Set<LineId> inserted = new HashSet<>();
+        Document doc = textArea.getDocument();
+        doc.render(() -> {
+            Element root = doc.getDefaultRootElement();
+            for (CrdtOp op : pendingOps) {
+                if (op.getKind() != CrdtOp.Kind.INSERT) {
+                    ops.add(op);
+                    continue;
                 }
-                String message = fileId + "::" + messageBuilder.toString();
-                if (!messageBuilder.toString().isBlank()){
-                    channel.basicPublish("", QUEUE_NAME, null, message.getBytes(StandardCharsets.UTF_8));
-                    System.out.println("Changes sent to server: " + message);
+                List<String> texts = new ArrayList<>(op.getCount());
+                for (int k = 0; k < op.getCount(); k++) {
+                    LineId id = new LineId(op.getId().getSite(), op.getId().getClock() + k);
+                    int line = replica.indexOf(id);
+                    // A line deleted again before the send goes out blank, the delete follows
+                    texts.add(line < 0 ? "" : lineText(doc, root.getElement(line)));
+                    inserted.add(id);
                 }
-                lineContentMap = new HashMap<>(currentLineContentMap); // Update the map with the current content
-            } catch (IOException e) {
-                e.printStackTrace();
+                ops.add(op.withLines(texts));
             }
+            for (LineEdit edit : dirtyLines.drain(root.getElementCount(), line -> lineText(doc, root.getElement(line)))) {
+                for (int i = 0; i < edit.getLines().size(); i++) {
+                    int line = edit.getLine() + i;
+                    if (line < replica.size() && inserted.contains(replica.idAt(line))) {
+                        continue;
+                    }
+                    ops.addAll(replica.localEdit(LineEdit.set(line, edit.getLines().get(i)), LineSequence.PENDING));
+                }
+            }
+        });
+        long base = pendingOps.isEmpty() ? sync.getVersion() : pendingOpsBase;
+        pendingOps.clear();
+        if (ops.isEmpty()) {
+            return;
+        }
+        try {
+            sync.sendOps(base, ops);
+            System.out.println("Changes sent to server, " + flushScheduler.latencySummary() + ": " + ops);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String lineText(Document doc, Element line) {
+        try {
+            String text = doc.getText(line.getStartOffset(), line.getEndOffset() - line.getStartOffset());
+            // Strip the line break (and a Windows carriage return) that ends the element
+            int end = text.length();
+            if (end > 0 && text.charAt(end - 1) == '\n') end--;
+            if (end > 0 && text.charAt(end - 1) == '\r') end--;
+            return text.substring(0, end);
+        } catch (BadLocationException e) {
+            throw new RuntimeException(e);
         }
     }
 
 
     private void registerClient() {
         try {
-            channel.basicPublish(CLIENTS_EXCHANGE, "", null, "register".getBytes(StandardCharsets.UTF_8));
+            channel.publish(CLIENTS_EXCHANGE, "", new TransportMessage("register".getBytes(StandardCharsets.UTF_8)));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -282,12 +636,97 @@ public class TextEditorByLineClient extends JFrame {
 
     private void unregisterClient() {
         try {
-            channel.basicPublish(CLIENTS_EXCHANGE, "", null, "unregister".getBytes(StandardCharsets.UTF_8));
+            channel.publish(CLIENTS_EXCHANGE, "", new TransportMessage("unregister".getBytes(StandardCharsets.UTF_8)));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * The text area, as {@link DocumentSync} sees it. Remote edits collect in the pending edits
+     * and go into the text area as one change per frame. A paged window takes the edits inside
+     * it, in its own line numbers, and keeps count of the ones before it.
+     */
+    private final class TextAreaCopy implements DocumentSync.Copy {
+        @Override
+        public List<String> lines() {
+            applyPendingEdits();
+            return textLines();
+        }
+
+        @Override
+        public boolean isSettled() {
+            // Paged documents are not checked: the window is too little of the document to hash
+            return window == null && dirtyLines.isEmpty() && pendingOps.isEmpty();
+        }
+
+        @Override
+        public boolean load(DocumentUpdate snapshot) {
+            if (sendBeforeLoading()) {
+                return false;
+            }
+            setLines(snapshot.getLines());
+            return true;
+        }
+
+        @Override
+        public boolean apply(LineEdit edit, boolean own) {
+            if (window != null) {
+                // Our own edits are already in the text area, but still move the window
+                LineEdit local = edit.shift(-window.getStart());
+                LineWindow.Placement placement = window.follow(edit);
+                if (placement == LineWindow.Placement.ACROSS) {
+                    return false;
+                }
+                if (placement != LineWindow.Placement.INSIDE) {
+                    return true;
+                }
+                edit = local;
+            }
+            if (!own) {
+                pendingEdits.add(edit);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean reloadWindow() {
+            if (window == null) {
+                return false;
+            }
+            requestPage(PageFetch.RELOAD, window.getStart(), Math.max(window.size(), pageLines));
+            return true;
+        }
+    }
+
+    /**
+     * An update from the server and the delivery it came in, to acknowledge once it is applied.
+     */
+    private static final class Received {
+        private final DocumentUpdate update;
+        private final TransportMessage delivery;
+        // The server's answer to a check, see repair
+        private final boolean repair;
+
+        Received(DocumentUpdate update, TransportMessage delivery, boolean repair) {
+            this.update = update;
+            this.delivery = delivery;
+            this.repair = repair;
+        }
+
+        boolean hasOthersEdits(String clientId) {
+            if (update.isSnapshot()) {
+                return false;
+            }
+            for (LineMessage segment : update.getSegments()) {
+                if (!clientId.equals(segment.getOrigin())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(TextEditorByLineClient::new);
     }
@@ -1,57 +1,179 @@
 package myEditorLineByLine;
 
-import com.rabbitmq.client.*;
+import myEditorCommon.DirectServer;
+import myEditorCommon.DocumentRouting;
+import myEditorCommon.ShardedExecutor;
+import myEditorCommon.Transport;
+import myEditorCommon.TransportChannel;
+import myEditorCommon.TransportMessage;
 
-import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-public class TextEditorByLineServer {
+public class TextEditorByLineServer implements AutoCloseable {
+    // Where clients that predate partitions still send edits; the server forwards them
     private static final String QUEUE_NAME = "text_changes_queue";
     private static final String EXCHANGE_NAME = "text_updates";
     private static final String CLIENTS_EXCHANGE = "clients_updates";
-    private static final AtomicInteger clientCount = new AtomicInteger(0);
+    // Also publish every update in the text format to the old fanout exchange, for clients that predate binary frames
+    private static final boolean publishLegacyText = Boolean.parseBoolean(System.getProperty("editor.wire.legacyText", "true"));
+    // Most edits and sync requests taken off each partition's queue and not yet applied, e.g. -Deditor.server.prefetch=256.
+    // The rest wait in the broker, so a slow disk holds the clients back instead of filling the heap.
+    private static final int prefetch = Integer.getInteger("editor.server.prefetch", 1024);
 
-    public static void main(String[] args) throws IOException, TimeoutException {
-        ConnectionFactory factory = new ConnectionFactory();
-        factory.setHost("localhost");
-        Connection connection = factory.newConnection();
-        Channel channel = connection.createChannel();
+    private final AtomicInteger clientCount = new AtomicInteger(0);
+    private final DocumentStore documentStore = DocumentStore.fromSystemProperties();
+    // Edits to one document apply in order on its shard; different documents apply in parallel
+    private final ShardedExecutor shards = new ShardedExecutor(ShardedExecutor.shardCountFromSystemProperties(), "document-shard");
+    private final Metrics metrics;
+    // Last sequence number seen from each client, to count messages that never arrived
+    private final Map<String, Long> lastSequences = new ConcurrentHashMap<>();
+    private ServerCluster cluster;
+    private final AtomicBoolean closed = new AtomicBoolean();
 
-        channel.queueDeclare(QUEUE_NAME, false, false, false, null);
-        channel.exchangeDeclare(EXCHANGE_NAME, BuiltinExchangeType.FANOUT);
-        channel.exchangeDeclare(CLIENTS_EXCHANGE, BuiltinExchangeType.FANOUT);
+    private TextEditorByLineServer(Metrics metrics) {
+        this.metrics = metrics;
+    }
 
+    public static void main(String[] args) throws IOException, TimeoutException {
+        if ("direct".equals(System.getProperty("editor.transport"))) {
+            // The server is the broker, and clients connect straight to it, e.g. -Deditor.direct.port=5680
+            start(DirectServer.listen(Integer.getInteger("editor.direct.port", DirectServer.DEFAULT_PORT)).connect());
+        } else {
+            start(Transport.fromSystemProperties());
+        }
         System.out.println(" [*] Waiting for messages. To exit press CTRL+C");
+    }
+
+    /**
+     * Joins the servers on the transport as {@code -Deditor.cluster.node} and starts taking edits
+     * and sync requests for the documents it comes to own. Returns once the consumers are in place.
+     */
+    public static TextEditorByLineServer start(Transport transport) throws IOException {
+        return start(transport, ServerCluster.nodeIdFromSystemProperties(), Metrics.register("line-server"));
+    }
+
+    /**
+     * Starts another node in this JVM, e.g. to try out handoffs against the in-process transport.
+     */
+    public static TextEditorByLineServer start(Transport transport, String nodeId) throws IOException {
+        return start(transport, nodeId, Metrics.register("line-server-" + nodeId));
+    }
+
+    private static TextEditorByLineServer start(Transport transport, String nodeId, Metrics metrics) throws IOException {
+        TextEditorByLineServer server = new TextEditorByLineServer(metrics);
+        server.run(transport, nodeId);
+        return server;
+    }
+
+    private void run(Transport transport, String nodeId) throws IOException {
+        TransportChannel channel = transport.createChannel();
 
-        DeliverCallback deliverCallback = (consumerTag, delivery) -> {
-                String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
+        channel.declareQueue(QUEUE_NAME);
+        DocumentRouting.declareEditQueues(channel);
+        channel.declareExchange(EXCHANGE_NAME, TransportChannel.ExchangeType.FANOUT);
+        channel.declareExchange(CLIENTS_EXCHANGE, TransportChannel.ExchangeType.FANOUT);
+        DocumentRouting.declareExchange(channel);
+
+        // Each shard publishes on its own channel
+        TransportChannel[] shardChannels = new TransportChannel[shards.shardCount()];
+        for (int i = 0; i < shardChannels.length; i++) {
+            shardChannels[i] = transport.createChannel();
+        }
+
+        // Messages that pile up for a document while its shard is busy are applied and published as one batch
+        EditBatcher batcher = EditBatcher.fromSystemProperties(shards,
+                (fileId, segments) -> processBatch(shardChannels[shards.shardOf(fileId)], fileId, segments));
+
+        // Hand off the documents, then write every dirty one before the JVM goes away
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "document-store-shutdown"));
+        shards.reportQueueDepths(Long.getLong("editor.shards.reportSeconds", 10));
+        metrics.histogram("diskWriteTime", documentStore.getFlushTimes());
+        metrics.histogram("logSyncTime", documentStore.getSyncTimes());
+        metrics.logFromSystemProperties();
+
+        System.out.println(" [*] Operation logs: " + documentStore.getLogRoot().toAbsolutePath());
+        System.out.println(" [*] Write-behind: " + documentStore.getPolicy());
+        System.out.println(" [*] Document shards: " + shards.shardCount());
+        System.out.println(" [*] Batches: up to " + batcher.getMaxMessages() + " messages, linger " + batcher.getLingerMillis() + " ms");
+        System.out.println(" [*] Prefetch: " + prefetch + " messages per partition");
+
+        TransportChannel.MessageHandler deliverCallback = delivery -> {
+            received(delivery);
+            if (WireFormat.SYNC_REQUEST_CONTENT_TYPE.equals(delivery.getContentType())) {
+                // Answered on the document's shard, so the reply fits between the published versions,
+                // and behind the edits that came before it, so a client that sent any gets them back
+                SyncRequest request = WireFormat.decodeSyncRequest(delivery.getBody());
+                String replyTo = delivery.getReplyTo();
+                if (request != null && replyTo != null) {
+                    TransportChannel shardChannel = shardChannels[shards.shardOf(request.getFileId())];
+                    batcher.afterPending(request.getFileId(), () -> {
+                        try {
+                            processSyncRequest(shardChannel, request, replyTo);
+                        } finally {
+                            delivery.ack();
+                        }
+                    });
+                } else {
+                    delivery.ack();
+                }
+                return;
+            }
+            if (WireFormat.PROBE_CONTENT_TYPE.equals(delivery.getContentType())) {
+                // Answered behind the edits that came before it, so if the client sent any, its version is behind ours
+                HashProbe probe = WireFormat.decodeProbe(delivery.getBody());
+                String replyTo = delivery.getReplyTo();
+                if (probe != null && replyTo != null) {
+                    TransportChannel shardChannel = shardChannels[shards.shardOf(probe.getFileId())];
+                    batcher.afterPending(probe.getFileId(), () -> {
+                        try {
+                            processProbe(shardChannel, probe, replyTo);
+                        } finally {
+                            delivery.ack();
+                        }
+                    });
+                } else {
+                    delivery.ack();
+                }
+                return;
+            }
 
-                processMessage(message);
+            LineMessage message = decodeEdit(delivery);
+            if (message == null) {
+                delivery.ack();
+                return;
+            }
 
-                // Publish the message to the exchange for clients to update their text areas
-                channel.basicPublish(EXCHANGE_NAME, "", null, message.getBytes(StandardCharsets.UTF_8));
+            // Hand the edits to the document's shard so this thread can take the next delivery.
+            // The sender's app id travels with its edits so it can skip them in the batch.
+            // The delivery is acknowledged once they are applied and their log is fsynced, and
+            // comes again if they could not be logged.
+            batcher.offer(message.withOrigin(delivery.getAppId()).withSentAt(delivery.getSentAtMicros()),
+                    () -> documentStore.whenDurable(message.getFileId(), delivery::ack), delivery::reject);
         };
 
-        channel.basicConsume(QUEUE_NAME, true, deliverCallback, consumerTag -> { });
+        // Replays the operation logs of each partition it takes before consuming its queue
+        cluster = ServerCluster.join(nodeId, transport, documentStore, prefetch, deliverCallback,
+                QUEUE_NAME, legacyForwarder(transport.createChannel()));
+        System.out.println(" [*] Cluster node " + nodeId + ": " + DocumentRouting.partitions() + " partitions");
 
-        connection.addShutdownListener(cause -> {
+        transport.addShutdownListener(() -> {
             int count = clientCount.decrementAndGet();
             updateClientCount(channel, count);
         });
 
         // Listen for client registration
-        String registrationQueue = channel.queueDeclare().getQueue();
-        channel.queueBind(registrationQueue, CLIENTS_EXCHANGE, "");
-        channel.basicConsume(registrationQueue, true, (consumerTag, delivery) -> {
+        String registrationQueue = channel.declareTemporaryQueue();
+        channel.bind(registrationQueue, CLIENTS_EXCHANGE, "");
+        channel.consume(registrationQueue, delivery -> {
             String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
             if ("register".equals(message)) {
                 int count = clientCount.incrementAndGet();
@@ -60,88 +182,243 @@ public class TextEditorByLineServer {
                 int count = clientCount.decrementAndGet();
                 updateClientCount(channel, count);
             }
-        }, consumerTag -> { });
+        });
+    }
+
+    /**
+     * Binary frames say so in their content type; anything else is "fileId::0:Hi there;+3:new line;-7:2;".
+     * Merging clients send ops, which the document turns into edits as it applies them.
+     */
+    private static LineMessage decodeEdit(TransportMessage delivery) {
+        return WireFormat.CRDT_CONTENT_TYPE.equals(delivery.getContentType())
+                ? WireFormat.decodeOps(delivery.getBody())
+                : WireFormat.forContentType(delivery.getContentType()).decode(delivery.getBody());
+    }
+
+    /**
+     * Moves what older clients send to the single queue on to the queue of its document's partition.
+     * The cluster hands the queue to one node at a time, like a partition, so a client's edits
+     * keep their order on the way.
+     */
+    private static TransportChannel.MessageHandler legacyForwarder(TransportChannel channel) {
+        return delivery -> {
+            String fileId;
+            if (WireFormat.SYNC_REQUEST_CONTENT_TYPE.equals(delivery.getContentType())) {
+                SyncRequest request = WireFormat.decodeSyncRequest(delivery.getBody());
+                fileId = request == null ? null : request.getFileId();
+            } else {
+                LineMessage message = decodeEdit(delivery);
+                fileId = message == null ? null : message.getFileId();
+            }
+            try {
+                if (fileId != null) {
+                    DocumentRouting.publishEdit(channel, fileId, new TransportMessage(delivery.getContentType(),
+                            delivery.getAppId(), delivery.getReplyTo(), delivery.getBody())
+                            .withTiming(delivery.getSentAtMicros(), delivery.getSequence()));
+                }
+                delivery.ack();
+            } catch (IOException e) {
+                e.printStackTrace();
+                // Forwarded again once the partition queues take it
+                delivery.reject();
+            }
+        };
+    }
+
+    /**
+     * Leaves the cluster, handing this node's documents to the others, and stops. Idempotent.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (cluster != null) {
+            cluster.close();
+        }
+        shards.close();
+        documentStore.close();
+    }
+
+    public ServerCluster getCluster() {
+        return cluster;
     }
 
-    private static void updateClientCount(Channel channel, int count) {
+    private void updateClientCount(TransportChannel channel, int count) {
         String countMessage = String.valueOf(count);
         try {
-            channel.basicPublish(CLIENTS_EXCHANGE, "", null, countMessage.getBytes(StandardCharsets.UTF_8));
+            channel.publish(CLIENTS_EXCHANGE, "", new TransportMessage(countMessage.getBytes(StandardCharsets.UTF_8)));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static void processMessage(String message) {
-        // Example message format: "fileId::0:Hi there;3:is Everything okay?;"
-        String[] parts = message.split("::",2);
-        if (parts.length != 2) {
-            System.err.println("Invalid message format");
-            return;
+    /**
+     * Counts a delivery, and how long it took from the client if the client stamped it.
+     */
+    private void received(TransportMessage delivery) {
+        metrics.counter("messagesIn").incrementAndGet();
+        metrics.counter("bytesIn").addAndGet(delivery.getBody().length);
+        if (delivery.getSentAtMicros() > 0) {
+            metrics.histogram("receiveLag").record(TimeUnit.MICROSECONDS.toNanos(Metrics.nowMicros() - delivery.getSentAtMicros()));
+        }
+        if (delivery.getSequence() > 0 && delivery.getAppId() != null) {
+            Long last = lastSequences.put(delivery.getAppId(), delivery.getSequence());
+            if (last != null && delivery.getSequence() > last + 1) {
+                metrics.counter("sequenceGaps").addAndGet(delivery.getSequence() - last - 1);
+            }
         }
+    }
 
-        String filePath = parts[0];
-        String changes = parts[1];
+    private void publish(TransportChannel channel, String exchange, String routingKey, TransportMessage message) throws IOException {
+        channel.publish(exchange, routingKey, message);
+        metrics.counter("messagesOut").incrementAndGet();
+        metrics.counter("bytesOut").addAndGet(message.getBody().length);
+    }
 
-        Map<Integer, String> changesMap = new HashMap<>();
+    /**
+     * Returns false if the edits could not be logged, so that their deliveries come again.
+     */
+    private boolean processBatch(TransportChannel channel, String fileId, List<LineMessage> segments) {
+        // From the client's send until its edits apply: the broker queue, the shard queue and the linger
+        long now = Metrics.nowMicros();
+        long oldestSentAt = 0;
+        for (LineMessage segment : segments) {
+            if (segment.getSentAtMicros() > 0) {
+                metrics.histogram("queueLag").record(TimeUnit.MICROSECONDS.toNanos(now - segment.getSentAtMicros()));
+                oldestSentAt = oldestSentAt == 0 ? segment.getSentAtMicros() : Math.min(oldestSentAt, segment.getSentAtMicros());
+            }
+        }
 
-        String[] lineChanges = changes.split(";");
-        for (String lineChange : lineChanges) {
-            String[] lineParts = lineChange.split(":", 2);
-            if (lineParts.length != 2) {
-                System.err.println("Invalid line change format: " + lineChange);
-                continue;
+        // Edits are applied in memory as one new version; the store logs them and writes the file behind them
+        long start = System.nanoTime();
+        DocumentUpdate update;
+        try {
+            update = documentStore.apply(fileId, segments);
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.counter("logFailures").incrementAndGet();
+            return false;
+        }
+        if (update == null) {
+            return true;
+        }
+        metrics.histogram("applyTime").record(System.nanoTime() - start);
+        metrics.counter("batchesApplied").incrementAndGet();
+        for (LineMessage segment : update.getSegments()) {
+            if (segment.isRejected()) {
+                metrics.counter("rejectedSegments").incrementAndGet();
             }
+        }
 
-            try {
-                int lineNumber = Integer.parseInt(lineParts[0]);
-                String content = lineParts[1];
-                changesMap.put(lineNumber, content);
-            } catch (NumberFormatException e) {
-                System.err.println("Invalid line number format: " + lineParts[0]);
+        // Publish the whole batch to the clients that have this document open, as one message.
+        // It carries when its oldest edit was sent, so clients can time it to their screen.
+        try {
+            publish(channel, DocumentRouting.EXCHANGE_NAME, DocumentRouting.routingKey(fileId), updateMessage(update).withTiming(oldestSentAt, 0));
+            if (publishLegacyText) {
+                // The text format has no segments, so older clients get one message per sender.
+                // A rejected segment only holds the edits applied before the rejection, and a text
+                // client cannot tell it apart, so it gets those or nothing.
+                for (LineMessage segment : update.getSegments()) {
+                    // Older clients read every entry as a line to overwrite, so they only get
+                    // segments that keep the lines where they are
+                    List<LineEdit> sets = LineProtocol.toSets(segment.getEdits());
+                    if (sets == null) {
+                        metrics.counter("legacySkipped").incrementAndGet();
+                        continue;
+                    }
+                    if (sets.isEmpty()) {
+                        continue;
+                    }
+                    publish(channel, EXCHANGE_NAME, "", new TransportMessage(WireFormat.TEXT.getContentType(), segment.getOrigin(),
+                            WireFormat.TEXT.encode(fileId, sets)));
+                }
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        return true;
+    }
 
-        updateFile(filePath, changesMap);
+    private void processSyncRequest(TransportChannel channel, SyncRequest request, String replyTo) {
+        // The missed batches if the document still has them, a snapshot (or the requested page) otherwise
+        metrics.counter("syncRequests").incrementAndGet();
+        DocumentUpdate update = documentStore.catchUp(request);
+        if (update == null) {
+            return;
+        }
+        try {
+            publish(channel, "", replyTo, updateMessage(update));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
-    private static void updateFile(String filePath, Map<Integer, String> changesMap) {
+    /**
+     * Answers a client checking its copy (see {@link HashProbe}): with our hashes of the children
+     * of the nodes it has wrong, or with the lines of the blocks it has wrong. Says nothing if the
+     * client is at another version than we are; it checks again once it has caught up.
+     */
+    private void processProbe(TransportChannel channel, HashProbe probe, String replyTo) {
+        metrics.counter("probes").incrementAndGet();
+        String fileId = probe.getFileId();
+        LineHashTree tree = documentStore.hashTree(fileId, probe.getEpoch(), probe.getVersion());
+        int level = probe.getLevel();
+        if (tree == null || level >= tree.height()) {
+            return;
+        }
         try {
-            File file = new File(filePath);
-            if (!file.exists()) {
-                System.err.println("File does not exist: " + filePath);
+            if (probe.getLineCount() != tree.lineCount()) {
+                // Lines are missing or extra, and only a snapshot brings back the right ones, and their ids
+                metrics.counter("repairSnapshots").incrementAndGet();
+                DocumentUpdate snapshot = documentStore.catchUp(new SyncRequest(fileId, SyncRequest.UNKNOWN_EPOCH, 0, probe.isCrdt()));
+                if (snapshot != null) {
+                    publish(channel, "", replyTo, repairMessage(snapshot));
+                }
                 return;
             }
-
-            // Read all lines from the file
-            Path path = Paths.get(filePath);
-            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
-
-            // Apply changes
-            for (Map.Entry<Integer, String> entry : changesMap.entrySet()) {
-                int lineNumber = entry.getKey();
-                String content = entry.getValue();
-
-                if (lineNumber >= 0) {
-                    if(lineNumber >= lines.size()) {
-                        for (int i = lines.size(); i < lineNumber; i++) {
-                            lines.add(i, "");
-                        }
-                        lines.add(lineNumber, content);
+            List<Integer> children = new ArrayList<>();
+            for (int i = 0; i < probe.getNodes().length; i++) {
+                int node = probe.getNodes()[i];
+                if (node >= tree.width(level) || tree.hash(level, node) == probe.getHashes()[i]) {
+                    continue;
+                }
+                if (level > 0) {
+                    for (int k = 0; k < tree.childCount(level, node); k++) {
+                        children.add(LineHashTree.firstChild(node) + k);
                     }
-                    else
-                        lines.set(lineNumber, content);
-                } else {
-                    System.err.println("Line number out of bounds: " + lineNumber);
+                    continue;
+                }
+                // Same line count and version, so the page goes in place of the client's lines.
+                // It may hold every line of a short document, which only its content type tells from a snapshot.
+                metrics.counter("repairPages").incrementAndGet();
+                DocumentUpdate page = documentStore.catchUp(new SyncRequest(fileId, SyncRequest.UNKNOWN_EPOCH, 0,
+                        LineHashTree.firstLine(node), LineHashTree.BLOCK_LINES));
+                if (page != null) {
+                    publish(channel, "", replyTo, repairMessage(page));
                 }
             }
-
-            // Write the updated lines back to the file
-            Files.write(path, lines, StandardCharsets.UTF_8);
-            System.out.println("File updated: " + filePath);
-
+            if (!children.isEmpty()) {
+                int[] nodes = new int[children.size()];
+                long[] hashes = new long[nodes.length];
+                for (int i = 0; i < nodes.length; i++) {
+                    nodes[i] = children.get(i);
+                    hashes[i] = tree.hash(level - 1, nodes[i]);
+                }
+                HashProbe answer = new HashProbe(fileId, probe.getEpoch(), probe.getVersion(), tree.lineCount(), probe.isCrdt(),
+                        level - 1, nodes, hashes);
+                publish(channel, "", replyTo, new TransportMessage(WireFormat.PROBE_CONTENT_TYPE, null, BinaryLineCodec.encodeProbe(answer)));
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    private static TransportMessage updateMessage(DocumentUpdate update) {
+        return new TransportMessage(WireFormat.BATCH_CONTENT_TYPE, null, BinaryLineCodec.encodeUpdate(update));
+    }
+
+    private static TransportMessage repairMessage(DocumentUpdate update) {
+        return new TransportMessage(WireFormat.REPAIR_CONTENT_TYPE, null, BinaryLineCodec.encodeUpdate(update));
+    }
 }
@@ -0,0 +1,111 @@
+package myEditorLineByLine;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Caret;
+import javax.swing.text.DefaultCaret;
+import javax.swing.text.Element;
+import java.awt.*;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * Keeps the caret, the selection and the top of the view on the same lines while remote
+ * changes add and remove lines around them. Capture it before the changes, report every
+ * change with {@link #linesReplaced}, then {@link #restore} it. Only for use on the EDT.
+ */
+final class ViewAnchor {
+    private final JTextArea textArea;
+    private final JViewport viewport;
+    private final int caretPolicy;
+    private int topLine;
+    private final double belowTop;
+    private final int viewX;
+    private int dotLine;
+    private final int dotColumn;
+    private int markLine;
+    private final int markColumn;
+
+    private ViewAnchor(JTextArea textArea, JViewport viewport) throws BadLocationException {
+        this.textArea = textArea;
+        this.viewport = viewport;
+        Point view = viewport.getViewPosition();
+        int topOffset = textArea.viewToModel2D(view);
+        topLine = textArea.getLineOfOffset(topOffset);
+        Rectangle2D top = textArea.modelToView2D(textArea.getLineStartOffset(topLine));
+        belowTop = top == null ? 0 : view.y - top.getY();
+        viewX = view.x;
+
+        Caret caret = textArea.getCaret();
+        dotLine = textArea.getLineOfOffset(caret.getDot());
+        dotColumn = caret.getDot() - textArea.getLineStartOffset(dotLine);
+        markLine = textArea.getLineOfOffset(caret.getMark());
+        markColumn = caret.getMark() - textArea.getLineStartOffset(markLine);
+
+        // Without this the caret follows the changes and drags the view along
+        if (caret instanceof DefaultCaret) {
+            caretPolicy = ((DefaultCaret) caret).getUpdatePolicy();
+            ((DefaultCaret) caret).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        } else {
+            caretPolicy = -1;
+        }
+    }
+
+    static ViewAnchor capture(JTextArea textArea, JViewport viewport) {
+        try {
+            return new ViewAnchor(textArea, viewport);
+        } catch (BadLocationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Lines {@code index .. index + removed - 1} were replaced by {@code added} lines.
+     */
+    void linesReplaced(int index, int removed, int added) {
+        topLine = shift(topLine, index, removed, added);
+        dotLine = shift(dotLine, index, removed, added);
+        markLine = shift(markLine, index, removed, added);
+    }
+
+    private static int shift(int line, int index, int removed, int added) {
+        if (line >= index + removed) {
+            return line + added - removed;
+        }
+        if (line >= index) {
+            // The line itself was replaced: stay at the same place among the new lines
+            return Math.min(line, index + Math.max(added, 1) - 1);
+        }
+        return line;
+    }
+
+    void restore() {
+        Caret caret = textArea.getCaret();
+        int mark = offsetOf(markLine, markColumn);
+        int dot = offsetOf(dotLine, dotColumn);
+        if (caret.getDot() != dot || caret.getMark() != mark) {
+            caret.setDot(mark);
+            caret.moveDot(dot);
+        }
+        if (caretPolicy >= 0) {
+            ((DefaultCaret) caret).setUpdatePolicy(caretPolicy);
+        }
+        // After the text area has been laid out for its new size
+        int line = Math.min(topLine, textArea.getLineCount() - 1);
+        SwingUtilities.invokeLater(() -> {
+            try {
+                Rectangle2D top = textArea.modelToView2D(textArea.getLineStartOffset(Math.min(line, textArea.getLineCount() - 1)));
+                if (top != null) {
+                    viewport.setViewPosition(new Point(viewX, (int) Math.max(0, Math.round(top.getY() + belowTop))));
+                }
+            } catch (BadLocationException e) {
+                // The document changed again meanwhile; the next restore puts the view right
+            }
+        });
+    }
+
+    private int offsetOf(int line, int column) {
+        Element root = textArea.getDocument().getDefaultRootElement();
+        Element element = root.getElement(Math.max(0, Math.min(line, root.getElementCount() - 1)));
+        return Math.min(element.getStartOffset() + column, element.getEndOffset() - 1);
+    }
+}
@@ -0,0 +1,132 @@
+package myEditorLineByLine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The encodings a line edit message can travel in, told apart by the AMQP content type.
+ * Messages without a content type come from clients that predate the binary format and are
+ * read as {@link #TEXT}, so old and new clients can share a server during a rollout.
+ * Clients send single messages and {@link #SYNC_REQUEST_CONTENT_TYPE} frames; the server
+ * publishes {@link #BATCH_CONTENT_TYPE} frames, which hold a batch of edits, a snapshot or a page.
+ * Clients that merge edits with a {@link LineSequence} send {@link #CRDT_CONTENT_TYPE} frames of ops instead.
+ * Clients and server check that their copies agree with {@link #PROBE_CONTENT_TYPE} frames.
+ */
+public enum WireFormat {
+    TEXT("text/plain") {
+        @Override
+        public byte[] encode(String fileId, List<LineEdit> edits) {
+            return LineProtocol.format(fileId, edits).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        LineMessage decodeFrame(byte[] body) {
+            String message = new String(body, StandardCharsets.UTF_8);
+            String fileId = LineProtocol.fileIdOf(message);
+            return fileId == null ? null : new LineMessage(fileId, LineProtocol.parseEdits(message));
+        }
+    },
+    BINARY("application/vnd.editor.lines; v=" + BinaryLineCodec.EDITS_VERSION) {
+        @Override
+        public byte[] encode(String fileId, List<LineEdit> edits) {
+            return BinaryLineCodec.encode(fileId, edits);
+        }
+
+        @Override
+        LineMessage decodeFrame(byte[] body) {
+            return BinaryLineCodec.decode(body);
+        }
+    };
+
+    public static final String BATCH_CONTENT_TYPE = "application/vnd.editor.update; v=" + BinaryLineCodec.UPDATE_VERSION;
+    public static final String SYNC_REQUEST_CONTENT_TYPE = "application/vnd.editor.sync; v=" + BinaryLineCodec.SYNC_REQUEST_VERSION;
+    public static final String CRDT_CONTENT_TYPE = "application/vnd.editor.crdt; v=" + BinaryLineCodec.OPS_VERSION;
+    public static final String PROBE_CONTENT_TYPE = "application/vnd.editor.probe; v=" + BinaryLineCodec.PROBE_VERSION;
+    // The server's lines in answer to a probe, as a batch frame: a page, or the whole document if the line counts differ
+    public static final String REPAIR_CONTENT_TYPE = "application/vnd.editor.repair; v=" + BinaryLineCodec.UPDATE_VERSION;
+
+    private final String contentType;
+
+    WireFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public abstract byte[] encode(String fileId, List<LineEdit> edits);
+
+    abstract LineMessage decodeFrame(byte[] body);
+
+    /**
+     * Decodes a message body. Returns null, after reporting it, if the body is not a line edit message.
+     */
+    public LineMessage decode(byte[] body) {
+        try {
+            LineMessage message = decodeFrame(body);
+            if (message == null) {
+                System.err.println("Invalid message format");
+            }
+            return message;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid message format: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a batch, snapshot or page frame. Returns null, after reporting it, if the frame is malformed.
+     */
+    public static DocumentUpdate decodeUpdate(byte[] body) {
+        try {
+            return BinaryLineCodec.decodeUpdate(body);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid message format: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a frame of ops. Returns null, after reporting it, if the frame is malformed.
+     */
+    public static LineMessage decodeOps(byte[] body) {
+        try {
+            return BinaryLineCodec.decodeOps(body);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid message format: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a sync request. Returns null, after reporting it, if the frame is malformed.
+     */
+    public static SyncRequest decodeSyncRequest(byte[] body) {
+        try {
+            return BinaryLineCodec.decodeSyncRequest(body);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid message format: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a hash probe. Returns null, after reporting it, if the frame is malformed.
+     */
+    public static HashProbe decodeProbe(byte[] body) {
+        try {
+            return BinaryLineCodec.decodeProbe(body);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid message format: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the format for a content type; unknown or missing types are the legacy text format.
+     */
+    public static WireFormat forContentType(String contentType) {
+        return BINARY.contentType.equals(contentType) ? BINARY : TEXT;
+    }
+}
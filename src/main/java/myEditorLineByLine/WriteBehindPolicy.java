@@ -0,0 +1,44 @@
+package myEditorLineByLine;
+
+/**
+ * Decides when an in-memory document has to be written back to disk.
+ * An edit waits at most {@code maxFlushDelayMillis} before it is on disk, and a document
+ * is flushed right away once {@code dirtyLineThreshold} lines have changed since its last flush.
+ * An edit is durable, and its delivery acknowledged, once its {@link OperationLog} is synced;
+ * the flush only bounds how much of the log is replayed after a crash.
+ */
+public class WriteBehindPolicy {
+    private final long maxFlushDelayMillis;
+    private final int dirtyLineThreshold;
+
+    public WriteBehindPolicy(long maxFlushDelayMillis, int dirtyLineThreshold) {
+        if (maxFlushDelayMillis < 0) {
+            throw new IllegalArgumentException("maxFlushDelayMillis must be >= 0: " + maxFlushDelayMillis);
+        }
+        if (dirtyLineThreshold < 1) {
+            throw new IllegalArgumentException("dirtyLineThreshold must be >= 1: " + dirtyLineThreshold);
+        }
+        this.maxFlushDelayMillis = maxFlushDelayMillis;
+        this.dirtyLineThreshold = dirtyLineThreshold;
+    }
+
+    // e.g. -Deditor.flush.maxDelayMs=500 -Deditor.flush.dirtyLines=5000
+    public static WriteBehindPolicy fromSystemProperties() {
+        long maxDelay = Long.getLong("editor.flush.maxDelayMs", 1000);
+        int dirtyLines = Integer.getInteger("editor.flush.dirtyLines", 10_000);
+        return new WriteBehindPolicy(maxDelay, dirtyLines);
+    }
+
+    public long getMaxFlushDelayMillis() {
+        return maxFlushDelayMillis;
+    }
+
+    public int getDirtyLineThreshold() {
+        return dirtyLineThreshold;
+    }
+
+    @Override
+    public String toString() {
+        return "maxFlushDelay=" + maxFlushDelayMillis + "ms, dirtyLineThreshold=" + dirtyLineThreshold;
+    }
+}
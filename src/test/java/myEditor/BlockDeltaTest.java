@@ -0,0 +1,104 @@
+package myEditor;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BlockDeltaTest {
+    // 64-byte blocks for a base this small
+    private static final byte[] BASE = text(4096, 1);
+
+    @Test
+    void roundTripsEditsAtBlockBoundaries() {
+        for (int at : new int[] {0, 64, 128, 1024, 4032, 4096}) {
+            assertRoundTrip(BASE, splice(BASE, at, 0, "inserted"));
+            if (at < BASE.length) {
+                assertRoundTrip(BASE, splice(BASE, at, 64, ""));
+                assertRoundTrip(BASE, splice(BASE, at, 1, "x"));
+            }
+        }
+        // Inside a block, and across two
+        assertRoundTrip(BASE, splice(BASE, 100, 0, "abc"));
+        assertRoundTrip(BASE, splice(BASE, 60, 10, ""));
+    }
+
+    @Test
+    void roundTripsEmptyVersions() {
+        byte[] empty = new byte[0];
+        assertRoundTrip(empty, empty);
+        assertRoundTrip(empty, BASE);
+        assertRoundTrip(BASE, empty);
+    }
+
+    @Test
+    void roundTripsUnrelatedVersions() {
+        assertRoundTrip(BASE, text(5000, 2));
+    }
+
+    @Test
+    void rejectsAnotherBase() {
+        BlockDelta delta = BlockDelta.decode(BlockDelta.compute("a.txt", BASE, splice(BASE, 10, 0, "x")).encode());
+        byte[] other = splice(BASE, 2000, 1, "y");
+        assertThrows(IllegalArgumentException.class, () -> delta.apply(other));
+        assertThrows(IllegalArgumentException.class, () -> delta.apply(new byte[0]));
+    }
+
+    @Test
+    void rejectsTruncatedFrames() {
+        byte[] frame = BlockDelta.compute("a.txt", BASE, splice(BASE, 10, 0, "x")).encode();
+        for (int length = 0; length < frame.length; length++) {
+            byte[] truncated = Arrays.copyOf(frame, length);
+            assertThrows(IllegalArgumentException.class, () -> BlockDelta.decode(truncated));
+        }
+    }
+
+    @Test
+    void rejectsTargetLengthBeforeAllocating() {
+        byte[] frame = BlockDelta.compute("a.txt", new byte[0], new byte[0]).encode();
+        // Version, id length and id, two hashes, then the target length
+        int lengthAt = 1 + 1 + "a.txt".length() + 16;
+        assertEquals(0, frame[lengthAt]);
+        // Claims two gigabytes with no ops
+        byte[] huge = new byte[frame.length + 4];
+        System.arraycopy(frame, 0, huge, 0, lengthAt);
+        huge[lengthAt] = (byte) 0xfe;
+        huge[lengthAt + 1] = (byte) 0xff;
+        huge[lengthAt + 2] = (byte) 0xff;
+        huge[lengthAt + 3] = (byte) 0xff;
+        huge[lengthAt + 4] = 0x07;
+        System.arraycopy(frame, lengthAt + 1, huge, lengthAt + 5, frame.length - lengthAt - 1);
+        assertThrows(IllegalArgumentException.class, () -> BlockDelta.decode(huge));
+    }
+
+    private static void assertRoundTrip(byte[] base, byte[] target) {
+        BlockDelta delta = BlockDelta.decode(BlockDelta.compute("a.txt", base, target).encode());
+        assertEquals("a.txt", delta.getFileId());
+        assertEquals(BlockDelta.hash(base), delta.getBaseHash());
+        assertEquals(BlockDelta.hash(target), delta.getTargetHash());
+        assertArrayEquals(target, delta.apply(base));
+    }
+
+    private static byte[] splice(byte[] base, int at, int removed, String inserted) {
+        byte[] bytes = inserted.getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[base.length - removed + bytes.length];
+        System.arraycopy(base, 0, result, 0, at);
+        System.arraycopy(bytes, 0, result, at, bytes.length);
+        System.arraycopy(base, at + removed, result, at + bytes.length, base.length - at - removed);
+        return result;
+    }
+
+    private static byte[] text(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) (random.nextInt(10) == 0 ? '\n' : 'a' + random.nextInt(26));
+        }
+        return text;
+    }
+}
@@ -0,0 +1,134 @@
+package myEditorCommon;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DirectServerTest {
+
+    @Test
+    void frameThatComesInPiecesIsReadWhole() throws Exception {
+        try (DirectServer server = DirectServer.listen(0); Socket client = connect(server)) {
+            TransportChannel channel = server.connect().createChannel();
+            channel.declareQueue("edits");
+            List<byte[]> bodies = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(3);
+            channel.consume("edits", delivery -> {
+                bodies.add(delivery.getBody());
+                done.countDown();
+            });
+
+            // A byte at a time, then a frame bigger than the read buffer, then a small one after it
+            byte[] small = "small".getBytes(StandardCharsets.UTF_8);
+            byte[] big = new byte[200 * 1024];
+            Arrays.fill(big, (byte) 'b');
+            OutputStream out = client.getOutputStream();
+            for (byte b : publish("edits", small)) {
+                out.write(b);
+                out.flush();
+                Thread.sleep(1);
+            }
+            byte[] bigFrame = publish("edits", big);
+            out.write(bigFrame, 0, 100_000);
+            out.flush();
+            Thread.sleep(50);
+            out.write(bigFrame, 100_000, bigFrame.length - 100_000);
+            out.write(publish("edits", small));
+            out.flush();
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertArrayEquals(small, bodies.get(0));
+            assertArrayEquals(big, bodies.get(1));
+            assertArrayEquals(small, bodies.get(2));
+        }
+    }
+
+    @Test
+    void oversizedFrameClosesOnlyItsConnection() throws Exception {
+        assertThrows(IOException.class, () -> DirectFrames.frameLength(0));
+        assertThrows(IOException.class, () -> DirectFrames.frameLength(-1));
+        assertThrows(IOException.class, () -> DirectFrames.frameLength(DirectFrames.MAX_FRAME_BYTES + 1));
+        assertEquals(DirectFrames.MAX_FRAME_BYTES, DirectFrames.frameLength(DirectFrames.MAX_FRAME_BYTES));
+
+        try (DirectServer server = DirectServer.listen(0); Socket bad = connect(server); Socket good = connect(server)) {
+            // The server gives up on it before allocating anything for it
+            bad.getOutputStream().write(ByteBuffer.allocate(5).putInt(DirectFrames.MAX_FRAME_BYTES + 1).put(DirectFrames.PUBLISH).array());
+            assertEquals(-1, bad.getInputStream().read());
+
+            good.getOutputStream().write(DirectFrames.Header.of(DirectFrames.DECLARE_QUEUE, 1L, "edits").toBytes());
+            ByteBuffer reply = readFrame(new DataInputStream(good.getInputStream()));
+            assertEquals(DirectFrames.REPLY, reply.get());
+            assertEquals(1L, reply.getLong());
+            assertEquals(DirectFrames.OK, reply.get());
+        }
+    }
+
+    @Test
+    void deliveriesToASlowReaderGoOutInOrder() throws Exception {
+        try (DirectServer server = DirectServer.listen(0); Socket client = new Socket()) {
+            // A small window, so the socket fills and the deliveries wait to be gathered
+            client.setReceiveBufferSize(4096);
+            client.connect(new InetSocketAddress("localhost", server.getPort()));
+            client.setSoTimeout(10_000);
+            TransportChannel channel = server.connect().createChannel();
+            channel.declareQueue("updates");
+            client.getOutputStream().write(DirectFrames.Header.of(DirectFrames.CONSUME, 1L, 7, "updates", 0).toBytes());
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            ByteBuffer reply = readFrame(in);
+            assertEquals(DirectFrames.REPLY, reply.get());
+
+            int count = 500;
+            byte[] body = new byte[8 * 1024];
+            for (int i = 0; i < count; i++) {
+                channel.publish("", "updates", new TransportMessage(body).withTiming(0, i));
+            }
+            for (int i = 0; i < count; i++) {
+                ByteBuffer frame = readFrame(in);
+                assertEquals(DirectFrames.DELIVER, frame.get());
+                assertEquals(7, frame.getInt());
+                assertEquals(0L, frame.getLong());
+                assertEquals(0, frame.get());
+                TransportMessage message = DirectFrames.readMessage(frame);
+                assertEquals(i, message.getSequence());
+                assertEquals(body.length, message.getBody().length);
+            }
+        }
+    }
+
+    private static Socket connect(DirectServer server) throws IOException {
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    private static byte[] publish(String queue, byte[] body) {
+        DirectFrames.Header header = DirectFrames.Header.withMessage(DirectFrames.PUBLISH, new TransportMessage(body), "", queue);
+        byte[] start = header.toBytes();
+        byte[] frame = Arrays.copyOf(start, start.length + body.length);
+        System.arraycopy(body, 0, frame, start.length, body.length);
+        return frame;
+    }
+
+    private static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        byte[] frame = new byte[DirectFrames.frameLength(in.readInt())];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+}
@@ -0,0 +1,61 @@
+package myEditorCommon;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InProcessTransportTest {
+
+    @Test
+    void rejectedMessageComesBackFirst() throws Exception {
+        TransportChannel channel = InProcessTransport.connect(new InProcessTransport.Broker()).createChannel();
+        channel.declareQueue("edits");
+        List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(3);
+        channel.consume("edits", 1, delivery -> {
+            String body = new String(delivery.getBody(), StandardCharsets.UTF_8);
+            delivered.add(body + (delivery.isRedelivered() ? " again" : ""));
+            if ("a".equals(body) && !delivery.isRedelivered()) {
+                delivery.reject();
+            } else {
+                delivery.ack();
+                done.countDown();
+            }
+        });
+        for (String body : new String[] {"a", "b", "c"}) {
+            channel.publish("", "edits", new TransportMessage(body.getBytes(StandardCharsets.UTF_8)));
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of("a", "a again", "b", "c"), delivered);
+    }
+
+    @Test
+    void failingHandlerGetsTheMessageOnceMore() throws Exception {
+        TransportChannel channel = InProcessTransport.connect(new InProcessTransport.Broker()).createChannel();
+        channel.declareQueue("edits");
+        List<Boolean> deliveries = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch next = new CountDownLatch(1);
+        channel.consume("edits", 1, delivery -> {
+            if (delivery.getBody().length == 0) {
+                next.countDown();
+                delivery.ack();
+                return;
+            }
+            deliveries.add(delivery.isRedelivered());
+            throw new IllegalStateException("Expected by the test");
+        });
+        channel.publish("", "edits", new TransportMessage(new byte[] {1}));
+        channel.publish("", "edits", new TransportMessage(new byte[0]));
+        assertTrue(next.await(10, TimeUnit.SECONDS));
+        // Dropped after its second failure, so the next message is not held up
+        assertEquals(List.of(false, true), deliveries);
+    }
+}
@@ -0,0 +1,240 @@
+package myEditorLineByLine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryLineCodecTest {
+    private static final List<LineEdit> EDITS = List.of(
+            LineEdit.set(0, "héllo"),
+            LineEdit.insert(3, List.of("a", "", "c")),
+            LineEdit.delete(7, 2),
+            LineEdit.replace(1, 4, List.of("x")),
+            LineEdit.set(200000, ""));
+
+    @Test
+    void editsRoundTrip() {
+        byte[] frame = BinaryLineCodec.encode("doc.txt", EDITS);
+        assertEquals(BinaryLineCodec.EDITS, frame[0]);
+        assertEquals(BinaryLineCodec.EDITS_VERSION, frame[1]);
+        LineMessage message = BinaryLineCodec.decode(frame);
+        assertEquals("doc.txt", message.getFileId());
+        assertEquals(EDITS.toString(), message.getEdits().toString());
+        assertEquals(-1L, message.getBaseVersion());
+    }
+
+    @Test
+    void editsMadeAtAVersionRoundTrip() {
+        LineMessage message = BinaryLineCodec.decode(BinaryLineCodec.encode("doc.txt", 42L, 6, EDITS));
+        assertFalse(message.isCrdt());
+        assertEquals(42L, message.getEpoch());
+        assertEquals(6L, message.getBaseVersion());
+        assertEquals(EDITS.toString(), message.getEdits().toString());
+    }
+
+    @Test
+    void batchRoundTrip() {
+        List<LineMessage> segments = List.of(
+                new LineMessage("doc.txt", "client-1", EDITS),
+                new LineMessage("doc.txt", null, List.of(LineEdit.delete(0, 1))));
+        byte[] frame = BinaryLineCodec.encodeUpdate(DocumentUpdate.batch("doc.txt", 42L, 7, 9, segments));
+        assertEquals(BinaryLineCodec.BATCH, frame[0]);
+        assertEquals(BinaryLineCodec.UPDATE_VERSION, frame[1]);
+        DocumentUpdate update = BinaryLineCodec.decodeUpdate(frame);
+        assertFalse(update.isSnapshot());
+        assertEquals(42L, update.getEpoch());
+        assertEquals(7L, update.getBaseVersion());
+        assertEquals(9L, update.getVersion());
+        assertEquals(2, update.getSegments().size());
+        assertEquals("client-1", update.getSegments().get(0).getOrigin());
+        assertNull(update.getSegments().get(1).getOrigin());
+        assertEquals(EDITS.toString(), update.getSegments().get(0).getEdits().toString());
+        assertEquals(0L, update.getHorizon());
+    }
+
+    @Test
+    void batchWithOpsRoundTrip() {
+        LineSequence sequence = LineSequence.forServer(3);
+        List<CrdtOp> ops = sequence.localEdit(LineEdit.replace(1, 2, List.of("b", "c", "d")), 5);
+        List<LineMessage> segments = List.of(
+                new LineMessage("doc.txt", "client-1", EDITS).withOps(ops),
+                LineMessage.crdt("doc.txt", 42L, 3, null).withOrigin("client-2").withEdits(List.of()).rejected());
+        byte[] frame = BinaryLineCodec.encodeUpdate(DocumentUpdate.batch("doc.txt", 42L, 4, 5, segments, 2));
+        DocumentUpdate update = BinaryLineCodec.decodeUpdate(frame);
+        assertEquals(2L, update.getHorizon());
+        assertEquals(ops.toString(), update.getSegments().get(0).getOps().toString());
+        assertFalse(update.getSegments().get(0).isRejected());
+        LineMessage rejected = update.getSegments().get(1);
+        assertTrue(rejected.isRejected());
+        assertEquals("client-2", rejected.getOrigin());
+        assertEquals(42L, rejected.getEpoch());
+        assertEquals(3L, rejected.getBaseVersion());
+    }
+
+    @Test
+    void snapshotRoundTrip() {
+        List<String> lines = List.of("one", "", "thrée");
+        byte[] frame = BinaryLineCodec.encodeUpdate(DocumentUpdate.snapshot("doc.txt", 42L, 11, lines));
+        assertEquals(BinaryLineCodec.SNAPSHOT, frame[0]);
+        assertEquals(BinaryLineCodec.UPDATE_VERSION, frame[1]);
+        DocumentUpdate update = BinaryLineCodec.decodeUpdate(frame);
+        assertTrue(update.isSnapshot());
+        assertFalse(update.isPage());
+        assertEquals(11L, update.getVersion());
+        assertEquals(lines, update.getLines());
+    }
+
+    @Test
+    void pageRoundTrip() {
+        List<String> lines = List.of("c", "d");
+        byte[] frame = BinaryLineCodec.encodeUpdate(DocumentUpdate.page("doc.txt", 42L, 11, 2, 300, lines));
+        assertEquals(BinaryLineCodec.PAGE, frame[0]);
+        assertEquals(BinaryLineCodec.UPDATE_VERSION, frame[1]);
+        DocumentUpdate update = BinaryLineCodec.decodeUpdate(frame);
+        assertTrue(update.isPage());
+        assertEquals(2, update.getFirstLine());
+        assertEquals(300, update.getTotalLines());
+        assertEquals(lines, update.getLines());
+    }
+
+    @Test
+    void crdtSnapshotRoundTrip() {
+        LineSequence sequence = LineSequence.forServer(4);
+        sequence.localEdit(LineEdit.delete(1, 1), 2);
+        sequence.localEdit(LineEdit.insert(0, List.of("z")), 3);
+        List<String> lines = List.of("z", "a", "c", "d");
+        byte[] frame = BinaryLineCodec.encodeUpdate(DocumentUpdate.snapshot("doc.txt", 42L, 3, lines).withSequence(sequence.copyFor(5)));
+        assertEquals(BinaryLineCodec.CRDT_SNAPSHOT, frame[0]);
+        assertEquals(BinaryLineCodec.UPDATE_VERSION, frame[1]);
+        DocumentUpdate update = BinaryLineCodec.decodeUpdate(frame);
+        assertEquals(lines, update.getLines());
+        LineSequence decoded = update.getSequence();
+        assertEquals(5, decoded.getSite());
+        assertEquals(sequence.size(), decoded.size());
+        for (int i = 0; i < sequence.size(); i++) {
+            assertEquals(sequence.idAt(i), decoded.idAt(i));
+        }
+    }
+
+    @Test
+    void opsRoundTrip() {
+        LineSequence sequence = LineSequence.forServer(2).copyFor(3);
+        List<CrdtOp> ops = new ArrayList<>(sequence.localEdit(LineEdit.insert(1, List.of("x", "y")), LineSequence.PENDING));
+        ops.addAll(sequence.localEdit(LineEdit.set(0, "first"), LineSequence.PENDING));
+        ops.addAll(sequence.localEdit(LineEdit.delete(2, 2), LineSequence.PENDING));
+        byte[] frame = BinaryLineCodec.encodeOps("doc.txt", 42L, 6, ops);
+        assertEquals(BinaryLineCodec.OPS, frame[0]);
+        assertEquals(BinaryLineCodec.OPS_VERSION, frame[1]);
+        LineMessage message = BinaryLineCodec.decodeOps(frame);
+        assertTrue(message.isCrdt());
+        assertEquals(42L, message.getEpoch());
+        assertEquals(6L, message.getBaseVersion());
+        assertEquals(ops.toString(), message.getOps().toString());
+    }
+
+    @Test
+    void syncRequestRoundTrip() {
+        SyncRequest request = BinaryLineCodec.decodeSyncRequest(
+                BinaryLineCodec.encodeSyncRequest(new SyncRequest("doc.txt", 42L, 13, 64, 64, true)));
+        assertEquals("doc.txt", request.getFileId());
+        assertEquals(42L, request.getEpoch());
+        assertEquals(13L, request.getVersion());
+        assertEquals(64, request.getFirstLine());
+        assertEquals(64, request.getLineCount());
+        assertTrue(request.isCrdt());
+        assertFalse(BinaryLineCodec.decodeSyncRequest(
+                BinaryLineCodec.encodeSyncRequest(new SyncRequest("doc.txt", 42L, 13))).isCrdt());
+    }
+
+    @Test
+    void probeRoundTrip() {
+        HashProbe probe = new HashProbe("doc.txt", 42L, 13, 5000, true, 1,
+                new int[] {0, 3, 200}, new long[] {-1L, 0L, Long.MIN_VALUE});
+        byte[] frame = BinaryLineCodec.encodeProbe(probe);
+        assertEquals(BinaryLineCodec.PROBE, frame[0]);
+        assertEquals(BinaryLineCodec.PROBE_VERSION, frame[1]);
+        HashProbe decoded = BinaryLineCodec.decodeProbe(frame);
+        assertEquals(5000, decoded.getLineCount());
+        assertTrue(decoded.isCrdt());
+        assertEquals(1, decoded.getLevel());
+        assertArrayEquals(probe.getNodes(), decoded.getNodes());
+        assertArrayEquals(probe.getHashes(), decoded.getHashes());
+    }
+
+    @Test
+    void probeNodesMustAscend() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new HashProbe("doc.txt", 42L, 1, 10, false, 0, new int[] {3, 1}, new long[] {0, 0}));
+        assertThrows(IllegalArgumentException.class,
+                () -> new HashProbe("doc.txt", 42L, 1, 10, false, 0, new int[] {2, 2}, new long[] {0, 0}));
+        assertThrows(IllegalArgumentException.class,
+                () -> new HashProbe("doc.txt", 42L, 1, 10, false, 0, new int[] {-1}, new long[] {0}));
+    }
+
+    @Test
+    void rejectsOverlongVarint() {
+        byte[] frame = BinaryLineCodec.encode("doc.txt", List.of(LineEdit.delete(0, 1)));
+        // The edit count is the varint right after the header and the file id
+        int count = 2 + 1 + "doc.txt".length();
+        assertEquals(1, frame[count]);
+        byte[] overlong = new byte[frame.length + 4];
+        System.arraycopy(frame, 0, overlong, 0, count);
+        // 1 padded to five bytes, with a bit set past the 32 a varint holds
+        overlong[count] = (byte) 0x81;
+        overlong[count + 1] = (byte) 0x80;
+        overlong[count + 2] = (byte) 0x80;
+        overlong[count + 3] = (byte) 0x80;
+        overlong[count + 4] = 0x10;
+        System.arraycopy(frame, count + 1, overlong, count + 5, frame.length - count - 1);
+        assertThrows(IllegalArgumentException.class, () -> BinaryLineCodec.decode(overlong));
+        // The same five bytes without the stray bit still decode
+        overlong[count + 4] = 0x00;
+        assertEquals(1, BinaryLineCodec.decode(overlong).getEdits().size());
+    }
+
+    @Test
+    void rejectsOverlongVarlong() {
+        byte[] frame = BinaryLineCodec.encodeSyncRequest(new SyncRequest("doc.txt", 42L, 1));
+        int version = frame.length - 1;
+        byte[] overlong = Arrays.copyOf(frame, version + 10);
+        Arrays.fill(overlong, version, version + 9, (byte) 0xff);
+        overlong[version + 9] = 0x02;
+        assertThrows(IllegalArgumentException.class, () -> BinaryLineCodec.decodeSyncRequest(overlong));
+        overlong[version + 9] = 0x01;
+        assertEquals(-1L, BinaryLineCodec.decodeSyncRequest(overlong).getVersion());
+    }
+
+    @Test
+    void checksTheTypeAndVersionOfAFrame() {
+        byte[] probe = BinaryLineCodec.encodeProbe(new HashProbe("doc.txt", 42L, 1, 10, false, 0, new int[] {0}, new long[] {7}));
+        assertThrows(IllegalArgumentException.class, () -> BinaryLineCodec.decodeUpdate(probe));
+        assertThrows(IllegalArgumentException.class, () -> BinaryLineCodec.decodeSyncRequest(probe));
+
+        // A type's next format version is not read as this one
+        byte[] edits = BinaryLineCodec.encode("doc.txt", List.of(LineEdit.set(0, "x")));
+        edits[1] = BinaryLineCodec.EDITS_VERSION + 1;
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> BinaryLineCodec.decode(edits));
+        assertTrue(e.getMessage().contains("version"));
+        byte[] batch = BinaryLineCodec.encodeUpdate(DocumentUpdate.batch("doc.txt", 42L, 1, 2, List.of()));
+        batch[1] = BinaryLineCodec.UPDATE_VERSION + 1;
+        assertThrows(IllegalArgumentException.class, () -> BinaryLineCodec.decodeUpdate(batch));
+    }
+
+    @Test
+    void rejectsTruncatedFrames() {
+        byte[] frame = BinaryLineCodec.encodeUpdate(DocumentUpdate.snapshot("doc.txt", 42L, 11, List.of("one", "two")));
+        for (int length = 0; length < frame.length; length++) {
+            byte[] truncated = Arrays.copyOf(frame, length);
+            assertThrows(IllegalArgumentException.class, () -> BinaryLineCodec.decodeUpdate(truncated));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package myEditorLineByLine;
+
+import org.junit.jupiter.api.Test;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.PlainDocument;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DocumentEditsTest {
+
+    @Test
+    void replacesLinesInTheMiddle() throws Exception {
+        assertApplies("a\nb\nc\nd", LineEdit.set(1, "B"), LineEdit.insert(3, List.of("x", "y")));
+        assertApplies("a\nb\nc\nd", LineEdit.replace(1, 2, List.of("x")), LineEdit.delete(0, 1));
+        assertApplies("a\nb\nc", LineEdit.replace(1, 1, List.of("x", "y", "z")));
+    }
+
+    @Test
+    void replacingNoLinesInsertsThem() throws Exception {
+        assertEquals("x\nl0", apply("l0", LineEdit.replace(0, 0, List.of("x"))));
+        assertApplies("l0\nl1", LineEdit.replace(1, 0, List.of("x")));
+    }
+
+    @Test
+    void padsEditsPastTheEnd() throws Exception {
+        assertEquals("a\n\n\nx", apply("a", LineEdit.set(3, "x")));
+        assertApplies("a\nb", LineEdit.insert(4, List.of("x")));
+        assertApplies("a", LineEdit.replace(2, 3, List.of("x", "y")), LineEdit.set(6, "z"));
+        assertApplies("", LineEdit.set(0, "x"), LineEdit.set(2, "y"));
+    }
+
+    @Test
+    void deletesToTheEnd() throws Exception {
+        assertEquals("a", apply("a\nb\nc", LineEdit.delete(1, 2)));
+        assertApplies("a\nb\nc", LineEdit.delete(1, 10));
+        assertApplies("a\nb\nc", LineEdit.delete(2, 1), LineEdit.set(1, "B"));
+        // Deletes past the end change nothing
+        assertEquals("a\nb", apply("a\nb", LineEdit.delete(2, 1), LineEdit.delete(5, 2)));
+        // The text area keeps one empty line when everything goes
+        assertEquals("", apply("a\nb\nc", LineEdit.delete(0, 3)));
+        assertEquals("x", apply("a\nb", LineEdit.delete(0, 2), LineEdit.set(0, "x")));
+    }
+
+    @Test
+    void matchesApplyingEachEditToTheLines() throws Exception {
+        Random random = new Random(11);
+        for (int round = 0; round < 500; round++) {
+            List<String> lines = new ArrayList<>();
+            int size = 1 + random.nextInt(6);
+            for (int i = 0; i < size; i++) {
+                lines.add(random.nextInt(4) == 0 ? "" : "l" + i);
+            }
+            LineEdit[] edits = new LineEdit[1 + random.nextInt(5)];
+            for (int i = 0; i < edits.length; i++) {
+                edits[i] = randomEdit(random, size + 2);
+            }
+            assertApplies(String.join("\n", lines), edits);
+        }
+    }
+
+    private static LineEdit randomEdit(Random random, int size) {
+        int line = random.nextInt(size + 2);
+        switch (random.nextInt(4)) {
+            case 0:
+                return LineEdit.insert(line, List.of("i" + random.nextInt(100)));
+            case 1:
+                return LineEdit.delete(line, random.nextInt(4));
+            case 2:
+                return LineEdit.replace(line, random.nextInt(3), List.of("r" + random.nextInt(100), "q"));
+            default:
+                return LineEdit.set(line, "s" + random.nextInt(100));
+        }
+    }
+
+    /**
+     * Checks that applying {@code edits} to {@code text} gives what {@link LineEdit#applyTo}
+     * gives on its lines, and that the lines reported replaced add up to the new line count.
+     */
+    private static void assertApplies(String text, LineEdit... edits) throws BadLocationException {
+        List<String> lines = new ArrayList<>(Arrays.asList(text.split("\n", -1)));
+        for (LineEdit edit : edits) {
+            edit.applyTo(lines);
+            if (lines.isEmpty()) {
+                lines.add("");
+            }
+        }
+        PlainDocument doc = new PlainDocument();
+        doc.insertString(0, text, null);
+        int[] lineCount = {doc.getDefaultRootElement().getElementCount()};
+        DocumentEdits.applyAll(doc, List.of(edits), (index, removed, added) -> lineCount[0] += added - removed);
+        String message = text.replace("\n", "|") + " " + Arrays.toString(edits);
+        assertEquals(String.join("\n", lines), doc.getText(0, doc.getLength()), message);
+        assertEquals(doc.getDefaultRootElement().getElementCount(), Math.max(1, lineCount[0]), message);
+    }
+
+    private static String apply(String text, LineEdit... edits) throws BadLocationException {
+        PlainDocument doc = new PlainDocument();
+        doc.insertString(0, text, null);
+        DocumentEdits.applyAll(doc, List.of(edits), (index, removed, added) -> { });
+        return doc.getText(0, doc.getLength());
+    }
+}
@@ -0,0 +1,193 @@
+package myEditorLineByLine;
+
+import myEditorCommon.ShardedExecutor;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EditBatcherTest {
+
+    @Test
+    void dropsQueuesOnceDrained() throws Exception {
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        try (ShardedExecutor shards = new ShardedExecutor(2, "test-shard")) {
+            EditBatcher batcher = new EditBatcher(shards, 4, 0, (fileId, segments) -> handled.add(fileId));
+            int documents = 50;
+            CountDownLatch acked = new CountDownLatch(documents * 10);
+            for (int i = 0; i < documents * 10; i++) {
+                batcher.offer(new LineMessage("doc-" + (i % documents), List.of(LineEdit.set(0, "x"))), acked::countDown, () -> { });
+            }
+            assertTrue(acked.await(10, TimeUnit.SECONDS));
+            awaitNoQueues(batcher);
+            assertTrue(handled.size() >= documents);
+        }
+    }
+
+    @Test
+    void runsWaitingTasksBehindLingeringMessages() throws Exception {
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        try (ShardedExecutor shards = new ShardedExecutor(1, "test-shard")) {
+            EditBatcher batcher = new EditBatcher(shards, 256, 50,
+                    (fileId, segments) -> order.add("batch of " + segments.get(0).getEdits().size()));
+            CountDownLatch done = new CountDownLatch(1);
+            batcher.offer(new LineMessage("doc", List.of(LineEdit.set(0, "a"))));
+            batcher.offer(new LineMessage("doc", List.of(LineEdit.set(1, "b"))));
+            batcher.afterPending("doc", () -> {
+                order.add("task");
+                done.countDown();
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(List.of("batch of 2", "task"), order);
+
+            // With nothing pending the task runs right away, and leaves no queue behind
+            CountDownLatch idle = new CountDownLatch(1);
+            batcher.afterPending("other", idle::countDown);
+            assertTrue(idle.await(10, TimeUnit.SECONDS));
+            awaitNoQueues(batcher);
+        }
+    }
+
+    @Test
+    void rejectsBatchesTheHandlerCouldNotApply() throws Exception {
+        List<String> settled = Collections.synchronizedList(new ArrayList<>());
+        try (ShardedExecutor shards = new ShardedExecutor(1, "test-shard")) {
+            EditBatcher batcher = new EditBatcher(shards, 256, 50, (fileId, segments) -> !fileId.equals("broken"));
+            CountDownLatch done = new CountDownLatch(2);
+            for (String fileId : new String[] {"broken", "fine"}) {
+                batcher.offer(new LineMessage(fileId, List.of(LineEdit.set(0, "x"))), () -> {
+                    settled.add(fileId + " acked");
+                    done.countDown();
+                }, () -> {
+                    settled.add(fileId + " rejected");
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertTrue(settled.contains("broken rejected"));
+            assertTrue(settled.contains("fine acked"));
+            assertEquals(2, settled.size());
+        }
+    }
+
+    @Test
+    void keepsSameLineWritesOfDifferentSendersApart() {
+        List<LineMessage> segments = EditBatcher.segments(List.of(
+                new LineMessage("doc", "a", List.of(LineEdit.set(1, "a1"))),
+                new LineMessage("doc", "a", List.of(LineEdit.set(1, "a2"))),
+                new LineMessage("doc", "b", List.of(LineEdit.set(1, "b1"))),
+                new LineMessage("doc", "a", List.of(LineEdit.set(1, "a3")))));
+        assertEquals(3, segments.size());
+        // A sender's own writes to a line fold into its last one
+        assertEquals(List.of("a", "b", "a"), List.of(segments.get(0).getOrigin(), segments.get(1).getOrigin(), segments.get(2).getOrigin()));
+        assertEquals(List.of("a2"), only(segments.get(0)).getLines());
+        assertEquals(List.of("b1"), only(segments.get(1)).getLines());
+        // The last writer wins once the segments are applied in order
+        List<String> lines = new ArrayList<>(List.of("x", "y"));
+        for (LineMessage segment : segments) {
+            segment.getEdits().forEach(edit -> edit.applyTo(lines));
+        }
+        assertEquals(List.of("x", "a3"), lines);
+    }
+
+    @Test
+    void foldsASetIntoTheLinesAnInsertWrote() {
+        LineEdit merged = onlyEdit(EditBatcher.coalesce(List.of(LineEdit.insert(1, List.of("a", "b")), LineEdit.set(2, "B"))));
+        assertEquals(LineEdit.Kind.INSERT, merged.getKind());
+        assertEquals(1, merged.getLine());
+        assertEquals(List.of("a", "B"), merged.getLines());
+
+        // Past the inserted lines, or behind a delete, the set is about another line and stays
+        assertCoalescesLike(List.of(LineEdit.insert(1, List.of("a")), LineEdit.set(2, "x")), 2);
+        assertCoalescesLike(List.of(LineEdit.insert(1, List.of("a")), LineEdit.set(0, "x")), 2);
+        assertCoalescesLike(List.of(LineEdit.delete(1, 1), LineEdit.set(1, "x")), 2);
+        assertCoalescesLike(List.of(LineEdit.set(1, "x"), LineEdit.delete(0, 1), LineEdit.set(0, "y")), 3);
+        assertCoalescesLike(List.of(LineEdit.set(1, "x"), LineEdit.insert(0, List.of("i")), LineEdit.set(1, "y")), 3);
+    }
+
+    @Test
+    void foldsASetIntoTheLinesAReplaceWrote() {
+        LineEdit merged = onlyEdit(EditBatcher.coalesce(List.of(LineEdit.replace(1, 2, List.of("a", "b", "c")), LineEdit.set(3, "C"))));
+        assertEquals(LineEdit.Kind.REPLACE, merged.getKind());
+        assertEquals(1, merged.getLine());
+        assertEquals(2, merged.getCount());
+        assertEquals(List.of("a", "b", "C"), merged.getLines());
+
+        assertCoalescesLike(List.of(LineEdit.replace(1, 3, List.of("a")), LineEdit.set(1, "A"), LineEdit.set(1, "AA")), 1);
+        assertCoalescesLike(List.of(LineEdit.replace(1, 3, List.of("a")), LineEdit.set(2, "x")), 2);
+        // Past the end the replace pads, and so does the set
+        assertCoalescesLike(List.of(LineEdit.replace(6, 2, List.of("a", "b")), LineEdit.set(7, "B")), 1);
+    }
+
+    @Test
+    void coalescedEditsApplyLikeTheOriginals() {
+        Random random = new Random(3);
+        for (int round = 0; round < 1000; round++) {
+            List<LineEdit> edits = new ArrayList<>();
+            for (int i = 0, n = 1 + random.nextInt(6); i < n; i++) {
+                int line = random.nextInt(6);
+                switch (random.nextInt(5)) {
+                    case 0:
+                        edits.add(LineEdit.insert(line, List.of("i" + i, "j" + i)));
+                        break;
+                    case 1:
+                        edits.add(LineEdit.delete(line, random.nextInt(3)));
+                        break;
+                    case 2:
+                        edits.add(LineEdit.replace(line, random.nextInt(3), List.of("r" + i, "q" + i)));
+                        break;
+                    default:
+                        edits.add(LineEdit.set(line, "s" + i));
+                        break;
+                }
+            }
+            assertCoalescesLike(edits, -1);
+        }
+    }
+
+    /**
+     * Checks that the coalesced edits, {@code expectedCount} of them unless negative, give the
+     * same lines as {@code edits} on documents of several lengths.
+     */
+    private static void assertCoalescesLike(List<LineEdit> edits, int expectedCount) {
+        List<LineEdit> coalesced = EditBatcher.coalesce(edits);
+        if (expectedCount >= 0) {
+            assertEquals(expectedCount, coalesced.size(), edits.toString());
+        }
+        for (int size = 0; size < 8; size++) {
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                expected.add("l" + i);
+            }
+            List<String> actual = new ArrayList<>(expected);
+            edits.forEach(edit -> edit.applyTo(expected));
+            coalesced.forEach(edit -> edit.applyTo(actual));
+            assertEquals(expected, actual, edits + " on " + size + " lines");
+        }
+    }
+
+    private static LineEdit only(LineMessage segment) {
+        return onlyEdit(segment.getEdits());
+    }
+
+    private static LineEdit onlyEdit(List<LineEdit> edits) {
+        assertEquals(1, edits.size(), edits.toString());
+        return edits.get(0);
+    }
+
+    private static void awaitNoQueues(EditBatcher batcher) throws InterruptedException {
+        // The last acknowledgement runs just before its queue goes
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (batcher.pendingDocuments() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, batcher.pendingDocuments());
+    }
+}
@@ -0,0 +1,57 @@
+package myEditorLineByLine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRingTest {
+    private static final int PARTITIONS = 1024;
+
+    @Test
+    void onlyTheJoiningNodesPartitionsMove() {
+        HashRing two = new HashRing(List.of("a", "b"), 100);
+        HashRing three = new HashRing(List.of("a", "b", "c"), 100);
+        int moved = 0;
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            String before = two.ownerOf(partition);
+            String after = three.ownerOf(partition);
+            if (!before.equals(after)) {
+                assertEquals("c", after);
+                moved++;
+            }
+        }
+        // About a third, give or take how the points fall
+        assertTrue(moved > PARTITIONS / 5 && moved < PARTITIONS / 2, "moved " + moved);
+    }
+
+    @Test
+    void onlyTheLeavingNodesPartitionsMove() {
+        HashRing three = new HashRing(List.of("a", "b", "c"), 100);
+        HashRing two = new HashRing(List.of("a", "c"), 100);
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            String before = three.ownerOf(partition);
+            if (!before.equals("b")) {
+                assertEquals(before, two.ownerOf(partition));
+            } else {
+                assertTrue(Set.of("a", "c").contains(two.ownerOf(partition)));
+            }
+        }
+    }
+
+    @Test
+    void everyNodeAgreesOnTheOwners() {
+        // Nodes build the ring from the live set in whatever order they heard of it
+        HashRing one = new HashRing(List.of("a", "b", "c"), 100);
+        HashRing other = new HashRing(List.of("c", "a", "b"), 100);
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            assertEquals(one.ownerOf(partition), other.ownerOf(partition));
+        }
+        assertThrows(IllegalArgumentException.class, () -> new HashRing(List.of(), 100));
+        assertThrows(IllegalArgumentException.class, () -> new HashRing(List.of("a"), 0));
+    }
+}
@@ -0,0 +1,60 @@
+package myEditorLineByLine;
+
+import myEditorCommon.InProcessTransport;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HeadlessClientTest {
+
+    @Test
+    void repairsAShortDocumentWithoutLeavingCrdtMode() throws Exception {
+        Path directory = Files.createTempDirectory("headless-client");
+        System.setProperty("editor.log.dir", directory.resolve("oplog").toString());
+        // Fewer lines than one block of the hash tree, so the repair page is the whole document
+        String fileId = Files.writeString(directory.resolve("short.txt"), "one\ntwo\nthree\n", StandardCharsets.UTF_8)
+                .toAbsolutePath().toString();
+        InProcessTransport transport = InProcessTransport.connect(new InProcessTransport.Broker());
+        TextEditorByLineServer server = TextEditorByLineServer.start(transport, "test-node");
+        HeadlessClient client = new HeadlessClient(transport, update -> { });
+        HeadlessClient other = new HeadlessClient(transport, update -> { });
+        try {
+            client.open(fileId);
+            other.open(fileId);
+            await(() -> client.isSynced() && other.isSynced());
+            assertTrue(client.isMerging());
+
+            client.damage(1, "damaged");
+            assertTrue(client.verify());
+            await(() -> client.getRepairs() == 1);
+            assertEquals(List.of("one", "two", "three"), client.getLines());
+            assertTrue(client.isMerging());
+
+            // Still merging, so an insert lands where it was made on the other copy too
+            client.edit(List.of(LineEdit.insert(1, List.of("inserted"))));
+            await(() -> other.getLines().equals(client.getLines()));
+            assertEquals(List.of("one", "inserted", "two", "three"), other.getLines());
+            assertEquals(0, client.getRejections());
+        } finally {
+            client.close();
+            other.close();
+            server.close();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
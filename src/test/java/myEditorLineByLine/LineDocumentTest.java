@@ -0,0 +1,127 @@
+package myEditorLineByLine;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LineDocumentTest {
+
+    @Test
+    void waitsForTheLogToBeSynced() throws IOException {
+        Path directory = Files.createTempDirectory("line-document");
+        Path file = Files.writeString(directory.resolve("a.txt"), "one\n", StandardCharsets.UTF_8);
+        String fileId = file.toString();
+        LineDocument document = LineDocument.load(fileId, directory.resolve("log"), 16, Long.MAX_VALUE, 100);
+        document.sync();
+        List<String> ran = new ArrayList<>();
+        document.whenDurable(() -> ran.add("before any edit"));
+        assertEquals(List.of("before any edit"), ran);
+
+        document.apply(List.of(new LineMessage(fileId, "a", List.of(LineEdit.set(0, "first")))));
+        document.whenDurable(() -> ran.add("first"));
+        document.apply(List.of(new LineMessage(fileId, "a", List.of(LineEdit.set(0, "second")))));
+        document.whenDurable(() -> ran.add("second"));
+        assertEquals(1, ran.size());
+        assertTrue(document.sync());
+        assertEquals(List.of("before any edit", "first", "second"), ran);
+
+        // Closing forces the log too
+        document.apply(List.of(new LineMessage(fileId, "a", List.of(LineEdit.set(0, "third")))));
+        document.whenDurable(() -> ran.add("third"));
+        document.close();
+        assertEquals(4, ran.size());
+    }
+
+    @Test
+    void batchThatCannotBeLoggedIsNotApplied() throws IOException {
+        Path directory = Files.createTempDirectory("line-document");
+        Path file = Files.writeString(directory.resolve("a.txt"), "one\ntwo\nthree\n", StandardCharsets.UTF_8);
+        String fileId = file.toString();
+        LineDocument document = LineDocument.load(fileId, directory.resolve("log"), 16, Long.MAX_VALUE, 100);
+        assertNotNull(document.apply(List.of(new LineMessage(fileId, "a", List.of(LineEdit.set(0, "first"))))));
+
+        // A closed log fails the next append, as a full or broken disk would
+        document.close();
+        assertThrows(IOException.class,
+                () -> document.apply(List.of(new LineMessage(fileId, "a", List.of(LineEdit.insert(1, List.of("lost")))))));
+        assertTrue(document.isDiscarded());
+        assertNull(document.catchUp(new SyncRequest(fileId, SyncRequest.UNKNOWN_EPOCH, 0)));
+        assertNull(document.apply(List.of(new LineMessage(fileId, "a", List.of(LineEdit.set(1, "late"))))));
+        assertEquals(false, document.flush());
+
+        // Loaded again, it has what was logged and nothing else
+        LineDocument reloaded = LineDocument.load(fileId, directory.resolve("log"), 16, Long.MAX_VALUE, 100);
+        DocumentUpdate snapshot = reloaded.catchUp(new SyncRequest(fileId, SyncRequest.UNKNOWN_EPOCH, 0));
+        assertEquals(List.of("first", "two", "three"), snapshot.getLines());
+        reloaded.close();
+    }
+
+    @Test
+    void editFarPastTheEndIsRejectedBeforeTheSequence() throws IOException {
+        Path directory = Files.createTempDirectory("line-document");
+        Path file = Files.writeString(directory.resolve("a.txt"), "one\ntwo\n", StandardCharsets.UTF_8);
+        String fileId = file.toString();
+        LineDocument document = LineDocument.load(fileId, directory.resolve("log"), 16, Long.MAX_VALUE, 100);
+        DocumentUpdate update = document.apply(List.of(new LineMessage(fileId, "a",
+                List.of(LineEdit.set(0, "first"), LineEdit.set(Integer.MAX_VALUE - 1, "far"), LineEdit.set(1, "never")))));
+        LineMessage segment = update.getSegments().get(0);
+        assertTrue(segment.isRejected());
+        // It carries the edits that were applied before the one that was not
+        assertEquals(1, segment.getEdits().size());
+        assertEquals(List.of("first"), segment.getEdits().get(0).getLines());
+
+        // The lines and their ids still agree, and the document takes the next edit
+        assertNotNull(document.apply(List.of(new LineMessage(fileId, "b", List.of(LineEdit.insert(2, List.of("three")))))));
+        DocumentUpdate snapshot = document.catchUp(new SyncRequest(fileId, SyncRequest.UNKNOWN_EPOCH, 0, true));
+        assertEquals(List.of("first", "two", "three"), snapshot.getLines());
+        assertEquals(3, snapshot.getSequence().size());
+        document.close();
+    }
+
+    @Test
+    void lineEditsMadeBeforeAnotherClientsChangeAreRejected() throws IOException {
+        Path directory = Files.createTempDirectory("line-document");
+        Path file = Files.writeString(directory.resolve("a.txt"), "one\ntwo\n", StandardCharsets.UTF_8);
+        String fileId = file.toString();
+        LineDocument document = LineDocument.load(fileId, directory.resolve("log"), 16, Long.MAX_VALUE, 100);
+        long epoch = document.catchUp(new SyncRequest(fileId, SyncRequest.UNKNOWN_EPOCH, 0)).getEpoch();
+
+        // Our own edits since the base version do not move the lines we numbered
+        document.apply(List.of(new LineMessage(fileId, "a", List.of(LineEdit.insert(0, List.of("zero")))).madeAt(epoch, 0)));
+        DocumentUpdate update = document.apply(List.of(
+                new LineMessage(fileId, "a", List.of(LineEdit.set(1, "first"))).madeAt(epoch, 0)));
+        assertFalse(update.getSegments().get(0).isRejected());
+
+        // Another client's edit does, in an earlier version or earlier in the same batch
+        document.apply(List.of(new LineMessage(fileId, "b", List.of(LineEdit.delete(0, 1))).madeAt(epoch, 2)));
+        update = document.apply(List.of(new LineMessage(fileId, "a", List.of(LineEdit.set(2, "second"))).madeAt(epoch, 2)));
+        assertTrue(update.getSegments().get(0).isRejected());
+        assertTrue(update.getSegments().get(0).getEdits().isEmpty());
+        update = document.apply(List.of(
+                new LineMessage(fileId, "b", List.of(LineEdit.set(0, "b"))).madeAt(epoch, 4),
+                new LineMessage(fileId, "a", List.of(LineEdit.set(1, "a"))).madeAt(epoch, 4)));
+        assertFalse(update.getSegments().get(0).isRejected());
+        assertTrue(update.getSegments().get(1).isRejected());
+
+        // Once turned down, what the client sent on top of it is turned down too
+        update = document.apply(List.of(new LineMessage(fileId, "a", List.of(LineEdit.set(0, "late"))).madeAt(epoch, 4)));
+        assertTrue(update.getSegments().get(0).isRejected());
+
+        // Edits that do not say their version are applied as they come
+        assertFalse(document.apply(List.of(new LineMessage(fileId, "c", List.of(LineEdit.set(1, "c"))))).getSegments().get(0).isRejected());
+        assertEquals(List.of("b", "c"), document.catchUp(new SyncRequest(fileId, SyncRequest.UNKNOWN_EPOCH, 0)).getLines());
+        document.close();
+    }
+}
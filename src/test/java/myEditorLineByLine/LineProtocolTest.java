@@ -0,0 +1,30 @@
+package myEditorLineByLine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LineProtocolTest {
+
+    @Test
+    void parsesWhatItFormats() {
+        List<LineEdit> edits = List.of(LineEdit.set(3, "a:b"), LineEdit.insert(0, List.of("x", "")),
+                LineEdit.delete(2, 4), LineEdit.replace(1, 2, List.of("y")));
+        String message = LineProtocol.format("doc", edits);
+        assertEquals("doc", LineProtocol.fileIdOf(message));
+        assertEquals(message, LineProtocol.format("doc", LineProtocol.parseEdits(message)));
+    }
+
+    @Test
+    void downConvertsOnlyEditsThatKeepTheLines() {
+        List<LineEdit> sets = LineProtocol.toSets(List.of(LineEdit.set(0, "a"), LineEdit.replace(2, 2, List.of("b", "c")), LineEdit.delete(1, 0)));
+        assertEquals("doc::0:a;2:b;3:c;", LineProtocol.format("doc", sets));
+
+        assertNull(LineProtocol.toSets(List.of(LineEdit.set(0, "a"), LineEdit.insert(1, List.of("b")))));
+        assertNull(LineProtocol.toSets(List.of(LineEdit.delete(1, 1))));
+        assertNull(LineProtocol.toSets(List.of(LineEdit.replace(1, 2, List.of("b")))));
+    }
+}
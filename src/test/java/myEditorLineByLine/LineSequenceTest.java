@@ -0,0 +1,223 @@
+package myEditorLineByLine;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LineSequenceTest {
+
+    @Test
+    void concurrentInsertsAtTheSamePlaceConverge() {
+        Replica server = Replica.server("a", "b");
+        Replica one = server.copyFor(1);
+        Replica two = server.copyFor(2);
+        List<CrdtOp> fromOne = one.edit(LineEdit.insert(1, List.of("x")));
+        List<CrdtOp> fromTwo = two.edit(LineEdit.insert(1, List.of("y")));
+
+        one.receive(fromTwo, 1);
+        two.receive(fromOne, 1);
+        server.receive(fromTwo, 1);
+        server.receive(fromOne, 2);
+        // Same clock, so the greater site goes first
+        assertEquals(List.of("a", "y", "x", "b"), one.lines);
+        assertEquals(one.lines, two.lines);
+        assertEquals(one.lines, server.lines);
+    }
+
+    @Test
+    void ordersConcurrentInsertsByClockThenSite() {
+        Replica server = Replica.server("a", "b");
+        Replica one = server.copyFor(1);
+        Replica two = server.copyFor(2);
+        List<CrdtOp> fromOne = new ArrayList<>(one.edit(LineEdit.insert(2, List.of("p"))));
+        fromOne.addAll(one.edit(LineEdit.insert(1, List.of("x"))));
+        List<CrdtOp> fromTwo = two.edit(LineEdit.insert(1, List.of("y")));
+        assertTrue(fromOne.get(1).getId().compareTo(fromTwo.get(0).getId()) > 0);
+
+        one.receive(fromTwo, 1);
+        two.receive(fromOne, 1);
+        // The later clock goes first although its site is smaller
+        assertEquals(List.of("a", "x", "y", "b", "p"), one.lines);
+        assertEquals(one.lines, two.lines);
+    }
+
+    @Test
+    void deletesLinesOfOtherSites() {
+        Replica server = Replica.server("a", "b");
+        Replica one = server.copyFor(1);
+        Replica two = server.copyFor(2);
+        two.receive(one.edit(LineEdit.insert(1, List.of("x", "y", "z"))), 1);
+        assertEquals(List.of("a", "x", "y", "z", "b"), two.lines);
+
+        // Two deletes the middle of one's run and a line of the server; one sets that line meanwhile
+        List<CrdtOp> deletes = new ArrayList<>(two.edit(LineEdit.delete(2, 1)));
+        deletes.addAll(two.edit(LineEdit.delete(0, 1)));
+        List<CrdtOp> set = one.edit(LineEdit.set(2, "Y"));
+        one.receive(deletes, 2);
+        two.receive(set, 2);
+        // A delete wins over a concurrent set
+        assertEquals(List.of("x", "z", "b"), one.lines);
+        assertEquals(one.lines, two.lines);
+
+        // A delete that comes again changes nothing
+        assertTrue(one.sequence.apply(deletes.get(0), 3).isEmpty());
+        assertEquals(-1, one.sequence.indexOf(deletes.get(0).getId()));
+    }
+
+    @Test
+    void collectsTombstonesOnceBehindTheHorizon() {
+        Replica server = Replica.server("a", "b", "c");
+        Replica client = server.copyFor(1);
+        server.sequence.localEdit(LineEdit.delete(1, 1), 5);
+        LineEdit.delete(1, 1).applyTo(server.lines);
+        LineId deleted = new LineId(LineSequence.SERVER_SITE, 2);
+        // A concurrent insert behind the deleted line keeps it until the insert is old too
+        CrdtOp insert = client.edit(LineEdit.insert(2, List.of("x"))).get(0);
+        assertEquals(deleted, insert.getAnchor());
+        server.receive(List.of(insert), 8);
+
+        assertEquals(0, server.sequence.collect(5));
+        assertEquals(1, server.sequence.collect(8));
+        assertEquals(8, server.sequence.getCollectedThrough());
+        // Nothing is collected twice, nor behind the last horizon
+        assertEquals(0, server.sequence.collect(8));
+        assertEquals(0, server.sequence.collect(6));
+        assertEquals(List.of("a", "x", "c"), server.lines);
+
+        // An op that follows a collected line can no longer be placed
+        CrdtOp late = CrdtOp.insert(deleted, new LineId(3, 100), List.of("late"));
+        assertThrows(IllegalArgumentException.class, () -> server.sequence.apply(late, 9));
+    }
+
+    @Test
+    void copyKeepsIdsTombstonesAndStamps() {
+        Replica server = Replica.server("a", "b", "c", "d");
+        server.sequence.localEdit(LineEdit.delete(1, 1), 1);
+        server.sequence.localEdit(LineEdit.set(1, "C"), 2);
+        LineEdit.delete(1, 1).applyTo(server.lines);
+        LineEdit.set(1, "C").applyTo(server.lines);
+
+        Replica copy = server.copyFor(5);
+        assertEquals(5, copy.sequence.getSite());
+        assertEquals(server.sequence.getClock(), copy.sequence.getClock());
+        assertEquals(server.sequence.size(), copy.sequence.size());
+        for (int i = 0; i < server.sequence.size(); i++) {
+            assertEquals(server.sequence.idAt(i), copy.sequence.idAt(i));
+        }
+        assertEquals(server.sequence.runs().size(), copy.sequence.runs().size());
+        assertEquals(server.sequence.stamps(), copy.sequence.stamps());
+
+        // The tombstone is still there to anchor an insert made concurrently with the delete
+        LineId id = new LineId(9, server.sequence.getClock() + 1);
+        CrdtOp behindDeleted = CrdtOp.insert(new LineId(LineSequence.SERVER_SITE, 2), id, List.of("x"));
+        copy.receive(List.of(behindDeleted), 3);
+        server.receive(List.of(behindDeleted), 3);
+        assertEquals(List.of("a", "x", "C", "d"), copy.lines);
+        assertEquals(copy.lines, server.lines);
+
+        // The copy's own ids are greater than any it was handed, so they never collide
+        CrdtOp own = copy.edit(LineEdit.insert(0, List.of("first"))).get(0);
+        assertTrue(own.getId().getClock() > server.sequence.getClock());
+        server.receive(List.of(own), 4);
+        assertEquals(copy.lines, server.lines);
+    }
+
+    @Test
+    void sameOpsInAnyOrderGiveTheSameLines() {
+        Random random = new Random(7);
+        for (int round = 0; round < 50; round++) {
+            Replica server = Replica.server("a", "b", "c", "d", "e");
+            List<Replica> sites = new ArrayList<>();
+            for (int site = 1; site <= 3; site++) {
+                sites.add(server.copyFor(site));
+            }
+            // Every site edits its own replica without hearing from the others
+            List<List<CrdtOp>> made = new ArrayList<>();
+            for (Replica site : sites) {
+                List<CrdtOp> ops = new ArrayList<>();
+                for (int i = 0; i < 6; i++) {
+                    ops.addAll(site.edit(randomEdit(random, site.lines.size())));
+                }
+                made.add(ops);
+            }
+
+            Replica inOrder = server.copyFor(10);
+            Replica shuffled = server.copyFor(11);
+            long version = 1;
+            for (List<CrdtOp> ops : made) {
+                inOrder.receive(ops, version++);
+            }
+            // Interleaved at random, but each site's ops in the order it made them
+            int[] next = new int[made.size()];
+            int left = made.stream().mapToInt(List::size).sum();
+            while (left > 0) {
+                int site = random.nextInt(made.size());
+                if (next[site] < made.get(site).size()) {
+                    shuffled.receive(List.of(made.get(site).get(next[site]++)), version++);
+                    left--;
+                }
+            }
+            assertEquals(inOrder.lines, shuffled.lines, "round " + round);
+            assertEquals(inOrder.lines.size(), inOrder.sequence.size());
+            assertEquals(shuffled.lines.size(), shuffled.sequence.size());
+            for (int i = 0; i < inOrder.sequence.size(); i++) {
+                assertEquals(inOrder.sequence.idAt(i), shuffled.sequence.idAt(i));
+            }
+        }
+    }
+
+    private static LineEdit randomEdit(Random random, int size) {
+        int line = random.nextInt(size + 1);
+        switch (random.nextInt(4)) {
+            case 0:
+                return LineEdit.insert(line, List.of("i" + random.nextInt(100), "j" + random.nextInt(100)));
+            case 1:
+                return size == 0 ? LineEdit.insert(0, List.of("k")) : LineEdit.delete(Math.min(line, size - 1), 1 + random.nextInt(2));
+            case 2:
+                return LineEdit.replace(line, random.nextInt(3), List.of("r" + random.nextInt(100)));
+            default:
+                return LineEdit.set(line, "s" + random.nextInt(100));
+        }
+    }
+
+    /**
+     * A sequence and the lines it names, kept in step the way a client keeps its text area.
+     */
+    private static final class Replica {
+        private final LineSequence sequence;
+        private final List<String> lines;
+
+        Replica(LineSequence sequence, List<String> lines) {
+            this.sequence = sequence;
+            this.lines = lines;
+        }
+
+        static Replica server(String... lines) {
+            return new Replica(LineSequence.forServer(lines.length), new ArrayList<>(List.of(lines)));
+        }
+
+        Replica copyFor(int site) {
+            return new Replica(sequence.copyFor(site), new ArrayList<>(lines));
+        }
+
+        List<CrdtOp> edit(LineEdit edit) {
+            List<CrdtOp> ops = sequence.localEdit(edit, LineSequence.PENDING);
+            edit.applyTo(lines);
+            return ops;
+        }
+
+        void receive(List<CrdtOp> ops, long version) {
+            for (CrdtOp op : ops) {
+                for (LineEdit edit : sequence.apply(op, version)) {
+                    edit.applyTo(lines);
+                }
+            }
+        }
+    }
+}
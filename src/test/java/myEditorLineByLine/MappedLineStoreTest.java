@@ -0,0 +1,131 @@
+package myEditorLineByLine;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedLineStoreTest {
+
+    @Test
+    void rebasesOntoTheWrittenSnapshot() throws IOException {
+        Path directory = Files.createTempDirectory("mapped-line-store");
+        MappedLineStore store = MappedLineStore.map(Files.writeString(directory.resolve("a.txt"), "a\nb\nc\nd\n", StandardCharsets.UTF_8));
+        List<String> expected = new ArrayList<>(List.of("a", "b", "c", "d"));
+        apply(store, expected, LineEdit.set(1, "B"));
+        apply(store, expected, LineEdit.insert(3, List.of("x", "y")));
+        LineStore.Snapshot snapshot = store.snapshot();
+
+        // Edits made while the snapshot is written stay edits on top of the new file
+        apply(store, expected, LineEdit.delete(0, 1));
+        apply(store, expected, LineEdit.set(2, "X"));
+        store.snapshotWritten(write(directory.resolve("a.1"), snapshot), snapshot);
+
+        assertEquals(expected, lines(store));
+        // Lines edited before the snapshot are read from the new mapping, those after it from the heap
+        List<ByteBuffer> slices = store.slices(0, store.size());
+        assertTrue(slices.get(0).isDirect());
+        assertFalse(slices.get(2).isDirect());
+        assertTrue(slices.get(3).isDirect());
+    }
+
+    @Test
+    void snapshotOfAnOlderMappingIsIgnored() throws IOException {
+        Path directory = Files.createTempDirectory("mapped-line-store");
+        MappedLineStore store = MappedLineStore.map(Files.writeString(directory.resolve("a.txt"), "a\nb\n", StandardCharsets.UTF_8));
+        List<String> expected = new ArrayList<>(List.of("a", "b"));
+        apply(store, expected, LineEdit.set(0, "first"));
+        LineStore.Snapshot older = store.snapshot();
+        apply(store, expected, LineEdit.set(1, "second"));
+        LineStore.Snapshot newer = store.snapshot();
+
+        store.snapshotWritten(write(directory.resolve("a.2"), newer), newer);
+        store.snapshotWritten(write(directory.resolve("a.1"), older), older);
+        assertEquals(expected, lines(store));
+        assertTrue(store.slices(1, 2).get(0).isDirect());
+    }
+
+    @Test
+    void keepsTheOldMappingWhenTheSnapshotReadsBackOtherwise() throws IOException {
+        Path directory = Files.createTempDirectory("mapped-line-store");
+        MappedLineStore store = MappedLineStore.map(Files.writeString(directory.resolve("a.txt"), "a\nb\n", StandardCharsets.UTF_8));
+        List<String> expected = new ArrayList<>(List.of("a", "b"));
+        // A line break inside a line makes the written file one line longer
+        apply(store, expected, LineEdit.set(0, "one\ntwo"));
+        LineStore.Snapshot snapshot = store.snapshot();
+        store.snapshotWritten(write(directory.resolve("a.1"), snapshot), snapshot);
+        assertEquals(expected, lines(store));
+    }
+
+    @Test
+    void agreesWithAListAcrossManyRebases() throws IOException {
+        Path directory = Files.createTempDirectory("mapped-line-store");
+        StringBuilder content = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            content.append("line ").append(i).append('\n');
+            expected.add("line " + i);
+        }
+        MappedLineStore store = MappedLineStore.map(Files.writeString(directory.resolve("a.txt"), content, StandardCharsets.UTF_8));
+        Random random = new Random(42);
+        LineStore.Snapshot pending = null;
+        for (int step = 0; step < 2000; step++) {
+            int line = random.nextInt(expected.size() + 2);
+            switch (random.nextInt(4)) {
+                case 0:
+                    apply(store, expected, LineEdit.set(line, "set " + step));
+                    break;
+                case 1:
+                    apply(store, expected, LineEdit.insert(line, List.of("insert " + step, "")));
+                    break;
+                case 2:
+                    apply(store, expected, LineEdit.delete(line, 1 + random.nextInt(3)));
+                    break;
+                default:
+                    apply(store, expected, LineEdit.replace(line, random.nextInt(3), List.of("replace " + step)));
+                    break;
+            }
+            if (step % 50 == 0) {
+                pending = store.snapshot();
+            } else if (step % 50 == 25) {
+                store.snapshotWritten(write(directory.resolve("a." + step), pending), pending);
+            }
+            if (step % 100 == 99) {
+                assertEquals(expected, lines(store));
+            }
+        }
+        assertEquals(expected, lines(store));
+    }
+
+    private static void apply(LineStore store, List<String> expected, LineEdit edit) {
+        store.apply(edit);
+        edit.applyTo(expected);
+    }
+
+    private static Path write(Path file, LineStore.Snapshot snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            snapshot.writeTo(channel);
+        }
+        return file;
+    }
+
+    private static List<String> lines(LineStore store) {
+        List<String> lines = new ArrayList<>();
+        for (ByteBuffer slice : store.slices(0, store.size())) {
+            lines.add(StandardCharsets.UTF_8.decode(slice).toString());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,137 @@
+package myEditorLineByLine;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class OperationLogTest {
+    private static final long OLD = OperationLog.hash("one\n".getBytes(StandardCharsets.UTF_8));
+    private static final long NEW = OperationLog.hash("first\n".getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    void tornTailIsCutOff() throws IOException {
+        Path directory = Files.createTempDirectory("operation-log");
+        OperationLog log = OperationLog.open(directory, "a.txt", OLD, new ArrayList<>());
+        log.append(List.of(LineEdit.set(0, "first")));
+        log.append(List.of(LineEdit.insert(1, List.of("second"))));
+        log.close();
+        Path segment = onlySegment(directory);
+        long whole = Files.size(segment);
+
+        // A record cut short, as a crash in the middle of an append leaves it
+        Files.write(segment, new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+        List<List<LineEdit>> recovered = new ArrayList<>();
+        log = OperationLog.open(directory, "a.txt", OLD, recovered);
+        assertEquals(2, recovered.size());
+        assertEquals(whole, Files.size(segment));
+
+        // What comes after goes where the torn record was, and is read back with the rest
+        log.append(List.of(LineEdit.delete(0, 1)));
+        log.close();
+        recovered.clear();
+        OperationLog.open(directory, "a.txt", OLD, recovered).close();
+        assertEquals(3, recovered.size());
+        assertEquals(LineEdit.Kind.DELETE, recovered.get(2).get(0).getKind());
+    }
+
+    @Test
+    void recordWithABadChecksumEndsTheLog() throws IOException {
+        Path directory = Files.createTempDirectory("operation-log");
+        OperationLog log = OperationLog.open(directory, "a.txt", OLD, new ArrayList<>());
+        log.append(List.of(LineEdit.set(0, "first")));
+        log.append(List.of(LineEdit.set(0, "second")));
+        log.close();
+        Path segment = onlySegment(directory);
+        byte[] bytes = Files.readAllBytes(segment);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(segment, bytes);
+
+        List<List<LineEdit>> recovered = new ArrayList<>();
+        OperationLog.open(directory, "a.txt", OLD, recovered).close();
+        assertEquals(List.of("first"), recovered.get(0).get(0).getLines());
+        assertEquals(1, recovered.size());
+    }
+
+    @Test
+    void crashBeforeTheSnapshotReplacesTheFileReplaysBothSegments() throws IOException {
+        Path directory = Files.createTempDirectory("operation-log");
+        OperationLog log = OperationLog.open(directory, "a.txt", OLD, new ArrayList<>());
+        log.append(List.of(LineEdit.set(0, "first")));
+        log.rollOver(NEW);
+        log.append(List.of(LineEdit.insert(1, List.of("second"))));
+        // The snapshot never made it over the document file, and the file still hashes as before
+        log.close();
+
+        List<List<LineEdit>> recovered = new ArrayList<>();
+        OperationLog.open(directory, "a.txt", OLD, recovered).close();
+        assertEquals(2, recovered.size());
+        assertEquals(List.of("first"), recovered.get(0).get(0).getLines());
+        assertEquals(List.of("second"), recovered.get(1).get(0).getLines());
+    }
+
+    @Test
+    void crashBeforeTheCoveredSegmentsAreDeletedDoesNotReplayThem() throws IOException {
+        Path directory = Files.createTempDirectory("operation-log");
+        OperationLog log = OperationLog.open(directory, "a.txt", OLD, new ArrayList<>());
+        log.append(List.of(LineEdit.set(0, "first")));
+        log.rollOver(NEW);
+        log.append(List.of(LineEdit.insert(1, List.of("second"))));
+        // The snapshot replaced the document file, but the segment it covers is still there
+        log.close();
+
+        List<List<LineEdit>> recovered = new ArrayList<>();
+        OperationLog.open(directory, "a.txt", NEW, recovered).close();
+        assertEquals(1, recovered.size());
+        assertEquals(List.of("second"), recovered.get(0).get(0).getLines());
+        assertEquals(1, segments(directory).size());
+    }
+
+    @Test
+    void segmentTornWhileStartedIsDropped() throws IOException {
+        Path directory = Files.createTempDirectory("operation-log");
+        OperationLog log = OperationLog.open(directory, "a.txt", OLD, new ArrayList<>());
+        log.append(List.of(LineEdit.set(0, "first")));
+        log.close();
+        // A crash while starting the next segment leaves less than its base hash
+        Files.write(directory.resolve(String.format("%019d", 2) + ".log"), new byte[] {1, 2, 3});
+
+        List<List<LineEdit>> recovered = new ArrayList<>();
+        OperationLog.open(directory, "a.txt", OLD, recovered).close();
+        assertEquals(1, recovered.size());
+        assertEquals(1, segments(directory).size());
+    }
+
+    @Test
+    void fileChangedOutsideTheServerDropsTheLog() throws IOException {
+        Path directory = Files.createTempDirectory("operation-log");
+        OperationLog log = OperationLog.open(directory, "a.txt", OLD, new ArrayList<>());
+        log.append(List.of(LineEdit.set(0, "first")));
+        log.close();
+
+        List<List<LineEdit>> recovered = new ArrayList<>();
+        OperationLog.open(directory, "a.txt", OperationLog.hash("edited\n".getBytes(StandardCharsets.UTF_8)), recovered).close();
+        assertEquals(0, recovered.size());
+        assertEquals(1, segments(directory).size());
+    }
+
+    private static Path onlySegment(Path directory) throws IOException {
+        List<Path> segments = segments(directory);
+        assertEquals(1, segments.size());
+        return segments.get(0);
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package myEditorLineByLine;
+
+import myEditorCommon.DocumentRouting;
+import myEditorCommon.InProcessTransport;
+import myEditorCommon.TransportChannel;
+import myEditorCommon.TransportMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServerClusterTest {
+    private static final int EDITS = 300;
+
+    @Test
+    void editsKeepTheirOrderAcrossHandoffs() throws Exception {
+        Path directory = Files.createTempDirectory("server-cluster");
+        String fileId = Files.writeString(directory.resolve("doc.txt"), "end\n", StandardCharsets.UTF_8).toAbsolutePath().toString();
+        InProcessTransport transport = InProcessTransport.connect(new InProcessTransport.Broker());
+        TransportChannel channel = transport.createChannel();
+        channel.declareQueue("legacy");
+        // Both nodes share the files and logs, as nodes on one disk or volume do
+        DocumentStore first = store(directory);
+        DocumentStore second = store(directory);
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        ServerCluster one = ServerCluster.join("one", transport, first, 8, inserter("one", first, fileId, handled), "legacy", TransportMessage::ack);
+        ServerCluster two = null;
+        try {
+            await(() -> one.ownedPartitions() == DocumentRouting.partitions() && one.forwarding());
+
+            // Edit i goes in at line i, so the document ends up in order only if no edit was
+            // skipped, applied twice or applied out of turn while the partition changed hands
+            for (int i = 0; i < EDITS; i++) {
+                DocumentRouting.publishEdit(channel, fileId, new TransportMessage(String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+                if (i == EDITS / 3) {
+                    two = ServerCluster.join("two", transport, second, 8, inserter("two", second, fileId, handled), "legacy", TransportMessage::ack);
+                    ServerCluster joined = two;
+                    await(() -> joined.ownedPartitions() > 0
+                            && one.ownedPartitions() + joined.ownedPartitions() == DocumentRouting.partitions());
+                    assertNotEquals(one.forwarding(), joined.forwarding());
+                } else if (i == 2 * EDITS / 3) {
+                    one.close();
+                }
+                Thread.sleep(2);
+            }
+            ServerCluster last = two;
+            await(() -> handled.size() == EDITS && last.ownedPartitions() == DocumentRouting.partitions() && last.forwarding());
+
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < EDITS; i++) {
+                expected.add("line " + i);
+            }
+            expected.add("end");
+            DocumentUpdate snapshot = second.catchUp(new SyncRequest(fileId, SyncRequest.UNKNOWN_EPOCH, 0));
+            assertEquals(expected, snapshot.getLines());
+            // The node that owned the document at the end took it over from the other one
+            assertEquals("two", handled.get(EDITS - 1).split(" ")[0]);
+            assertTrue(handled.stream().anyMatch(edit -> edit.startsWith("one ")));
+        } finally {
+            one.close();
+            if (two != null) {
+                two.close();
+            }
+            first.close();
+            second.close();
+        }
+    }
+
+    private static DocumentStore store(Path directory) {
+        return new DocumentStore(new WriteBehindPolicy(10, 1), directory.resolve("oplog"), 5, 100, Long.MAX_VALUE, 1000, 100, 60_000);
+    }
+
+    /**
+     * Applies edit i as an insert of "line i" at line i, and notes which node applied it.
+     */
+    private static TransportChannel.MessageHandler inserter(String node, DocumentStore store, String fileId, List<String> handled) {
+        return delivery -> {
+            int i = Integer.parseInt(new String(delivery.getBody(), StandardCharsets.UTF_8));
+            try {
+                store.apply(fileId, List.of(new LineMessage(fileId, List.of(LineEdit.insert(i, List.of("line " + i))))));
+                handled.add(node + " " + i);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            delivery.ack();
+        };
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}